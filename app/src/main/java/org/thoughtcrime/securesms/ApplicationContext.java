@@ -47,6 +47,7 @@ import org.session.libsession.database.MessageDataProvider;
 import org.session.libsession.messaging.MessagingModuleConfiguration;
 import org.session.libsession.messaging.groups.GroupManagerV2;
 import org.session.libsession.messaging.groups.LegacyGroupDeprecationManager;
+import org.session.libsession.messaging.jobs.JobQueue;
 import org.session.libsession.messaging.notifications.TokenFetcher;
 import org.session.libsession.messaging.sending_receiving.notifications.MessageNotifier;
 import org.session.libsession.messaging.sending_receiving.pollers.LegacyClosedGroupPollerV2;
@@ -62,6 +63,7 @@ import org.session.libsession.utilities.TextSecurePreferences;
 import org.session.libsession.utilities.Toaster;
 import org.session.libsession.utilities.Util;
 import org.session.libsession.utilities.WindowDebouncer;
+import org.session.libsession.utilities.recipients.Recipient;
 import org.session.libsignal.utilities.HTTP;
 import org.session.libsignal.utilities.JsonUtil;
 import org.session.libsignal.utilities.Log;
@@ -254,12 +256,22 @@ public class ApplicationContext extends Application implements DefaultLifecycleO
         Toast.makeText(this, message, toastLength).show();
     }
 
+    private void configureJobQueue() {
+        if (org.thoughtcrime.securesms.util.Util.isLowMemory(this)) {
+            // Fewer sends and downloads at once, as each holds its message or attachment in memory
+            JobQueue.configure(new JobQueue.LaneParallelism(1, 4, 2, 1));
+        } else {
+            JobQueue.configure(new JobQueue.LaneParallelism());
+        }
+    }
+
     @Override
     public void onCreate() {
         TextSecurePreferences.setPushSuffix(BuildConfig.PUSH_KEY_SUFFIX);
 
         DatabaseModule.init(this);
         MessagingModuleConfiguration.configure(this);
+        configureJobQueue();
         super.onCreate();
 
         messagingModuleConfiguration = new MessagingModuleConfiguration(
@@ -368,6 +380,12 @@ public class ApplicationContext extends Application implements DefaultLifecycleO
         versionDataFetcher.stopTimedVersionCheck();
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        Recipient.onTrimMemory(level);
+    }
+
     @Override
     public void onTerminate() {
         stopKovenant(); // Loki
@@ -340,7 +340,8 @@ class ConversationActivityV2 : PassphraseRequiredActionBarActivity(), InputBarDe
     private val reverseMessageList = false
 
     private val adapter by lazy {
-        val cursor = mmsSmsDb.getConversation(viewModel.threadId, reverseMessageList)
+        val window = conversationWindow
+        val cursor = mmsSmsDb.getConversationWindow(viewModel.threadId, reverseMessageList, window.start, window.end)
         val adapter = ConversationAdapter(
             this,
             cursor,
@@ -386,8 +387,17 @@ class ConversationActivityV2 : PassphraseRequiredActionBarActivity(), InputBarDe
     private val cameraButton by lazy { InputBarButton(this, R.drawable.ic_baseline_photo_camera_24, hasOpaqueBackground = true) }
     private val messageToScrollTimestamp = AtomicLong(-1)
     private val messageToScrollAuthor = AtomicReference<Address?>(null)
+    private val highlightMessageToScroll = AtomicBoolean(false)
     private val firstLoad = AtomicBoolean(true)
 
+    // The part of the thread loaded into the adapter, moved as the user scrolls or jumps to a message
+    @Volatile
+    private var conversationWindow = ConversationWindow(ConversationWindow.OLDEST, ConversationWindow.NEWEST)
+    private val isLoadingPage = AtomicBoolean(false)
+    // The timestamp and offset of the message to keep in place once a new page is loaded
+    private var pageAnchor: kotlin.Pair<Long, Int>? = null
+    private val scrollToBottomOnLoad = AtomicBoolean(false)
+
     private lateinit var reactionDelegate: ConversationReactionDelegate
     private val reactWithAnyEmojiStartPage = -1
 
@@ -459,7 +469,15 @@ class ConversationActivityV2 : PassphraseRequiredActionBarActivity(), InputBarDe
             val layoutManager = binding.conversationRecyclerView.layoutManager as LinearLayoutManager
             val targetPosition = if (reverseMessageList) 0 else adapter.itemCount
 
-            if (layoutManager.isSmoothScrolling) {
+            if (!conversationWindow.isAtNewest) {
+                // The most recent messages aren't loaded, so load them first and jump to the bottom
+                lifecycleScope.launch {
+                    conversationWindow = withContext(Dispatchers.IO) { ConversationWindow.newest(mmsSmsDb, viewModel.threadId) }
+                    pageAnchor = null
+                    scrollToBottomOnLoad.set(true)
+                    LoaderManager.getInstance(this@ConversationActivityV2).restartLoader(0, null, this@ConversationActivityV2)
+                }
+            } else if (layoutManager.isSmoothScrolling) {
                 binding.conversationRecyclerView.scrollToPosition(targetPosition)
             } else {
                 // It looks like 'smoothScrollToPosition' will actually load all intermediate items in
@@ -490,18 +508,24 @@ class ConversationActivityV2 : PassphraseRequiredActionBarActivity(), InputBarDe
         val weakActivity = WeakReference(this)
 
         lifecycleScope.launch(Dispatchers.IO) {
-            // Note: We are accessing the `adapter` property because we want it to be loaded on
-            // the background thread to avoid blocking the UI thread and potentially hanging when
-            // transitioning to the activity
-            weakActivity.get()?.adapter ?: return@launch
-
             // 'Get' instead of 'GetAndSet' here because we want to trigger the highlight in 'onFirstLoad'
             // by triggering 'jumpToMessage' using these values
             val messageTimestamp = messageToScrollTimestamp.get()
             val author = messageToScrollAuthor.get()
-            val targetPosition = if (author != null && messageTimestamp >= 0) mmsSmsDb.getMessagePositionInConversation(viewModel.threadId, messageTimestamp, author, reverseMessageList) else -1
+
+            // Only load the messages around the one we open the conversation at
+            val anchorTimestamp = if (author != null && messageTimestamp >= 0) messageTimestamp
+                else threadDb.getLastSeenAndHasSent(viewModel.threadId).first()
+            conversationWindow = ConversationWindow.around(mmsSmsDb, viewModel.threadId, anchorTimestamp)
+
+            // Note: We are accessing the `adapter` property because we want it to be loaded on
+            // the background thread to avoid blocking the UI thread and potentially hanging when
+            // transitioning to the activity
+            weakActivity.get()?.adapter ?: return@launch
 
             withContext(Dispatchers.Main) {
+                val targetPosition = if (author != null && messageTimestamp >= 0) adapter.getItemPositionForMessage(messageTimestamp, author) ?: -1 else -1
+
                 setUpRecyclerView()
                 setUpTypingObserver()
                 setUpRecipientObserver()
@@ -616,13 +640,23 @@ class ConversationActivityV2 : PassphraseRequiredActionBarActivity(), InputBarDe
     }
 
     override fun onCreateLoader(id: Int, bundle: Bundle?): Loader<Cursor> {
-        return ConversationLoader(viewModel.threadId, reverseMessageList, this@ConversationActivityV2)
+        return ConversationLoader(viewModel.threadId, reverseMessageList, conversationWindow, this@ConversationActivityV2)
     }
 
     override fun onLoadFinished(loader: Loader<Cursor>, cursor: Cursor?) {
         val oldCount = adapter.itemCount
         val newCount = cursor?.count ?: 0
         adapter.changeCursor(cursor)
+        isLoadingPage.set(false)
+
+        // Keep the messages on screen in place when a page was added or dropped
+        pageAnchor?.let { (timestamp, offset) ->
+            pageAnchor = null
+            adapter.getItemPositionForTimestamp(timestamp)?.let { layoutManager?.scrollToPositionWithOffset(it, offset) }
+        }
+        if (scrollToBottomOnLoad.getAndSet(false)) {
+            binding.conversationRecyclerView.scrollToPosition(if (reverseMessageList) 0 else adapter.itemCount)
+        }
 
         if (cursor != null) {
             val messageTimestamp = messageToScrollTimestamp.getAndSet(-1)
@@ -639,7 +673,7 @@ class ConversationActivityV2 : PassphraseRequiredActionBarActivity(), InputBarDe
             }
 
             if (author != null && messageTimestamp >= 0) {
-                jumpToMessage(author, messageTimestamp, firstLoad.get(), null)
+                jumpToMessage(author, messageTimestamp, firstLoad.get() || highlightMessageToScroll.getAndSet(false), null)
             } else {
                 if (firstLoad.getAndSet(false)) scrollToFirstUnreadMessageIfNeeded(true)
                 handleRecyclerViewScrolled()
@@ -671,6 +705,7 @@ class ConversationActivityV2 : PassphraseRequiredActionBarActivity(), InputBarDe
                     scrollToMostRecentMessageIfWeShould()
                 }
                 handleRecyclerViewScrolled()
+                loadPageIfNeeded()
             }
 
             override fun onScrollStateChanged(recyclerView: RecyclerView, newState: Int) {
@@ -685,6 +720,40 @@ class ConversationActivityV2 : PassphraseRequiredActionBarActivity(), InputBarDe
         }
     }
 
+    // Loads the next page of messages once the user scrolls close to an edge of the loaded window
+    private fun loadPageIfNeeded() {
+        val layoutManager = this.layoutManager ?: return
+        val firstVisible = layoutManager.findFirstVisibleItemPosition()
+        val lastVisible = layoutManager.findLastVisibleItemPosition()
+        if (firstVisible == RecyclerView.NO_POSITION || isLoadingPage.get()) return
+
+        val window = conversationWindow
+        val lastPosition = adapter.itemCount - 1
+        val distanceToOldest = if (reverseMessageList) lastPosition - lastVisible else firstVisible
+        val distanceToNewest = if (reverseMessageList) firstVisible else lastPosition - lastVisible
+        val loadOlder = !window.isAtOldest && distanceToOldest < ConversationWindow.PREFETCH_DISTANCE
+        val loadNewer = !window.isAtNewest && distanceToNewest < ConversationWindow.PREFETCH_DISTANCE
+        if (!loadOlder && !loadNewer) return
+
+        val anchorTimestamp = adapter.getTimestampForItemAt(firstVisible) ?: return
+        val anchorOffset = layoutManager.findViewByPosition(firstVisible)?.top ?: 0
+        if (!isLoadingPage.compareAndSet(false, true)) return
+
+        lifecycleScope.launch {
+            val newWindow = withContext(Dispatchers.IO) {
+                if (loadOlder) window.extendOlder(mmsSmsDb, viewModel.threadId)
+                else window.extendNewer(mmsSmsDb, viewModel.threadId)
+            }
+            if (newWindow == window) {
+                isLoadingPage.set(false)
+                return@launch
+            }
+            conversationWindow = newWindow
+            pageAnchor = anchorTimestamp to anchorOffset
+            LoaderManager.getInstance(this@ConversationActivityV2).restartLoader(0, null, this@ConversationActivityV2)
+        }
+    }
+
     private fun scrollToMostRecentMessageIfWeShould() {
         // Grab an initial 'previous' last visible message..
         if (previousLastVisibleRecyclerViewIndex == RecyclerView.NO_POSITION) {
@@ -2479,9 +2548,27 @@ class ConversationActivityV2 : PassphraseRequiredActionBarActivity(), InputBarDe
     }
 
     private fun jumpToMessage(author: Address, timestamp: Long, highlight: Boolean, onMessageNotFound: Runnable?) {
+        if (timestamp in conversationWindow) {
+            moveToMessagePosition(adapter.getItemPositionForMessage(timestamp, author) ?: -1, highlight, onMessageNotFound)
+            return
+        }
+
+        // The message isn't loaded, so load the messages around it and jump once they are
         SimpleTask.run(lifecycle, {
-            mmsSmsDb.getMessagePositionInConversation(viewModel.threadId, timestamp, author, reverseMessageList)
-        }) { p: Int -> moveToMessagePosition(p, highlight, onMessageNotFound) }
+            if (mmsSmsDb.getMessageFor(timestamp, author) == null) null
+            else ConversationWindow.around(mmsSmsDb, viewModel.threadId, timestamp)
+        }) { window: ConversationWindow? ->
+            if (window == null) {
+                onMessageNotFound?.run()
+                return@run
+            }
+            conversationWindow = window
+            pageAnchor = null
+            messageToScrollAuthor.set(author)
+            messageToScrollTimestamp.set(timestamp)
+            highlightMessageToScroll.set(highlight)
+            LoaderManager.getInstance(this).restartLoader(0, null, this)
+        }
     }
 
     private fun moveToMessagePosition(position: Int, highlight: Boolean, onMessageNotFound: Runnable?) {
@@ -2524,7 +2611,7 @@ class ConversationActivityV2 : PassphraseRequiredActionBarActivity(), InputBarDe
     inner class ConversationAdapterDataObserver(val recyclerView: ConversationRecyclerView, val adapter: ConversationAdapter) : RecyclerView.AdapterDataObserver() {
         override fun onChanged() {
             super.onChanged()
-            if (recyclerView.isScrolledToWithin30dpOfBottom) {
+            if (conversationWindow.isAtNewest && recyclerView.isScrolledToWithin30dpOfBottom) {
                 // Note: The adapter itemCount is zero based - so calling this with the itemCount in
                 // a non-zero based manner scrolls us to the bottom of the last message (including
                 // to the bottom of long messages as required by Jira SES-789 / GitHub 1364).
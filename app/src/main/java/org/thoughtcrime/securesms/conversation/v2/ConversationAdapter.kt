@@ -2,6 +2,7 @@ package org.thoughtcrime.securesms.conversation.v2
 
 import android.content.Context
 import android.database.Cursor
+import android.util.LruCache
 import android.util.SparseArray
 import android.util.SparseBooleanArray
 import android.view.MotionEvent
@@ -11,6 +12,7 @@ import androidx.annotation.WorkerThread
 import androidx.core.util.getOrDefault
 import androidx.core.util.set
 import androidx.lifecycle.LifecycleCoroutineScope
+import androidx.recyclerview.widget.RecyclerView.AdapterDataObserver
 import androidx.recyclerview.widget.RecyclerView.ViewHolder
 import com.bumptech.glide.RequestManager
 import kotlinx.coroutines.Dispatchers.IO
@@ -20,6 +22,8 @@ import kotlinx.coroutines.isActive
 import kotlinx.coroutines.launch
 import org.session.libsession.messaging.contacts.Contact
 import org.session.libsession.messaging.sending_receiving.attachments.DatabaseAttachment
+import org.session.libsession.utilities.Address
+import org.session.libsession.utilities.Util
 import org.session.libsession.utilities.recipients.Recipient
 import org.session.libsignal.utilities.AccountId
 import org.thoughtcrime.securesms.conversation.v2.messages.ControlMessageView
@@ -57,6 +61,16 @@ class ConversationAdapter(
     private val contactLoadedCache = SparseBooleanArray(100)
     private val lastSeen = AtomicLong(originalLastSeen)
 
+    // Decoded messages by cursor position, so binding a row doesn't decode it and its neighbours again.
+    // Rows are also decoded ahead of the scroll on a background thread, so every use of the cursor
+    // goes through cursorLock and leaves the cursor where it found it.
+    private val messageCache = LruCache<Int, MessageRecord>(MESSAGE_CACHE_SIZE)
+    private val cursorLock = Any()
+    private val prefetchQueue = Channel<IntProgression>(Channel.CONFLATED)
+    private var lastBoundPosition = -1
+    // Cursor positions by message timestamp, built the first time a timestamp is looked up
+    private var positionsByTimestamp: Map<Long, Int>? = null
+
     private val groupId = if(conversation?.isGroupV2Recipient == true)
         AccountId(conversation.address.serialize())
     else null
@@ -70,6 +84,24 @@ class ConversationAdapter(
                 contactLoadedCache[item.hashCode()] = true
             }
         }
+        lifecycleCoroutineScope.launch(IO) {
+            while (isActive) {
+                for (position in prefetchQueue.receive()) {
+                    if (!isActive || getMessageAt(position) == null) break
+                }
+            }
+        }
+        registerAdapterDataObserver(object : AdapterDataObserver() {
+            override fun onItemRangeChanged(positionStart: Int, itemCount: Int) {
+                for (position in positionStart until positionStart + itemCount) {
+                    messageCache.remove(position)
+                }
+            }
+
+            override fun onItemRangeInserted(positionStart: Int, itemCount: Int) = invalidateMessages()
+            override fun onItemRangeRemoved(positionStart: Int, itemCount: Int) = invalidateMessages()
+            override fun onItemRangeMoved(fromPosition: Int, toPosition: Int, itemCount: Int) = invalidateMessages()
+        })
     }
 
     @WorkerThread
@@ -94,7 +126,7 @@ class ConversationAdapter(
     class ControlMessageViewHolder(val view: ControlMessageView) : ViewHolder(view)
 
     override fun getItemViewType(cursor: Cursor): Int {
-        val message = getMessage(cursor)!!
+        val message = getMessageAt(positionOf(cursor))!!
         if (message.isControlMessage) { return ViewType.Control.rawValue }
         return ViewType.Visible.rawValue
     }
@@ -110,9 +142,10 @@ class ConversationAdapter(
     }
 
     override fun onBindItemViewHolder(viewHolder: ViewHolder, cursor: Cursor) {
-        val message = getMessage(cursor)!!
-        val position = viewHolder.adapterPosition
-        val messageBefore = getMessageBefore(position, cursor)
+        val position = positionOf(cursor)
+        val message = getMessageAt(position)!!
+        val messageBefore = getMessageBefore(position)
+        prefetchFrom(position)
         when (viewHolder) {
             is VisibleMessageViewHolder -> {
                 val visibleMessageView = viewHolder.view
@@ -136,7 +169,7 @@ class ConversationAdapter(
                 visibleMessageView.bind(
                     message,
                     messageBefore,
-                    getMessageAfter(position, cursor),
+                    getMessageAfter(position),
                     glide,
                     searchQuery,
                     contact,
@@ -193,30 +226,64 @@ class ConversationAdapter(
         super.onItemViewRecycled(viewHolder)
     }
 
-    private fun getMessage(cursor: Cursor): MessageRecord? {
-        return messageDB.readerFor(cursor).current
+    override fun getCursorAtPositionOrThrow(position: Int): Cursor = synchronized(cursorLock) {
+        super.getCursorAtPositionOrThrow(position)
     }
 
-    private fun getMessageBefore(position: Int, cursor: Cursor): MessageRecord? {
+    private fun positionOf(cursor: Cursor): Int = synchronized(cursorLock) { cursor.position }
+
+    private fun getMessageAt(position: Int): MessageRecord? {
+        messageCache[position]?.let { return it }
+        synchronized(cursorLock) {
+            val cursor = this.cursor
+            if (cursor == null || !isActiveCursor || cursor.isClosed) return null
+            val current = cursor.position
+            try {
+                if (!cursor.moveToPosition(position)) return null
+                return messageDB.readerFor(cursor).current?.also { messageCache.put(position, it) }
+            } finally {
+                cursor.moveToPosition(current)
+            }
+        }
+    }
+
+    private fun getMessageBefore(position: Int): MessageRecord? {
         // The message that's visually before the current one is actually after the current
         // one for the cursor because the layout is reversed
-        if (isReversed &&  !cursor.moveToPosition(position + 1)) { return null }
-        if (!isReversed && !cursor.moveToPosition(position - 1)) { return null }
-
-        return messageDB.readerFor(cursor).current
+        return getMessageAt(if (isReversed) position + 1 else position - 1)
     }
 
-    private fun getMessageAfter(position: Int, cursor: Cursor): MessageRecord? {
+    private fun getMessageAfter(position: Int): MessageRecord? {
         // The message that's visually after the current one is actually before the current
         // one for the cursor because the layout is reversed
-        if (isReversed && !cursor.moveToPosition(position - 1)) { return null }
-        if (!isReversed && !cursor.moveToPosition(position + 1)) { return null }
+        return getMessageAt(if (isReversed) position - 1 else position + 1)
+    }
+
+    // Decodes the rows coming up next in the direction the list is being scrolled. The rows right
+    // next to the bound one are already decoded as its neighbours.
+    private fun prefetchFrom(position: Int) {
+        val positions = if (position >= lastBoundPosition) {
+            (position + 2)..(position + PREFETCH_COUNT)
+        } else {
+            (position - 2) downTo (position - PREFETCH_COUNT)
+        }
+        lastBoundPosition = position
+        prefetchQueue.trySend(positions)
+    }
 
-        return messageDB.readerFor(cursor).current
+    private fun invalidateMessages() {
+        synchronized(cursorLock) {
+            messageCache.evictAll()
+            positionsByTimestamp = null
+        }
     }
 
     override fun changeCursor(cursor: Cursor?) {
-        super.changeCursor(cursor)
+        synchronized(cursorLock) {
+            super.changeCursor(cursor)
+            invalidateMessages()
+        }
+        lastBoundPosition = -1
 
         val toRemove = mutableSetOf<MessageRecord>()
         val toDeselect = mutableSetOf<Pair<Int, MessageRecord>>()
@@ -225,7 +292,7 @@ class ConversationAdapter(
             if (position == null || position == -1) {
                 toRemove += selected
             } else {
-                val item = getMessage(getCursorAtPositionOrThrow(position))
+                val item = getMessageAt(position)
                 if (item == null || item.isDeleted) {
                     toDeselect += position to selected
                 }
@@ -237,7 +304,7 @@ class ConversationAdapter(
         }
     }
 
-    fun findLastSeenItemPosition(lastSeenTimestamp: Long): Int? {
+    fun findLastSeenItemPosition(lastSeenTimestamp: Long): Int? = synchronized(cursorLock) {
         val cursor = this.cursor
         if (cursor == null || !isActiveCursor) return null
         if (lastSeenTimestamp == 0L) {
@@ -267,13 +334,38 @@ class ConversationAdapter(
         return null
     }
 
-    fun getItemPositionForTimestamp(timestamp: Long): Int? {
+    fun getItemPositionForTimestamp(timestamp: Long): Int? = synchronized(cursorLock) {
         val cursor = this.cursor
         if (timestamp <= 0L || cursor == null || !isActiveCursor) return null
-        for (i in 0 until itemCount) {
-            cursor.moveToPosition(i)
-            val (_, dateSent) = messageDB.timestampAndDirectionForCurrent(cursor)
-            if (dateSent == timestamp) { return i }
+        val positions = positionsByTimestamp ?: HashMap<Long, Int>(itemCount).also { positions ->
+            val current = cursor.position
+            for (i in 0 until itemCount) {
+                cursor.moveToPosition(i)
+                val (_, dateSent) = messageDB.timestampAndDirectionForCurrent(cursor)
+                // Keep the first message with a given timestamp, as a scan from the start would find
+                positions.putIfAbsent(dateSent, i)
+            }
+            cursor.moveToPosition(current)
+            positionsByTimestamp = positions
+        }
+        return positions[timestamp]
+    }
+
+    /**
+     * The position of the message sent at [timestamp] by [author], matched the way
+     * [org.thoughtcrime.securesms.database.MmsSmsDatabase.getMessageFor] does, as messages from
+     * different senders can share a timestamp.
+     */
+    fun getItemPositionForMessage(timestamp: Long, author: Address): Int? {
+        val first = getItemPositionForTimestamp(timestamp) ?: return null
+        val isOwnNumber = Util.isOwnNumber(context, author.serialize())
+        // The cursor is ordered by timestamp, so the messages sharing one are next to each other
+        for (position in first until itemCount) {
+            val message = getMessageAt(position) ?: return null
+            if (message.dateSent != timestamp) return null
+            if (if (isOwnNumber) message.isOutgoing else message.individualRecipient.address == author) {
+                return position
+            }
         }
         return null
     }
@@ -284,9 +376,11 @@ class ConversationAdapter(
     }
 
     fun getTimestampForItemAt(firstVisiblePosition: Int): Long? {
-        val cursor = this.cursor ?: return null
-        if (!cursor.moveToPosition(firstVisiblePosition)) return null
-        val message = messageDB.readerFor(cursor).current ?: return null
-        return message.timestamp
+        return getMessageAt(firstVisiblePosition)?.timestamp
+    }
+
+    companion object {
+        private const val MESSAGE_CACHE_SIZE = 150
+        private const val PREFETCH_COUNT = 10
     }
 }
\ No newline at end of file
@@ -9,11 +9,12 @@ import org.thoughtcrime.securesms.util.AbstractCursorLoader
 class ConversationLoader(
     private val threadID: Long,
     private val reverse: Boolean,
+    private val window: ConversationWindow,
     context: Context
 ) : AbstractCursorLoader(context) {
 
     override fun getCursor(): Cursor {
         MessagingModuleConfiguration.shared.lastSentTimestampCache.refresh(threadID)
-        return DatabaseComponent.get(context).mmsSmsDatabase().getConversation(threadID, reverse)
+        return DatabaseComponent.get(context).mmsSmsDatabase().getConversationWindow(threadID, reverse, window.start, window.end)
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,60 @@
+package org.thoughtcrime.securesms.conversation.v2
+
+import org.thoughtcrime.securesms.database.MmsSmsDatabase
+import kotlin.math.max
+
+/**
+ * The part of a thread loaded into the conversation, keyed on the sent date of its messages so
+ * that it stays put while messages are added or removed. Both bounds are inclusive, which keeps
+ * messages sharing a sent date together. The window is capped at [MAX_SIZE] messages: when it
+ * grows in one direction, messages far away on the other side are dropped.
+ */
+data class ConversationWindow(val start: Long, val end: Long) {
+
+    val isAtOldest: Boolean get() = start == OLDEST
+    val isAtNewest: Boolean get() = end == NEWEST
+
+    operator fun contains(dateSent: Long): Boolean = dateSent >= start && (isAtNewest || dateSent <= end)
+
+    fun extendOlder(db: MmsSmsDatabase, threadId: Long): ConversationWindow {
+        if (isAtOldest) return this
+        val newStart = db.getDateSentAtDistance(threadId, start, PAGE_SIZE, true).orIfMissing(OLDEST)
+        val trimmedEnd = db.getDateSentAtDistance(threadId, newStart, MAX_SIZE, false)
+        val newEnd = if (trimmedEnd == MISSING || (!isAtNewest && trimmedEnd >= end)) end else trimmedEnd
+        return ConversationWindow(newStart, newEnd)
+    }
+
+    fun extendNewer(db: MmsSmsDatabase, threadId: Long): ConversationWindow {
+        if (isAtNewest) return this
+        val newEnd = db.getDateSentAtDistance(threadId, end, PAGE_SIZE, false).orIfMissing(NEWEST)
+        val trimmedStart = db.getDateSentAtDistance(threadId, if (newEnd == NEWEST) Long.MAX_VALUE else newEnd, MAX_SIZE, true)
+        val newStart = if (trimmedStart == MISSING) start else max(start, trimmedStart)
+        return ConversationWindow(newStart, newEnd)
+    }
+
+    companion object {
+        const val OLDEST = 0L
+        const val NEWEST = -1L
+
+        const val PAGE_SIZE = 100
+        const val MAX_SIZE = 5 * PAGE_SIZE
+        // How close to either edge of the window the user can scroll before the next page is loaded
+        const val PREFETCH_DISTANCE = 20
+
+        private const val MISSING = -1L
+
+        fun newest(db: MmsSmsDatabase, threadId: Long): ConversationWindow =
+            ConversationWindow(db.getDateSentAtDistance(threadId, Long.MAX_VALUE, PAGE_SIZE, true).orIfMissing(OLDEST), NEWEST)
+
+        /**
+         * A page of messages on both sides of [dateSent], used to open a thread at its last seen
+         * message or to jump to a quote or search result.
+         */
+        fun around(db: MmsSmsDatabase, threadId: Long, dateSent: Long): ConversationWindow = ConversationWindow(
+            db.getDateSentAtDistance(threadId, dateSent, PAGE_SIZE, true).orIfMissing(OLDEST),
+            db.getDateSentAtDistance(threadId, dateSent, PAGE_SIZE, false).orIfMissing(NEWEST)
+        )
+
+        private fun Long.orIfMissing(bound: Long) = if (this == MISSING) bound else this
+    }
+}
@@ -30,7 +30,6 @@ import kotlinx.coroutines.withContext
 import network.noth.messenger.R
 import network.noth.messenger.libsession_util.allWithStatus
 import org.session.libsession.messaging.contacts.Contact
-import org.session.libsession.messaging.utilities.SodiumUtilities
 import org.session.libsession.utilities.ConfigFactoryProtocol
 import org.session.libsignal.utilities.AccountId
 import org.session.libsignal.utilities.IdPrefix
@@ -142,8 +141,7 @@ class MentionViewModel(
 
                 val myId = if (openGroup != null) {
                     AccountId(IdPrefix.BLINDED,
-                        SodiumUtilities.blindedKeyPair(openGroup.publicKey,
-                            requireNotNull(storage.getUserED25519KeyPair()))!!.publicKey.asBytes)
+                        requireNotNull(storage.getUserBlindedKeyPair(openGroup.publicKey)).publicKey.asBytes)
                         .hexString
                 } else {
                     requireNotNull(storage.getUserPublicKey())
@@ -7,7 +7,6 @@ import android.view.MenuItem
 import network.noth.messenger.R
 import org.session.libsession.messaging.MessagingModuleConfiguration
 import org.session.libsession.messaging.groups.LegacyGroupDeprecationManager
-import org.session.libsession.messaging.utilities.SodiumUtilities
 import org.session.libsession.utilities.TextSecurePreferences
 import org.session.libsignal.utilities.IdPrefix
 import org.session.libsignal.utilities.AccountId
@@ -42,8 +41,7 @@ class ConversationActionModeCallback(
         val openGroup = DatabaseComponent.get(context).lokiThreadDatabase().getOpenGroupChat(threadID)
         val thread = DatabaseComponent.get(context).threadDatabase().getRecipientForThreadId(threadID)!!
         val userPublicKey = TextSecurePreferences.getLocalNumber(context)!!
-        val edKeyPair = MessagingModuleConfiguration.shared.storage.getUserED25519KeyPair()!!
-        val blindedPublicKey = openGroup?.publicKey?.let { SodiumUtilities.blindedKeyPair(it, edKeyPair)?.publicKey?.asBytes }
+        val blindedPublicKey = openGroup?.publicKey?.let { MessagingModuleConfiguration.shared.storage.getUserBlindedKeyPair(it)?.publicKey?.asBytes }
             ?.let { AccountId(IdPrefix.BLINDED, it) }?.hexString
 
         val isDeprecatedLegacyGroup = thread.isLegacyGroupRecipient &&
@@ -34,6 +34,7 @@ import org.session.libsignal.exceptions.InvalidKeyException;
 import org.session.libsignal.utilities.Base64;
 
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import kotlin.Unit;
 import kotlinx.coroutines.channels.BufferOverflow;
@@ -64,10 +65,19 @@ public class IdentityKeyUtil {
 
   public static final MutableSharedFlow<Unit> CHANGES = SharedFlowKt.MutableSharedFlow(0, 1, BufferOverflow.DROP_LATEST);
 
+  private static final AtomicInteger VERSION = new AtomicInteger();
+
   private static SharedPreferences getSharedPreferences(Context context) {
     return context.getSharedPreferences(MASTER_SECRET_UTIL_PREFERENCES_NAME, 0);
   }
 
+  /**
+   * Changes every time a key is saved or deleted, so that copies of the keys can tell they're stale.
+   */
+  public static int getVersion() {
+    return VERSION.get();
+  }
+
   public static boolean hasIdentityKey(Context context) {
     SharedPreferences preferences = getSharedPreferences(context);
 
@@ -166,11 +176,13 @@ public class IdentityKeyUtil {
     }
 
     if (!preferencesEditor.commit()) throw new AssertionError("failed to save identity key/value to shared preferences");
+    VERSION.incrementAndGet();
     CHANGES.tryEmit(Unit.INSTANCE);
   }
 
   public static void delete(Context context, String key) {
     context.getSharedPreferences(MASTER_SECRET_UTIL_PREFERENCES_NAME, 0).edit().remove(key).commit();
+    VERSION.incrementAndGet();
     CHANGES.tryEmit(Unit.INSTANCE);
   }
 }
@@ -0,0 +1,111 @@
+package org.thoughtcrime.securesms.crypto
+
+import android.content.Context
+import com.goterl.lazysodium.utils.Key
+import com.goterl.lazysodium.utils.KeyPair
+import dagger.hilt.android.qualifiers.ApplicationContext
+import org.session.libsession.messaging.utilities.SodiumUtilities
+import org.session.libsignal.crypto.ecc.DjbECPrivateKey
+import org.session.libsignal.crypto.ecc.DjbECPublicKey
+import org.session.libsignal.crypto.ecc.ECKeyPair
+import org.session.libsignal.utilities.Base64
+import org.session.libsignal.utilities.removingIdPrefixIfNeeded
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * The user's key pairs, read from the key store and decoded once rather than for every message
+ * that's received, signed or sent.
+ *
+ * Callers only ever get copies of the keys. The cached keys are wiped whenever a key is saved or
+ * deleted through [IdentityKeyUtil], and when [clear] is called as the account is cleared.
+ */
+@Singleton
+class UserKeyMaterial @Inject constructor(@ApplicationContext private val context: Context) {
+    private val lock = Any()
+
+    // The IdentityKeyUtil version the cached keys were read at
+    private var version = -1
+    private var ed25519PublicKey: ByteArray? = null
+    private var ed25519SecretKey: ByteArray? = null
+    private var x25519PublicKey: ByteArray? = null
+    private var x25519PrivateKey: ByteArray? = null
+    // Blinded key pairs by community server public key
+    private val blindedKeyPairs = hashMapOf<String, Pair<ByteArray, ByteArray>>()
+
+    fun getEd25519KeyPair(): KeyPair? = synchronized(lock) {
+        invalidateIfChanged()
+        if (ed25519PublicKey == null || ed25519SecretKey == null) {
+            val publicKey = IdentityKeyUtil.retrieve(context, IdentityKeyUtil.ED25519_PUBLIC_KEY) ?: return null
+            val secretKey = IdentityKeyUtil.retrieve(context, IdentityKeyUtil.ED25519_SECRET_KEY) ?: return null
+            ed25519PublicKey = Base64.decode(publicKey)
+            ed25519SecretKey = Base64.decode(secretKey)
+        }
+        KeyPair(Key.fromBytes(ed25519PublicKey!!.copyOf()), Key.fromBytes(ed25519SecretKey!!.copyOf()))
+    }
+
+    fun getX25519KeyPair(): ECKeyPair = synchronized(lock) {
+        invalidateIfChanged()
+        if (x25519PublicKey == null || x25519PrivateKey == null) {
+            val keyPair = IdentityKeyUtil.getIdentityKeyPair(context)
+            x25519PublicKey = keyPair.publicKey.serialize().removingIdPrefixIfNeeded()
+            x25519PrivateKey = keyPair.privateKey.serialize().copyOf()
+        }
+        ECKeyPair(DjbECPublicKey(x25519PublicKey!!.copyOf()), DjbECPrivateKey(x25519PrivateKey!!.copyOf()))
+    }
+
+    /**
+     * The user's blinded key pair on the community server with the given public key.
+     */
+    fun getBlindedKeyPair(serverPublicKey: String): KeyPair? {
+        val readVersion = synchronized(lock) {
+            invalidateIfChanged()
+            blindedKeyPairs[serverPublicKey]?.let { (publicKey, secretKey) ->
+                return KeyPair(Key.fromBytes(publicKey.copyOf()), Key.fromBytes(secretKey.copyOf()))
+            }
+            version
+        }
+
+        // Blinding is comparatively slow, so it's done without holding up the other keys
+        val edKeyPair = getEd25519KeyPair() ?: return null
+        val blindedKeyPair = SodiumUtilities.blindedKeyPair(serverPublicKey, edKeyPair)
+        edKeyPair.secretKey.asBytes.fill(0)
+        blindedKeyPair ?: return null
+
+        synchronized(lock) {
+            if (version == readVersion) {
+                blindedKeyPairs[serverPublicKey] = blindedKeyPair.publicKey.asBytes.copyOf() to blindedKeyPair.secretKey.asBytes.copyOf()
+            }
+        }
+        return blindedKeyPair
+    }
+
+    /**
+     * Wipes the cached keys, for when the account is cleared.
+     */
+    fun clear() = synchronized(lock) {
+        wipe()
+        version = -1
+    }
+
+    private fun invalidateIfChanged() {
+        val current = IdentityKeyUtil.getVersion()
+        if (current != version) {
+            wipe()
+            version = current
+        }
+    }
+
+    private fun wipe() {
+        listOfNotNull(ed25519PublicKey, ed25519SecretKey, x25519PublicKey, x25519PrivateKey).forEach { it.fill(0) }
+        ed25519PublicKey = null
+        ed25519SecretKey = null
+        x25519PublicKey = null
+        x25519PrivateKey = null
+        blindedKeyPairs.values.forEach { (publicKey, secretKey) ->
+            publicKey.fill(0)
+            secretKey.fill(0)
+        }
+        blindedKeyPairs.clear()
+    }
+}
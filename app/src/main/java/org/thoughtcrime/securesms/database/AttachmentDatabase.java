@@ -44,6 +44,7 @@ import org.session.libsession.messaging.sending_receiving.attachments.Attachment
 import org.session.libsession.messaging.sending_receiving.attachments.DatabaseAttachment;
 import org.session.libsession.messaging.sending_receiving.attachments.DatabaseAttachmentAudioExtras;
 import org.session.libsession.utilities.MediaTypes;
+import org.session.libsession.utilities.RangedDownload;
 import org.session.libsession.utilities.Util;
 import org.session.libsignal.utilities.ExternalStorageUtil;
 import org.session.libsignal.utilities.JsonUtil;
@@ -284,9 +285,10 @@ public class AttachmentDatabase extends Database {
     Cursor cursor = null;
     List<MmsAttachmentInfo> attachmentInfos = new ArrayList<>();
     try {
-      cursor = database.query(TABLE_NAME, new String[] { DATA, THUMBNAIL, CONTENT_TYPE}, idsAsString, null, null, null, null);
+      cursor = database.query(TABLE_NAME, new String[] { DATA, THUMBNAIL, CONTENT_TYPE, ROW_ID}, idsAsString, null, null, null, null);
       while (cursor != null && cursor.moveToNext()) {
         attachmentInfos.add(new MmsAttachmentInfo(cursor.getString(0), cursor.getString(1), cursor.getString(2)));
+        deletePartialDownload(cursor.getLong(3));
       }
     } finally {
       if (cursor != null) {
@@ -304,11 +306,12 @@ public class AttachmentDatabase extends Database {
     Cursor cursor           = null;
 
     try {
-      cursor = database.query(TABLE_NAME, new String[] {DATA, THUMBNAIL, CONTENT_TYPE}, MMS_ID + " = ?",
+      cursor = database.query(TABLE_NAME, new String[] {DATA, THUMBNAIL, CONTENT_TYPE, ROW_ID}, MMS_ID + " = ?",
                               new String[] {mmsId+""}, null, null, null);
 
       while (cursor != null && cursor.moveToNext()) {
         deleteAttachmentOnDisk(cursor.getString(0), cursor.getString(1), cursor.getString(2));
+        deletePartialDownload(cursor.getLong(3));
       }
     } finally {
       if (cursor != null)
@@ -326,11 +329,12 @@ public class AttachmentDatabase extends Database {
     String mmsIdString = StringUtils.join(mmsIds, ',');
 
     try {
-      cursor = database.query(TABLE_NAME, new String[] {DATA, THUMBNAIL, CONTENT_TYPE}, MMS_ID + " IN (?)",
+      cursor = database.query(TABLE_NAME, new String[] {DATA, THUMBNAIL, CONTENT_TYPE, ROW_ID}, MMS_ID + " IN (?)",
               new String[] {mmsIdString}, null, null, null);
 
       while (cursor != null && cursor.moveToNext()) {
         deleteAttachmentOnDisk(cursor.getString(0), cursor.getString(1), cursor.getString(2));
+        deletePartialDownload(cursor.getLong(3));
       }
     } finally {
       if (cursor != null)
@@ -362,6 +366,7 @@ public class AttachmentDatabase extends Database {
 
       database.delete(TABLE_NAME, PART_ID_WHERE, id.toStrings());
       deleteAttachmentOnDisk(data, thumbnail, contentType);
+      deletePartialDownload(id.getRowId());
       notifyAttachmentListeners();
     }
   }
@@ -405,6 +410,12 @@ public class AttachmentDatabase extends Database {
     }
   }
 
+  // Drops whatever an interrupted download of the attachment left behind
+  @SuppressWarnings("ResultOfMethodCallIgnored")
+  private void deletePartialDownload(long rowId) {
+    RangedDownload.getPartialAttachmentFile(context, rowId).delete();
+  }
+
   @SuppressWarnings("ResultOfMethodCallIgnored")
   private void deleteAttachmentOnDisk(@Nullable String data, @Nullable String thumbnail, @Nullable String contentType) {
     if (!TextUtils.isEmpty(data)) {
@@ -7,6 +7,7 @@ import org.thoughtcrime.securesms.ApplicationContext
 
 class ConversationNotificationDebouncer(private val context: ApplicationContext) {
     private val threadIDs = mutableSetOf<Long>()
+    private val conversationListThreadIDs = mutableSetOf<Long>()
     private val handler = context.conversationListNotificationHandler
     private val debouncer = Debouncer(handler, 100)
 
@@ -30,15 +31,31 @@ class ConversationNotificationDebouncer(private val context: ApplicationContext)
         debouncer.publish { publish() }
     }
 
+    /**
+     * Notifies observers of the conversation list that only the row of [threadID] changed.
+     */
+    fun notifyConversationList(threadID: Long) {
+        synchronized(threadIDs) {
+            conversationListThreadIDs.add(threadID)
+        }
+
+        debouncer.publish { publish() }
+    }
+
     private fun publish() {
-        val toNotify = synchronized(threadIDs) {
-            val copy = threadIDs.toList()
+        val (toNotify, conversationListToNotify) = synchronized(threadIDs) {
+            val copy = threadIDs.toList() to conversationListThreadIDs.toList()
             threadIDs.clear()
+            conversationListThreadIDs.clear()
             copy
         }
 
         for (threadID in toNotify) {
             context.contentResolver.notifyChange(DatabaseContentProviders.Conversation.getUriForThread(threadID), null)
         }
+
+        for (threadID in conversationListToNotify) {
+            context.contentResolver.notifyChange(DatabaseContentProviders.ConversationList.getUriForThread(threadID), null)
+        }
     }
 }
\ No newline at end of file
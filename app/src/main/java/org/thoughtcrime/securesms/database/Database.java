@@ -27,11 +27,16 @@ import androidx.annotation.NonNull;
 import net.zetetic.database.sqlcipher.SQLiteDatabase;
 
 import org.session.libsession.utilities.WindowDebouncer;
+import org.session.libsession.utilities.recipients.Recipient;
 import org.session.libsignal.utilities.Log;
 import org.thoughtcrime.securesms.ApplicationContext;
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
+import org.thoughtcrime.securesms.dependencies.DatabaseComponent;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 
 public abstract class Database {
@@ -39,6 +44,9 @@ public abstract class Database {
   protected static final String ID_WHERE = "_id = ?";
   protected static final String ID_IN = "_id IN (?)";
 
+  // Notifications raised on this thread while a transaction is open, posted once it has ended
+  private static final ThreadLocal<List<Runnable>> deferredNotifications = new ThreadLocal<>();
+
   protected       SQLCipherOpenHelper databaseHelper;
   protected final Context             context;
   private   final WindowDebouncer     conversationListNotificationDebouncer;
@@ -60,24 +68,41 @@ public abstract class Database {
   }
 
   protected void notifyConversationListeners(long threadId) {
-    ConversationNotificationDebouncer.Companion.get(context).notify(threadId);
+    post(() -> ConversationNotificationDebouncer.Companion.get(context).notify(threadId));
   }
 
   protected void notifyConversationListListeners() {
-    conversationListNotificationDebouncer.publish(conversationListUpdater);
+    post(() -> conversationListNotificationDebouncer.publish(conversationListUpdater));
+  }
+
+  protected void notifyConversationListListeners(long threadId) {
+    post(() -> ConversationNotificationDebouncer.Companion.get(context).notifyConversationList(threadId));
   }
 
   protected void notifyStickerListeners() {
-    context.getContentResolver().notifyChange(DatabaseContentProviders.Sticker.CONTENT_URI, null);
+    post(() -> context.getContentResolver().notifyChange(DatabaseContentProviders.Sticker.CONTENT_URI, null));
   }
 
   protected void notifyStickerPackListeners() {
-    context.getContentResolver().notifyChange(DatabaseContentProviders.StickerPack.CONTENT_URI, null);
+    post(() -> context.getContentResolver().notifyChange(DatabaseContentProviders.StickerPack.CONTENT_URI, null));
   }
 
-  protected void notifyRecipientListeners() {
-    context.getContentResolver().notifyChange(DatabaseContentProviders.Recipient.CONTENT_URI, null);
-    notifyConversationListListeners();
+  protected void notifyRecipientListeners(@NonNull Recipient recipient) {
+    notifyRecipientListeners(Collections.singletonList(recipient));
+  }
+
+  /**
+   * Notifies recipient observers, and reloads the conversation list rows of the threads with these
+   * recipients rather than the whole list.
+   */
+  protected void notifyRecipientListeners(@NonNull Iterable<Recipient> recipients) {
+    post(() -> context.getContentResolver().notifyChange(DatabaseContentProviders.Recipient.CONTENT_URI, null));
+
+    ThreadDatabase threadDatabase = DatabaseComponent.get(context).threadDatabase();
+    for (Recipient recipient : recipients) {
+      long threadId = threadDatabase.getThreadIdIfExistsFor(recipient);
+      if (threadId != -1) notifyConversationListListeners(threadId);
+    }
   }
 
   protected void setNotifyConversationListeners(Cursor cursor, long threadId) {
@@ -108,7 +133,38 @@ public abstract class Database {
   }
 
   protected void notifyAttachmentListeners() {
-    context.getContentResolver().notifyChange(DatabaseContentProviders.Attachment.CONTENT_URI, null);
+    post(() -> context.getContentResolver().notifyChange(DatabaseContentProviders.Attachment.CONTENT_URI, null));
+  }
+
+  /**
+   * Holds back the notifications raised on the calling thread until {@link #postDeferredNotifications}
+   * is called, so observers don't query the database before a transaction has committed.
+   *
+   * @return false if notifications were already being deferred, in which case the outer caller posts them.
+   */
+  protected static boolean deferNotifications() {
+    if (deferredNotifications.get() != null) return false;
+    deferredNotifications.set(new ArrayList<>());
+    return true;
+  }
+
+  protected static void postDeferredNotifications() {
+    List<Runnable> notifications = deferredNotifications.get();
+    deferredNotifications.remove();
+    if (notifications == null) return;
+
+    for (Runnable notification : notifications) {
+      notification.run();
+    }
+  }
+
+  private static void post(Runnable notification) {
+    List<Runnable> notifications = deferredNotifications.get();
+    if (notifications != null) {
+      notifications.add(notification);
+    } else {
+      notification.run();
+    }
   }
 
   public void reset(SQLCipherOpenHelper databaseHelper) {
@@ -1,6 +1,7 @@
 package org.thoughtcrime.securesms.database;
 
 import android.content.ContentProvider;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.net.Uri;
@@ -16,6 +17,14 @@ public class DatabaseContentProviders {
 
   public static class ConversationList extends NoopContentProvider {
     public static final Uri CONTENT_URI = Uri.parse("content://network.noth.securesms.database.conversationlist");
+
+    /**
+     * Notified when only the row of a single thread changed. It sits under {@link #CONTENT_URI} so
+     * observers of the whole list still hear about it.
+     */
+    public static Uri getUriForThread(long threadId) {
+      return ContentUris.withAppendedId(CONTENT_URI, threadId);
+    }
   }
 
   public static class Conversation extends NoopContentProvider {
@@ -179,6 +179,8 @@ public class GroupDatabase extends Database implements LokiOpenGroupDatabaseProt
     List<Address>   members     = getCurrentMembers(groupId, false);
     List<Recipient> recipients  = new LinkedList<>();
 
+    Recipient.prefetch(context, members);
+
     for (Address member : members) {
       if (!includeSelf && Util.isOwnNumber(context, member.serialize()))
         continue;
@@ -209,6 +211,8 @@ public class GroupDatabase extends Database implements LokiOpenGroupDatabaseProt
     List<Address>   members     = getCurrentZombieMembers(groupId);
     List<Recipient> recipients  = new LinkedList<>();
 
+    Recipient.prefetch(context, members);
+
     for (Address member : members) {
         recipients.add(Recipient.from(context, member, false));
     }
@@ -369,6 +373,7 @@ public class GroupDatabase extends Database implements LokiOpenGroupDatabaseProt
                                                 new String[] {groupId});
 
     Recipient.applyCached(Address.fromSerialized(groupId), recipient -> {
+      Recipient.prefetch(context, members);
       recipient.setParticipants(Stream.of(members).map(a -> Recipient.from(context, a, false)).toList());
     });
   }
@@ -2,6 +2,7 @@ package org.thoughtcrime.securesms.database
 
 import android.content.ContentValues
 import android.content.Context
+import net.zetetic.database.sqlcipher.SQLiteDatabase
 import org.session.libsession.utilities.TextSecurePreferences
 import org.session.libsignal.crypto.ecc.DjbECPrivateKey
 import org.session.libsignal.crypto.ecc.DjbECPublicKey
@@ -10,16 +11,22 @@ import org.session.libsignal.database.LokiAPIDatabaseProtocol
 import org.session.libsignal.utilities.ForkInfo
 import org.session.libsignal.utilities.Hex
 import org.session.libsignal.utilities.Log
+import org.session.libsignal.utilities.OnionPathHealth
 import org.session.libsignal.utilities.PublicKeyValidation
 import org.session.libsignal.utilities.Snode
 import org.session.libsignal.utilities.removingIdPrefixIfNeeded
 import org.session.libsignal.utilities.toHexString
 import org.thoughtcrime.securesms.crypto.IdentityKeyUtil
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper
+import org.thoughtcrime.securesms.util.BloomFilter
+import org.thoughtcrime.securesms.util.SqlUtil
 import java.util.Date
 
 class LokiAPIDatabase(context: Context, helper: SQLCipherOpenHelper) : Database(context, helper), LokiAPIDatabaseProtocol {
 
+    private val receivedMessageHashFilterLock = Any()
+    private var receivedMessageHashFilter: BloomFilter? = null
+
     companion object {
         // Shared
         private const val publicKey = "public_key"
@@ -30,10 +37,24 @@ class LokiAPIDatabase(context: Context, helper: SQLCipherOpenHelper) : Database(
         private val dummyKey = "dummy_key"
         private val snodePool = "snode_pool_key"
         @JvmStatic val createSnodePoolTableCommand = "CREATE TABLE $snodePoolTable ($dummyKey TEXT PRIMARY KEY, $snodePool TEXT);"
-        // Onion request paths
+        // Onion request paths, as they were stored before the snode and health tables below
         private val onionRequestPathTable = "loki_path_cache"
         private val indexPath = "index_path"
-        @JvmStatic val createOnionRequestPathTableCommand = "CREATE TABLE $onionRequestPathTable ($indexPath TEXT PRIMARY KEY, $snode TEXT);"
+        // Onion request paths, any number of them of any length, and their health
+        private const val onionRequestPathSnodeTable = "onion_request_path_snodes"
+        private const val pathIndex = "path_index"
+        private const val pathPosition = "path_position"
+        @JvmStatic val createOnionRequestPathSnodeTableCommand = "CREATE TABLE $onionRequestPathSnodeTable ($pathIndex INTEGER NOT NULL, $pathPosition INTEGER NOT NULL, $snode TEXT NOT NULL, PRIMARY KEY ($pathIndex, $pathPosition));"
+        private const val onionRequestPathHealthTable = "onion_request_path_health"
+        private const val guardSnode = "guard_snode"
+        private const val roundTripTime = "round_trip_time"
+        private const val failureCount = "failure_count"
+        @JvmStatic val createOnionRequestPathHealthTableCommand = "CREATE TABLE $onionRequestPathHealthTable ($guardSnode TEXT PRIMARY KEY, $roundTripTime REAL, $failureCount INTEGER NOT NULL DEFAULT 0);"
+        // The old table keyed every snode as "<path>-<position>"
+        @JvmStatic val migrateOnionRequestPathsCommand = "INSERT INTO $onionRequestPathSnodeTable ($pathIndex, $pathPosition, $snode) " +
+            "SELECT CAST(substr($indexPath, 1, instr($indexPath, '-') - 1) AS INTEGER), CAST(substr($indexPath, instr($indexPath, '-') + 1) AS INTEGER), $snode " +
+            "FROM $onionRequestPathTable WHERE $snode IS NOT NULL;"
+        @JvmStatic val dropOnionRequestPathTableCommand = "DROP TABLE $onionRequestPathTable;"
         // Swarms
         public val swarmTable = "loki_api_swarm_cache"
         private val swarmPublicKey = "hex_encoded_public_key"
@@ -137,6 +158,61 @@ class LokiAPIDatabase(context: Context, helper: SQLCipherOpenHelper) : Database(
         """
         const val INSERT_RECEIVED_HASHES_DATA = "INSERT OR IGNORE INTO $receivedMessageHashValuesTable($publicKey, $receivedMessageHashValues) SELECT $publicKey, $receivedMessageHashValues FROM $legacyReceivedMessageHashValuesTable3;"
         const val DROP_LEGACY_RECEIVED_HASHES = "DROP TABLE $legacyReceivedMessageHashValuesTable3;"
+        // Received message hashes (one row per hash, replaces the joined values above)
+        private const val receivedMessageHashesTable = "session_received_message_hashes"
+        private const val receivedMessageHash = "received_message_hash"
+        private const val receivedMessageHashExpiry = "received_message_expiry"
+        const val CREATE_RECEIVED_MESSAGE_HASHES_TABLE_COMMAND = """
+            CREATE TABLE IF NOT EXISTS $receivedMessageHashesTable(
+                $publicKey TEXT NOT NULL,
+                $receivedMessageHashNamespace INTEGER NOT NULL DEFAULT 0,
+                $receivedMessageHash TEXT NOT NULL,
+                $receivedMessageHashExpiry INTEGER NOT NULL,
+                PRIMARY KEY ($publicKey, $receivedMessageHashNamespace, $receivedMessageHash)
+            )
+        """
+        const val CREATE_RECEIVED_MESSAGE_HASHES_EXPIRY_INDEX_COMMAND =
+            "CREATE INDEX IF NOT EXISTS ${receivedMessageHashesTable}_expiry_index ON $receivedMessageHashesTable ($receivedMessageHashExpiry);"
+        private const val INSERT_RECEIVED_MESSAGE_HASH =
+            "INSERT OR IGNORE INTO $receivedMessageHashesTable ($publicKey, $receivedMessageHashNamespace, $receivedMessageHash, $receivedMessageHashExpiry) VALUES (?, ?, ?, ?)"
+        // Hashes which were migrated from the joined values don't have a known expiry so we keep them for the maximum TTL
+        private const val LEGACY_RECEIVED_MESSAGE_HASH_TTL = 30L * 24 * 60 * 60 * 1000
+        // The received hash filter is sized for at least this many hashes before it needs to be rebuilt
+        private const val MIN_RECEIVED_MESSAGE_HASH_FILTER_CAPACITY = 10_000
+        // Leaves room for the public key and namespace arguments under SQLite's limit of 999
+        private const val MAX_RECEIVED_MESSAGE_HASH_QUERY_ARGS = 500
+
+        /**
+         * Moves the joined received message hash values into [receivedMessageHashesTable] (one row per hash)
+         * and drops the old table.
+         */
+        @JvmStatic
+        fun migrateReceivedMessageHashValues(db: SQLiteDatabase) {
+            db.execSQL(CREATE_RECEIVED_MESSAGE_HASHES_TABLE_COMMAND)
+            db.execSQL(CREATE_RECEIVED_MESSAGE_HASHES_EXPIRY_INDEX_COMMAND)
+
+            val expiry = System.currentTimeMillis() + LEGACY_RECEIVED_MESSAGE_HASH_TTL
+            db.compileStatement(INSERT_RECEIVED_MESSAGE_HASH).use { statement ->
+                db.rawQuery("SELECT $publicKey, $receivedMessageHashNamespace, $receivedMessageHashValues FROM $receivedMessageHashValuesTable", null).use { cursor ->
+                    while (cursor.moveToNext()) {
+                        val key = cursor.getString(0) ?: continue
+                        val namespace = cursor.getLong(1)
+                        val joinedHashes = cursor.getString(2) ?: continue
+                        for (hash in joinedHashes.split("-")) {
+                            if (hash.isEmpty()) continue
+                            statement.clearBindings()
+                            statement.bindString(1, key)
+                            statement.bindLong(2, namespace)
+                            statement.bindString(3, hash)
+                            statement.bindLong(4, expiry)
+                            statement.executeInsert()
+                        }
+                    }
+                }
+            }
+
+            db.execSQL("DROP TABLE IF EXISTS $receivedMessageHashValuesTable;")
+        }
         // Open group server capabilities
         private val serverCapabilitiesTable = "open_group_server_capabilities"
         private val capabilities = "capabilities"
@@ -193,47 +269,43 @@ class LokiAPIDatabase(context: Context, helper: SQLCipherOpenHelper) : Database(
     }
 
     override fun setOnionRequestPaths(newValue: List<List<Snode>>) {
-        // FIXME: This approach assumes either 1 or 2 paths of length 3 each. We should do better than this.
         val database = databaseHelper.writableDatabase
-        fun set(indexPath: String, snode: Snode) {
-            var snodeAsString = "${snode.address}-${snode.port}"
-            val keySet = snode.publicKeySet
-            if (keySet != null) {
-                snodeAsString += "-${keySet.ed25519Key}-${keySet.x25519Key}"
+        Log.d("Loki", "Persisting onion request paths to database.")
+        database.beginTransaction()
+        try {
+            database.delete(onionRequestPathSnodeTable, null, null)
+            newValue.forEachIndexed { index, path ->
+                path.forEachIndexed { position, snode ->
+                    val row = ContentValues(3)
+                    row.put(pathIndex, index)
+                    row.put(pathPosition, position)
+                    row.put(Companion.snode, snode.toDatabaseString())
+                    database.insert(onionRequestPathSnodeTable, null, row)
+                }
             }
-            snodeAsString += "-${snode.version}"
-            val row = wrap(mapOf( Companion.indexPath to indexPath, Companion.snode to snodeAsString ))
-            database.insertOrUpdate(onionRequestPathTable, row, "${Companion.indexPath} = ?", wrap(indexPath))
+            // Health is kept per guard snode, so forget about the paths that are gone
+            val guardSnodes = newValue.mapNotNull { it.firstOrNull()?.toDatabaseString() }
+            database.delete(
+                onionRequestPathHealthTable,
+                "$guardSnode NOT IN (${guardSnodes.joinToString { "?" }})",
+                guardSnodes.toTypedArray()
+            )
+            database.setTransactionSuccessful()
+        } finally {
+            database.endTransaction()
         }
-        Log.d("Loki", "Persisting onion request paths to database.")
-        clearOnionRequestPaths()
-        if (newValue.count() < 1) { return }
-        val path0 = newValue[0]
-        if (path0.count() != 3) { return }
-        set("0-0", path0[0]); set("0-1", path0[1]); set("0-2", path0[2])
-        if (newValue.count() < 2) { return }
-        val path1 = newValue[1]
-        if (path1.count() != 3) { return }
-        set("1-0", path1[0]); set("1-1", path1[1]); set("1-2", path1[2])
     }
 
     override fun getOnionRequestPaths(): List<List<Snode>> {
         val database = databaseHelper.readableDatabase
-        fun get(indexPath: String): Snode? {
-            return database.get(onionRequestPathTable, "${Companion.indexPath} = ?", wrap(indexPath)) { cursor ->
-                Snode(cursor.getString(cursor.getColumnIndexOrThrow(snode)))
+        val paths = sortedMapOf<Int, MutableList<Snode?>>()
+        database.query(onionRequestPathSnodeTable, arrayOf(pathIndex, snode), null, null, null, null, "$pathIndex, $pathPosition").use { cursor ->
+            while (cursor.moveToNext()) {
+                paths.getOrPut(cursor.getInt(0)) { mutableListOf() }.add(Snode(cursor.getString(1)))
             }
         }
-        val result = mutableListOf<List<Snode>>()
-        val path0Snode0 = get("0-0"); val path0Snode1 = get("0-1"); val path0Snode2 = get("0-2")
-        if (path0Snode0 != null && path0Snode1 != null && path0Snode2 != null) {
-            result.add(listOf( path0Snode0, path0Snode1, path0Snode2 ))
-        }
-        val path1Snode0 = get("1-0"); val path1Snode1 = get("1-1"); val path1Snode2 = get("1-2")
-        if (path1Snode0 != null && path1Snode1 != null && path1Snode2 != null) {
-            result.add(listOf( path1Snode0, path1Snode1, path1Snode2 ))
-        }
-        return result
+        // Leave out paths that can't be used as a whole
+        return paths.values.filter { path -> path.none { it == null } }.map { path -> path.filterNotNull() }
     }
 
     override fun clearSnodePool() {
@@ -243,12 +315,41 @@ class LokiAPIDatabase(context: Context, helper: SQLCipherOpenHelper) : Database(
 
     override fun clearOnionRequestPaths() {
         val database = databaseHelper.writableDatabase
-        fun delete(indexPath: String) {
-            database.delete(onionRequestPathTable, "${Companion.indexPath} = ?", wrap(indexPath))
+        database.delete(onionRequestPathSnodeTable, null, null)
+        database.delete(onionRequestPathHealthTable, null, null)
+    }
+
+    override fun getOnionRequestPathHealth(): Map<Snode, OnionPathHealth> {
+        val database = databaseHelper.readableDatabase
+        val result = mutableMapOf<Snode, OnionPathHealth>()
+        database.query(onionRequestPathHealthTable, arrayOf(guardSnode, roundTripTime, failureCount), null, null, null, null, null).use { cursor ->
+            while (cursor.moveToNext()) {
+                val snode = Snode(cursor.getString(0))
+                if (snode != null) {
+                    val averageRoundTripTime = if (cursor.isNull(1)) null else cursor.getDouble(1)
+                    result[snode] = OnionPathHealth(averageRoundTripTime, cursor.getInt(2))
+                }
+            }
+        }
+        return result
+    }
+
+    override fun setOnionRequestPathHealth(newValue: Map<Snode, OnionPathHealth>) {
+        val database = databaseHelper.writableDatabase
+        database.beginTransaction()
+        try {
+            database.delete(onionRequestPathHealthTable, null, null)
+            for ((snode, health) in newValue) {
+                val row = ContentValues(3)
+                row.put(guardSnode, snode.toDatabaseString())
+                row.put(roundTripTime, health.roundTripTime)
+                row.put(failureCount, health.failureCount)
+                database.insert(onionRequestPathHealthTable, null, row)
+            }
+            database.setTransactionSuccessful()
+        } finally {
+            database.endTransaction()
         }
-        delete("0-0"); delete("0-1")
-        delete("0-2"); delete("1-0")
-        delete("1-1"); delete("1-2")
     }
 
     override fun getSwarm(publicKey: String): Set<Snode>? {
@@ -303,37 +404,107 @@ class LokiAPIDatabase(context: Context, helper: SQLCipherOpenHelper) : Database(
         database.delete(lastMessageHashValueTable2, null, null)
     }
 
-    override fun getReceivedMessageHashValues(publicKey: String, namespace: Int): Set<String>? {
+    override fun getReceivedMessageHashes(publicKey: String, namespace: Int, hashes: Collection<String>): Set<String> {
+        // Only hit the database for the hashes the filter can't rule out, which for a regular poll is
+        // usually none of them
+        val candidates = synchronized(receivedMessageHashFilterLock) {
+            val filter = getReceivedMessageHashFilter()
+            hashes.filterTo(mutableSetOf()) { filter.mightContain(receivedMessageHashFilterKey(publicKey, namespace, it)) }
+        }
+        if (candidates.isEmpty()) { return setOf() }
+
         val database = databaseHelper.readableDatabase
-        val query = "${Companion.publicKey} = ? AND ${Companion.receivedMessageHashNamespace} = ?"
-        return database.get(receivedMessageHashValuesTable, query, arrayOf( publicKey, namespace.toString() )) { cursor ->
-            val receivedMessageHashValuesAsString = cursor.getString(cursor.getColumnIndexOrThrow(Companion.receivedMessageHashValues))
-            receivedMessageHashValuesAsString.split("-").toSet()
+        val result = mutableSetOf<String>()
+        for (batch in candidates.chunked(MAX_RECEIVED_MESSAGE_HASH_QUERY_ARGS)) {
+            val hashQuery = SqlUtil.buildSingleCollectionQuery(receivedMessageHash, batch)
+            val query = "$publicKey = ? AND $receivedMessageHashNamespace = ? AND ${hashQuery.where}"
+            val arguments = arrayOf(publicKey, namespace.toString(), *hashQuery.whereArgs)
+            database.query(receivedMessageHashesTable, arrayOf(receivedMessageHash), query, arguments, null, null, null).use { cursor ->
+                while (cursor.moveToNext()) {
+                    result += cursor.getString(0)
+                }
+            }
         }
+        return result
     }
 
-    override fun setReceivedMessageHashValues(publicKey: String, newValue: Set<String>, namespace: Int) {
+    override fun addReceivedMessageHashes(publicKey: String, namespace: Int, hashes: Map<String, Long>): Set<String> {
+        if (hashes.isEmpty()) { return setOf() }
         val database = databaseHelper.writableDatabase
-        val receivedMessageHashValuesAsString = newValue.joinToString("-")
-        val row = wrap(mapOf(
-            Companion.publicKey to publicKey,
-            Companion.receivedMessageHashValues to receivedMessageHashValuesAsString,
-            Companion.receivedMessageHashNamespace to namespace.toString()
-        ))
-        val query = "${Companion.publicKey} = ? AND $receivedMessageHashNamespace = ?"
-        database.insertOrUpdate(receivedMessageHashValuesTable, row, query, arrayOf( publicKey, namespace.toString() ))
+        val inserted = mutableSetOf<String>()
+        database.beginTransaction()
+        try {
+            database.compileStatement(INSERT_RECEIVED_MESSAGE_HASH).use { statement ->
+                for ((hash, expiry) in hashes) {
+                    statement.clearBindings()
+                    statement.bindString(1, publicKey)
+                    statement.bindLong(2, namespace.toLong())
+                    statement.bindString(3, hash)
+                    statement.bindLong(4, expiry)
+                    // An ignored insert means we've already received this hash
+                    if (statement.executeInsert() != -1L) {
+                        inserted += hash
+                    }
+                }
+            }
+            database.setTransactionSuccessful()
+        } finally {
+            database.endTransaction()
+        }
+
+        synchronized(receivedMessageHashFilterLock) {
+            // If the filter hasn't been loaded yet it will pick these up from the database when it is
+            receivedMessageHashFilter?.let { filter ->
+                inserted.forEach { filter.put(receivedMessageHashFilterKey(publicKey, namespace, it)) }
+            }
+        }
+        return inserted
+    }
+
+    override fun pruneExpiredReceivedMessageHashes(now: Long, limit: Int): Int {
+        // Expired hashes are left in the filter, they only cost an extra lookup until it is next rebuilt
+        return databaseHelper.writableDatabase.delete(
+            receivedMessageHashesTable,
+            "rowid IN (SELECT rowid FROM $receivedMessageHashesTable WHERE $receivedMessageHashExpiry < ? LIMIT $limit)",
+            wrap(now.toString())
+        )
     }
 
     override fun clearReceivedMessageHashValues(publicKey: String) {
         databaseHelper.writableDatabase
-            .delete(receivedMessageHashValuesTable, "${Companion.publicKey} = ?", arrayOf(publicKey))
+            .delete(receivedMessageHashesTable, "${Companion.publicKey} = ?", arrayOf(publicKey))
     }
 
     override fun clearReceivedMessageHashValues() {
         val database = databaseHelper.writableDatabase
-        database.delete(receivedMessageHashValuesTable, null, null)
+        database.delete(receivedMessageHashesTable, null, null)
+        synchronized(receivedMessageHashFilterLock) { receivedMessageHashFilter = null }
     }
 
+    /**
+     * Must be called while holding [receivedMessageHashFilterLock]. Loads the filter from the database on
+     * first use, and rebuilds it with a larger capacity once it is saturated.
+     */
+    private fun getReceivedMessageHashFilter(): BloomFilter {
+        receivedMessageHashFilter?.takeUnless { it.isSaturated }?.let { return it }
+
+        val database = databaseHelper.readableDatabase
+        val count = database.rawQuery("SELECT COUNT(*) FROM $receivedMessageHashesTable", null).use { cursor ->
+            if (cursor.moveToFirst()) cursor.getInt(0) else 0
+        }
+        val filter = BloomFilter(capacity = maxOf(MIN_RECEIVED_MESSAGE_HASH_FILTER_CAPACITY, count * 2))
+        database.query(receivedMessageHashesTable, arrayOf(publicKey, receivedMessageHashNamespace, receivedMessageHash), null, null, null, null, null).use { cursor ->
+            while (cursor.moveToNext()) {
+                filter.put(receivedMessageHashFilterKey(cursor.getString(0), cursor.getInt(1), cursor.getString(2)))
+            }
+        }
+        Log.d("Loki", "Loaded $count received message hashes into filter.")
+        receivedMessageHashFilter = filter
+        return filter
+    }
+
+    private fun receivedMessageHashFilterKey(publicKey: String, namespace: Int, hash: String) = "$publicKey:$namespace:$hash"
+
     override fun getAuthToken(server: String): String? {
         val database = databaseHelper.readableDatabase
         return database.get(openGroupAuthTokenTable, "${Companion.server} = ?", wrap(server)) { cursor ->
@@ -612,6 +783,16 @@ class LokiAPIDatabase(context: Context, helper: SQLCipherOpenHelper) : Database(
 }
 
 // region Convenience
+private fun Snode.toDatabaseString(): String {
+    var string = "$address-$port"
+    val keySet = publicKeySet
+    if (keySet != null) {
+        string += "-${keySet.ed25519Key}-${keySet.x25519Key}"
+    }
+    string += "-$version"
+    return string
+}
+
 private inline fun <reified T> wrap(x: T): Array<T> {
     return Array(1) { x }
 }
@@ -220,7 +220,7 @@ class MmsDatabase(context: Context, databaseHelper: SQLCipherOpenHelper) : Messa
             arrayOf(newTimestamp.toString(), messageId.toString())
         )
         notifyConversationListeners(threadId)
-        notifyConversationListListeners()
+        notifyConversationListListeners(threadId)
     }
 
     fun getThreadIdForMessage(id: Long): Long {
@@ -662,10 +662,8 @@ class MmsDatabase(context: Context, databaseHelper: SQLCipherOpenHelper) : Messa
             contentValues,
             null,
         )
-        if (!MmsSmsColumns.Types.isExpirationTimerUpdate(mailbox)) {
-            if (runThreadUpdate) {
-                get(context).threadDatabase().update(threadId, true)
-            }
+        if (runThreadUpdate) {
+            get(context).threadDatabase().onMessageInserted(threadId, messageId, true, true)
         }
         notifyConversationListeners(threadId)
         return Optional.of(InsertResult(messageId, threadId))
@@ -809,7 +807,7 @@ class MmsDatabase(context: Context, databaseHelper: SQLCipherOpenHelper) : Messa
             }
             setHasSent(threadId, true)
             if (runThreadUpdate) {
-                update(threadId, true)
+                onMessageInserted(threadId, messageId, true, true)
             }
         }
         return messageId
@@ -932,12 +930,14 @@ class MmsDatabase(context: Context, databaseHelper: SQLCipherOpenHelper) : Messa
         val groupReceiptDatabase = get(context).groupReceiptDatabase()
         groupReceiptDatabase.deleteRowsForMessage(messageId)
         val database = databaseHelper.writableDatabase
-        database!!.delete(TABLE_NAME, ID_WHERE, arrayOf(messageId.toString()))
-        val threadDeleted = get(context).threadDatabase().update(threadId, false)
+        val threadDatabase = get(context).threadDatabase()
+        val unread = threadDatabase.getUnreadCounts(true, longArrayOf(messageId))
+        val deleted = database!!.delete(TABLE_NAME, ID_WHERE, arrayOf(messageId.toString()))
+        threadDatabase.onMessagesDeleted(threadId, deleted, unread)
         notifyConversationListeners(threadId)
         notifyStickerListeners()
         notifyStickerPackListeners()
-        return threadDeleted
+        return false
     }
 
     override fun deleteMessages(messageIds: LongArray, threadId: Long): Boolean {
@@ -951,17 +951,19 @@ class MmsDatabase(context: Context, databaseHelper: SQLCipherOpenHelper) : Messa
         groupReceiptDatabase.deleteRowsForMessages(messageIds)
 
         val db = databaseHelper.writableDatabase
-        db.delete(
+        val threadDatabase = get(context).threadDatabase()
+        val unread = threadDatabase.getUnreadCounts(true, messageIds)
+        val deleted = db.delete(
             TABLE_NAME,
             ID + " IN (" + StringUtils.join(argsArray, ',') + ")",
             argValues
         )
 
-        val threadDeleted = get(context).threadDatabase().update(threadId, false)
+        threadDatabase.onMessagesDeleted(threadId, deleted, unread)
         notifyConversationListeners(threadId)
         notifyStickerListeners()
         notifyStickerPackListeners()
-        return threadDeleted
+        return false
     }
 
     override fun updateThreadId(fromId: Long, toId: Long) {
@@ -1550,6 +1552,8 @@ class MmsDatabase(context: Context, databaseHelper: SQLCipherOpenHelper) : Messa
                 $LINK_PREVIEWS TEXT,
                 $IS_DELETED_COLUMN_DEF);"""
 
+        const val CREATE_THREAD_DATE_SENT_INDEX = "CREATE INDEX IF NOT EXISTS mms_thread_date_sent_index ON $TABLE_NAME ($THREAD_ID, $DATE_SENT);"
+
         @JvmField
         val CREATE_INDEXS: Array<String> = arrayOf(
             "CREATE INDEX IF NOT EXISTS mms_thread_id_index ON $TABLE_NAME ($THREAD_ID);",
@@ -1557,7 +1561,8 @@ class MmsDatabase(context: Context, databaseHelper: SQLCipherOpenHelper) : Messa
             "CREATE INDEX IF NOT EXISTS mms_read_and_notified_and_thread_id_index ON $TABLE_NAME($READ,$NOTIFIED,$THREAD_ID);",
             "CREATE INDEX IF NOT EXISTS mms_message_box_index ON $TABLE_NAME ($MESSAGE_BOX);",
             "CREATE INDEX IF NOT EXISTS mms_date_sent_index ON $TABLE_NAME ($DATE_SENT);",
-            "CREATE INDEX IF NOT EXISTS mms_thread_date_index ON $TABLE_NAME ($THREAD_ID, $DATE_RECEIVED);"
+            "CREATE INDEX IF NOT EXISTS mms_thread_date_index ON $TABLE_NAME ($THREAD_ID, $DATE_RECEIVED);",
+            CREATE_THREAD_DATE_SENT_INDEX
         )
 
         const val ADD_IS_DELETED_COLUMN: String = "ALTER TABLE $TABLE_NAME ADD COLUMN $IS_DELETED_COLUMN_DEF"
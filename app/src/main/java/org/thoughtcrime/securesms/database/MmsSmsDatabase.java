@@ -23,6 +23,8 @@ import static org.thoughtcrime.securesms.database.MmsSmsColumns.Types.BASE_TYPE_
 
 import android.content.Context;
 import android.database.Cursor;
+import android.database.MergeCursor;
+import android.util.LruCache;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -40,9 +42,11 @@ import org.thoughtcrime.securesms.database.MessagingDatabase.SyncMessageId;
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.thoughtcrime.securesms.dependencies.DatabaseComponent;
+import org.thoughtcrime.securesms.util.SqlUtil;
 
 import java.io.Closeable;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -97,15 +101,15 @@ public class MmsSmsDatabase extends Database {
   }
 
   public @Nullable MessageRecord getMessageForTimestamp(long timestamp) {
-    try (Cursor cursor = queryTables(PROJECTION, MmsSmsColumns.NORMALIZED_DATE_SENT + " = " + timestamp, null, null)) {
+    try (Cursor cursor = queryTables(MmsSmsColumns.NORMALIZED_DATE_SENT + " = ?", new String[] { String.valueOf(timestamp) }, null, null)) {
       MmsSmsDatabase.Reader reader = readerFor(cursor);
       return reader.getNext();
     }
   }
 
   public @Nullable MessageRecord getNonDeletedMessageForTimestamp(long timestamp) {
-    String selection = MmsSmsColumns.NORMALIZED_DATE_SENT + " = " + timestamp;
-    try (Cursor cursor = queryTables(PROJECTION, selection, null, null)) {
+    String selection = MmsSmsColumns.NORMALIZED_DATE_SENT + " = ?";
+    try (Cursor cursor = queryTables(selection, new String[] { String.valueOf(timestamp) }, null, null)) {
       MmsSmsDatabase.Reader reader = readerFor(cursor);
       return reader.getNext();
     }
@@ -117,7 +121,7 @@ public class MmsSmsDatabase extends Database {
 
   public @Nullable MessageRecord getMessageFor(long timestamp, String serializedAuthor, boolean getQuote) {
 
-    try (Cursor cursor = queryTables(PROJECTION, MmsSmsColumns.NORMALIZED_DATE_SENT + " = " + timestamp, null, null)) {
+    try (Cursor cursor = queryTables(MmsSmsColumns.NORMALIZED_DATE_SENT + " = ?", new String[] { String.valueOf(timestamp) }, null, null)) {
       MmsSmsDatabase.Reader reader = readerFor(cursor, getQuote);
 
       MessageRecord messageRecord;
@@ -143,7 +147,7 @@ public class MmsSmsDatabase extends Database {
       return null;
     }
 
-    try (Cursor cursor = queryTables(PROJECTION, MmsSmsColumns.NORMALIZED_DATE_SENT + " = " + timestamp, null, null)) {
+    try (Cursor cursor = queryTables(MmsSmsColumns.NORMALIZED_DATE_SENT + " = ?", new String[] { String.valueOf(timestamp) }, null, null)) {
       MmsSmsDatabase.Reader reader = readerFor(cursor);
 
       MessageRecord messageRecord;
@@ -167,10 +171,10 @@ public class MmsSmsDatabase extends Database {
     }
 
     String order = MmsSmsColumns.NORMALIZED_DATE_SENT + " DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
+    String selection = MmsSmsColumns.THREAD_ID + " = ?";
 
     // Try everything with resources so that they auto-close on end of scope
-    try (Cursor cursor = queryTables(PROJECTION, selection, order, null)) {
+    try (Cursor cursor = queryTables(selection, new String[] { String.valueOf(threadId) }, order, null)) {
       try (MmsSmsDatabase.Reader reader = readerFor(cursor)) {
         MessageRecord messageRecord;
         while ((messageRecord = reader.getNext()) != null) {
@@ -188,11 +192,12 @@ public class MmsSmsDatabase extends Database {
 
   public long getPreviousPage(long threadId, long fromTime, int limit) {
     String order = MmsSmsColumns.NORMALIZED_DATE_SENT+" ASC";
-    String selection = MmsSmsColumns.THREAD_ID+" = "+threadId
-            + " AND "+MmsSmsColumns.NORMALIZED_DATE_SENT+" > "+fromTime;
+    String selection = MmsSmsColumns.THREAD_ID+" = ?"
+            + " AND "+MmsSmsColumns.NORMALIZED_DATE_SENT+" > ?";
+    String[] args = new String[] { String.valueOf(threadId), String.valueOf(fromTime) };
     String limitStr = ""+limit;
     long sent = -1;
-    Cursor cursor = queryTables(PROJECTION, selection, order, limitStr);
+    Cursor cursor = queryTables(QueryProfile.LIGHTWEIGHT, selection, args, order, limitStr);
     if (cursor == null) return sent;
     Reader reader = readerFor(cursor);
     if (!cursor.move(limit)) {
@@ -206,23 +211,27 @@ public class MmsSmsDatabase extends Database {
 
   public Cursor getConversationPage(long threadId, long fromTime, long toTime, int limit) {
     String order = MmsSmsColumns.NORMALIZED_DATE_SENT+" DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = "+threadId
-            + " AND "+MmsSmsColumns.NORMALIZED_DATE_SENT+" <= " + fromTime;
+    String selection = MmsSmsColumns.THREAD_ID + " = ?"
+            + " AND "+MmsSmsColumns.NORMALIZED_DATE_SENT+" <= ?";
+    String[] args;
     String limitStr = null;
     if (toTime != -1L) {
-      selection += " AND "+MmsSmsColumns.NORMALIZED_DATE_SENT+" > "+toTime;
+      selection += " AND "+MmsSmsColumns.NORMALIZED_DATE_SENT+" > ?";
+      args = new String[] { String.valueOf(threadId), String.valueOf(fromTime), String.valueOf(toTime) };
     } else {
+      args = new String[] { String.valueOf(threadId), String.valueOf(fromTime) };
       limitStr = ""+limit;
     }
 
-    return queryTables(PROJECTION, selection, order, limitStr);
+    return queryTables(selection, args, order, limitStr);
   }
 
   public boolean hasNextPage(long threadId, long toTime) {
     String order = MmsSmsColumns.NORMALIZED_DATE_SENT+" DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = "+threadId
-            + " AND "+MmsSmsColumns.NORMALIZED_DATE_SENT+" < " + toTime; // check if there's at least one message before the `toTime`
-    Cursor cursor = queryTables(PROJECTION, selection, order, null);
+    String selection = MmsSmsColumns.THREAD_ID + " = ?"
+            + " AND "+MmsSmsColumns.NORMALIZED_DATE_SENT+" < ?"; // check if there's at least one message before the `toTime`
+    String[] args = new String[] { String.valueOf(threadId), String.valueOf(toTime) };
+    Cursor cursor = queryTables(QueryProfile.LIGHTWEIGHT, selection, args, order, "1");
     boolean hasNext = false;
     if (cursor != null) {
       hasNext = cursor.getCount() > 0;
@@ -233,9 +242,10 @@ public class MmsSmsDatabase extends Database {
 
   public boolean hasPreviousPage(long threadId, long fromTime) {
     String order = MmsSmsColumns.NORMALIZED_DATE_SENT+" DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = "+threadId
-            + " AND "+MmsSmsColumns.NORMALIZED_DATE_SENT+" > " + fromTime; // check if there's at least one message after the `fromTime`
-    Cursor cursor = queryTables(PROJECTION, selection, order, null);
+    String selection = MmsSmsColumns.THREAD_ID + " = ?"
+            + " AND "+MmsSmsColumns.NORMALIZED_DATE_SENT+" > ?"; // check if there's at least one message after the `fromTime`
+    String[] args = new String[] { String.valueOf(threadId), String.valueOf(fromTime) };
+    Cursor cursor = queryTables(QueryProfile.LIGHTWEIGHT, selection, args, order, "1");
     boolean hasNext = false;
     if (cursor != null) {
       hasNext = cursor.getCount() > 0;
@@ -246,10 +256,10 @@ public class MmsSmsDatabase extends Database {
 
   public Cursor getConversation(long threadId, boolean reverse, long offset, long limit) {
     String order     = MmsSmsColumns.NORMALIZED_DATE_SENT + (reverse ? " DESC" : " ASC");
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
+    String selection = MmsSmsColumns.THREAD_ID + " = ?";
     String limitStr  = limit > 0 || offset > 0 ? offset + ", " + limit : null;
 
-    Cursor cursor = queryTables(PROJECTION, selection, order, limitStr);
+    Cursor cursor = queryTables(selection, new String[] { String.valueOf(threadId) }, order, limitStr);
     setNotifyConversationListeners(cursor, threadId);
 
     return cursor;
@@ -259,18 +269,71 @@ public class MmsSmsDatabase extends Database {
     return getConversation(threadId, reverse, 0, 0);
   }
 
+  /**
+   * Returns the messages of a thread sent between {@code fromDateSent} and {@code toDateSent}, both
+   * inclusive. A {@code toDateSent} of -1 leaves the window open so that new messages are included.
+   */
+  public Cursor getConversationWindow(long threadId, boolean reverse, long fromDateSent, long toDateSent) {
+    String order     = MmsSmsColumns.NORMALIZED_DATE_SENT + (reverse ? " DESC" : " ASC");
+    String selection = MmsSmsColumns.THREAD_ID + " = ?"
+            + " AND " + MmsSmsColumns.NORMALIZED_DATE_SENT + " >= ?";
+    String[] args;
+    if (toDateSent != -1L) {
+      selection += " AND " + MmsSmsColumns.NORMALIZED_DATE_SENT + " <= ?";
+      args = new String[] { String.valueOf(threadId), String.valueOf(fromDateSent), String.valueOf(toDateSent) };
+    } else {
+      args = new String[] { String.valueOf(threadId), String.valueOf(fromDateSent) };
+    }
+
+    Cursor cursor = queryTables(selection, args, order, null);
+    setNotifyConversationListeners(cursor, threadId);
+
+    return cursor;
+  }
+
+  /**
+   * Walks {@code distance} messages away from {@code dateSent} in the thread, towards older messages
+   * or newer ones, and returns the sent date of the message it lands on. Only the sent dates are
+   * read so this doesn't go through {@link #queryTables}.
+   *
+   * @return the sent date found, or -1 if the thread ends before {@code distance} messages.
+   */
+  public long getDateSentAtDistance(long threadId, long dateSent, int distance, boolean older) {
+    String comparison = older ? " < ?" : " > ?";
+    String query      = "SELECT " + MmsSmsColumns.NORMALIZED_DATE_SENT + " FROM (" +
+            "SELECT " + SmsDatabase.DATE_SENT + " AS " + MmsSmsColumns.NORMALIZED_DATE_SENT + " FROM " + SmsDatabase.TABLE_NAME +
+            " WHERE " + SmsDatabase.THREAD_ID + " = ? AND " + SmsDatabase.DATE_SENT + comparison +
+            " UNION ALL " +
+            "SELECT " + MmsDatabase.DATE_SENT + " AS " + MmsSmsColumns.NORMALIZED_DATE_SENT + " FROM " + MmsDatabase.TABLE_NAME +
+            " WHERE " + MmsDatabase.THREAD_ID + " = ? AND " + MmsDatabase.DATE_SENT + comparison +
+            ") ORDER BY " + MmsSmsColumns.NORMALIZED_DATE_SENT + (older ? " DESC" : " ASC") +
+            " LIMIT 1 OFFSET " + Math.max(distance - 1, 0);
+    String[] args = new String[] { String.valueOf(threadId), String.valueOf(dateSent), String.valueOf(threadId), String.valueOf(dateSent) };
+
+    try (Cursor cursor = databaseHelper.getReadableDatabase().rawQuery(query, args)) {
+      if (cursor != null && cursor.moveToFirst()) {
+        return cursor.getLong(0);
+      }
+    }
+
+    return -1L;
+  }
+
+  /**
+   * @return a cursor over the latest message of the thread that isn't deleted, if any.
+   */
   public Cursor getConversationSnippet(long threadId) {
     String order     = MmsSmsColumns.NORMALIZED_DATE_SENT + " DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
+    String selection = MmsSmsColumns.THREAD_ID + " = ? AND " + MmsSmsColumns.IS_DELETED + " = 0";
 
-    return queryTables(PROJECTION, selection, order, null);
+    return queryTables(selection, new String[] { String.valueOf(threadId) }, order, "1");
   }
 
   public long getLastMessageID(long threadId) {
     String order     = MmsSmsColumns.NORMALIZED_DATE_SENT + " DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
+    String selection = MmsSmsColumns.THREAD_ID + " = ?";
 
-    try (Cursor cursor = queryTables(PROJECTION, selection, order, "1")) {
+    try (Cursor cursor = queryTables(QueryProfile.LIGHTWEIGHT, selection, new String[] { String.valueOf(threadId) }, order, "1")) {
       cursor.moveToFirst();
       return cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.ID));
     }
@@ -297,11 +360,11 @@ public class MmsSmsDatabase extends Database {
   // Used to do a pass through our local database to remove records when a user has "Ban & Delete"
   // called on them in a Community.
   public Set<MessageRecord> getAllMessageRecordsFromSenderInThread(long threadId, String serializedAuthor) {
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " + MmsSmsColumns.ADDRESS + " = \"" + serializedAuthor + "\"";
+    String selection = MmsSmsColumns.THREAD_ID + " = ? AND " + MmsSmsColumns.ADDRESS + " = ?";
     Set<MessageRecord> identifiedMessages = new HashSet<MessageRecord>();
 
     // Try everything with resources so that they auto-close on end of scope
-    try (Cursor cursor = queryTables(PROJECTION, selection, null, null)) {
+    try (Cursor cursor = queryTables(selection, new String[] { String.valueOf(threadId), serializedAuthor }, null, null)) {
       try (MmsSmsDatabase.Reader reader = readerFor(cursor)) {
         MessageRecord messageRecord;
         while ((messageRecord = reader.getNext()) != null) {
@@ -313,11 +376,11 @@ public class MmsSmsDatabase extends Database {
   }
 
   public Set<MessageRecord> getAllMessageRecordsBefore(long threadId, long timestampMills) {
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " + MmsSmsColumns.NORMALIZED_DATE_SENT + " < " + timestampMills;
+    String selection = MmsSmsColumns.THREAD_ID + " = ? AND " + MmsSmsColumns.NORMALIZED_DATE_SENT + " < ?";
     Set<MessageRecord> identifiedMessages = new HashSet<>();
 
     // Try everything with resources so that they auto-close on end of scope
-    try (Cursor cursor = queryTables(PROJECTION, selection, null, null)) {
+    try (Cursor cursor = queryTables(selection, new String[] { String.valueOf(threadId), String.valueOf(timestampMills) }, null, null)) {
       try (MmsSmsDatabase.Reader reader = readerFor(cursor)) {
         MessageRecord messageRecord;
         while ((messageRecord = reader.getNext()) != null) {
@@ -330,10 +393,10 @@ public class MmsSmsDatabase extends Database {
 
   public long getLastOutgoingTimestamp(long threadId) {
     String order = MmsSmsColumns.NORMALIZED_DATE_SENT + " DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
+    String selection = MmsSmsColumns.THREAD_ID + " = ?";
 
     // Try everything with resources so that they auto-close on end of scope
-    try (Cursor cursor = queryTables(PROJECTION, selection, order, null)) {
+    try (Cursor cursor = queryTables(QueryProfile.LIGHTWEIGHT, selection, new String[] { String.valueOf(threadId) }, order, null)) {
       try (MmsSmsDatabase.Reader reader = readerFor(cursor)) {
         MessageRecord messageRecord;
         long attempts = 0;
@@ -353,10 +416,10 @@ public class MmsSmsDatabase extends Database {
   public long getLastMessageTimestamp(long threadId) {
     String order     = MmsSmsColumns.NORMALIZED_DATE_SENT + " DESC";
     // make sure the last message isn't marked as deleted
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " +
+    String selection = MmsSmsColumns.THREAD_ID + " = ? AND " +
             "NOT " + MmsSmsColumns.IS_DELETED;
 
-    try (Cursor cursor = queryTables(PROJECTION, selection, order, "1")) {
+    try (Cursor cursor = queryTables(QueryProfile.LIGHTWEIGHT, selection, new String[] { String.valueOf(threadId) }, order, "1")) {
       if (cursor.moveToFirst()) {
         return cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.NORMALIZED_DATE_SENT));
       }
@@ -365,21 +428,55 @@ public class MmsSmsDatabase extends Database {
     return -1;
   }
 
-  public Cursor getUnread() {
-    String order           = MmsSmsColumns.NORMALIZED_DATE_SENT + " ASC";
-    String selection       = "(" + MmsSmsColumns.READ + " = 0 OR " + MmsSmsColumns.REACTIONS_UNREAD + " = 1) AND " + MmsSmsColumns.NOTIFIED + " = 0";
+  /**
+   * The messages of the given threads that are unread, or have unread reactions, and haven't been
+   * notified yet.
+   */
+  public Cursor getUnread(@NonNull Collection<Long> threadIds) {
+    String order = MmsSmsColumns.NORMALIZED_DATE_SENT + " ASC";
+    if (threadIds.isEmpty()) return queryTables("0", null, order, null);
+
+    List<Cursor> cursors = new ArrayList<>();
+    for (SqlUtil.Query query : SqlUtil.buildCollectionQuery(MmsSmsColumns.THREAD_ID, threadIds, MAX_UNION_QUERY_ARGS)) {
+      cursors.add(queryTables(UNREAD_SELECTION + " AND " + query.getWhere(), query.getWhereArgs(), order, null));
+    }
+
+    return cursors.size() == 1 ? cursors.get(0) : new MergeCursor(cursors.toArray(new Cursor[0]));
+  }
+
+  /**
+   * Lists the messages {@link #getUnread(Collection)} would return across all threads, by
+   * {@link MmsSmsColumns#ID}, {@link MmsSmsColumns#THREAD_ID} and {@link #TRANSPORT}, followed by
+   * the number of reactions on the message and the id of the latest one (0 if there are none), so
+   * a new reaction on a message that was already unread shows up too. Only the message tables and
+   * the reaction index are read, so it's cheap enough to run on every notification update.
+   */
+  public Cursor getUnreadIds() {
+    String query = "SELECT " + MmsSmsColumns.ID + ", " + MmsSmsColumns.THREAD_ID + ", '" + MMS_TRANSPORT + "' AS " + TRANSPORT + ", " +
+            reactionMarkerColumns(MmsDatabase.TABLE_NAME, true) +
+            " FROM " + MmsDatabase.TABLE_NAME + " WHERE " + UNREAD_SELECTION +
+            " UNION ALL SELECT " + MmsSmsColumns.ID + ", " + MmsSmsColumns.THREAD_ID + ", '" + SMS_TRANSPORT + "' AS " + TRANSPORT + ", " +
+            reactionMarkerColumns(SmsDatabase.TABLE_NAME, false) +
+            " FROM " + SmsDatabase.TABLE_NAME + " WHERE " + UNREAD_SELECTION;
 
-    return queryTables(PROJECTION, selection, order, null);
+    return databaseHelper.getReadableDatabase().rawQuery(query, null);
+  }
+
+  private static String reactionMarkerColumns(String table, boolean mms) {
+    String reactions = " FROM " + ReactionDatabase.TABLE_NAME + " AS r WHERE r." + ReactionDatabase.MESSAGE_ID + " = " + table + "." + MmsSmsColumns.ID +
+            " AND r." + ReactionDatabase.IS_MMS + " = " + (mms ? 1 : 0);
+
+    return "(SELECT COUNT(*)" + reactions + "), (SELECT IFNULL(MAX(r." + ReactionDatabase.ROW_ID + "), 0)" + reactions + ")";
   }
 
   public int getUnreadCount(long threadId) {
-    String selection = MmsSmsColumns.READ + " = 0 AND " + MmsSmsColumns.NOTIFIED + " = 0 AND " + MmsSmsColumns.THREAD_ID + " = " + threadId;
-    Cursor cursor    = queryTables(PROJECTION, selection, null, null);
+    String selection = " WHERE " + MmsSmsColumns.READ + " = 0 AND " + MmsSmsColumns.NOTIFIED + " = 0 AND " + MmsSmsColumns.THREAD_ID + " = ?";
+    String query     = "SELECT (SELECT COUNT(*) FROM " + SmsDatabase.TABLE_NAME + selection + ")" +
+            " + (SELECT COUNT(*) FROM " + MmsDatabase.TABLE_NAME + selection + ")";
+    String[] args    = new String[] { String.valueOf(threadId), String.valueOf(threadId) };
 
-    try {
-      return cursor != null ? cursor.getCount() : 0;
-    } finally {
-      if (cursor != null) cursor.close();
+    try (Cursor cursor = databaseHelper.getReadableDatabase().rawQuery(query, args)) {
+      return cursor != null && cursor.moveToFirst() ? cursor.getInt(0) : 0;
     }
   }
 
@@ -418,261 +515,125 @@ public class MmsSmsDatabase extends Database {
     DatabaseComponent.get(context).mmsDatabase().incrementReceiptCount(syncMessageId, timestamp, false, true);
   }
 
-  public int getQuotedMessagePosition(long threadId, long quoteId, @NonNull Address address) {
-    String order     = MmsSmsColumns.NORMALIZED_DATE_SENT + " DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
-
-    try (Cursor cursor = queryTables(new String[]{ MmsSmsColumns.NORMALIZED_DATE_SENT, MmsSmsColumns.ADDRESS }, selection, order, null)) {
-      String  serializedAddress = address.serialize();
-      boolean isOwnNumber       = Util.isOwnNumber(context, address.serialize());
-
-      while (cursor != null && cursor.moveToNext()) {
-        boolean quoteIdMatches = cursor.getLong(0) == quoteId;
-        boolean addressMatches = serializedAddress.equals(cursor.getString(1));
-
-        if (quoteIdMatches && (addressMatches || isOwnNumber)) {
-          return cursor.getPosition();
-        }
-      }
+  /**
+   * How much of each message {@link #queryTables} reads. {@link #LIGHTWEIGHT} leaves out the
+   * attachment and reaction joins, so the records it reads come without attachments or reactions;
+   * it's meant for lookups that only look at message columns such as ids, dates and read state.
+   */
+  private enum QueryProfile { FULL, LIGHTWEIGHT }
+
+  private static final String REACTIONS_COLUMN = "json_group_array(json_object(" +
+          "'" + ReactionDatabase.ROW_ID + "', " + ReactionDatabase.TABLE_NAME + "." + ReactionDatabase.ROW_ID + ", " +
+          "'" + ReactionDatabase.MESSAGE_ID + "', " + ReactionDatabase.TABLE_NAME + "." + ReactionDatabase.MESSAGE_ID + ", " +
+          "'" + ReactionDatabase.IS_MMS + "', " + ReactionDatabase.TABLE_NAME + "." + ReactionDatabase.IS_MMS + ", " +
+          "'" + ReactionDatabase.AUTHOR_ID + "', " + ReactionDatabase.TABLE_NAME + "." + ReactionDatabase.AUTHOR_ID + ", " +
+          "'" + ReactionDatabase.EMOJI + "', " + ReactionDatabase.TABLE_NAME + "." + ReactionDatabase.EMOJI + ", " +
+          "'" + ReactionDatabase.SERVER_ID + "', " + ReactionDatabase.TABLE_NAME + "." + ReactionDatabase.SERVER_ID + ", " +
+          "'" + ReactionDatabase.COUNT + "', " + ReactionDatabase.TABLE_NAME + "." + ReactionDatabase.COUNT + ", " +
+          "'" + ReactionDatabase.SORT_ID + "', " + ReactionDatabase.TABLE_NAME + "." + ReactionDatabase.SORT_ID + ", " +
+          "'" + ReactionDatabase.DATE_SENT + "', " + ReactionDatabase.TABLE_NAME + "." + ReactionDatabase.DATE_SENT + ", " +
+          "'" + ReactionDatabase.DATE_RECEIVED + "', " + ReactionDatabase.TABLE_NAME + "." + ReactionDatabase.DATE_RECEIVED +
+          ")) AS " + ReactionDatabase.REACTION_JSON_ALIAS;
+
+  private static final String ATTACHMENTS_COLUMN = "json_group_array(json_object(" +
+          "'" + AttachmentDatabase.ROW_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.ROW_ID + ", " +
+          "'" + AttachmentDatabase.UNIQUE_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.UNIQUE_ID + ", " +
+          "'" + AttachmentDatabase.MMS_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.MMS_ID + "," +
+          "'" + AttachmentDatabase.SIZE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.SIZE + ", " +
+          "'" + AttachmentDatabase.FILE_NAME + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.FILE_NAME + ", " +
+          "'" + AttachmentDatabase.DATA + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.DATA + ", " +
+          "'" + AttachmentDatabase.THUMBNAIL + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.THUMBNAIL + ", " +
+          "'" + AttachmentDatabase.CONTENT_TYPE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CONTENT_TYPE + ", " +
+          "'" + AttachmentDatabase.CONTENT_LOCATION + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CONTENT_LOCATION + ", " +
+          "'" + AttachmentDatabase.FAST_PREFLIGHT_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.FAST_PREFLIGHT_ID + ", " +
+          "'" + AttachmentDatabase.VOICE_NOTE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.VOICE_NOTE + ", " +
+          "'" + AttachmentDatabase.WIDTH + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.WIDTH + ", " +
+          "'" + AttachmentDatabase.HEIGHT + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.HEIGHT + ", " +
+          "'" + AttachmentDatabase.QUOTE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.QUOTE + ", " +
+          "'" + AttachmentDatabase.CONTENT_DISPOSITION + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CONTENT_DISPOSITION + ", " +
+          "'" + AttachmentDatabase.NAME + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.NAME + ", " +
+          "'" + AttachmentDatabase.TRANSFER_STATE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.TRANSFER_STATE + ", " +
+          "'" + AttachmentDatabase.CAPTION + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CAPTION + ", " +
+          "'" + AttachmentDatabase.STICKER_PACK_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.STICKER_PACK_ID + ", " +
+          "'" + AttachmentDatabase.STICKER_PACK_KEY + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.STICKER_PACK_KEY + ", " +
+          "'" + AttachmentDatabase.STICKER_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.STICKER_ID +
+          ")) AS " + AttachmentDatabase.ATTACHMENT_JSON_ALIAS;
+
+  private static final String[] FULL_MMS_PROJECTION        = mmsProjection(ATTACHMENTS_COLUMN, REACTIONS_COLUMN);
+  private static final String[] FULL_SMS_PROJECTION        = smsProjection(REACTIONS_COLUMN);
+  private static final String[] LIGHTWEIGHT_MMS_PROJECTION = mmsProjection("NULL AS " + AttachmentDatabase.ATTACHMENT_JSON_ALIAS, "NULL AS " + ReactionDatabase.REACTION_JSON_ALIAS);
+  private static final String[] LIGHTWEIGHT_SMS_PROJECTION = smsProjection("NULL AS " + ReactionDatabase.REACTION_JSON_ALIAS);
+
+  private static final String FULL_MMS_TABLES = MmsDatabase.TABLE_NAME +
+          " LEFT OUTER JOIN " + AttachmentDatabase.TABLE_NAME +
+          " ON " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.MMS_ID + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID +
+          " LEFT OUTER JOIN " + ReactionDatabase.TABLE_NAME +
+          " ON " + ReactionDatabase.TABLE_NAME + "." + ReactionDatabase.MESSAGE_ID + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " AND " + ReactionDatabase.TABLE_NAME + "." + ReactionDatabase.IS_MMS + " = 1";
+  private static final String FULL_SMS_TABLES = SmsDatabase.TABLE_NAME +
+          " LEFT OUTER JOIN " + ReactionDatabase.TABLE_NAME +
+          " ON " + ReactionDatabase.TABLE_NAME + "." + ReactionDatabase.MESSAGE_ID + " = " + SmsDatabase.TABLE_NAME + "." + SmsDatabase.ID + " AND " + ReactionDatabase.TABLE_NAME + "." + ReactionDatabase.IS_MMS + " = 0";
+
+  private static final String UNREAD_SELECTION = "(" + MmsSmsColumns.READ + " = 0 OR " + MmsSmsColumns.REACTIONS_UNREAD + " = 1) AND " + MmsSmsColumns.NOTIFIED + " = 0";
+
+  private static final Set<String> MMS_COLUMNS_PRESENT = mmsColumnsPresent();
+  private static final Set<String> SMS_COLUMNS_PRESENT = smsColumnsPresent();
+
+  // The selections passed to queryTables bind their values, so the same few queries come back over
+  // and over and SQLCipher can reuse the statements it has already prepared for them.
+  private static final int QUERY_CACHE_SIZE = 32;
+
+  /** The most thread ids a union query can bind, as each is bound once for sms and once for mms. */
+  private static final int MAX_UNION_QUERY_ARGS = 999 / 2;
+
+  private final LruCache<String, String> queryCache = new LruCache<>(QUERY_CACHE_SIZE);
+
+  private Cursor queryTables(String selection, @Nullable String[] selectionArgs, String order, String limit) {
+    return queryTables(QueryProfile.FULL, selection, selectionArgs, order, limit);
+  }
+
+  /**
+   * Queries messages from both the sms and mms tables. {@code selection} is applied to each of them,
+   * so {@code selectionArgs} are bound once per table.
+   */
+  private Cursor queryTables(QueryProfile profile, String selection, @Nullable String[] selectionArgs, String order, String limit) {
+    String key   = profile + "|" + selection + "|" + order + "|" + limit;
+    String query = queryCache.get(key);
+    if (query == null) {
+      query = buildUnionQuery(profile, selection, order, limit);
+      queryCache.put(key, query);
     }
-    return -1;
-  }
-
-  public int getMessagePositionInConversation(long threadId, long sentTimestamp, @NonNull Address address, boolean reverse) {
-    String order     = MmsSmsColumns.NORMALIZED_DATE_SENT + (reverse ? " DESC" : " ASC");
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
 
-    try (Cursor cursor = queryTables(new String[]{ MmsSmsColumns.NORMALIZED_DATE_SENT, MmsSmsColumns.ADDRESS }, selection, order, null)) {
-      String  serializedAddress = address.serialize();
-      boolean isOwnNumber       = Util.isOwnNumber(context, address.serialize());
-
-      while (cursor != null && cursor.moveToNext()) {
-        boolean timestampMatches = cursor.getLong(0) == sentTimestamp;
-        boolean addressMatches   = serializedAddress.equals(cursor.getString(1));
-
-        if (timestampMatches && (addressMatches || isOwnNumber)) {
-          return cursor.getPosition();
-        }
-      }
+    String[] args = null;
+    if (selectionArgs != null) {
+      args = new String[selectionArgs.length * 2];
+      System.arraycopy(selectionArgs, 0, args, 0, selectionArgs.length);
+      System.arraycopy(selectionArgs, 0, args, selectionArgs.length, selectionArgs.length);
     }
-    return -1;
-  }
 
-  private Cursor queryTables(String[] projection, String selection, String order, String limit) {
-    String reactionsColumn = "json_group_array(json_object(" +
-            "'" + ReactionDatabase.ROW_ID + "', " + ReactionDatabase.TABLE_NAME + "." + ReactionDatabase.ROW_ID + ", " +
-            "'" + ReactionDatabase.MESSAGE_ID + "', " + ReactionDatabase.TABLE_NAME + "." + ReactionDatabase.MESSAGE_ID + ", " +
-            "'" + ReactionDatabase.IS_MMS + "', " + ReactionDatabase.TABLE_NAME + "." + ReactionDatabase.IS_MMS + ", " +
-            "'" + ReactionDatabase.AUTHOR_ID + "', " + ReactionDatabase.TABLE_NAME + "." + ReactionDatabase.AUTHOR_ID + ", " +
-            "'" + ReactionDatabase.EMOJI + "', " + ReactionDatabase.TABLE_NAME + "." + ReactionDatabase.EMOJI + ", " +
-            "'" + ReactionDatabase.SERVER_ID + "', " + ReactionDatabase.TABLE_NAME + "." + ReactionDatabase.SERVER_ID + ", " +
-            "'" + ReactionDatabase.COUNT + "', " + ReactionDatabase.TABLE_NAME + "." + ReactionDatabase.COUNT + ", " +
-            "'" + ReactionDatabase.SORT_ID + "', " + ReactionDatabase.TABLE_NAME + "." + ReactionDatabase.SORT_ID + ", " +
-            "'" + ReactionDatabase.DATE_SENT + "', " + ReactionDatabase.TABLE_NAME + "." + ReactionDatabase.DATE_SENT + ", " +
-            "'" + ReactionDatabase.DATE_RECEIVED + "', " + ReactionDatabase.TABLE_NAME + "." + ReactionDatabase.DATE_RECEIVED +
-            ")) AS " + ReactionDatabase.REACTION_JSON_ALIAS;
-    String[] mmsProjection = {MmsDatabase.DATE_SENT + " AS " + MmsSmsColumns.NORMALIZED_DATE_SENT,
-                              MmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
-                              MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " AS " + MmsSmsColumns.ID,
-                              "'MMS::' || " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID
-                                  + " || '::' || " + MmsDatabase.DATE_SENT
-                                  + " AS " + MmsSmsColumns.UNIQUE_ROW_ID,
-                              "json_group_array(json_object(" +
-                                  "'" + AttachmentDatabase.ROW_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.ROW_ID + ", " +
-                                  "'" + AttachmentDatabase.UNIQUE_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.UNIQUE_ID + ", " +
-                                  "'" + AttachmentDatabase.MMS_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.MMS_ID + "," +
-                                  "'" + AttachmentDatabase.SIZE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.SIZE + ", " +
-                                  "'" + AttachmentDatabase.FILE_NAME + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.FILE_NAME + ", " +
-                                  "'" + AttachmentDatabase.DATA + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.DATA + ", " +
-                                  "'" + AttachmentDatabase.THUMBNAIL + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.THUMBNAIL + ", " +
-                                  "'" + AttachmentDatabase.CONTENT_TYPE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CONTENT_TYPE + ", " +
-                                  "'" + AttachmentDatabase.CONTENT_LOCATION + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CONTENT_LOCATION + ", " +
-                                  "'" + AttachmentDatabase.FAST_PREFLIGHT_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.FAST_PREFLIGHT_ID + ", " +
-                                  "'" + AttachmentDatabase.VOICE_NOTE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.VOICE_NOTE + ", " +
-                                  "'" + AttachmentDatabase.WIDTH + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.WIDTH + ", " +
-                                  "'" + AttachmentDatabase.HEIGHT + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.HEIGHT + ", " +
-                                  "'" + AttachmentDatabase.QUOTE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.QUOTE + ", " +
-                                  "'" + AttachmentDatabase.CONTENT_DISPOSITION + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CONTENT_DISPOSITION + ", " +
-                                  "'" + AttachmentDatabase.NAME + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.NAME + ", " +
-                                  "'" + AttachmentDatabase.TRANSFER_STATE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.TRANSFER_STATE + ", " +
-                                  "'" + AttachmentDatabase.CAPTION + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CAPTION + ", " +
-                                  "'" + AttachmentDatabase.STICKER_PACK_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.STICKER_PACK_ID + ", " +
-                                  "'" + AttachmentDatabase.STICKER_PACK_KEY + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.STICKER_PACK_KEY + ", " +
-                                  "'" + AttachmentDatabase.STICKER_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.STICKER_ID +
-                                  ")) AS " + AttachmentDatabase.ATTACHMENT_JSON_ALIAS,
-                              reactionsColumn,
-                              SmsDatabase.BODY, MmsSmsColumns.READ, MmsSmsColumns.THREAD_ID,
-                              SmsDatabase.TYPE, SmsDatabase.ADDRESS, SmsDatabase.ADDRESS_DEVICE_ID, SmsDatabase.SUBJECT, MmsDatabase.MESSAGE_TYPE,
-                              MmsDatabase.MESSAGE_BOX, SmsDatabase.STATUS, MmsDatabase.PART_COUNT,
-                              MmsDatabase.CONTENT_LOCATION, MmsDatabase.TRANSACTION_ID,
-                              MmsDatabase.MESSAGE_SIZE, MmsDatabase.EXPIRY, MmsDatabase.STATUS,
-                              MmsDatabase.UNIDENTIFIED,
-                              MmsSmsColumns.DELIVERY_RECEIPT_COUNT, MmsSmsColumns.READ_RECEIPT_COUNT,
-                              MmsSmsColumns.MISMATCHED_IDENTITIES,
-                              MmsSmsColumns.SUBSCRIPTION_ID, MmsSmsColumns.EXPIRES_IN, MmsSmsColumns.EXPIRE_STARTED,
-                              MmsSmsColumns.NOTIFIED,
-                              MmsDatabase.NETWORK_FAILURE, TRANSPORT,
-                              MmsDatabase.QUOTE_ID,
-                              MmsDatabase.QUOTE_AUTHOR,
-                              MmsDatabase.QUOTE_BODY,
-                              MmsDatabase.QUOTE_MISSING,
-                              MmsDatabase.QUOTE_ATTACHMENT,
-                              MmsDatabase.SHARED_CONTACTS,
-                              MmsDatabase.LINK_PREVIEWS,
-                              MmsSmsColumns.HAS_MENTION
-    };
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
+    return db.rawQuery(query, args);
+  }
 
-    String[] smsProjection = {SmsDatabase.DATE_SENT + " AS " + MmsSmsColumns.NORMALIZED_DATE_SENT,
-                              SmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
-                              MmsSmsColumns.ID,
-                              "'SMS::' || " + MmsSmsColumns.ID
-                                  + " || '::' || " + SmsDatabase.DATE_SENT
-                                  + " AS " + MmsSmsColumns.UNIQUE_ROW_ID,
-                              "NULL AS " + AttachmentDatabase.ATTACHMENT_JSON_ALIAS,
-                              reactionsColumn,
-                              SmsDatabase.BODY, MmsSmsColumns.READ, MmsSmsColumns.THREAD_ID,
-                              SmsDatabase.TYPE, SmsDatabase.ADDRESS, SmsDatabase.ADDRESS_DEVICE_ID, SmsDatabase.SUBJECT, MmsDatabase.MESSAGE_TYPE,
-                              MmsDatabase.MESSAGE_BOX, SmsDatabase.STATUS, MmsDatabase.PART_COUNT,
-                              MmsDatabase.CONTENT_LOCATION, MmsDatabase.TRANSACTION_ID,
-                              MmsDatabase.MESSAGE_SIZE, MmsDatabase.EXPIRY, MmsDatabase.STATUS,
-                              MmsDatabase.UNIDENTIFIED,
-                              MmsSmsColumns.DELIVERY_RECEIPT_COUNT, MmsSmsColumns.READ_RECEIPT_COUNT,
-                              MmsSmsColumns.MISMATCHED_IDENTITIES,
-                              MmsSmsColumns.SUBSCRIPTION_ID, MmsSmsColumns.EXPIRES_IN, MmsSmsColumns.EXPIRE_STARTED,
-                              MmsSmsColumns.NOTIFIED,
-                              MmsDatabase.NETWORK_FAILURE, TRANSPORT,
-                              MmsDatabase.QUOTE_ID,
-                              MmsDatabase.QUOTE_AUTHOR,
-                              MmsDatabase.QUOTE_BODY,
-                              MmsDatabase.QUOTE_MISSING,
-                              MmsDatabase.QUOTE_ATTACHMENT,
-                              MmsDatabase.SHARED_CONTACTS,
-                              MmsDatabase.LINK_PREVIEWS,
-                              MmsSmsColumns.HAS_MENTION
-    };
+  private static String buildUnionQuery(QueryProfile profile, String selection, String order, String limit) {
+    boolean full = profile == QueryProfile.FULL;
 
     SQLiteQueryBuilder mmsQueryBuilder = new SQLiteQueryBuilder();
     SQLiteQueryBuilder smsQueryBuilder = new SQLiteQueryBuilder();
 
-    mmsQueryBuilder.setDistinct(true);
-    smsQueryBuilder.setDistinct(true);
-
-    smsQueryBuilder.setTables(SmsDatabase.TABLE_NAME +
-                              " LEFT OUTER JOIN " + ReactionDatabase.TABLE_NAME +
-                              " ON " + ReactionDatabase.TABLE_NAME + "." + ReactionDatabase.MESSAGE_ID + " = " + SmsDatabase.TABLE_NAME + "." + SmsDatabase.ID + " AND " + ReactionDatabase.TABLE_NAME + "." + ReactionDatabase.IS_MMS + " = 0");
-    mmsQueryBuilder.setTables(MmsDatabase.TABLE_NAME +
-                              " LEFT OUTER JOIN " + AttachmentDatabase.TABLE_NAME +
-                              " ON " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.MMS_ID + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID +
-                              " LEFT OUTER JOIN " + ReactionDatabase.TABLE_NAME +
-                              " ON " + ReactionDatabase.TABLE_NAME + "." + ReactionDatabase.MESSAGE_ID + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " AND " + ReactionDatabase.TABLE_NAME + "." + ReactionDatabase.IS_MMS + " = 1");
-
-
-    Set<String> mmsColumnsPresent = new HashSet<>();
-    mmsColumnsPresent.add(MmsSmsColumns.ID);
-    mmsColumnsPresent.add(MmsSmsColumns.READ);
-    mmsColumnsPresent.add(MmsSmsColumns.THREAD_ID);
-    mmsColumnsPresent.add(MmsSmsColumns.BODY);
-    mmsColumnsPresent.add(MmsSmsColumns.ADDRESS);
-    mmsColumnsPresent.add(MmsSmsColumns.ADDRESS_DEVICE_ID);
-    mmsColumnsPresent.add(MmsSmsColumns.DELIVERY_RECEIPT_COUNT);
-    mmsColumnsPresent.add(MmsSmsColumns.READ_RECEIPT_COUNT);
-    mmsColumnsPresent.add(MmsSmsColumns.MISMATCHED_IDENTITIES);
-    mmsColumnsPresent.add(MmsSmsColumns.SUBSCRIPTION_ID);
-    mmsColumnsPresent.add(MmsSmsColumns.EXPIRES_IN);
-    mmsColumnsPresent.add(MmsSmsColumns.EXPIRE_STARTED);
-    mmsColumnsPresent.add(MmsDatabase.MESSAGE_TYPE);
-    mmsColumnsPresent.add(MmsDatabase.MESSAGE_BOX);
-    mmsColumnsPresent.add(MmsDatabase.DATE_SENT);
-    mmsColumnsPresent.add(MmsDatabase.DATE_RECEIVED);
-    mmsColumnsPresent.add(MmsDatabase.PART_COUNT);
-    mmsColumnsPresent.add(MmsDatabase.CONTENT_LOCATION);
-    mmsColumnsPresent.add(MmsDatabase.TRANSACTION_ID);
-    mmsColumnsPresent.add(MmsDatabase.MESSAGE_SIZE);
-    mmsColumnsPresent.add(MmsDatabase.EXPIRY);
-    mmsColumnsPresent.add(MmsDatabase.NOTIFIED);
-    mmsColumnsPresent.add(MmsDatabase.STATUS);
-    mmsColumnsPresent.add(MmsDatabase.UNIDENTIFIED);
-    mmsColumnsPresent.add(MmsDatabase.NETWORK_FAILURE);
-    mmsColumnsPresent.add(MmsSmsColumns.HAS_MENTION);
-
-    mmsColumnsPresent.add(AttachmentDatabase.ROW_ID);
-    mmsColumnsPresent.add(AttachmentDatabase.UNIQUE_ID);
-    mmsColumnsPresent.add(AttachmentDatabase.MMS_ID);
-    mmsColumnsPresent.add(AttachmentDatabase.SIZE);
-    mmsColumnsPresent.add(AttachmentDatabase.FILE_NAME);
-    mmsColumnsPresent.add(AttachmentDatabase.DATA);
-    mmsColumnsPresent.add(AttachmentDatabase.THUMBNAIL);
-    mmsColumnsPresent.add(AttachmentDatabase.CONTENT_TYPE);
-    mmsColumnsPresent.add(AttachmentDatabase.CONTENT_LOCATION);
-    mmsColumnsPresent.add(AttachmentDatabase.DIGEST);
-    mmsColumnsPresent.add(AttachmentDatabase.FAST_PREFLIGHT_ID);
-    mmsColumnsPresent.add(AttachmentDatabase.VOICE_NOTE);
-    mmsColumnsPresent.add(AttachmentDatabase.WIDTH);
-    mmsColumnsPresent.add(AttachmentDatabase.HEIGHT);
-    mmsColumnsPresent.add(AttachmentDatabase.QUOTE);
-    mmsColumnsPresent.add(AttachmentDatabase.STICKER_PACK_ID);
-    mmsColumnsPresent.add(AttachmentDatabase.STICKER_PACK_KEY);
-    mmsColumnsPresent.add(AttachmentDatabase.STICKER_ID);
-    mmsColumnsPresent.add(AttachmentDatabase.CAPTION);
-    mmsColumnsPresent.add(AttachmentDatabase.CONTENT_DISPOSITION);
-    mmsColumnsPresent.add(AttachmentDatabase.NAME);
-    mmsColumnsPresent.add(AttachmentDatabase.TRANSFER_STATE);
-    mmsColumnsPresent.add(AttachmentDatabase.ATTACHMENT_JSON_ALIAS);
-    mmsColumnsPresent.add(MmsDatabase.QUOTE_ID);
-    mmsColumnsPresent.add(MmsDatabase.QUOTE_AUTHOR);
-    mmsColumnsPresent.add(MmsDatabase.QUOTE_BODY);
-    mmsColumnsPresent.add(MmsDatabase.QUOTE_MISSING);
-    mmsColumnsPresent.add(MmsDatabase.QUOTE_ATTACHMENT);
-    mmsColumnsPresent.add(MmsDatabase.SHARED_CONTACTS);
-    mmsColumnsPresent.add(MmsDatabase.LINK_PREVIEWS);
-    mmsColumnsPresent.add(ReactionDatabase.MESSAGE_ID);
-    mmsColumnsPresent.add(ReactionDatabase.IS_MMS);
-    mmsColumnsPresent.add(ReactionDatabase.AUTHOR_ID);
-    mmsColumnsPresent.add(ReactionDatabase.EMOJI);
-    mmsColumnsPresent.add(ReactionDatabase.SERVER_ID);
-    mmsColumnsPresent.add(ReactionDatabase.COUNT);
-    mmsColumnsPresent.add(ReactionDatabase.SORT_ID);
-    mmsColumnsPresent.add(ReactionDatabase.DATE_SENT);
-    mmsColumnsPresent.add(ReactionDatabase.DATE_RECEIVED);
-    mmsColumnsPresent.add(ReactionDatabase.REACTION_JSON_ALIAS);
-
-    Set<String> smsColumnsPresent = new HashSet<>();
-    smsColumnsPresent.add(MmsSmsColumns.ID);
-    smsColumnsPresent.add(MmsSmsColumns.BODY);
-    smsColumnsPresent.add(MmsSmsColumns.ADDRESS);
-    smsColumnsPresent.add(MmsSmsColumns.ADDRESS_DEVICE_ID);
-    smsColumnsPresent.add(MmsSmsColumns.READ);
-    smsColumnsPresent.add(MmsSmsColumns.THREAD_ID);
-    smsColumnsPresent.add(MmsSmsColumns.DELIVERY_RECEIPT_COUNT);
-    smsColumnsPresent.add(MmsSmsColumns.READ_RECEIPT_COUNT);
-    smsColumnsPresent.add(MmsSmsColumns.MISMATCHED_IDENTITIES);
-    smsColumnsPresent.add(MmsSmsColumns.SUBSCRIPTION_ID);
-    smsColumnsPresent.add(MmsSmsColumns.EXPIRES_IN);
-    smsColumnsPresent.add(MmsSmsColumns.EXPIRE_STARTED);
-    smsColumnsPresent.add(MmsSmsColumns.NOTIFIED);
-    smsColumnsPresent.add(SmsDatabase.TYPE);
-    smsColumnsPresent.add(SmsDatabase.SUBJECT);
-    smsColumnsPresent.add(SmsDatabase.DATE_SENT);
-    smsColumnsPresent.add(SmsDatabase.DATE_RECEIVED);
-    smsColumnsPresent.add(SmsDatabase.STATUS);
-    smsColumnsPresent.add(SmsDatabase.UNIDENTIFIED);
-    smsColumnsPresent.add(MmsSmsColumns.HAS_MENTION);
-    smsColumnsPresent.add(ReactionDatabase.ROW_ID);
-    smsColumnsPresent.add(ReactionDatabase.MESSAGE_ID);
-    smsColumnsPresent.add(ReactionDatabase.IS_MMS);
-    smsColumnsPresent.add(ReactionDatabase.AUTHOR_ID);
-    smsColumnsPresent.add(ReactionDatabase.EMOJI);
-    smsColumnsPresent.add(ReactionDatabase.SERVER_ID);
-    smsColumnsPresent.add(ReactionDatabase.COUNT);
-    smsColumnsPresent.add(ReactionDatabase.SORT_ID);
-    smsColumnsPresent.add(ReactionDatabase.DATE_SENT);
-    smsColumnsPresent.add(ReactionDatabase.DATE_RECEIVED);
-    smsColumnsPresent.add(ReactionDatabase.REACTION_JSON_ALIAS);
+    mmsQueryBuilder.setDistinct(full);
+    smsQueryBuilder.setDistinct(full);
+
+    mmsQueryBuilder.setTables(full ? FULL_MMS_TABLES : MmsDatabase.TABLE_NAME);
+    smsQueryBuilder.setTables(full ? FULL_SMS_TABLES : SmsDatabase.TABLE_NAME);
+
+    // Without the joins there's one row per message already, so nothing to group
+    String mmsGroupBy = full ? MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID : null;
+    String smsGroupBy = full ? SmsDatabase.TABLE_NAME + "." + SmsDatabase.ID : null;
 
     @SuppressWarnings("deprecation")
-    String mmsSubQuery = mmsQueryBuilder.buildUnionSubQuery(TRANSPORT, mmsProjection, mmsColumnsPresent, 5, MMS_TRANSPORT, selection, null, MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID, null);
+    String mmsSubQuery = mmsQueryBuilder.buildUnionSubQuery(TRANSPORT, full ? FULL_MMS_PROJECTION : LIGHTWEIGHT_MMS_PROJECTION, MMS_COLUMNS_PRESENT, 5, MMS_TRANSPORT, selection, null, mmsGroupBy, null);
     @SuppressWarnings("deprecation")
-    String smsSubQuery = smsQueryBuilder.buildUnionSubQuery(TRANSPORT, smsProjection, smsColumnsPresent, 5, SMS_TRANSPORT, selection, null, SmsDatabase.TABLE_NAME + "." + SmsDatabase.ID, null);
+    String smsSubQuery = smsQueryBuilder.buildUnionSubQuery(TRANSPORT, full ? FULL_SMS_PROJECTION : LIGHTWEIGHT_SMS_PROJECTION, SMS_COLUMNS_PRESENT, 5, SMS_TRANSPORT, selection, null, smsGroupBy, null);
 
     SQLiteQueryBuilder unionQueryBuilder = new SQLiteQueryBuilder();
     String unionQuery = unionQueryBuilder.buildUnionQuery(new String[] {smsSubQuery, mmsSubQuery}, order, limit);
@@ -681,10 +642,177 @@ public class MmsSmsDatabase extends Database {
     outerQueryBuilder.setTables("(" + unionQuery + ")");
 
     @SuppressWarnings("deprecation")
-    String query      = outerQueryBuilder.buildQuery(projection, null, null, null, null, null, null);
+    String query = outerQueryBuilder.buildQuery(PROJECTION, null, null, null, null, null, null);
+    return query;
+  }
+
+  private static String[] mmsProjection(String attachmentsColumn, String reactionsColumn) {
+    return new String[] {MmsDatabase.DATE_SENT + " AS " + MmsSmsColumns.NORMALIZED_DATE_SENT,
+                         MmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
+                         MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " AS " + MmsSmsColumns.ID,
+                         "'MMS::' || " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID
+                             + " || '::' || " + MmsDatabase.DATE_SENT
+                             + " AS " + MmsSmsColumns.UNIQUE_ROW_ID,
+                         attachmentsColumn,
+                         reactionsColumn,
+                         SmsDatabase.BODY, MmsSmsColumns.READ, MmsSmsColumns.THREAD_ID,
+                         SmsDatabase.TYPE, SmsDatabase.ADDRESS, SmsDatabase.ADDRESS_DEVICE_ID, SmsDatabase.SUBJECT, MmsDatabase.MESSAGE_TYPE,
+                         MmsDatabase.MESSAGE_BOX, SmsDatabase.STATUS, MmsDatabase.PART_COUNT,
+                         MmsDatabase.CONTENT_LOCATION, MmsDatabase.TRANSACTION_ID,
+                         MmsDatabase.MESSAGE_SIZE, MmsDatabase.EXPIRY, MmsDatabase.STATUS,
+                         MmsDatabase.UNIDENTIFIED,
+                         MmsSmsColumns.DELIVERY_RECEIPT_COUNT, MmsSmsColumns.READ_RECEIPT_COUNT,
+                         MmsSmsColumns.MISMATCHED_IDENTITIES,
+                         MmsSmsColumns.SUBSCRIPTION_ID, MmsSmsColumns.EXPIRES_IN, MmsSmsColumns.EXPIRE_STARTED,
+                         MmsSmsColumns.NOTIFIED,
+                         MmsDatabase.NETWORK_FAILURE, TRANSPORT,
+                         MmsDatabase.QUOTE_ID,
+                         MmsDatabase.QUOTE_AUTHOR,
+                         MmsDatabase.QUOTE_BODY,
+                         MmsDatabase.QUOTE_MISSING,
+                         MmsDatabase.QUOTE_ATTACHMENT,
+                         MmsDatabase.SHARED_CONTACTS,
+                         MmsDatabase.LINK_PREVIEWS,
+                         MmsSmsColumns.HAS_MENTION
+    };
+  }
 
-    SQLiteDatabase db = databaseHelper.getReadableDatabase();
-    return db.rawQuery(query, null);
+  private static String[] smsProjection(String reactionsColumn) {
+    return new String[] {SmsDatabase.DATE_SENT + " AS " + MmsSmsColumns.NORMALIZED_DATE_SENT,
+                         SmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
+                         MmsSmsColumns.ID,
+                         "'SMS::' || " + MmsSmsColumns.ID
+                             + " || '::' || " + SmsDatabase.DATE_SENT
+                             + " AS " + MmsSmsColumns.UNIQUE_ROW_ID,
+                         "NULL AS " + AttachmentDatabase.ATTACHMENT_JSON_ALIAS,
+                         reactionsColumn,
+                         SmsDatabase.BODY, MmsSmsColumns.READ, MmsSmsColumns.THREAD_ID,
+                         SmsDatabase.TYPE, SmsDatabase.ADDRESS, SmsDatabase.ADDRESS_DEVICE_ID, SmsDatabase.SUBJECT, MmsDatabase.MESSAGE_TYPE,
+                         MmsDatabase.MESSAGE_BOX, SmsDatabase.STATUS, MmsDatabase.PART_COUNT,
+                         MmsDatabase.CONTENT_LOCATION, MmsDatabase.TRANSACTION_ID,
+                         MmsDatabase.MESSAGE_SIZE, MmsDatabase.EXPIRY, MmsDatabase.STATUS,
+                         MmsDatabase.UNIDENTIFIED,
+                         MmsSmsColumns.DELIVERY_RECEIPT_COUNT, MmsSmsColumns.READ_RECEIPT_COUNT,
+                         MmsSmsColumns.MISMATCHED_IDENTITIES,
+                         MmsSmsColumns.SUBSCRIPTION_ID, MmsSmsColumns.EXPIRES_IN, MmsSmsColumns.EXPIRE_STARTED,
+                         MmsSmsColumns.NOTIFIED,
+                         MmsDatabase.NETWORK_FAILURE, TRANSPORT,
+                         MmsDatabase.QUOTE_ID,
+                         MmsDatabase.QUOTE_AUTHOR,
+                         MmsDatabase.QUOTE_BODY,
+                         MmsDatabase.QUOTE_MISSING,
+                         MmsDatabase.QUOTE_ATTACHMENT,
+                         MmsDatabase.SHARED_CONTACTS,
+                         MmsDatabase.LINK_PREVIEWS,
+                         MmsSmsColumns.HAS_MENTION
+    };
+  }
+
+  private static Set<String> mmsColumnsPresent() {
+    Set<String> columns = new HashSet<>();
+    columns.add(MmsSmsColumns.ID);
+    columns.add(MmsSmsColumns.READ);
+    columns.add(MmsSmsColumns.THREAD_ID);
+    columns.add(MmsSmsColumns.BODY);
+    columns.add(MmsSmsColumns.ADDRESS);
+    columns.add(MmsSmsColumns.ADDRESS_DEVICE_ID);
+    columns.add(MmsSmsColumns.DELIVERY_RECEIPT_COUNT);
+    columns.add(MmsSmsColumns.READ_RECEIPT_COUNT);
+    columns.add(MmsSmsColumns.MISMATCHED_IDENTITIES);
+    columns.add(MmsSmsColumns.SUBSCRIPTION_ID);
+    columns.add(MmsSmsColumns.EXPIRES_IN);
+    columns.add(MmsSmsColumns.EXPIRE_STARTED);
+    columns.add(MmsDatabase.MESSAGE_TYPE);
+    columns.add(MmsDatabase.MESSAGE_BOX);
+    columns.add(MmsDatabase.DATE_SENT);
+    columns.add(MmsDatabase.DATE_RECEIVED);
+    columns.add(MmsDatabase.PART_COUNT);
+    columns.add(MmsDatabase.CONTENT_LOCATION);
+    columns.add(MmsDatabase.TRANSACTION_ID);
+    columns.add(MmsDatabase.MESSAGE_SIZE);
+    columns.add(MmsDatabase.EXPIRY);
+    columns.add(MmsDatabase.NOTIFIED);
+    columns.add(MmsDatabase.STATUS);
+    columns.add(MmsDatabase.UNIDENTIFIED);
+    columns.add(MmsDatabase.NETWORK_FAILURE);
+    columns.add(MmsSmsColumns.HAS_MENTION);
+    columns.add(AttachmentDatabase.ROW_ID);
+    columns.add(AttachmentDatabase.UNIQUE_ID);
+    columns.add(AttachmentDatabase.MMS_ID);
+    columns.add(AttachmentDatabase.SIZE);
+    columns.add(AttachmentDatabase.FILE_NAME);
+    columns.add(AttachmentDatabase.DATA);
+    columns.add(AttachmentDatabase.THUMBNAIL);
+    columns.add(AttachmentDatabase.CONTENT_TYPE);
+    columns.add(AttachmentDatabase.CONTENT_LOCATION);
+    columns.add(AttachmentDatabase.DIGEST);
+    columns.add(AttachmentDatabase.FAST_PREFLIGHT_ID);
+    columns.add(AttachmentDatabase.VOICE_NOTE);
+    columns.add(AttachmentDatabase.WIDTH);
+    columns.add(AttachmentDatabase.HEIGHT);
+    columns.add(AttachmentDatabase.QUOTE);
+    columns.add(AttachmentDatabase.STICKER_PACK_ID);
+    columns.add(AttachmentDatabase.STICKER_PACK_KEY);
+    columns.add(AttachmentDatabase.STICKER_ID);
+    columns.add(AttachmentDatabase.CAPTION);
+    columns.add(AttachmentDatabase.CONTENT_DISPOSITION);
+    columns.add(AttachmentDatabase.NAME);
+    columns.add(AttachmentDatabase.TRANSFER_STATE);
+    columns.add(AttachmentDatabase.ATTACHMENT_JSON_ALIAS);
+    columns.add(MmsDatabase.QUOTE_ID);
+    columns.add(MmsDatabase.QUOTE_AUTHOR);
+    columns.add(MmsDatabase.QUOTE_BODY);
+    columns.add(MmsDatabase.QUOTE_MISSING);
+    columns.add(MmsDatabase.QUOTE_ATTACHMENT);
+    columns.add(MmsDatabase.SHARED_CONTACTS);
+    columns.add(MmsDatabase.LINK_PREVIEWS);
+    columns.add(ReactionDatabase.MESSAGE_ID);
+    columns.add(ReactionDatabase.IS_MMS);
+    columns.add(ReactionDatabase.AUTHOR_ID);
+    columns.add(ReactionDatabase.EMOJI);
+    columns.add(ReactionDatabase.SERVER_ID);
+    columns.add(ReactionDatabase.COUNT);
+    columns.add(ReactionDatabase.SORT_ID);
+    columns.add(ReactionDatabase.DATE_SENT);
+    columns.add(ReactionDatabase.DATE_RECEIVED);
+    columns.add(ReactionDatabase.REACTION_JSON_ALIAS);
+    return columns;
+  }
+
+  private static Set<String> smsColumnsPresent() {
+    Set<String> columns = new HashSet<>();
+    columns.add(MmsSmsColumns.ID);
+    columns.add(MmsSmsColumns.BODY);
+    columns.add(MmsSmsColumns.ADDRESS);
+    columns.add(MmsSmsColumns.ADDRESS_DEVICE_ID);
+    columns.add(MmsSmsColumns.READ);
+    columns.add(MmsSmsColumns.THREAD_ID);
+    columns.add(MmsSmsColumns.DELIVERY_RECEIPT_COUNT);
+    columns.add(MmsSmsColumns.READ_RECEIPT_COUNT);
+    columns.add(MmsSmsColumns.MISMATCHED_IDENTITIES);
+    columns.add(MmsSmsColumns.SUBSCRIPTION_ID);
+    columns.add(MmsSmsColumns.EXPIRES_IN);
+    columns.add(MmsSmsColumns.EXPIRE_STARTED);
+    columns.add(MmsSmsColumns.NOTIFIED);
+    columns.add(SmsDatabase.TYPE);
+    columns.add(SmsDatabase.SUBJECT);
+    columns.add(SmsDatabase.DATE_SENT);
+    columns.add(SmsDatabase.DATE_RECEIVED);
+    columns.add(SmsDatabase.STATUS);
+    columns.add(SmsDatabase.UNIDENTIFIED);
+    columns.add(MmsSmsColumns.HAS_MENTION);
+    columns.add(ReactionDatabase.ROW_ID);
+    columns.add(ReactionDatabase.MESSAGE_ID);
+    columns.add(ReactionDatabase.IS_MMS);
+    columns.add(ReactionDatabase.AUTHOR_ID);
+    columns.add(ReactionDatabase.EMOJI);
+    columns.add(ReactionDatabase.SERVER_ID);
+    columns.add(ReactionDatabase.COUNT);
+    columns.add(ReactionDatabase.SORT_ID);
+    columns.add(ReactionDatabase.DATE_SENT);
+    columns.add(ReactionDatabase.DATE_RECEIVED);
+    columns.add(ReactionDatabase.REACTION_JSON_ALIAS);
+    return columns;
   }
 
   public Reader readerFor(@NonNull Cursor cursor) {
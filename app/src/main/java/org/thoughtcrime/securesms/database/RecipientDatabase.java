@@ -24,11 +24,15 @@ import org.session.libsignal.utilities.Base64;
 import org.session.libsignal.utilities.Log;
 import org.session.libsignal.utilities.guava.Optional;
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
+import org.thoughtcrime.securesms.util.SqlUtil;
 
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class RecipientDatabase extends Database {
 
@@ -195,6 +199,30 @@ public class RecipientDatabase extends Database {
     }
   }
 
+  /**
+   * Loads the settings of many recipients at once. Addresses without settings are left out.
+   */
+  public @NonNull Map<Address, RecipientSettings> getRecipientSettings(@NonNull Collection<Address> addresses) {
+    Map<Address, RecipientSettings> settings = new HashMap<>(addresses.size());
+    if (addresses.isEmpty()) return settings;
+
+    List<String> serialized = new ArrayList<>(addresses.size());
+    for (Address address : addresses) serialized.add(address.serialize());
+
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
+
+    for (SqlUtil.Query query : SqlUtil.buildCollectionQuery(ADDRESS, serialized)) {
+      try (Cursor cursor = database.query(TABLE_NAME, null, query.getWhere(), query.getWhereArgs(), null, null, null)) {
+        while (cursor != null && cursor.moveToNext()) {
+          Address address = Address.fromSerialized(cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS)));
+          settings.put(address, getRecipientSettings(cursor).get());
+        }
+      }
+    }
+
+    return settings;
+  }
+
   Optional<RecipientSettings> getRecipientSettings(@NonNull Cursor cursor) {
     boolean blocked                 = cursor.getInt(cursor.getColumnIndexOrThrow(BLOCK))                == 1;
     boolean approved                = cursor.getInt(cursor.getColumnIndexOrThrow(APPROVED))             == 1;
@@ -280,7 +308,7 @@ public class RecipientDatabase extends Database {
     values.put(COLOR, color.serialize());
     updateOrInsert(recipient.getAddress(), values);
     recipient.resolve().setColor(color);
-    notifyRecipientListeners();
+    notifyRecipientListeners(recipient);
   }
 
   public void setDefaultSubscriptionId(@NonNull Recipient recipient, int defaultSubscriptionId) {
@@ -288,7 +316,7 @@ public class RecipientDatabase extends Database {
     values.put(DEFAULT_SUBSCRIPTION_ID, defaultSubscriptionId);
     updateOrInsert(recipient.getAddress(), values);
     recipient.resolve().setDefaultSubscriptionId(Optional.of(defaultSubscriptionId));
-    notifyRecipientListeners();
+    notifyRecipientListeners(recipient);
   }
 
   public void setForceSmsSelection(@NonNull Recipient recipient, boolean forceSmsSelection) {
@@ -296,7 +324,7 @@ public class RecipientDatabase extends Database {
     contentValues.put(FORCE_SMS_SELECTION, forceSmsSelection ? 1 : 0);
     updateOrInsert(recipient.getAddress(), contentValues);
     recipient.resolve().setForceSmsSelection(forceSmsSelection);
-    notifyRecipientListeners();
+    notifyRecipientListeners(recipient);
   }
 
   public boolean getApproved(@NonNull Address address) {
@@ -314,7 +342,7 @@ public class RecipientDatabase extends Database {
     values.put(WRAPPER_HASH, recipientHash);
     updateOrInsert(recipient.getAddress(), values);
     recipient.resolve().setWrapperHash(recipientHash);
-    notifyRecipientListeners();
+    notifyRecipientListeners(recipient);
   }
 
   public void setApproved(@NonNull Recipient recipient, boolean approved) {
@@ -322,7 +350,7 @@ public class RecipientDatabase extends Database {
     values.put(APPROVED, approved ? 1 : 0);
     updateOrInsert(recipient.getAddress(), values);
     recipient.resolve().setApproved(approved);
-    notifyRecipientListeners();
+    notifyRecipientListeners(recipient);
   }
 
   public void setApprovedMe(@NonNull Recipient recipient, boolean approvedMe) {
@@ -330,7 +358,7 @@ public class RecipientDatabase extends Database {
     values.put(APPROVED_ME, approvedMe ? 1 : 0);
     updateOrInsert(recipient.getAddress(), values);
     recipient.resolve().setHasApprovedMe(approvedMe);
-    notifyRecipientListeners();
+    notifyRecipientListeners(recipient);
   }
 
   public void setBlocked(@NonNull Iterable<Recipient> recipients, boolean blocked) {
@@ -347,7 +375,7 @@ public class RecipientDatabase extends Database {
     } finally {
       db.endTransaction();
     }
-    notifyRecipientListeners();
+    notifyRecipientListeners(recipients);
   }
 
   public void setAutoDownloadAttachments(@NonNull Recipient recipient, boolean shouldAutoDownloadAttachments) {
@@ -362,7 +390,7 @@ public class RecipientDatabase extends Database {
     } finally {
       db.endTransaction();
     }
-    notifyRecipientListeners();
+    notifyRecipientListeners(recipient);
   }
 
   public void setMuted(@NonNull Recipient recipient, long until) {
@@ -370,7 +398,7 @@ public class RecipientDatabase extends Database {
     values.put(MUTE_UNTIL, until);
     updateOrInsert(recipient.getAddress(), values);
     recipient.resolve().setMuted(until);
-    notifyRecipientListeners();
+    notifyRecipientListeners(recipient);
   }
 
   /**
@@ -383,8 +411,7 @@ public class RecipientDatabase extends Database {
     values.put(NOTIFY_TYPE, notifyType);
     updateOrInsert(recipient.getAddress(), values);
     recipient.resolve().setNotifyType(notifyType);
-    notifyConversationListListeners();
-    notifyRecipientListeners();
+    notifyRecipientListeners(recipient);
   }
 
   public void setUnidentifiedAccessMode(@NonNull Recipient recipient, @NonNull UnidentifiedAccessMode unidentifiedAccessMode) {
@@ -392,7 +419,7 @@ public class RecipientDatabase extends Database {
     values.put(UNIDENTIFIED_ACCESS_MODE, unidentifiedAccessMode.getMode());
     updateOrInsert(recipient.getAddress(), values);
     recipient.resolve().setUnidentifiedAccessMode(unidentifiedAccessMode);
-    notifyRecipientListeners();
+    notifyRecipientListeners(recipient);
   }
 
   public void setProfileKey(@NonNull Recipient recipient, @Nullable byte[] profileKey) {
@@ -400,7 +427,7 @@ public class RecipientDatabase extends Database {
     values.put(PROFILE_KEY, profileKey == null ? null : Base64.encodeBytes(profileKey));
     updateOrInsert(recipient.getAddress(), values);
     recipient.resolve().setProfileKey(profileKey);
-    notifyRecipientListeners();
+    notifyRecipientListeners(recipient);
   }
 
   public void setProfileAvatar(@NonNull Recipient recipient, @Nullable String profileAvatar) {
@@ -408,7 +435,7 @@ public class RecipientDatabase extends Database {
     contentValues.put(SESSION_PROFILE_AVATAR, profileAvatar);
     updateOrInsert(recipient.getAddress(), contentValues);
     recipient.resolve().setProfileAvatar(profileAvatar);
-    notifyRecipientListeners();
+    notifyRecipientListeners(recipient);
   }
 
   public void setProfileName(@NonNull Recipient recipient, @Nullable String profileName) {
@@ -417,7 +444,7 @@ public class RecipientDatabase extends Database {
     updateOrInsert(recipient.getAddress(), contentValues);
     recipient.resolve().setName(profileName);
     recipient.resolve().setProfileName(profileName);
-    notifyRecipientListeners();
+    notifyRecipientListeners(recipient);
   }
 
   public void setProfileSharing(@NonNull Recipient recipient, boolean enabled) {
@@ -425,7 +452,7 @@ public class RecipientDatabase extends Database {
     contentValues.put(PROFILE_SHARING, enabled ? 1 : 0);
     updateOrInsert(recipient.getAddress(), contentValues);
     recipient.setProfileSharing(enabled);
-    notifyRecipientListeners();
+    notifyRecipientListeners(recipient);
   }
 
   public void setNotificationChannel(@NonNull Recipient recipient, @Nullable String notificationChannel) {
@@ -433,7 +460,7 @@ public class RecipientDatabase extends Database {
     contentValues.put(NOTIFICATION_CHANNEL, notificationChannel);
     updateOrInsert(recipient.getAddress(), contentValues);
     recipient.setNotificationChannel(notificationChannel);
-    notifyRecipientListeners();
+    notifyRecipientListeners(recipient);
   }
 
   public void setRegistered(@NonNull Recipient recipient, RegisteredState registeredState) {
@@ -441,7 +468,7 @@ public class RecipientDatabase extends Database {
     contentValues.put(REGISTERED, registeredState.getId());
     updateOrInsert(recipient.getAddress(), contentValues);
     recipient.setRegistered(registeredState);
-    notifyRecipientListeners();
+    notifyRecipientListeners(recipient);
   }
 
   public void setBlocksCommunityMessageRequests(@NonNull Recipient recipient, boolean isBlocked) {
@@ -449,7 +476,7 @@ public class RecipientDatabase extends Database {
     contentValues.put(BLOCKS_COMMUNITY_MESSAGE_REQUESTS, isBlocked ? 1 : 0);
     updateOrInsert(recipient.getAddress(), contentValues);
     recipient.resolve().setBlocksCommunityMessageRequests(isBlocked);
-    notifyRecipientListeners();
+    notifyRecipientListeners(recipient);
   }
 
   private void updateOrInsert(Address address, ContentValues contentValues) {
@@ -490,7 +517,7 @@ public class RecipientDatabase extends Database {
     values.put(DISAPPEARING_STATE, disappearingState.getId());
     updateOrInsert(recipient.getAddress(), values);
     recipient.resolve().setDisappearingState(disappearingState);
-    notifyRecipientListeners();
+    notifyRecipientListeners(recipient);
   }
 
   public static class RecipientReader implements Closeable {
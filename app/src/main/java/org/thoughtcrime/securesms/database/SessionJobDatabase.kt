@@ -3,6 +3,7 @@ package org.thoughtcrime.securesms.database
 import android.content.ContentValues
 import android.content.Context
 import android.database.Cursor
+import net.zetetic.database.sqlcipher.SQLiteDatabase
 import org.json.JSONArray
 import org.session.libsession.messaging.jobs.AttachmentDownloadJob
 import org.session.libsession.messaging.jobs.AttachmentUploadJob
@@ -13,6 +14,7 @@ import org.session.libsession.messaging.jobs.MessageReceiveJob
 import org.session.libsession.messaging.jobs.MessageSendJob
 import org.session.libsession.messaging.jobs.SessionJobInstantiator
 import org.session.libsession.messaging.jobs.SessionJobManagerFactories
+import org.session.libsession.messaging.utilities.BinaryDataSerializer
 import org.session.libsession.messaging.utilities.Data
 import org.session.libsignal.utilities.Log
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper
@@ -26,20 +28,122 @@ class SessionJobDatabase(context: Context, helper: SQLCipherOpenHelper) : Databa
         const val jobType = "job_type"
         const val failureCount = "failure_count"
         const val serializedData = "serialized_data"
+        // Jobs are persisted in the binary format, the JSON column is only read for older rows
+        const val serializedBytes = "serialized_bytes"
+        // Copied out of the serialized data when a job is persisted, so that jobs can be looked up
+        // without deserializing every job of a type
+        const val threadID = "thread_id"
+        const val attachmentID = "attachment_id"
+        const val dedupKey = "dedup_key"
         @JvmStatic val createSessionJobTableCommand
             = "CREATE TABLE $sessionJobTable ($jobID INTEGER PRIMARY KEY, $jobType STRING, $failureCount INTEGER DEFAULT 0, $serializedData TEXT);"
 
+        @JvmField val ADD_INDEXED_COLUMNS = arrayOf(
+            "ALTER TABLE $sessionJobTable ADD COLUMN $threadID INTEGER DEFAULT NULL;",
+            "ALTER TABLE $sessionJobTable ADD COLUMN $attachmentID INTEGER DEFAULT NULL;",
+            "ALTER TABLE $sessionJobTable ADD COLUMN $dedupKey TEXT DEFAULT NULL;",
+            "CREATE INDEX IF NOT EXISTS session_job_thread_id_index ON $sessionJobTable ($jobType, $threadID);",
+            "CREATE INDEX IF NOT EXISTS session_job_attachment_id_index ON $sessionJobTable ($jobType, $attachmentID);",
+            "CREATE INDEX IF NOT EXISTS session_job_dedup_key_index ON $sessionJobTable ($jobType, $dedupKey);"
+        )
+
+        @JvmField val ADD_SERIALIZED_BYTES_COLUMN = "ALTER TABLE $sessionJobTable ADD COLUMN $serializedBytes BLOB DEFAULT NULL;"
+
         const val dropAttachmentDownloadJobs =
                 "DELETE FROM $sessionJobTable WHERE $jobType = '${AttachmentDownloadJob.KEY}';"
+
+        /**
+         * Fills in the indexed columns of the jobs persisted before they existed. This is the only
+         * place where every job of a type still gets deserialized.
+         */
+        @JvmStatic
+        fun migrateIndexedColumns(db: SQLiteDatabase) {
+            val types = arrayOf(AttachmentUploadJob.KEY, MessageSendJob.KEY, GroupAvatarDownloadJob.KEY, BackgroundGroupAddJob.KEY)
+            val jobs = mutableListOf<Job>()
+            db.rawQuery(
+                "SELECT * FROM $sessionJobTable WHERE $jobType IN (SELECT value FROM json_each(?))",
+                arrayOf(JSONArray(types).toString())
+            ).use { cursor ->
+                while (cursor.moveToNext()) {
+                    try {
+                        jobFromCursor(cursor)?.let(jobs::add)
+                    } catch (e: Exception) {
+                        Log.e("Loki", "Error deserializing job of type: ${cursor.getString(jobType)}.", e)
+                    }
+                }
+            }
+            for (job in jobs) {
+                db.update(sessionJobTable, indexedColumnsFor(job), "$jobID = ?", arrayOf(job.id!!))
+            }
+        }
+
+        /**
+         * Moves the jobs persisted as JSON to the binary format, one at a time since a batch of
+         * received messages can be large.
+         */
+        @JvmStatic
+        fun migrateToSerializedBytes(db: SQLiteDatabase) {
+            val jobIDs = mutableListOf<String>()
+            db.rawQuery("SELECT $jobID FROM $sessionJobTable WHERE $serializedBytes IS NULL AND $serializedData IS NOT NULL", null).use { cursor ->
+                while (cursor.moveToNext()) { jobIDs.add(cursor.getString(0)) }
+            }
+            for (id in jobIDs) {
+                val json = db.rawQuery("SELECT $serializedData FROM $sessionJobTable WHERE $jobID = ?", arrayOf(id)).use { cursor ->
+                    if (cursor.moveToFirst()) cursor.getString(0) else null
+                } ?: continue
+                val contentValues = ContentValues(2)
+                try {
+                    contentValues.put(serializedBytes, SessionJobHelper.binaryDataSerializer.serialize(SessionJobHelper.dataSerializer.deserialize(json)))
+                    contentValues.putNull(serializedData)
+                } catch (e: Throwable) {
+                    // Leave it as it is, the job will fail to deserialize when it's loaded and get dropped then
+                    Log.e("Loki", "Error converting job to binary format.", e)
+                    continue
+                }
+                db.update(sessionJobTable, contentValues, "$jobID = ?", arrayOf(id))
+            }
+        }
+
+        private fun indexedColumnsFor(job: Job): ContentValues {
+            val contentValues = ContentValues(3)
+            when (job) {
+                is AttachmentUploadJob -> {
+                    contentValues.put(threadID, job.threadID.toLongOrNull())
+                    contentValues.put(attachmentID, job.attachmentID)
+                }
+                is MessageSendJob -> contentValues.put(threadID, job.message.threadID)
+                is GroupAvatarDownloadJob -> contentValues.put(dedupKey, groupAvatarDedupKey(job.server, job.room))
+                is BackgroundGroupAddJob -> contentValues.put(dedupKey, job.joinUrl)
+            }
+            return contentValues
+        }
+
+        private fun groupAvatarDedupKey(server: String, room: String) = "$server::$room"
+
+        private fun jobFromCursor(cursor: Cursor): Job? {
+            val type = cursor.getString(jobType)
+            // The binary column doesn't exist yet when the indexed columns are migrated
+            val bytesIndex = cursor.getColumnIndex(serializedBytes)
+            val data = if (bytesIndex >= 0 && !cursor.isNull(bytesIndex)) {
+                SessionJobHelper.binaryDataSerializer.deserialize(cursor.getBlob(bytesIndex))
+            } else {
+                SessionJobHelper.dataSerializer.deserialize(cursor.getString(serializedData))
+            }
+            val job = SessionJobHelper.sessionJobInstantiator.instantiate(type, data) ?: return null
+            job.id = cursor.getString(jobID)
+            job.failureCount = cursor.getInt(failureCount)
+            return job
+        }
     }
 
     fun persistJob(job: Job) {
         val database = databaseHelper.writableDatabase
-        val contentValues = ContentValues(4)
+        val contentValues = indexedColumnsFor(job)
         contentValues.put(jobID, job.id!!)
         contentValues.put(jobType, job.getFactoryKey())
         contentValues.put(failureCount, job.failureCount)
-        contentValues.put(serializedData, SessionJobHelper.dataSerializer.serialize(job.serialize()))
+        contentValues.put(serializedBytes, SessionJobHelper.binaryDataSerializer.serialize(job.serialize()))
+        contentValues.putNull(serializedData)
         database.insertOrUpdate(sessionJobTable, contentValues, "$jobID = ?", arrayOf( job.id!! ))
     }
 
@@ -70,12 +174,9 @@ class SessionJobDatabase(context: Context, helper: SQLCipherOpenHelper) : Databa
 
     fun getAttachmentUploadJob(attachmentID: Long): AttachmentUploadJob? {
         val database = databaseHelper.readableDatabase
-        val result = mutableListOf<AttachmentUploadJob>()
-        database.getAll(sessionJobTable, "$jobType = ?", arrayOf( AttachmentUploadJob.KEY )) { cursor ->
-            val job = jobFromCursor(cursor) as AttachmentUploadJob?
-            if (job != null) { result.add(job) }
+        return database.get(sessionJobTable, "$jobType = ? AND ${Companion.attachmentID} = ?", arrayOf( AttachmentUploadJob.KEY, attachmentID.toString() )) { cursor ->
+            jobFromCursor(cursor) as AttachmentUploadJob?
         }
-        return result.firstOrNull { job -> job.attachmentID == attachmentID }
     }
 
     fun getMessageSendJob(messageSendJobID: String): MessageSendJob? {
@@ -94,45 +195,21 @@ class SessionJobDatabase(context: Context, helper: SQLCipherOpenHelper) : Databa
 
     fun getGroupAvatarDownloadJob(server: String, room: String, imageId: String?): GroupAvatarDownloadJob? {
         val database = databaseHelper.readableDatabase
-        return database.getAll(sessionJobTable, "$jobType = ?", arrayOf(GroupAvatarDownloadJob.KEY)) {
+        return database.getAll(sessionJobTable, "$jobType = ? AND $dedupKey = ?", arrayOf(GroupAvatarDownloadJob.KEY, groupAvatarDedupKey(server, room))) {
             jobFromCursor(it) as GroupAvatarDownloadJob?
-        }.filterNotNull().find { it.server == server && it.room == room && (imageId == null || it.imageId == imageId) }
+        }.filterNotNull().find { imageId == null || it.imageId == imageId }
     }
 
     fun cancelPendingMessageSendJobs(threadID: Long) {
-        val database = databaseHelper.writableDatabase
-        val attachmentUploadJobKeys = mutableListOf<String>()
-        database.beginTransaction()
-        database.getAll(sessionJobTable, "$jobType = ?", arrayOf( AttachmentUploadJob.KEY )) { cursor ->
-            val job = jobFromCursor(cursor) as AttachmentUploadJob?
-            if (job != null && job.threadID == threadID.toString()) { attachmentUploadJobKeys.add(job.id!!) }
-        }
-        val messageSendJobKeys = mutableListOf<String>()
-        database.getAll(sessionJobTable, "$jobType = ?", arrayOf( MessageSendJob.KEY )) { cursor ->
-            val job = jobFromCursor(cursor) as MessageSendJob?
-            if (job != null && job.message.threadID == threadID) { messageSendJobKeys.add(job.id!!) }
-        }
-        if (attachmentUploadJobKeys.isNotEmpty()) {
-            attachmentUploadJobKeys.forEach {
-                database.delete(sessionJobTable, "${Companion.jobType} = ? AND ${Companion.jobID} = ?",
-                    arrayOf( AttachmentUploadJob.KEY, it ))
-            }
-        }
-        if (messageSendJobKeys.isNotEmpty()) {
-            messageSendJobKeys.forEach {
-                database.delete(sessionJobTable, "${Companion.jobType} = ? AND ${Companion.jobID} = ?",
-                    arrayOf( MessageSendJob.KEY, it ))
-            }
-        }
-        database.setTransactionSuccessful()
-        database.endTransaction()
+        databaseHelper.writableDatabase.delete(sessionJobTable, "$jobType IN (?, ?) AND ${Companion.threadID} = ?",
+            arrayOf( AttachmentUploadJob.KEY, MessageSendJob.KEY, threadID.toString() ))
     }
 
     fun isJobCanceled(job: Job): Boolean {
         val database = databaseHelper.readableDatabase
         var cursor: android.database.Cursor? = null
         try {
-            cursor = database.rawQuery("SELECT * FROM $sessionJobTable WHERE $jobID = ?", arrayOf( job.id!! ))
+            cursor = database.rawQuery("SELECT $jobID FROM $sessionJobTable WHERE $jobID = ?", arrayOf( job.id!! ))
             return cursor == null || !cursor.moveToFirst()
         } catch (e: Exception) {
             // Do nothing
@@ -142,24 +219,17 @@ class SessionJobDatabase(context: Context, helper: SQLCipherOpenHelper) : Databa
         return false
     }
 
-    private fun jobFromCursor(cursor: Cursor): Job? {
-        val type = cursor.getString(jobType)
-        val data = SessionJobHelper.dataSerializer.deserialize(cursor.getString(serializedData))
-        val job = SessionJobHelper.sessionJobInstantiator.instantiate(type, data) ?: return null
-        job.id = cursor.getString(jobID)
-        job.failureCount = cursor.getInt(failureCount)
-        return job
-    }
-
     fun hasBackgroundGroupAddJob(groupJoinUrl: String): Boolean {
         val database = databaseHelper.readableDatabase
-        return database.getAll(sessionJobTable, "$jobType = ?", arrayOf(BackgroundGroupAddJob.KEY)) { cursor ->
-            jobFromCursor(cursor) as? BackgroundGroupAddJob
-        }.filterNotNull().any { it.joinUrl == groupJoinUrl }
+        return database.rawQuery(
+            "SELECT 1 FROM $sessionJobTable WHERE $jobType = ? AND $dedupKey = ? LIMIT 1",
+            arrayOf(BackgroundGroupAddJob.KEY, groupJoinUrl)
+        ).use { it.moveToFirst() }
     }
 }
 
 object SessionJobHelper {
     val dataSerializer: Data.Serializer = JsonDataSerializer()
+    val binaryDataSerializer = BinaryDataSerializer()
     val sessionJobInstantiator: SessionJobInstantiator = SessionJobInstantiator(SessionJobManagerFactories.getSessionJobFactories())
 }
\ No newline at end of file
@@ -92,13 +92,16 @@ public class SmsDatabase extends MessagingDatabase {
     READ_RECEIPT_COUNT + " INTEGER DEFAULT 0, " + UNIDENTIFIED + " INTEGER DEFAULT 0, " + IS_DELETED_COLUMN_DEF +");";
 
 
+  public static final String CREATE_THREAD_DATE_SENT_INDEX = "CREATE INDEX IF NOT EXISTS sms_thread_date_sent_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_SENT + ");";
+
   public static final String[] CREATE_INDEXS = {
     "CREATE INDEX IF NOT EXISTS sms_thread_id_index ON " + TABLE_NAME + " (" + THREAD_ID + ");",
     "CREATE INDEX IF NOT EXISTS sms_read_index ON " + TABLE_NAME + " (" + READ + ");",
     "CREATE INDEX IF NOT EXISTS sms_read_and_notified_and_thread_id_index ON " + TABLE_NAME + "(" + READ + "," + NOTIFIED + ","  + THREAD_ID + ");",
     "CREATE INDEX IF NOT EXISTS sms_type_index ON " + TABLE_NAME + " (" + TYPE + ");",
     "CREATE INDEX IF NOT EXISTS sms_date_sent_index ON " + TABLE_NAME + " (" + DATE_SENT + ");",
-    "CREATE INDEX IF NOT EXISTS sms_thread_date_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ");"
+    "CREATE INDEX IF NOT EXISTS sms_thread_date_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ");",
+    CREATE_THREAD_DATE_SENT_INDEX
   };
 
   private static final String[] MESSAGE_PROJECTION = new String[] {
@@ -424,7 +427,7 @@ public class SmsDatabase extends MessagingDatabase {
                     "WHERE " + ID + " = ?",
             new String[] {newTimestamp + "", messageId + ""});
     notifyConversationListeners(threadId);
-    notifyConversationListListeners();
+    notifyConversationListListeners(threadId);
   }
 
   public Pair<Long, Long> updateBundleMessageBody(long messageId, String body) {
@@ -516,7 +519,7 @@ public class SmsDatabase extends MessagingDatabase {
       long           messageId = db.insert(TABLE_NAME, null, values);
 
       if (runThreadUpdate) {
-        DatabaseComponent.get(context).threadDatabase().update(threadId, true);
+        DatabaseComponent.get(context).threadDatabase().onMessageInserted(threadId, messageId, false, true);
       }
 
       if (message.getSubscriptionId() != -1) {
@@ -608,7 +611,7 @@ public class SmsDatabase extends MessagingDatabase {
     }
 
     if (runThreadUpdate) {
-      DatabaseComponent.get(context).threadDatabase().update(threadId, true);
+      DatabaseComponent.get(context).threadDatabase().onMessageInserted(threadId, messageId, false, true);
     }
     long lastSeen = DatabaseComponent.get(context).threadDatabase().getLastSeenAndHasSent(threadId).first();
     if (lastSeen < message.getSentTimestampMillis()) {
@@ -666,10 +669,12 @@ public class SmsDatabase extends MessagingDatabase {
     Log.i("MessageDatabase", "Deleting: " + messageId);
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     long threadId = getThreadIdForMessage(messageId);
-    db.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
+    ThreadDatabase threadDatabase = DatabaseComponent.get(context).threadDatabase();
+    ThreadDatabase.UnreadCounts unread = threadDatabase.getUnreadCounts(false, new long[] {messageId});
+    int deleted = db.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
     notifyConversationListeners(threadId);
-    boolean threadDeleted = DatabaseComponent.get(context).threadDatabase().update(threadId, false);
-    return threadDeleted;
+    threadDatabase.onMessagesDeleted(threadId, deleted, unread);
+    return false;
   }
 
   @Override
@@ -683,14 +688,16 @@ public class SmsDatabase extends MessagingDatabase {
     }
 
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    db.delete(
+    ThreadDatabase threadDatabase = DatabaseComponent.get(context).threadDatabase();
+    ThreadDatabase.UnreadCounts unread = threadDatabase.getUnreadCounts(false, messageIds);
+    int deleted = db.delete(
       TABLE_NAME,
       ID + " IN (" + StringUtils.join(argsArray, ',') + ")",
       argValues
     );
-    boolean threadDeleted = DatabaseComponent.get(context).threadDatabase().update(threadId, false);
+    threadDatabase.onMessagesDeleted(threadId, deleted, unread);
     notifyConversationListeners(threadId);
-    return threadDeleted;
+    return false;
   }
 
   @Override
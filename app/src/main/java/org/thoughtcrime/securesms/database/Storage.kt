@@ -1,6 +1,8 @@
 package org.thoughtcrime.securesms.database
 
 import android.content.Context
+import android.database.sqlite.SQLiteException
+import android.database.sqlite.SQLiteTransactionListener
 import android.net.Uri
 import com.goterl.lazysodium.utils.KeyPair
 import dagger.hilt.android.qualifiers.ApplicationContext
@@ -81,7 +83,7 @@ import org.session.libsignal.utilities.Log
 import org.session.libsignal.utilities.AccountId
 import org.session.libsignal.utilities.guava.Optional
 import org.session.libsignal.utilities.toHexString
-import org.thoughtcrime.securesms.crypto.KeyPairUtilities
+import org.thoughtcrime.securesms.crypto.UserKeyMaterial
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper
 import org.thoughtcrime.securesms.database.model.MessageId
 import org.thoughtcrime.securesms.database.model.MessageRecord
@@ -125,6 +127,7 @@ open class Storage @Inject constructor(
     private val messageExpirationManager: SSKEnvironment.MessageExpirationManagerProtocol,
     private val clock: SnodeClock,
     private val preferences: TextSecurePreferences,
+    private val userKeyMaterial: UserKeyMaterial,
 ) : Database(context, helper), StorageProtocol, ThreadDatabase.ConversationThreadUpdateListener {
 
     init {
@@ -226,11 +229,15 @@ open class Storage @Inject constructor(
     }
 
     override fun getUserX25519KeyPair(): ECKeyPair {
-        return lokiAPIDatabase.getUserX25519KeyPair()
+        return userKeyMaterial.getX25519KeyPair()
     }
 
     override fun getUserED25519KeyPair(): KeyPair? {
-        return KeyPairUtilities.getUserED25519KeyPair(context)
+        return userKeyMaterial.getEd25519KeyPair()
+    }
+
+    override fun getUserBlindedKeyPair(serverPublicKey: String): KeyPair? {
+        return userKeyMaterial.getBlindedKeyPair(serverPublicKey)
     }
 
     override fun getUserProfile(): Profile {
@@ -358,13 +365,37 @@ open class Storage @Inject constructor(
                 convo.lastRead = lastSeenTime
                 if (convo.unread) {
                     convo.unread = lastSeenTime <= currentLastRead
-                    notifyConversationListListeners()
+                    notifyConversationListListeners(threadId)
                 }
                 config.set(convo)
             }
         }
     }
 
+    override fun <T> runInTransaction(block: () -> T): T {
+        val database = databaseHelper.writableDatabase
+        // observers are only told about the changes once they've been committed
+        val postNotifications = deferNotifications()
+        // a nested transaction that failed rolls this one back when it ends, without throwing
+        var rolledBack = false
+        database.beginTransactionWithListener(object : SQLiteTransactionListener {
+            override fun onBegin() {}
+            override fun onCommit() {}
+            override fun onRollback() { rolledBack = true }
+        })
+        val result = try {
+            block().also { database.setTransactionSuccessful() }
+        } finally {
+            try {
+                database.endTransaction()
+            } finally {
+                if (postNotifications) postDeferredNotifications()
+            }
+        }
+        if (rolledBack) throw SQLiteException("The transaction was rolled back by a failed nested transaction")
+        return result
+    }
+
     override fun updateThread(threadId: Long, unarchive: Boolean) {
         val threadDb = threadDatabase
         threadDb.update(threadId, unarchive)
@@ -1276,6 +1307,10 @@ open class Storage @Inject constructor(
         return recipientDatabase.getRecipientSettings(address).orNull()
     }
 
+    override fun getRecipientSettings(addresses: Collection<Address>): Map<Address, Recipient.RecipientSettings> {
+        return recipientDatabase.getRecipientSettings(addresses)
+    }
+
     override fun hasAutoDownloadFlagBeenSet(recipient: Recipient): Boolean {
         return recipientDatabase.isAutoDownloadFlagSet(recipient)
     }
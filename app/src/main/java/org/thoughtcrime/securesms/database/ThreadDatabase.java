@@ -61,8 +61,11 @@ import org.thoughtcrime.securesms.mms.Slide;
 import org.thoughtcrime.securesms.mms.SlideDeck;
 import org.thoughtcrime.securesms.notifications.MarkReadReceiver;
 import org.thoughtcrime.securesms.util.SessionMetaProtocol;
+import org.thoughtcrime.securesms.util.SqlUtil;
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -174,38 +177,48 @@ public class ThreadDatabase extends Database {
     return db.insert(TABLE_NAME, null, contentValues);
   }
 
-  private void updateThread(long threadId, long count, String body, @Nullable Uri attachment,
-                            long date, int status, int deliveryReceiptCount, long type, boolean unarchive,
-                            long expiresIn, int readReceiptCount)
-  {
+  private void updateThread(long threadId, @Nullable Long count, @NonNull MessageRecord record, boolean unarchive) {
+    String body = getFormattedBodyFor(record);
+    Uri attachment = getAttachmentUriFor(record);
+    long date = record.getTimestamp();
+
     ContentValues contentValues = new ContentValues(7);
     contentValues.put(THREAD_CREATION_DATE, date - date % 1000);
-    contentValues.put(MESSAGE_COUNT, count);
+    if (count != null) {
+      contentValues.put(MESSAGE_COUNT, count);
+    }
     if (!body.isEmpty()) {
       contentValues.put(SNIPPET, body);
     }
     contentValues.put(SNIPPET_URI, attachment == null ? null : attachment.toString());
-    contentValues.put(SNIPPET_TYPE, type);
-    contentValues.put(STATUS, status);
-    contentValues.put(DELIVERY_RECEIPT_COUNT, deliveryReceiptCount);
-    contentValues.put(READ_RECEIPT_COUNT, readReceiptCount);
-    contentValues.put(EXPIRES_IN, expiresIn);
+    contentValues.put(SNIPPET_TYPE, record.getType());
+    contentValues.put(STATUS, record.getDeliveryStatus());
+    contentValues.put(DELIVERY_RECEIPT_COUNT, record.getDeliveryReceiptCount());
+    contentValues.put(READ_RECEIPT_COUNT, record.getReadReceiptCount());
+    contentValues.put(EXPIRES_IN, record.getExpiresIn());
 
     if (unarchive) { contentValues.put(ARCHIVED, 0); }
 
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     db.update(TABLE_NAME, contentValues, ID + " = ?", new String[] {threadId + ""});
-    notifyConversationListListeners();
+    notifyConversationListListeners(threadId);
   }
 
   public void clearSnippet(long threadId){
-    ContentValues contentValues = new ContentValues(1);
+    clearSnippet(threadId, null);
+  }
+
+  private void clearSnippet(long threadId, @Nullable Long count) {
+    ContentValues contentValues = new ContentValues(2);
 
     contentValues.put(SNIPPET, "");
+    if (count != null) {
+      contentValues.put(MESSAGE_COUNT, count);
+    }
 
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     db.update(TABLE_NAME, contentValues, ID + " = ?", new String[] {threadId + ""});
-    notifyConversationListListeners();
+    notifyConversationListListeners(threadId);
   }
 
   public void updateSnippet(long threadId, String snippet, @Nullable Uri attachment, long date, long type, boolean unarchive) {
@@ -224,7 +237,7 @@ public class ThreadDatabase extends Database {
 
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     db.update(TABLE_NAME, contentValues, ID + " = ?", new String[] {threadId + ""});
-    notifyConversationListListeners();
+    notifyConversationListListeners(threadId);
   }
 
   private void deleteThread(long threadId) {
@@ -334,7 +347,7 @@ public class ThreadDatabase extends Database {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     db.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {threadId+""});
 
-    notifyConversationListListeners();
+    notifyConversationListListeners(threadId);
 
     return new LinkedList<MarkedMessageInfo>() {{
       addAll(smsRecords);
@@ -358,7 +371,7 @@ public class ThreadDatabase extends Database {
     final List<MarkedMessageInfo> smsRecords = DatabaseComponent.get(context).smsDatabase().setMessagesRead(threadId);
     final List<MarkedMessageInfo> mmsRecords = DatabaseComponent.get(context).mmsDatabase().setMessagesRead(threadId);
 
-    notifyConversationListListeners();
+    notifyConversationListListeners(threadId);
 
     return new LinkedList<MarkedMessageInfo>() {{
       addAll(smsRecords);
@@ -372,7 +385,7 @@ public class ThreadDatabase extends Database {
 
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     db.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {threadId + ""});
-    notifyConversationListListeners();
+    notifyConversationListListeners(threadId);
   }
 
   public void setCreationDate(long threadId, long date) {
@@ -380,7 +393,7 @@ public class ThreadDatabase extends Database {
     contentValues.put(THREAD_CREATION_DATE, date);
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     int updated = db.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {threadId+""});
-    if (updated > 0) notifyConversationListListeners();
+    if (updated > 0) notifyConversationListListeners(threadId);
   }
 
   public int getDistributionType(long threadId) {
@@ -486,25 +499,65 @@ public class ThreadDatabase extends Database {
   }
 
   public Cursor getApprovedConversationList() {
-    String where  = "((" + HAS_SENT + " = 1 OR " + RecipientDatabase.APPROVED + " = 1 OR "+ GroupDatabase.TABLE_NAME +"."+GROUP_ID+" LIKE '"+ LEGACY_CLOSED_GROUP_PREFIX +"%') " +
+    return getConversationList(getApprovedConversationsWhere());
+  }
+
+  /**
+   * The rows of the approved conversation list for the given threads only. Threads that aren't
+   * part of the list are left out. Rows are in list order only within each batch of ids queried.
+   */
+  public Cursor getApprovedConversationList(@NonNull Collection<Long> threadIds) {
+    if (threadIds.isEmpty()) return getConversationList("0");
+
+    List<Cursor> cursors = new ArrayList<>();
+    for (SqlUtil.Query query : SqlUtil.buildCollectionQuery(TABLE_NAME + "." + ID, threadIds)) {
+      String where = "(" + getApprovedConversationsWhere() + ") AND " + query.getWhere();
+      cursors.add(getConversationList(where, query.getWhereArgs()));
+    }
+
+    return cursors.size() == 1 ? cursors.get(0) : new MergeCursor(cursors.toArray(new Cursor[0]));
+  }
+
+  public Cursor getUnapprovedConversationList() {
+    return getConversationList(getUnapprovedConversationsWhere());
+  }
+
+  public int getUnapprovedConversationCount() {
+    SQLiteDatabase db    = databaseHelper.getReadableDatabase();
+    String         query = "SELECT COUNT(*) FROM " + TABLE_NAME +
+            " LEFT OUTER JOIN " + RecipientDatabase.TABLE_NAME +
+            " ON " + TABLE_NAME + "." + ADDRESS + " = " + RecipientDatabase.TABLE_NAME + "." + RecipientDatabase.ADDRESS +
+            " LEFT OUTER JOIN " + GroupDatabase.TABLE_NAME +
+            " ON " + TABLE_NAME + "." + ADDRESS + " = " + GroupDatabase.TABLE_NAME + "." + GROUP_ID +
+            " WHERE " + getUnapprovedConversationsWhere();
+
+    try (Cursor cursor = db.rawQuery(query, null)) {
+      return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+    }
+  }
+
+  private static String getApprovedConversationsWhere() {
+    return "((" + HAS_SENT + " = 1 OR " + RecipientDatabase.APPROVED + " = 1 OR "+ GroupDatabase.TABLE_NAME +"."+GROUP_ID+" LIKE '"+ LEGACY_CLOSED_GROUP_PREFIX +"%') " +
             "OR " + GroupDatabase.TABLE_NAME + "." + GROUP_ID + " LIKE '" + COMMUNITY_PREFIX + "%') " +
             "AND " + ARCHIVED + " = 0 ";
-    return getConversationList(where);
   }
 
-  public Cursor getUnapprovedConversationList() {
-    String where  = "("+MESSAGE_COUNT + " != 0 OR "+ThreadDatabase.TABLE_NAME+"."+ThreadDatabase.ADDRESS+" LIKE '"+IdPrefix.GROUP.getValue()+"%')" +
+  private static String getUnapprovedConversationsWhere() {
+    return "("+MESSAGE_COUNT + " != 0 OR "+ThreadDatabase.TABLE_NAME+"."+ThreadDatabase.ADDRESS+" LIKE '"+IdPrefix.GROUP.getValue()+"%')" +
             " AND " + ARCHIVED + " = 0 AND " + HAS_SENT + " = 0 AND " +
             RecipientDatabase.TABLE_NAME + "." + RecipientDatabase.APPROVED + " = 0 AND " +
             RecipientDatabase.TABLE_NAME + "." + RecipientDatabase.BLOCK + " = 0 AND " +
             GroupDatabase.TABLE_NAME + "." + GROUP_ID + " IS NULL";
-    return getConversationList(where);
   }
 
   private Cursor getConversationList(String where) {
+    return getConversationList(where, null);
+  }
+
+  private Cursor getConversationList(String where, @Nullable String[] args) {
     SQLiteDatabase db     = databaseHelper.getReadableDatabase();
     String         query  = createQuery(where, 0);
-    Cursor         cursor = db.rawQuery(query, null);
+    Cursor         cursor = db.rawQuery(query, args);
 
     setNotifyConversationListListeners(cursor);
 
@@ -552,7 +605,7 @@ public class ThreadDatabase extends Database {
     db.setTransactionSuccessful();
     db.endTransaction();
     notifyConversationListeners(threadId);
-    notifyConversationListListeners();
+    notifyConversationListListeners(threadId);
     return true;
   }
 
@@ -652,7 +705,7 @@ public class ThreadDatabase extends Database {
     databaseHelper.getWritableDatabase().update(TABLE_NAME, contentValues, ID_WHERE,
             new String[] {String.valueOf(threadId)});
 
-    notifyConversationListListeners();
+    notifyConversationListListeners(threadId);
     notifyConversationListeners(threadId);
   }
 
@@ -725,34 +778,182 @@ public class ThreadDatabase extends Database {
                                                 new String[] {String.valueOf(threadId)});
 
     notifyConversationListeners(threadId);
-    notifyConversationListListeners();
+    notifyConversationListListeners(threadId);
   }
 
+  /**
+   * Rebuilds the summary of a thread (message count and snippet) from its messages. Inserts and
+   * deletes of single messages should go through {@link #onMessageInserted} and
+   * {@link #onMessagesDeleted} instead, which only apply the change.
+   */
   public boolean update(long threadId, boolean unarchive) {
     MmsSmsDatabase mmsSmsDatabase = DatabaseComponent.get(context).mmsSmsDatabase();
     long count                    = mmsSmsDatabase.getConversationCount(threadId);
 
-    try (MmsSmsDatabase.Reader reader = mmsSmsDatabase.readerFor(mmsSmsDatabase.getConversationSnippet(threadId))) {
-      MessageRecord record = null;
-      if (reader != null) {
-        record = reader.getNext();
-        while (record != null && record.isDeleted()) {
-          record = reader.getNext();
+    try {
+      MessageRecord record = getSnippetRecord(threadId);
+      if (record != null) {
+        updateThread(threadId, count, record, unarchive);
+      } else {
+        // for empty threads or if there is only deleted messages, show an empty snippet
+        clearSnippet(threadId, count);
+      }
+      return false;
+    } finally {
+      notifyConversationListListeners(threadId);
+      notifyConversationListeners(threadId);
+    }
+  }
+
+  /**
+   * Applies a newly inserted message to the thread summary without rescanning the thread. The
+   * message count and unread counters are incremented, and the snippet is only replaced when the
+   * message is at least as recent as the current one. Expiration timer updates only count.
+   */
+  public void onMessageInserted(long threadId, @NonNull MessageRecord record, boolean unarchive) {
+    String messageTable   = record.isMms() ? MmsDatabase.TABLE_NAME : SmsDatabase.TABLE_NAME;
+    String dateSent       = record.isMms() ? MmsDatabase.DATE_SENT : SmsDatabase.DATE_SENT;
+    String unreadSubQuery = "SELECT COUNT(*) FROM " + messageTable + " AS m WHERE m." + MmsSmsColumns.ID + " = ? AND m." + dateSent + " > t." + LAST_SEEN + " AND m." + MmsSmsColumns.READ + " = 0";
+    String mentionSubQuery = unreadSubQuery + " AND m." + MmsSmsColumns.HAS_MENTION + " = 1";
+    boolean updatesSnippet = !record.isDeleted() && !record.isExpirationTimerUpdate();
+
+    String applyInsert = "UPDATE " + TABLE_NAME + " AS t SET " +
+            MESSAGE_COUNT + " = " + MESSAGE_COUNT + " + 1, " +
+            UNREAD_COUNT + " = " + UNREAD_COUNT + " + (" + unreadSubQuery + "), " +
+            UNREAD_MENTION_COUNT + " = " + UNREAD_MENTION_COUNT + " + (" + mentionSubQuery + ")" +
+            (unarchive && updatesSnippet ? ", " + ARCHIVED + " = 0" : "") +
+            " WHERE " + ID + " = ?";
+
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.beginTransaction();
+    try {
+      db.execSQL(applyInsert, new Object[]{record.getId(), record.getId(), threadId});
+
+      long date = record.getTimestamp();
+      if (updatesSnippet && date - date % 1000 >= getLastUpdated(threadId)) {
+        updateThread(threadId, null, record, unarchive);
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    notifyConversationListListeners(threadId);
+    notifyConversationListeners(threadId);
+  }
+
+  public void onMessageInserted(long threadId, long messageId, boolean mms, boolean unarchive) {
+    MessagingDatabase database = mms ? DatabaseComponent.get(context).mmsDatabase() : DatabaseComponent.get(context).smsDatabase();
+    try {
+      onMessageInserted(threadId, database.getMessageRecord(messageId), unarchive);
+    } catch (NoSuchMessageException e) {
+      Log.w(TAG, "Inserted message not found, rebuilding thread: " + threadId, e);
+      update(threadId, unarchive);
+    }
+  }
+
+  /**
+   * The unread messages, and unread mentions, among the given messages, counted the way
+   * {@link #onMessageInserted} added them to their thread. Read before the messages are deleted
+   * and handed to {@link #onMessagesDeleted}.
+   */
+  public @NonNull UnreadCounts getUnreadCounts(boolean mms, @NonNull long[] messageIds) {
+    if (messageIds.length == 0) return UnreadCounts.NONE;
+
+    String     messageTable = mms ? MmsDatabase.TABLE_NAME : SmsDatabase.TABLE_NAME;
+    String     dateSent     = mms ? MmsDatabase.DATE_SENT : SmsDatabase.DATE_SENT;
+    List<Long> ids          = new ArrayList<>(messageIds.length);
+    for (long messageId : messageIds) ids.add(messageId);
+
+    int            unread   = 0;
+    int            mentions = 0;
+    SQLiteDatabase db       = databaseHelper.getReadableDatabase();
+
+    for (SqlUtil.Query query : SqlUtil.buildCollectionQuery("m." + MmsSmsColumns.ID, ids)) {
+      String sql = "SELECT COUNT(*), SUM(m." + MmsSmsColumns.HAS_MENTION + " = 1) FROM " + messageTable + " AS m" +
+                   " JOIN " + TABLE_NAME + " AS t ON t." + ID + " = m." + MmsSmsColumns.THREAD_ID +
+                   " WHERE " + query.getWhere() + " AND m." + dateSent + " > t." + LAST_SEEN + " AND m." + MmsSmsColumns.READ + " = 0";
+      try (Cursor cursor = db.rawQuery(sql, query.getWhereArgs())) {
+        if (cursor.moveToFirst()) {
+          unread   += cursor.getInt(0);
+          mentions += cursor.getInt(1);
         }
       }
-      if (record != null && !record.isDeleted()) {
-        updateThread(threadId, count, getFormattedBodyFor(record), getAttachmentUriFor(record),
-                     record.getTimestamp(), record.getDeliveryStatus(), record.getDeliveryReceiptCount(),
-                     record.getType(), unarchive, record.getExpiresIn(), record.getReadReceiptCount());
-        return false;
+    }
+
+    return new UnreadCounts(unread, mentions);
+  }
+
+  /**
+   * Removes {@code deletedCount} already deleted messages, {@code unread} of which were counted as
+   * unread, from the thread summary. Only the latest remaining message is read back to refresh the
+   * snippet.
+   */
+  public void onMessagesDeleted(long threadId, int deletedCount, @NonNull UnreadCounts unread) {
+    if (deletedCount <= 0) return;
+
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.beginTransaction();
+    try {
+      db.execSQL("UPDATE " + TABLE_NAME + " SET " +
+                 MESSAGE_COUNT + " = MAX(" + MESSAGE_COUNT + " - ?, 0), " +
+                 UNREAD_COUNT + " = MAX(" + UNREAD_COUNT + " - ?, 0), " +
+                 UNREAD_MENTION_COUNT + " = MAX(" + UNREAD_MENTION_COUNT + " - ?, 0)" +
+                 " WHERE " + ID + " = ?",
+                 new Object[]{deletedCount, unread.getUnread(), unread.getMentions(), threadId});
+
+      MessageRecord record = getSnippetRecord(threadId);
+      if (record != null) {
+        updateThread(threadId, null, record, false);
       } else {
-        // for empty threads or if there is only deleted messages, show an empty snippet
         clearSnippet(threadId);
-        return false;
       }
+      db.setTransactionSuccessful();
     } finally {
-      notifyConversationListListeners();
-      notifyConversationListeners(threadId);
+      db.endTransaction();
+    }
+
+    notifyConversationListListeners(threadId);
+    notifyConversationListeners(threadId);
+  }
+
+  /**
+   * How many of a set of messages count as unread, and as unread mentions.
+   */
+  public static final class UnreadCounts {
+    public static final UnreadCounts NONE = new UnreadCounts(0, 0);
+
+    private final int unread;
+    private final int mentions;
+
+    public UnreadCounts(int unread, int mentions) {
+      this.unread   = unread;
+      this.mentions = mentions;
+    }
+
+    public int getUnread() {
+      return unread;
+    }
+
+    public int getMentions() {
+      return mentions;
+    }
+  }
+
+  /**
+   * Recomputes the message count of every thread from the message tables, for use in migrations.
+   * Snippets are left as they are.
+   */
+  public static String getRebuildMessageCountsCommand() {
+    return "UPDATE " + TABLE_NAME + " SET " + MESSAGE_COUNT + " = " +
+            "(SELECT COUNT(*) FROM " + SmsDatabase.TABLE_NAME + " WHERE " + SmsDatabase.TABLE_NAME + "." + MmsSmsColumns.THREAD_ID + " = " + TABLE_NAME + "." + ID + ") + " +
+            "(SELECT COUNT(*) FROM " + MmsDatabase.TABLE_NAME + " WHERE " + MmsDatabase.TABLE_NAME + "." + MmsSmsColumns.THREAD_ID + " = " + TABLE_NAME + "." + ID + ");";
+  }
+
+  private @Nullable MessageRecord getSnippetRecord(long threadId) {
+    MmsSmsDatabase mmsSmsDatabase = DatabaseComponent.get(context).mmsSmsDatabase();
+    try (MmsSmsDatabase.Reader reader = mmsSmsDatabase.readerFor(mmsSmsDatabase.getConversationSnippet(threadId))) {
+      return reader.getNext();
     }
   }
 
@@ -764,7 +965,7 @@ public class ThreadDatabase extends Database {
             new String[] {String.valueOf(threadId)});
 
     notifyConversationListeners(threadId);
-    notifyConversationListListeners();
+    notifyConversationListListeners(threadId);
   }
 
   public boolean isPinned(long threadId) {
@@ -92,9 +92,15 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
   private static final int lokiV46                          = 67;
   private static final int lokiV47                          = 68;
   private static final int lokiV48                          = 69;
+  private static final int lokiV49                          = 70;
+  private static final int lokiV50                          = 71;
+  private static final int lokiV51                          = 72;
+  private static final int lokiV52                          = 73;
+  private static final int lokiV53                          = 74;
+  private static final int lokiV54                          = 75;
 
   // Loki - onUpgrade(...) must be updated to use Loki version numbers if Signal makes any database changes
-  private static final int    DATABASE_VERSION         = lokiV48;
+  private static final int    DATABASE_VERSION         = lokiV54;
   private static final int    MIN_DATABASE_VERSION     = lokiV7;
   private static final String CIPHER3_DATABASE_NAME    = "signal.db";
   public static final String  DATABASE_NAME            = "signal_v4.db";
@@ -289,7 +295,8 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
       db.execSQL(sql);
     }
     db.execSQL(LokiAPIDatabase.getCreateSnodePoolTableCommand());
-    db.execSQL(LokiAPIDatabase.getCreateOnionRequestPathTableCommand());
+    db.execSQL(LokiAPIDatabase.getCreateOnionRequestPathSnodeTableCommand());
+    db.execSQL(LokiAPIDatabase.getCreateOnionRequestPathHealthTableCommand());
     db.execSQL(LokiAPIDatabase.getCreateSwarmTableCommand());
     db.execSQL(LokiAPIDatabase.getCreateLastMessageHashValueTable2Command());
     db.execSQL(LokiAPIDatabase.getCreateReceivedMessageHashValuesTable3Command());
@@ -319,6 +326,8 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
     db.execSQL(LokiUserDatabase.getCreateDisplayNameTableCommand());
     db.execSQL(LokiBackupFilesDatabase.getCreateTableCommand());
     db.execSQL(SessionJobDatabase.getCreateSessionJobTableCommand());
+    executeStatements(db, SessionJobDatabase.ADD_INDEXED_COLUMNS);
+    db.execSQL(SessionJobDatabase.ADD_SERIALIZED_BYTES_COLUMN);
     db.execSQL(LokiMessageDatabase.getUpdateMessageIDTableForType());
     db.execSQL(LokiMessageDatabase.getUpdateMessageMappingTable());
     db.execSQL(SessionContactDatabase.getCreateSessionContactTableCommand());
@@ -371,6 +380,7 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
     db.execSQL(LokiMessageDatabase.getCreateThreadDeleteTrigger());
     db.execSQL(SmsDatabase.ADD_IS_GROUP_UPDATE_COLUMN);
     db.execSQL(MmsDatabase.ADD_IS_GROUP_UPDATE_COLUMN);
+    LokiAPIDatabase.migrateReceivedMessageHashValues(db);
   }
 
   @Override
@@ -661,6 +671,36 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
         db.execSQL(MmsDatabase.ADD_IS_GROUP_UPDATE_COLUMN);
       }
 
+      if (oldVersion < lokiV49) {
+        LokiAPIDatabase.migrateReceivedMessageHashValues(db);
+      }
+
+      if (oldVersion < lokiV50) {
+        db.execSQL(ThreadDatabase.getRebuildMessageCountsCommand());
+      }
+
+      if (oldVersion < lokiV51) {
+        db.execSQL(SmsDatabase.CREATE_THREAD_DATE_SENT_INDEX);
+        db.execSQL(MmsDatabase.CREATE_THREAD_DATE_SENT_INDEX);
+      }
+
+      if (oldVersion < lokiV52) {
+        executeStatements(db, SessionJobDatabase.ADD_INDEXED_COLUMNS);
+        SessionJobDatabase.migrateIndexedColumns(db);
+      }
+
+      if (oldVersion < lokiV53) {
+        db.execSQL(SessionJobDatabase.ADD_SERIALIZED_BYTES_COLUMN);
+        SessionJobDatabase.migrateToSerializedBytes(db);
+      }
+
+      if (oldVersion < lokiV54) {
+        db.execSQL(LokiAPIDatabase.getCreateOnionRequestPathSnodeTableCommand());
+        db.execSQL(LokiAPIDatabase.getCreateOnionRequestPathHealthTableCommand());
+        db.execSQL(LokiAPIDatabase.getMigrateOnionRequestPathsCommand());
+        db.execSQL(LokiAPIDatabase.getDropOnionRequestPathTableCommand());
+      }
+
       db.setTransactionSuccessful();
     } finally {
       db.endTransaction();
@@ -50,6 +50,7 @@ import org.session.libsignal.utilities.Hex
 import org.session.libsignal.utilities.IdPrefix
 import org.session.libsignal.utilities.toHexString
 import org.thoughtcrime.securesms.configs.ConfigToDatabaseSync
+import org.thoughtcrime.securesms.crypto.UserKeyMaterial
 import org.thoughtcrime.securesms.database.ConfigDatabase
 import org.thoughtcrime.securesms.database.ConfigVariant
 import org.thoughtcrime.securesms.database.LokiThreadDatabase
@@ -72,6 +73,7 @@ class ConfigFactory @Inject constructor(
     private val textSecurePreferences: TextSecurePreferences,
     private val clock: SnodeClock,
     private val configToDatabaseSync: Lazy<ConfigToDatabaseSync>,
+    private val userKeyMaterial: UserKeyMaterial,
 ) : ConfigFactoryProtocol {
     companion object {
         // This is a buffer period within which we will process messages which would result in a
@@ -99,7 +101,7 @@ class ConfigFactory @Inject constructor(
         })
 
     private fun requiresCurrentUserED25519SecKey(): ByteArray =
-        requireNotNull(storage.get().getUserED25519KeyPair()?.secretKey?.asBytes) {
+        requireNotNull(userKeyMaterial.getEd25519KeyPair()?.secretKey?.asBytes) {
             "No logged in user"
         }
 
@@ -306,9 +308,7 @@ class ConfigFactory @Inject constructor(
     ): ByteArray? {
         return Sodium.decryptForMultipleSimple(
             encoded = encoded,
-            ed25519SecretKey = requireNotNull(storage.get().getUserED25519KeyPair()?.secretKey?.asBytes) {
-                "No logged in user"
-            },
+            ed25519SecretKey = requiresCurrentUserED25519SecKey(),
             domain = domain,
             senderPubKey = Sodium.ed25519PkToCurve25519(closedGroupSessionId.pubKeyBytes)
         )
@@ -1,25 +1,27 @@
 package org.thoughtcrime.securesms.groups
 
+import android.os.SystemClock
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Deferred
 import kotlinx.coroutines.async
 import kotlinx.coroutines.channels.Channel
 import kotlinx.coroutines.channels.SendChannel
-import kotlinx.coroutines.delay
 import kotlinx.coroutines.flow.SharingStarted
 import kotlinx.coroutines.flow.StateFlow
-import kotlinx.coroutines.flow.first
 import kotlinx.coroutines.flow.flow
 import kotlinx.coroutines.flow.stateIn
+import kotlinx.coroutines.flow.takeWhile
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.supervisorScope
+import kotlinx.coroutines.withContext
 import org.session.libsession.messaging.jobs.BatchMessageReceiveJob
 import org.session.libsession.messaging.jobs.JobQueue
 import org.session.libsession.messaging.jobs.MessageReceiveParameters
 import org.session.libsession.messaging.messages.Destination
-import org.session.libsession.snode.RawResponse
+import org.session.libsession.messaging.sending_receiving.pollers.PollScheduler
 import org.session.libsession.snode.SnodeAPI
 import org.session.libsession.snode.SnodeClock
+import org.session.libsession.snode.SnodeRequestBatcher
 import org.session.libsession.snode.model.BatchResponse
 import org.session.libsession.snode.model.RetrieveMessageResponse
 import org.session.libsession.utilities.ConfigFactoryProtocol
@@ -34,22 +36,36 @@ import org.session.libsignal.utilities.Snode
 import org.thoughtcrime.securesms.util.AppVisibilityManager
 import org.thoughtcrime.securesms.util.getRootCause
 import java.time.Instant
+import java.util.concurrent.ConcurrentHashMap
 import kotlin.coroutines.cancellation.CancellationException
 import kotlin.time.Duration.Companion.days
 
 class GroupPoller(
-    scope: CoroutineScope,
+    private val scope: CoroutineScope,
     private val groupId: AccountId,
     private val configFactoryProtocol: ConfigFactoryProtocol,
     private val lokiApiDatabase: LokiAPIDatabaseProtocol,
     private val clock: SnodeClock,
     private val appVisibilityManager: AppVisibilityManager,
     private val groupRevokedMessageHandler: GroupRevokedMessageHandler,
+    private val pollScheduler: PollScheduler = PollScheduler.shared,
 ) {
     companion object {
-        private const val POLL_INTERVAL = 3_000L
+        // Poll every 3 seconds while the group is active, slowing down to 9 seconds when it's quiet
+        // and up to 15 seconds while polls are failing
+        private val POLL_INTERVAL_POLICY = PollScheduler.IntervalPolicy(
+            minIntervalMills = 3_000L,
+            maxQuietIntervalMills = 9_000L,
+            maxFailureIntervalMills = 15_000L,
+        )
         private const val SWARM_FETCH_INTERVAL = 1800_000L // Every 30 minutes
 
+        // The snodes groups have recently started polling, by when they were picked. Groups that
+        // share a swarm follow each other's pick so their polls go out in one batch request
+        private val recentPollSnodes = ConcurrentHashMap<Snode, Long>()
+        // Covers the polls the scheduler starts together
+        private const val SHARED_SNODE_WINDOW_MILLS = 1_000L
+
         private const val TAG = "GroupPoller"
     }
 
@@ -63,7 +79,8 @@ class GroupPoller(
         val startedAt: Instant,
         val finishedAt: Instant,
         val result: Result<Unit>,
-        val groupExpired: Boolean?
+        val groupExpired: Boolean?,
+        val messageCount: Int = 0,
     ) {
         fun hasNonRetryableError(): Boolean {
             val e = result.exceptionOrNull()
@@ -117,41 +134,48 @@ class GroupPoller(
         }
     }.stateIn(scope, SharingStarted.Eagerly, State())
 
-    init {
-        // This coroutine is here to periodically request polling the group when the app
-        // becomes visible
-        scope.launch {
-            while (true) {
-                // Wait for the app becomes visible
-                appVisibilityManager.isAppVisible.first { visible -> visible }
-
-                // As soon as the app becomes visible, start polling
-                if (requestPollOnce().hasNonRetryableError()) {
-                    Log.v(TAG, "Error polling group $groupId and stopped polling")
-                    break
-                }
-
-                // As long as the app is visible, keep polling
-                while (true) {
-                    // Wait POLL_INTERVAL
-                    delay(POLL_INTERVAL)
+    private val pollTargetId = "group:${groupId.hexString}"
 
-                    val appInBackground = !appVisibilityManager.isAppVisible.value
-
-                    if (appInBackground) {
-                        Log.d(TAG, "App became invisible, stopping polling group $groupId")
-                        break
-                    }
+    // Set once a poll fails with a non-retryable error, after which the group is never polled again
+    @Volatile
+    private var stopped = false
 
-                    if (requestPollOnce().hasNonRetryableError()) {
-                        Log.v(TAG, "Error polling group $groupId and stopped polling")
-                        return@launch
+    init {
+        // Keep the group registered with the poll scheduler as long as the app is visible
+        scope.launch {
+            try {
+                appVisibilityManager.isAppVisible
+                    .takeWhile { !stopped }
+                    .collect { visible ->
+                        if (visible) {
+                            pollScheduler.register(
+                                PollScheduler.PollTarget(pollTargetId, POLL_INTERVAL_POLICY, ::pollFromScheduler)
+                            )
+                        } else {
+                            Log.d(TAG, "App became invisible, stopping polling group $groupId")
+                            pollScheduler.unregister(pollTargetId)
+                        }
                     }
-                }
+            } finally {
+                pollScheduler.unregister(pollTargetId)
             }
         }
     }
 
+    private suspend fun pollFromScheduler(): Int {
+        // Run in our own scope so the poll is abandoned if this poller is torn down
+        val pollResult = withContext(scope.coroutineContext) { requestPollOnce() }
+
+        if (pollResult.hasNonRetryableError()) {
+            Log.v(TAG, "Error polling group $groupId and stopped polling")
+            stopped = true
+            pollScheduler.unregister(pollTargetId)
+        }
+
+        pollResult.result.getOrThrow()
+        return pollResult.messageCount
+    }
+
     /**
      * Request to poll the group once and return the result. It's guaranteed that
      * the poll will be run AT LEAST once after the request is sent, but it's not guaranteed
@@ -167,6 +191,7 @@ class GroupPoller(
     private suspend fun doPollOnce(pollState: InternalPollState): PollResult {
         val pollStartedAt = Instant.now()
         var groupExpired: Boolean? = null
+        var messageCount = 0
 
         var currentSnode: Snode? = null
 
@@ -192,9 +217,12 @@ class GroupPoller(
                     pollState.pollPool.addAll(swarmNodes)
                 }
 
-                // Take a random snode from the pool
-                val snode = pollState.pollPool.random().also {
+                // Take the snode another group in the same swarm is polling, or a random one from the pool
+                val now = SystemClock.elapsedRealtime()
+                recentPollSnodes.values.removeIf { now - it >= SHARED_SNODE_WINDOW_MILLS }
+                val snode = (pollState.pollPool.firstOrNull { it in recentPollSnodes } ?: pollState.pollPool.random()).also {
                     pollState.pollPool.remove(it)
+                    recentPollSnodes.putIfAbsent(it, now)
                     currentSnode = it
                 }
 
@@ -250,6 +278,7 @@ class GroupPoller(
                                 newExpiry = clock.currentTimeMills() + 14.days.inWholeMilliseconds,
                                 extend = true
                             ),
+                            latencyClass = SnodeRequestBatcher.LatencyClass.BACKGROUND,
                         )
                     }
                 }
@@ -272,7 +301,7 @@ class GroupPoller(
                             namespace = Namespace.GROUP_MESSAGES(),
                             maxSize = null,
                         ),
-                        responseType = Map::class.java
+                        responseType = RetrieveMessageResponse::class.java
                     )
                 }
 
@@ -306,6 +335,7 @@ class GroupPoller(
                 pollingTasks += "polling and handling group config keys and messages" to async {
                     val result = runCatching {
                         val (keysMessage, infoMessage, membersMessage) = groupConfigRetrieval.map { it.await() }
+                        messageCount += keysMessage.size + infoMessage.size + membersMessage.size
                         handleGroupConfigMessages(keysMessage, infoMessage, membersMessage)
                         saveLastMessageHash(snode, keysMessage, Namespace.GROUP_KEYS())
                         saveLastMessageHash(snode, infoMessage, Namespace.GROUP_INFO())
@@ -316,7 +346,7 @@ class GroupPoller(
                         }
 
                         val regularMessages = groupMessageRetrieval.await()
-                        handleMessages(regularMessages, snode)
+                        messageCount += handleMessages(regularMessages, snode)
                     }
 
                     // Revoke message must be handled regardless, and at the end
@@ -370,7 +400,8 @@ class GroupPoller(
             startedAt = pollStartedAt,
             finishedAt = Instant.now(),
             result = result,
-            groupExpired = groupExpired
+            groupExpired = groupExpired,
+            messageCount = messageCount,
         )
 
         return pollResult
@@ -423,10 +454,10 @@ class GroupPoller(
         )
     }
 
-    private fun handleMessages(body: RawResponse, snode: Snode) {
+    private fun handleMessages(body: RetrieveMessageResponse, snode: Snode): Int {
         val messages = configFactoryProtocol.withGroupConfigs(groupId) {
-            SnodeAPI.parseRawMessagesResponse(
-                rawResponse = body,
+            SnodeAPI.parseMessagesResponse(
+                response = body,
                 snode = snode,
                 publicKey = groupId.hexString,
                 decrypt = it.groupKeys::decrypt,
@@ -436,7 +467,7 @@ class GroupPoller(
 
         val parameters = messages.map { (envelope, serverHash) ->
             MessageReceiveParameters(
-                envelope.toByteArray(),
+                envelope,
                 serverHash = serverHash,
                 closedGroup = Destination.ClosedGroup(groupId.hexString)
             )
@@ -450,6 +481,8 @@ class GroupPoller(
         if (messages.isNotEmpty()) {
             Log.d(TAG, "Received and handled ${messages.size} group messages")
         }
+
+        return messages.size
     }
 
     /**
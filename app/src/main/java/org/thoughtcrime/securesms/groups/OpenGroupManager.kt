@@ -7,20 +7,20 @@ import com.squareup.phrase.Phrase
 import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.StateFlow
 import kotlinx.coroutines.flow.asStateFlow
-import java.util.concurrent.Executors
 import network.noth.messenger.R
 import okhttp3.HttpUrl.Companion.toHttpUrlOrNull
 import org.session.libsession.messaging.MessagingModuleConfiguration
+import org.session.libsession.messaging.jobs.JobQueue
 import org.session.libsession.messaging.open_groups.OpenGroup
 import org.session.libsession.messaging.open_groups.OpenGroupApi
 import org.session.libsession.messaging.sending_receiving.pollers.OpenGroupPoller
+import org.session.libsession.messaging.sending_receiving.pollers.PollScheduler
 import org.session.libsession.snode.utilities.await
 import org.session.libsession.utilities.StringSubstitutionConstants.COMMUNITY_NAME_KEY
 import org.session.libsignal.utilities.Log
 import org.thoughtcrime.securesms.dependencies.DatabaseComponent
 
 object OpenGroupManager {
-    private val executorService = Executors.newScheduledThreadPool(4)
     private val pollers = mutableMapOf<String, OpenGroupPoller>() // One for each server
     private var isPolling = false
     private val pollUpdaterLock = Any()
@@ -59,7 +59,7 @@ object OpenGroupManager {
         synchronized(pollUpdaterLock) {
             servers.forEach { server ->
                 pollers[server]?.stop() // Shouldn't be necessary
-                pollers[server] = OpenGroupPoller(server, executorService).apply { startIfNeeded() }
+                pollers[server] = OpenGroupPoller(server, PollScheduler.shared).apply { startIfNeeded() }
             }
         }
     }
@@ -111,7 +111,7 @@ object OpenGroupManager {
         synchronized(pollUpdaterLock) {
             pollers[server]?.stop()
             pollers[server]?.startIfNeeded() ?: run {
-                val poller = OpenGroupPoller(server, executorService)
+                val poller = OpenGroupPoller(server, PollScheduler.shared)
                 Log.d("Loki", "Starting poller for open group: $server")
                 pollers[server] = poller
                 poller.startIfNeeded()
@@ -139,6 +139,7 @@ object OpenGroupManager {
                     pollers.remove(server)
                 }
             }
+            JobQueue.shared.removeOpenGroupLane(openGroupID)
             configFactory.withMutableUserConfigs {
                 it.userGroups.eraseCommunity(server, room)
                 it.convoInfoVolatile.eraseCommunity(server, room)
@@ -6,7 +6,6 @@ import android.view.LayoutInflater
 import android.view.ViewGroup
 import androidx.recyclerview.widget.DiffUtil
 import androidx.recyclerview.widget.RecyclerView
-import androidx.recyclerview.widget.RecyclerView.NO_ID
 import com.bumptech.glide.RequestManager
 import network.noth.messenger.R
 import network.noth.messenger.databinding.ViewMessageRequestBannerBinding
@@ -35,12 +34,7 @@ class HomeAdapter(
             diffResult.dispatchUpdatesTo(this)
         }
 
-    override fun getItemId(position: Int): Long  {
-        when (val item = data.items[position]) {
-            is HomeViewModel.Item.MessageRequests -> return NO_ID
-            is HomeViewModel.Item.Thread -> return item.thread.threadId
-        }
-    }
+    override fun getItemId(position: Int): Long = data.items[position].id
 
     lateinit var glide: RequestManager
 
@@ -16,20 +16,8 @@ class HomeDiffUtil(
 
     override fun getNewListSize(): Int = new.items.size
 
-    override fun areItemsTheSame(oldItemPosition: Int, newItemPosition: Int): Boolean {
-        val oldItem = old.items[oldItemPosition]
-        val newItem = new.items[newItemPosition]
-
-        if (oldItem is HomeViewModel.Item.MessageRequests && newItem is HomeViewModel.Item.MessageRequests) {
-            return true
-        }
-
-        if (oldItem is HomeViewModel.Item.Thread && newItem is HomeViewModel.Item.Thread) {
-            return oldItem.thread.threadId == newItem.thread.threadId
-        }
-
-        return false
-    }
+    override fun areItemsTheSame(oldItemPosition: Int, newItemPosition: Int): Boolean =
+        old.items[oldItemPosition].id == new.items[newItemPosition].id
 
     override fun areContentsTheSame(oldItemPosition: Int, newItemPosition: Int): Boolean {
         val old = old.items[oldItemPosition]
@@ -49,6 +37,12 @@ class HomeDiffUtil(
         val oldItem = old.thread
         val newItem = new.thread
 
+        // Threads that weren't reloaded keep their record, so only what isn't part of it can differ
+        if (oldItem === newItem) {
+            return old.isTyping == new.isTyping &&
+                !configFactory.withUserConfigs { it.convoInfoVolatile.getConversationUnread(newItem) }
+        }
+
         // return early to save getDisplayBody or expensive calls
         var isSameItem = true
 
@@ -1,27 +1,29 @@
 package org.thoughtcrime.securesms.home
 
 import android.content.ContentResolver
+import android.content.ContentUris
 import android.content.Context
+import android.database.Cursor
 import androidx.annotation.AttrRes
 import androidx.lifecycle.ViewModel
 import androidx.lifecycle.asFlow
 import androidx.lifecycle.viewModelScope
 import dagger.hilt.android.lifecycle.HiltViewModel
 import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.FlowPreview
 import kotlinx.coroutines.channels.BufferOverflow
+import kotlinx.coroutines.channels.Channel
 import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.flow.MutableSharedFlow
 import kotlinx.coroutines.flow.SharingStarted
 import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.buffer
 import kotlinx.coroutines.flow.combine
-import kotlinx.coroutines.flow.debounce
 import kotlinx.coroutines.flow.distinctUntilChanged
 import kotlinx.coroutines.flow.filter
 import kotlinx.coroutines.flow.filterIsInstance
+import kotlinx.coroutines.flow.flow
 import kotlinx.coroutines.flow.flowOn
 import kotlinx.coroutines.flow.map
-import kotlinx.coroutines.flow.mapLatest
 import kotlinx.coroutines.flow.merge
 import kotlinx.coroutines.flow.onStart
 import kotlinx.coroutines.flow.stateIn
@@ -34,6 +36,7 @@ import org.thoughtcrime.securesms.database.model.ThreadRecord
 import org.thoughtcrime.securesms.dependencies.ConfigFactory
 import org.thoughtcrime.securesms.sskenvironment.TypingStatusRepository
 import org.thoughtcrime.securesms.util.observeChanges
+import org.thoughtcrime.securesms.util.timedBuffer
 import javax.inject.Inject
 
 @HiltViewModel
@@ -104,26 +107,51 @@ class HomeViewModel @Inject constructor(
         ::createMessageRequests
     ).flowOn(Dispatchers.Default)
 
-    private fun unapprovedConversationCount() = reloadTriggersAndContentChanges()
-        .map { threadDb.unapprovedConversationList.use { cursor -> cursor.count } }
+    private fun unapprovedConversationCount() = conversationListChanges()
+        .map { threadDb.unapprovedConversationCount }
 
-    @Suppress("OPT_IN_USAGE")
-    private fun observeConversationList(): Flow<List<ThreadRecord>> = reloadTriggersAndContentChanges()
-        .mapLatest { _ ->
-            threadDb.approvedConversationList.use { openCursor ->
-                threadDb.readerFor(openCursor).run { generateSequence { next }.toList() }
+    /**
+     * Keeps the records of the conversation list around and, when only some threads changed,
+     * reads back just their rows. A reloaded thread that no longer belongs to the list is dropped.
+     */
+    private fun observeConversationList(): Flow<List<ThreadRecord>> = flow {
+        val threads = hashMapOf<Long, ThreadRecord>()
+
+        conversationListChanges().collect { change ->
+            when (change) {
+                is ConversationListChange.All -> {
+                    threads.clear()
+                    readThreads(threadDb.approvedConversationList).associateByTo(threads) { it.threadId }
+                }
+                is ConversationListChange.Threads -> {
+                    threads.keys.removeAll(change.threadIds)
+                    readThreads(threadDb.getApprovedConversationList(change.threadIds)).associateByTo(threads) { it.threadId }
+                }
             }
+
+            emit(threads.values.sortedWith(CONVERSATION_LIST_ORDER))
         }
+    }
         .flowOn(Dispatchers.IO)
 
-    @OptIn(FlowPreview::class)
-    private fun reloadTriggersAndContentChanges(): Flow<*> = merge(
-        manualReloadTrigger,
-        contentResolver.observeChanges(DatabaseContentProviders.ConversationList.CONTENT_URI),
+    private fun readThreads(cursor: Cursor): List<ThreadRecord> = cursor.use { openCursor ->
+        threadDb.readerFor(openCursor).run { generateSequence { next }.toList() }
+    }
+
+    private fun conversationListChanges(): Flow<ConversationListChange> = merge(
+        manualReloadTrigger.map { ConversationListChange.All },
+        contentResolver.observeChanges(DatabaseContentProviders.ConversationList.CONTENT_URI, notifyForDescendants = true)
+            .buffer(Channel.UNLIMITED)
+            .map { uri ->
+                if (uri == DatabaseContentProviders.ConversationList.CONTENT_URI) ConversationListChange.All
+                else ConversationListChange.Threads(setOf(ContentUris.parseId(uri)))
+            },
         configFactory.configUpdateNotifications.filterIsInstance<ConfigUpdateNotification.GroupConfigsUpdated>()
+            .map { ConversationListChange.All }
     )
-        .debounce(CHANGE_NOTIFICATION_DEBOUNCE_MILLS)
-        .onStart { emit(Unit) }
+        .timedBuffer(CHANGE_NOTIFICATION_DEBOUNCE_MILLS, MAX_BATCHED_CHANGES)
+        .map { changes -> changes.reduce(ConversationListChange::plus) }
+        .onStart { emit(ConversationListChange.All) }
 
     fun tryReload() = manualReloadTrigger.tryEmit(Unit)
 
@@ -137,12 +165,34 @@ class HomeViewModel @Inject constructor(
     )
 
     sealed interface Item {
+        // Identifies the item across reloads, for diffing and as the adapter's stable id
+        val id: Long
+
         data class Thread(
             val thread: ThreadRecord,
             val isTyping: Boolean,
-        ) : Item
+        ) : Item {
+            override val id: Long
+                get() = thread.threadId
+        }
 
-        data class MessageRequests(val count: Int) : Item
+        data class MessageRequests(val count: Int) : Item {
+            override val id: Long
+                get() = MESSAGE_REQUESTS_ID
+        }
+    }
+
+    /**
+     * What needs reloading in the conversation list: either all of it, or only the rows of some
+     * threads.
+     */
+    private sealed interface ConversationListChange {
+        data object All : ConversationListChange
+
+        data class Threads(val threadIds: Set<Long>) : ConversationListChange
+
+        operator fun plus(other: ConversationListChange): ConversationListChange =
+            if (this is Threads && other is Threads) Threads(threadIds + other.threadIds) else All
     }
 
     private fun createMessageRequests(
@@ -160,5 +210,14 @@ class HomeViewModel @Inject constructor(
 
     companion object {
         private const val CHANGE_NOTIFICATION_DEBOUNCE_MILLS = 100L
+        private const val MAX_BATCHED_CHANGES = 500
+
+        // Thread ids start at 1
+        private const val MESSAGE_REQUESTS_ID = 0L
+
+        // The same order as the conversation list query
+        private val CONVERSATION_LIST_ORDER = compareByDescending<ThreadRecord> { it.isPinned }
+            .thenByDescending { it.date }
+            .thenByDescending { it.threadId }
     }
 }
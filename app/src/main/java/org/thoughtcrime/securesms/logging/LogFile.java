@@ -1,6 +1,5 @@
 package org.thoughtcrime.securesms.logging;
 
-import static org.session.libsignal.crypto.CipherUtil.CIPHER_LOCK;
 import static org.session.libsignal.utilities.Util.SECURE_RANDOM;
 
 import androidx.annotation.NonNull;
@@ -68,17 +67,15 @@ class LogFile {
 
       byte[] plaintext = entry.getBytes();
       try {
-        synchronized (CIPHER_LOCK) {
-          cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(secret, "AES"), new IvParameterSpec(ivBuffer));
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(secret, "AES"), new IvParameterSpec(ivBuffer));
 
-          int cipherLength = cipher.getOutputSize(plaintext.length);
-          byte[] ciphertext = ciphertextBuffer.get(cipherLength);
-          cipherLength = cipher.doFinal(plaintext, 0, plaintext.length, ciphertext);
+        int cipherLength = cipher.getOutputSize(plaintext.length);
+        byte[] ciphertext = ciphertextBuffer.get(cipherLength);
+        cipherLength = cipher.doFinal(plaintext, 0, plaintext.length, ciphertext);
 
-          outputStream.write(ivBuffer);
-          outputStream.write(Conversions.intToByteArray(cipherLength));
-          outputStream.write(ciphertext, 0, cipherLength);
-        }
+        outputStream.write(ivBuffer);
+        outputStream.write(Conversions.intToByteArray(cipherLength));
+        outputStream.write(ciphertext, 0, cipherLength);
 
         outputStream.flush();
       } catch (ShortBufferException | InvalidAlgorithmParameterException | InvalidKeyException | BadPaddingException | IllegalBlockSizeException e) {
@@ -148,11 +145,9 @@ class LogFile {
       }
 
       try {
-        synchronized (CIPHER_LOCK) {
-          cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(secret, "AES"), new IvParameterSpec(ivBuffer));
-          byte[] plaintext = cipher.doFinal(ciphertext, 0, length);
-          return new String(plaintext);
-        }
+        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(secret, "AES"), new IvParameterSpec(ivBuffer));
+        byte[] plaintext = cipher.doFinal(ciphertext, 0, length);
+        return new String(plaintext);
       } catch (BadPaddingException e) {
         // Bad padding likely indicates a corrupted or incomplete entry.
         // Instead of throwing an error, treat this as the end of the log.
@@ -110,7 +110,7 @@ class BackgroundPollWorker @AssistedInject constructor(
                     tasks += async {
                         Log.d(TAG, "Polling messages.")
                         val params = SnodeAPI.getMessages(userAuth).await().map { (envelope, serverHash) ->
-                            MessageReceiveParameters(envelope.toByteArray(), serverHash, null)
+                            MessageReceiveParameters(envelope, serverHash, null)
                         }
 
                         // FIXME: Using a job here seems like a bad idea...
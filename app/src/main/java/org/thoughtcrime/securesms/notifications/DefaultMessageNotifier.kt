@@ -24,14 +24,12 @@ import android.content.BroadcastReceiver
 import android.content.Context
 import android.content.Intent
 import android.content.pm.PackageManager
-import android.database.Cursor
 import android.os.AsyncTask
 import android.os.Build
 import android.text.TextUtils
 import androidx.core.app.ActivityCompat
 import androidx.core.app.NotificationCompat
 import androidx.core.app.NotificationManagerCompat
-import com.annimon.stream.Stream
 import com.squareup.phrase.Phrase
 import java.util.concurrent.Executor
 import java.util.concurrent.Executors
@@ -40,8 +38,8 @@ import java.util.concurrent.atomic.AtomicBoolean
 import kotlin.concurrent.Volatile
 import me.leolin.shortcutbadger.ShortcutBadger
 import network.noth.messenger.R
+import org.session.libsession.messaging.MessagingModuleConfiguration
 import org.session.libsession.messaging.sending_receiving.notifications.MessageNotifier
-import org.session.libsession.messaging.utilities.SodiumUtilities.blindedKeyPair
 import org.session.libsession.utilities.Address.Companion.fromSerialized
 import org.session.libsession.utilities.ServiceUtil
 import org.session.libsession.utilities.StringSubstitutionConstants.EMOJI_KEY
@@ -60,10 +58,10 @@ import org.session.libsignal.utilities.Util
 import org.thoughtcrime.securesms.ApplicationContext
 import org.thoughtcrime.securesms.contacts.ContactUtil
 import org.thoughtcrime.securesms.conversation.v2.utilities.MentionUtilities.highlightMentions
-import org.thoughtcrime.securesms.crypto.KeyPairUtilities.getUserED25519KeyPair
+import org.thoughtcrime.securesms.database.MmsSmsDatabase
 import org.thoughtcrime.securesms.database.RecipientDatabase
 import org.thoughtcrime.securesms.database.model.MediaMmsMessageRecord
-import org.thoughtcrime.securesms.database.model.MessageRecord
+import org.thoughtcrime.securesms.database.model.MessageId
 import org.thoughtcrime.securesms.database.model.MmsMessageRecord
 import org.thoughtcrime.securesms.database.model.ReactionRecord
 import org.thoughtcrime.securesms.dependencies.DatabaseComponent.Companion.get
@@ -156,13 +154,42 @@ class DefaultMessageNotifier : MessageNotifier {
     override fun updateNotification(context: Context, threadId: Long) {
         if (System.currentTimeMillis() - lastDesktopActivityTimestamp < DESKTOP_ACTIVITY_PERIOD) {
             Log.i(TAG, "Scheduling delayed notification...")
-            executor.execute(DelayedNotification(context, threadId))
+            executor.execute(DelayedNotification(context) {
+                ApplicationContext.getInstance(context).messageNotifier.updateNotification(context, threadId, true)
+            })
         } else {
             updateNotification(context, threadId, true)
         }
     }
 
     override fun updateNotification(context: Context, threadId: Long, signal: Boolean) {
+        if (shouldUpdateNotification(context, threadId)) {
+            updateNotification(context, signal, 0)
+        }
+    }
+
+    override fun updateNotification(context: Context, threadIds: Collection<Long>) {
+        if (threadIds.isEmpty()) return
+
+        if (System.currentTimeMillis() - lastDesktopActivityTimestamp < DESKTOP_ACTIVITY_PERIOD) {
+            Log.i(TAG, "Scheduling delayed notification...")
+            val pendingThreadIds = threadIds.toList()
+            executor.execute(DelayedNotification(context) { updateThreadsNotification(context, pendingThreadIds) })
+            return
+        }
+
+        updateThreadsNotification(context, threadIds)
+    }
+
+    private fun updateThreadsNotification(context: Context, threadIds: Collection<Long>) {
+        // Every thread has to be checked, as the check also keeps the message requests state up to date
+        val shouldUpdate = threadIds.map { shouldUpdateNotification(context, it) }
+        if (shouldUpdate.any { it }) {
+            updateNotification(context, true, 0)
+        }
+    }
+
+    private fun shouldUpdateNotification(context: Context, threadId: Long): Boolean {
         val isVisible = visibleThread == threadId
 
         val threads = get(context).threadDatabase()
@@ -177,12 +204,10 @@ class DefaultMessageNotifier : MessageNotifier {
         if (!isNotificationsEnabled(context) ||
             (recipient != null && recipient.isMuted)
         ) {
-            return
+            return false
         }
 
-        if ((!isVisible && !homeScreenVisible) || hasExistingNotifications(context)) {
-            updateNotification(context, signal, 0)
-        }
+        return (!isVisible && !homeScreenVisible) || hasExistingNotifications(context)
     }
 
     private fun hasExistingNotifications(context: Context): Boolean {
@@ -197,52 +222,65 @@ class DefaultMessageNotifier : MessageNotifier {
 
     override fun updateNotification(context: Context, signal: Boolean, reminderCount: Int) {
         var playNotificationAudio = signal // Local copy of the argument so we can modify it
-        var telcoCursor: Cursor? = null
 
-        try {
-            telcoCursor = get(context).mmsSmsDatabase().unread // TODO: add a notification specific lighter query here
+        val unreadMessageIds = getUnreadMessageIds(context)
 
-            if ((telcoCursor == null || telcoCursor.isAfterLast) || getLocalNumber(context) == null) {
-                updateBadge(context, 0)
-                cancelActiveNotifications(context)
-                clearReminder(context)
-                return
-            }
+        if (unreadMessageIds.isEmpty() || getLocalNumber(context) == null) {
+            threadNotifications.clear()
+            updateBadge(context, 0)
+            cancelActiveNotifications(context)
+            clearReminder(context)
+            return
+        }
 
-            try {
-                val notificationState = constructNotificationState(context, telcoCursor)
+        try {
+            val notificationState = constructNotificationState(context, unreadMessageIds)
 
-                if (playNotificationAudio && (System.currentTimeMillis() - lastAudibleNotification) < MIN_AUDIBLE_PERIOD_MILLIS) {
-                    playNotificationAudio = false
-                } else if (playNotificationAudio) {
-                    lastAudibleNotification = System.currentTimeMillis()
-                }
+            if (playNotificationAudio && (System.currentTimeMillis() - lastAudibleNotification) < MIN_AUDIBLE_PERIOD_MILLIS) {
+                playNotificationAudio = false
+            } else if (playNotificationAudio) {
+                lastAudibleNotification = System.currentTimeMillis()
+            }
 
-                if (notificationState.hasMultipleThreads()) {
-                    for (threadId in notificationState.threads) {
-                        sendSingleThreadNotification(context, NotificationState(notificationState.getNotificationsForThread(threadId)), false, true)
-                    }
-                    sendMultipleThreadNotification(context, notificationState, playNotificationAudio)
-                } else if (notificationState.notificationCount > 0) {
-                    sendSingleThreadNotification(context, notificationState, playNotificationAudio, false)
-                } else {
-                    cancelActiveNotifications(context)
+            if (notificationState.hasMultipleThreads()) {
+                for (threadId in notificationState.threads) {
+                    sendSingleThreadNotification(context, NotificationState(notificationState.getNotificationsForThread(threadId)), false, true)
                 }
+                sendMultipleThreadNotification(context, notificationState, playNotificationAudio)
+            } else if (notificationState.notificationCount > 0) {
+                sendSingleThreadNotification(context, notificationState, playNotificationAudio, false)
+            } else {
+                cancelActiveNotifications(context)
+            }
 
-                cancelOrphanedNotifications(context, notificationState)
-                updateBadge(context, notificationState.notificationCount)
+            cancelOrphanedNotifications(context, notificationState)
+            updateBadge(context, notificationState.notificationCount)
 
-                if (playNotificationAudio) {
-                    scheduleReminder(context, reminderCount)
-                }
-            }
-            catch (e: Exception) {
-                Log.e(TAG, "Error creating notification", e)
+            if (playNotificationAudio) {
+                scheduleReminder(context, reminderCount)
             }
+        }
+        catch (e: Exception) {
+            Log.e(TAG, "Error creating notification", e)
+        }
+    }
 
-        } finally {
-            telcoCursor?.close()
+    /**
+     * The ids of the messages to notify about, grouped by thread.
+     */
+    private fun getUnreadMessageIds(context: Context): Map<Long, Set<UnreadMessageKey>> {
+        val unreadMessageIds = HashMap<Long, MutableSet<UnreadMessageKey>>()
+        get(context).mmsSmsDatabase().unreadIds.use { cursor ->
+            while (cursor.moveToNext()) {
+                val id = cursor.getLong(0)
+                val threadId = cursor.getLong(1)
+                val mms = cursor.getString(2) == MmsSmsDatabase.MMS_TRANSPORT
+                unreadMessageIds.getOrPut(threadId) { HashSet() }.add(
+                    UnreadMessageKey(MessageId(id, mms), reactionCount = cursor.getInt(3), lastReactionId = cursor.getLong(4))
+                )
+            }
         }
+        return unreadMessageIds
     }
 
     // Note: The `signal` parameter means "play an audio signal for the notification".
@@ -451,129 +489,144 @@ class DefaultMessageNotifier : MessageNotifier {
         Log.i(TAG, "Posted notification. $notification")
     }
 
-    private fun constructNotificationState(context: Context, cursor: Cursor): NotificationState {
-        val notificationState = NotificationState()
-        val reader = get(context).mmsSmsDatabase().readerFor(cursor)
-        if (reader == null) {
-            Log.e(TAG, "No reader for cursor - aborting constructNotificationState")
-            return NotificationState()
-        }
+    private fun constructNotificationState(context: Context, unreadMessageIds: Map<Long, Set<UnreadMessageKey>>): NotificationState {
+        val messages = threadNotifications.get(unreadMessageIds, KeyCachingService.isLocked(context)) { threadIds ->
+            readThreadNotifications(context, threadIds)
+        }.sortedBy { it.timestamp }
 
+        val notificationState = NotificationState()
         val threadDatabase = get(context).threadDatabase()
-        val cache: MutableMap<Long, String?> = HashMap()
-
-        // CAREFUL: Do not put this loop back as `while ((reader.next.also { record = it }) != null) {` because it breaks with a Null Pointer Exception!
-        var record: MessageRecord? = null
-        do {
-            record = reader.next
-            if (record == null) break // Bail if there are no more MessageRecords
-
-            val id = record.getId()
-            val mms = record.isMms || record.isMmsNotification
-            val recipient = record.individualRecipient
-            val conversationRecipient = record.recipient
-            val threadId = record.threadId
-            var body: CharSequence = record.getDisplayBody(context)
-            var threadRecipients: Recipient? = null
-            var slideDeck: SlideDeck? = null
-            val timestamp = record.timestamp
-            var messageRequest = false
-
-            if (threadId != -1L) {
-                threadRecipients = threadDatabase.getRecipientForThreadId(threadId)
-                messageRequest = threadRecipients != null && !threadRecipients.isGroupOrCommunityRecipient &&
-                        !threadRecipients.isApproved && !threadDatabase.getLastSeenAndHasSent(threadId).second()
-                if (messageRequest && (threadDatabase.getMessageCount(threadId) > 1 || !hasHiddenMessageRequests(context))) {
-                    continue
+        val threadStates = HashMap<Long, ThreadState>()
+
+        for (message in messages) {
+            val threadId = message.threadId
+            val threadState = threadStates.getOrPut(threadId) {
+                var threadRecipients: Recipient? = null
+                var messageRequest = false
+                var skip = false
+
+                if (threadId != -1L) {
+                    threadRecipients = threadDatabase.getRecipientForThreadId(threadId)
+                    messageRequest = threadRecipients != null && !threadRecipients.isGroupOrCommunityRecipient &&
+                            !threadRecipients.isApproved && !threadDatabase.getLastSeenAndHasSent(threadId).second()
+                    skip = messageRequest && (threadDatabase.getMessageCount(threadId) > 1 || !hasHiddenMessageRequests(context))
                 }
+
+                ThreadState(threadRecipients, messageRequest, skip)
             }
+            if (threadState.skip) continue
+
+            val threadRecipients = threadState.recipient
+            if (threadRecipients != null && threadRecipients.isMuted) continue
 
             // If this is a message request from an unknown user..
-            if (messageRequest) {
-                body = SpanUtil.italic(context.getString(R.string.messageRequestsNew))
-
-            // If we received some manner of notification but Session is locked..
-            } else if (KeyCachingService.isLocked(context)) {
-                // Note: We provide 1 because `messageNewYouveGot` is now a plurals string and we don't have a count yet, so just
-                // giving it 1 will result in "You got a new message".
-                body = SpanUtil.italic(context.resources.getQuantityString(R.plurals.messageNewYouveGot, 1, 1))
-
-            // ----- Note: All further cases assume we know the contact and that Session isn't locked -----
-
-            // If this is a notification about a multimedia message from a contact we know about..
-            } else if (record.isMms && !(record as MmsMessageRecord).sharedContacts.isEmpty()) {
-                val contact = (record as MmsMessageRecord).sharedContacts[0]
-                body = ContactUtil.getStringSummary(context, contact)
-
-                // If this is a notification about a multimedia message which contains no text but DOES contain a slide deck with at least one slide..
-            } else if (record.isMms && TextUtils.isEmpty(body) && !(record as MmsMessageRecord).slideDeck.slides.isEmpty()) {
-                slideDeck = (record as MediaMmsMessageRecord).slideDeck
-                body = SpanUtil.italic(slideDeck.body)
-
-                // If this is a notification about a multimedia message, but it's not ITSELF a multimedia notification AND it contains a slide deck with at least one slide..
-            } else if (record.isMms && !record.isMmsNotification && !(record as MmsMessageRecord).slideDeck.slides.isEmpty()) {
-                slideDeck = (record as MediaMmsMessageRecord).slideDeck
-                val message = slideDeck.body + ": " + record.body
-                val italicLength = message.length - body.length
-                body = SpanUtil.italic(message, italicLength)
-
-                // If this is a notification about an invitation to a community..
-            } else if (record.isOpenGroupInvitation) {
-                body = SpanUtil.italic(context.getString(R.string.communityInvitation))
+            val body = if (threadState.messageRequest) SpanUtil.italic(context.getString(R.string.messageRequestsNew)) else message.body
+
+            if (threadRecipients != null && threadRecipients.notifyType == RecipientDatabase.NOTIFY_TYPE_MENTIONS) {
+                if (message.mentionsUser) {
+                    notificationState.addNotification(NotificationItem(message.id, message.mms, message.individualRecipient, message.conversationRecipient, threadRecipients, threadId, body, message.timestamp, message.slideDeck))
+                }
+            } else if (threadRecipients != null && threadRecipients.notifyType == RecipientDatabase.NOTIFY_TYPE_NONE) {
+                // do nothing, no notifications
+            } else {
+                notificationState.addNotification(NotificationItem(message.id, message.mms, message.individualRecipient, message.conversationRecipient, threadRecipients, threadId, body, message.timestamp, message.slideDeck))
             }
 
-            val userPublicKey = getLocalNumber(context)
-            var blindedPublicKey = cache[threadId]
-            if (blindedPublicKey == null) {
-                blindedPublicKey = generateBlindedId(threadId, context)
-                cache[threadId] = blindedPublicKey
+            val reaction = message.lastReaction
+            if (reaction != null && threadRecipients != null && !threadRecipients.isGroupOrCommunityRecipient) {
+                val reactor = Recipient.from(context, fromSerialized(reaction.author), false)
+                val emoji = Phrase.from(context, R.string.emojiReactsNotification).put(EMOJI_KEY, reaction.emoji).format().toString()
+                notificationState.addNotification(NotificationItem(message.id, message.mms, reactor, reactor, threadRecipients, threadId, emoji, reaction.dateSent, message.slideDeck))
             }
-            if (threadRecipients == null || !threadRecipients.isMuted) {
-                if (threadRecipients != null && threadRecipients.notifyType == RecipientDatabase.NOTIFY_TYPE_MENTIONS) {
-                    // check if mentioned here
-                    var isQuoteMentioned = false
-                    if (record is MmsMessageRecord) {
-                        val quote = (record as MmsMessageRecord).quote
-                        val quoteAddress = quote?.author
-                        val serializedAddress = quoteAddress?.serialize()
-                        isQuoteMentioned = (serializedAddress != null && userPublicKey == serializedAddress) ||
-                                (blindedPublicKey != null && userPublicKey == blindedPublicKey)
-                    }
-                    if (body.toString().contains("@$userPublicKey") || body.toString().contains("@$blindedPublicKey") || isQuoteMentioned) {
-                        notificationState.addNotification(NotificationItem(id, mms, recipient, conversationRecipient, threadRecipients, threadId, body, timestamp, slideDeck))
-                    }
-                } else if (threadRecipients != null && threadRecipients.notifyType == RecipientDatabase.NOTIFY_TYPE_NONE) {
-                    // do nothing, no notifications
-                } else {
-                    notificationState.addNotification(NotificationItem(id, mms, recipient, conversationRecipient, threadRecipients, threadId, body, timestamp, slideDeck))
+        }
+
+        return notificationState
+    }
+
+    /**
+     * Reads the unread messages of [threadIds] and works out what each of them would show, leaving
+     * out the thread's own settings, which are applied every time the notifications are built.
+     */
+    private fun readThreadNotifications(context: Context, threadIds: Collection<Long>): Map<Long, List<UnreadMessage>> {
+        val mmsSmsDatabase = get(context).mmsSmsDatabase()
+        val userPublicKey = getLocalNumber(context)
+        val blindedPublicKeys = HashMap<Long, String?>()
+        val messages = HashMap<Long, MutableList<UnreadMessage>>()
+
+        mmsSmsDatabase.readerFor(mmsSmsDatabase.getUnread(threadIds)).use { reader ->
+            for (record in generateSequence { reader.next }) {
+                val threadId = record.threadId
+                var body: CharSequence = record.getDisplayBody(context)
+                var slideDeck: SlideDeck? = null
+
+                // If we received some manner of notification but Session is locked..
+                if (KeyCachingService.isLocked(context)) {
+                    // Note: We provide 1 because `messageNewYouveGot` is now a plurals string and we don't have a count yet, so just
+                    // giving it 1 will result in "You got a new message".
+                    body = SpanUtil.italic(context.resources.getQuantityString(R.plurals.messageNewYouveGot, 1, 1))
+
+                // ----- Note: All further cases assume we know the contact and that Session isn't locked -----
+
+                // If this is a notification about a multimedia message from a contact we know about..
+                } else if (record.isMms && !(record as MmsMessageRecord).sharedContacts.isEmpty()) {
+                    val contact = (record as MmsMessageRecord).sharedContacts[0]
+                    body = ContactUtil.getStringSummary(context, contact)
+
+                    // If this is a notification about a multimedia message which contains no text but DOES contain a slide deck with at least one slide..
+                } else if (record.isMms && TextUtils.isEmpty(body) && !(record as MmsMessageRecord).slideDeck.slides.isEmpty()) {
+                    slideDeck = (record as MediaMmsMessageRecord).slideDeck
+                    body = SpanUtil.italic(slideDeck.body)
+
+                    // If this is a notification about a multimedia message, but it's not ITSELF a multimedia notification AND it contains a slide deck with at least one slide..
+                } else if (record.isMms && !record.isMmsNotification && !(record as MmsMessageRecord).slideDeck.slides.isEmpty()) {
+                    slideDeck = (record as MediaMmsMessageRecord).slideDeck
+                    val message = slideDeck.body + ": " + record.body
+                    val italicLength = message.length - body.length
+                    body = SpanUtil.italic(message, italicLength)
+
+                    // If this is a notification about an invitation to a community..
+                } else if (record.isOpenGroupInvitation) {
+                    body = SpanUtil.italic(context.getString(R.string.communityInvitation))
                 }
 
-                val userBlindedPublicKey = blindedPublicKey
-                val lastReact = Stream.of(record.reactions)
-                    .filter { r: ReactionRecord -> !(r.author == userPublicKey || r.author == userBlindedPublicKey) }
-                    .findLast()
-
-                if (lastReact.isPresent) {
-                    if (threadRecipients != null && !threadRecipients.isGroupOrCommunityRecipient) {
-                        val reaction = lastReact.get()
-                        val reactor = Recipient.from(context, fromSerialized(reaction.author), false)
-                        val emoji = Phrase.from(context, R.string.emojiReactsNotification).put(EMOJI_KEY, reaction.emoji).format().toString()
-                        notificationState.addNotification(NotificationItem(id, mms, reactor, reactor, threadRecipients, threadId, emoji, reaction.dateSent, slideDeck))
-                    }
+                val blindedPublicKey = blindedPublicKeys.getOrPut(threadId) { generateBlindedId(threadId, context) }
+
+                // check if mentioned here
+                var isQuoteMentioned = false
+                if (record is MmsMessageRecord) {
+                    val quote = record.quote
+                    val quoteAddress = quote?.author
+                    val serializedAddress = quoteAddress?.serialize()
+                    isQuoteMentioned = (serializedAddress != null && userPublicKey == serializedAddress) ||
+                            (blindedPublicKey != null && userPublicKey == blindedPublicKey)
                 }
+                val mentionsUser = body.toString().contains("@$userPublicKey") || body.toString().contains("@$blindedPublicKey") || isQuoteMentioned
+
+                val lastReaction = record.reactions.lastOrNull { it.author != userPublicKey && it.author != blindedPublicKey }
+
+                messages.getOrPut(threadId) { mutableListOf() } += UnreadMessage(
+                    id = record.getId(),
+                    mms = record.isMms || record.isMmsNotification,
+                    individualRecipient = record.individualRecipient,
+                    conversationRecipient = record.recipient,
+                    threadId = threadId,
+                    body = body,
+                    timestamp = record.timestamp,
+                    slideDeck = slideDeck,
+                    mentionsUser = mentionsUser,
+                    lastReaction = lastReaction
+                )
             }
-        } while (record != null) // This will never hit because we break early if we get a null record at the start of the do..while loop
+        }
 
-        reader.close()
-        return notificationState
+        return messages
     }
 
     private fun generateBlindedId(threadId: Long, context: Context): String? {
         val lokiThreadDatabase = get(context).lokiThreadDatabase()
         val openGroup = lokiThreadDatabase.getOpenGroupChat(threadId)
-        val edKeyPair = getUserED25519KeyPair(context)
-        if (openGroup != null && edKeyPair != null) {
-            val blindedKeyPair = blindedKeyPair(openGroup.publicKey, edKeyPair)
+        if (openGroup != null) {
+            val blindedKeyPair = MessagingModuleConfiguration.shared.storage.getUserBlindedKeyPair(openGroup.publicKey)
             if (blindedKeyPair != null) {
                 return AccountId(IdPrefix.BLINDED, blindedKeyPair.publicKey.asBytes).hexString
             }
@@ -634,7 +687,7 @@ class DefaultMessageNotifier : MessageNotifier {
     // ACL: What is the concept behind delayed notifications? Why would we ever want this? To batch them up so
     // that we get a bunch of notifications once per minute or something rather than a constant stream of them
     // if that's what was incoming?!?
-    private class DelayedNotification(private val context: Context, private val threadId: Long) : Runnable {
+    private class DelayedNotification(private val context: Context, private val notify: () -> Unit) : Runnable {
         private val canceled = AtomicBoolean(false)
 
         private val delayUntil: Long
@@ -651,7 +704,7 @@ class DefaultMessageNotifier : MessageNotifier {
 
             if (!canceled.get()) {
                 Log.i(TAG, "Not canceled, notifying...")
-                ApplicationContext.getInstance(context).messageNotifier.updateNotification(context, threadId, true)
+                notify()
                 ApplicationContext.getInstance(context).messageNotifier.cancelDelayedNotifications()
             } else {
                 Log.w(TAG, "Canceled, not notifying...")
@@ -691,6 +744,24 @@ class DefaultMessageNotifier : MessageNotifier {
         }
     }
 
+    private class UnreadMessage(
+        val id: Long,
+        val mms: Boolean,
+        val individualRecipient: Recipient,
+        val conversationRecipient: Recipient,
+        val threadId: Long,
+        val body: CharSequence,
+        val timestamp: Long,
+        val slideDeck: SlideDeck?,
+        val mentionsUser: Boolean,
+        // The latest reaction from someone else, if any
+        val lastReaction: ReactionRecord?,
+    )
+
+    private class ThreadState(val recipient: Recipient?, val messageRequest: Boolean, val skip: Boolean)
+
+    private val threadNotifications = ThreadNotificationCache<UnreadMessage>()
+
     companion object {
         private val TAG: String = DefaultMessageNotifier::class.java.simpleName
 
@@ -14,6 +14,11 @@ import org.session.libsignal.utilities.ThreadUtils;
 import org.thoughtcrime.securesms.ApplicationContext;
 import org.thoughtcrime.securesms.groups.OpenGroupManager;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 import kotlin.Unit;
@@ -22,6 +27,9 @@ public class OptimizedMessageNotifier implements MessageNotifier {
   private final MessageNotifier         wrapped;
   private final Debouncer               debouncer;
 
+  // Threads waiting on the debouncer, so batches that arrive within its window are notified together
+  private final Set<Long>               pendingThreadIds = new HashSet<>();
+
   @MainThread
   public OptimizedMessageNotifier(@NonNull MessageNotifier wrapped) {
     this.wrapped   = wrapped;
@@ -98,6 +106,34 @@ public class OptimizedMessageNotifier implements MessageNotifier {
     }
   }
 
+  @Override
+  public void updateNotification(@NonNull Context context, @NonNull Collection<Long> threadIds) {
+    Poller lokiPoller = ApplicationContext.getInstance(context).poller;
+    boolean isCaughtUp = true;
+    if (lokiPoller != null) {
+      isCaughtUp = isCaughtUp && !lokiPoller.isPolling();
+    }
+
+    isCaughtUp = isCaughtUp && OpenGroupManager.INSTANCE.isAllCaughtUp();
+
+    if (isCaughtUp) {
+      performOnBackgroundThreadIfNeeded(() -> wrapped.updateNotification(context, threadIds));
+    } else {
+      synchronized (pendingThreadIds) {
+        pendingThreadIds.addAll(threadIds);
+      }
+      debouncer.publish(() -> performOnBackgroundThreadIfNeeded(() -> wrapped.updateNotification(context, takePendingThreadIds())));
+    }
+  }
+
+  private List<Long> takePendingThreadIds() {
+    synchronized (pendingThreadIds) {
+      List<Long> threadIds = new ArrayList<>(pendingThreadIds);
+      pendingThreadIds.clear();
+      return threadIds;
+    }
+  }
+
   @Override
   public void updateNotification(@androidx.annotation.NonNull Context context, boolean signal, int reminderCount) {
     Poller lokiPoller = ApplicationContext.getInstance(context).poller;
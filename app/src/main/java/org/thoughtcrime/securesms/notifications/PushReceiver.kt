@@ -92,7 +92,7 @@ class PushReceiver @Inject constructor(
                         }
 
                         MessageReceiveParameters(
-                            data = envelope.toByteArray(),
+                            envelope = envelope,
                             serverHash = pushData.metadata.msg_hash,
                             closedGroup = Destination.ClosedGroup(groupId.hexString)
                         )
@@ -138,9 +138,8 @@ class PushReceiver @Inject constructor(
                         return
                     }
 
-                    val envelopeAsData = MessageWrapper.unwrap(pushData.data).toByteArray()
                     MessageReceiveParameters(
-                        data = envelopeAsData,
+                        envelope = MessageWrapper.unwrap(pushData.data),
                         serverHash = pushData.metadata?.msg_hash
                     )
                 }
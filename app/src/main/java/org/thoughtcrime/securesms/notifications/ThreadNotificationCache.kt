@@ -0,0 +1,62 @@
+package org.thoughtcrime.securesms.notifications
+
+import org.thoughtcrime.securesms.database.model.MessageId
+
+/**
+ * A message to notify about, as listed by
+ * [org.thoughtcrime.securesms.database.MmsSmsDatabase.getUnreadIds]. The reactions are part of
+ * it, so a new reaction on a message that was already unread counts as a change.
+ */
+data class UnreadMessageKey(
+    val messageId: MessageId,
+    val reactionCount: Int,
+    val lastReactionId: Long,
+)
+
+/**
+ * Each thread's unread messages, as prepared for notifications, kept between notification
+ * updates. A thread is only read again once its unread messages or their reactions change.
+ */
+class ThreadNotificationCache<T> {
+    private class Entry<T>(val keys: Set<UnreadMessageKey>, val messages: List<T>)
+
+    private val threads = HashMap<Long, Entry<T>>()
+    private var locked = false
+
+    /**
+     * @param unread The unread messages of every thread that has any.
+     * @param isLocked Whether the app is locked, which changes what a notification shows, so
+     * everything is read again when it changes.
+     * @param read Reads the messages of the given threads.
+     * @return the messages of every thread in [unread].
+     */
+    @Synchronized
+    fun get(
+        unread: Map<Long, Set<UnreadMessageKey>>,
+        isLocked: Boolean,
+        read: (threadIds: Collection<Long>) -> Map<Long, List<T>>,
+    ): List<T> {
+        if (isLocked != locked) {
+            threads.clear()
+            locked = isLocked
+        }
+
+        threads.keys.retainAll(unread.keys)
+        val changed = unread.filter { (threadId, keys) -> threads[threadId]?.keys != keys }
+        if (changed.isNotEmpty()) {
+            val messages = read(changed.keys)
+            // The keys listed before reading are kept, if the messages changed in between the
+            // next update reads them again
+            for ((threadId, keys) in changed) {
+                threads[threadId] = Entry(keys, messages[threadId].orEmpty())
+            }
+        }
+
+        return threads.values.flatMap { it.messages }
+    }
+
+    @Synchronized
+    fun clear() {
+        threads.clear()
+    }
+}
@@ -27,6 +27,7 @@ import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
 import network.noth.messenger.BuildConfig
 import network.noth.messenger.R
+import org.session.libsession.messaging.jobs.JobQueue
 import org.session.libsession.utilities.StringSubstitutionConstants.APP_NAME_KEY
 import org.session.libsignal.utilities.ExternalStorageUtil
 import org.session.libsignal.utilities.Log
@@ -67,6 +68,9 @@ class ShareLogsDialog(private val updateCallback: (Boolean)->Unit): DialogFragme
             val persistentLogger = ApplicationContext.getInstance(context).persistentLogger
             try {
                 Log.d(TAG, "Starting share logs job...")
+                JobQueue.shared.getMetrics().forEach { (type, metrics) ->
+                    Log.i(TAG, "Job queue metrics for $type: $metrics")
+                }
 
                 val context = requireContext()
                 val outputUri: Uri = ExternalStorageUtil.getDownloadUri()
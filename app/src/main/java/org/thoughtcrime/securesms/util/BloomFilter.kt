@@ -0,0 +1,74 @@
+package org.thoughtcrime.securesms.util
+
+import kotlin.math.ceil
+import kotlin.math.ln
+import kotlin.math.max
+import kotlin.math.roundToInt
+
+/**
+ * A simple, non thread-safe Bloom filter for strings.
+ *
+ * [mightContain] never returns false for a value that was [put], but may return true for a value
+ * that never was (with a probability of roughly [falsePositiveRate] while at most [capacity] values
+ * have been added). Values can't be removed, so callers are expected to rebuild the filter once
+ * [isSaturated] returns true.
+ */
+class BloomFilter(val capacity: Int, val falsePositiveRate: Double = 0.01) {
+
+    private val bitCount: Int
+    private val hashCount: Int
+    private val bits: LongArray
+
+    var size: Int = 0
+        private set
+
+    val isSaturated: Boolean
+        get() = size > capacity
+
+    init {
+        require(capacity > 0) { "Capacity must be positive" }
+        require(falsePositiveRate > 0.0 && falsePositiveRate < 1.0) { "False positive rate must be between 0 and 1" }
+
+        val ln2 = ln(2.0)
+        bitCount = max(64, ceil(-capacity * ln(falsePositiveRate) / (ln2 * ln2)).toInt())
+        hashCount = max(1, (bitCount.toDouble() / capacity * ln2).roundToInt())
+        bits = LongArray((bitCount + 63) / 64)
+    }
+
+    fun put(value: String) {
+        val h1 = value.hashCode()
+        val h2 = secondaryHash(value)
+        for (i in 0 until hashCount) {
+            val index = indexFor(h1, h2, i)
+            bits[index ushr 6] = bits[index ushr 6] or (1L shl (index and 63))
+        }
+        size++
+    }
+
+    fun mightContain(value: String): Boolean {
+        val h1 = value.hashCode()
+        val h2 = secondaryHash(value)
+        for (i in 0 until hashCount) {
+            val index = indexFor(h1, h2, i)
+            if (bits[index ushr 6] and (1L shl (index and 63)) == 0L) return false
+        }
+        return true
+    }
+
+    fun clear() {
+        bits.fill(0L)
+        size = 0
+    }
+
+    // Kirsch-Mitzenmacher double hashing: h1 + i * h2 behaves like independent hash functions
+    private fun indexFor(h1: Int, h2: Int, i: Int): Int = ((h1 + i * h2) and Int.MAX_VALUE) % bitCount
+
+    // FNV-1a over the UTF-16 code units, forced odd so the probe sequence never degenerates
+    private fun secondaryHash(value: String): Int {
+        var hash = -0x7ee3623b
+        for (c in value) {
+            hash = (hash xor c.code) * 0x01000193
+        }
+        return hash or 1
+    }
+}
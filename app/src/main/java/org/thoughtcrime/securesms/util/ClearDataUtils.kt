@@ -9,6 +9,7 @@ import kotlinx.coroutines.withContext
 import org.session.libsession.utilities.TextSecurePreferences
 import org.session.libsignal.utilities.Log
 import org.thoughtcrime.securesms.ApplicationContext
+import org.thoughtcrime.securesms.crypto.UserKeyMaterial
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper
 import org.thoughtcrime.securesms.dependencies.ConfigFactory
 import org.thoughtcrime.securesms.home.HomeActivity
@@ -20,6 +21,7 @@ class ClearDataUtils @Inject constructor(
     private val application: Application,
     private val configFactory: ConfigFactory,
     private val tokenFetcher: TokenFetcher,
+    private val userKeyMaterial: UserKeyMaterial,
 ) {
     // Method to clear the local data - returns true on success otherwise false
     @SuppressLint("ApplySharedPref")
@@ -33,6 +35,7 @@ class ClearDataUtils @Inject constructor(
             TextSecurePreferences.clearAll(application)
             application.getSharedPreferences(ApplicationContext.PREFERENCES_NAME, 0).edit(commit = true) { clear() }
             configFactory.clearAll()
+            userKeyMaterial.clear()
 
             // The token deletion is nice but not critical, so don't let it block the rest of the process
             runCatching {
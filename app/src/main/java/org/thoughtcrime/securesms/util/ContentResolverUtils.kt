@@ -12,14 +12,15 @@ import kotlinx.coroutines.flow.callbackFlow
 
 /**
  * Observe changes to a content Uri. This function will emit the Uri whenever the content or
- * its descendants change, according to the parameter [notifyForDescendants].
+ * its descendants change, according to the parameter [notifyForDescendants]. When a descendant
+ * changes, its own Uri is emitted.
  */
 @CheckResult
 fun ContentResolver.observeChanges(uri: Uri, notifyForDescendants: Boolean = false): Flow<Uri> {
     return callbackFlow {
         val observer = object : ContentObserver(Handler(Looper.getMainLooper())) {
-            override fun onChange(selfChange: Boolean) {
-                trySend(uri)
+            override fun onChange(selfChange: Boolean, changedUri: Uri?) {
+                trySend(changedUri ?: uri)
             }
         }
 
@@ -32,7 +32,10 @@ object SqlUtil {
     return buildCollectionQuery(column, values, MAX_QUERY_ARGS)
   }
 
-  @VisibleForTesting
+  /**
+   * Like [buildCollectionQuery], with at most [maxSize] values a query, for statements that bind
+   * each query's arguments more than once.
+   */
   @JvmStatic
   fun buildCollectionQuery(column: String, values: Collection<Any?>, maxSize: Int): List<Query> {
     require(!values.isEmpty()) { "Must have values!" }
@@ -0,0 +1,83 @@
+package org.thoughtcrime.securesms.notifications
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import org.thoughtcrime.securesms.database.model.MessageId
+
+class ThreadNotificationCacheTest {
+
+    private val cache = ThreadNotificationCache<String>()
+    private val reads = mutableListOf<Set<Long>>()
+
+    private fun key(id: Long, reactionCount: Int = 0, lastReactionId: Long = 0) =
+        UnreadMessageKey(MessageId(id, mms = false), reactionCount, lastReactionId)
+
+    private fun get(unread: Map<Long, Set<UnreadMessageKey>>, isLocked: Boolean = false): List<String> =
+        cache.get(unread, isLocked) { threadIds ->
+            reads += threadIds.toSet()
+            threadIds.associateWith { threadId -> unread.getValue(threadId).map { "$threadId:${it.messageId.id}:${it.reactionCount}" } }
+        }
+
+    @Test
+    fun `only reads threads whose unread messages changed`() {
+        get(mapOf(1L to setOf(key(1)), 2L to setOf(key(2))))
+        val messages = get(mapOf(1L to setOf(key(1)), 2L to setOf(key(2), key(3))))
+
+        assertEquals(listOf(setOf(1L, 2L), setOf(2L)), reads)
+        assertEquals(listOf("1:1:0", "2:2:0", "2:3:0"), messages.sorted())
+    }
+
+    @Test
+    fun `nothing is read while nothing changes`() {
+        val unread = mapOf(1L to setOf(key(1)))
+        get(unread)
+        get(unread)
+
+        assertEquals(listOf(setOf(1L)), reads)
+    }
+
+    @Test
+    fun `a new reaction on an unread message reads the thread again`() {
+        get(mapOf(1L to setOf(key(1)), 2L to setOf(key(2))))
+        val messages = get(mapOf(1L to setOf(key(1, reactionCount = 1, lastReactionId = 7)), 2L to setOf(key(2))))
+
+        assertEquals(listOf(setOf(1L, 2L), setOf(1L)), reads)
+        assertEquals(listOf("1:1:1", "2:2:0"), messages.sorted())
+    }
+
+    @Test
+    fun `a replaced reaction reads the thread again`() {
+        get(mapOf(1L to setOf(key(1, reactionCount = 1, lastReactionId = 7))))
+        get(mapOf(1L to setOf(key(1, reactionCount = 1, lastReactionId = 8))))
+
+        assertEquals(listOf(setOf(1L), setOf(1L)), reads)
+    }
+
+    @Test
+    fun `threads without unread messages are dropped`() {
+        get(mapOf(1L to setOf(key(1)), 2L to setOf(key(2))))
+        val messages = get(mapOf(2L to setOf(key(2))))
+
+        assertEquals(listOf("2:2:0"), messages)
+        assertEquals(1, reads.size)
+    }
+
+    @Test
+    fun `changing the lock state reads every thread again`() {
+        val unread = mapOf(1L to setOf(key(1)), 2L to setOf(key(2)))
+        get(unread)
+        get(unread, isLocked = true)
+
+        assertEquals(listOf(setOf(1L, 2L), setOf(1L, 2L)), reads)
+    }
+
+    @Test
+    fun `clear reads every thread again`() {
+        val unread = mapOf(1L to setOf(key(1)))
+        get(unread)
+        cache.clear()
+        get(unread)
+
+        assertEquals(listOf(setOf(1L), setOf(1L)), reads)
+    }
+}
@@ -0,0 +1,40 @@
+package org.thoughtcrime.securesms.util
+
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class BloomFilterTest {
+
+    @Test
+    fun `contains every value that was put`() {
+        val filter = BloomFilter(capacity = 1000)
+        val values = (0 until 1000).map { "hash-$it" }
+        values.forEach(filter::put)
+
+        values.forEach { assertTrue(filter.mightContain(it)) }
+        assertFalse(filter.isSaturated)
+    }
+
+    @Test
+    fun `false positive rate stays close to the configured rate`() {
+        val filter = BloomFilter(capacity = 10_000, falsePositiveRate = 0.01)
+        (0 until 10_000).forEach { filter.put("present-$it") }
+
+        val falsePositives = (0 until 10_000).count { filter.mightContain("absent-$it") }
+
+        assertTrue("Too many false positives: $falsePositives", falsePositives < 300)
+    }
+
+    @Test
+    fun `saturates once capacity is exceeded`() {
+        val filter = BloomFilter(capacity = 10)
+        (0..10).forEach { filter.put("hash-$it") }
+
+        assertTrue(filter.isSaturated)
+
+        filter.clear()
+        assertFalse(filter.isSaturated)
+        assertFalse(filter.mightContain("hash-0"))
+    }
+}
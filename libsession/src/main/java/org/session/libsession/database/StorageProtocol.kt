@@ -45,6 +45,7 @@ interface StorageProtocol {
     // General
     fun getUserPublicKey(): String?
     fun getUserED25519KeyPair(): KeyPair?
+    fun getUserBlindedKeyPair(serverPublicKey: String): KeyPair?
     fun getUserX25519KeyPair(): ECKeyPair
     fun getUserProfile(): Profile
     fun setProfilePicture(recipient: Recipient, newProfilePicture: String?, newProfileKey: ByteArray?)
@@ -113,6 +114,12 @@ interface StorageProtocol {
     fun getReceivedMessageTimestamps(): Set<Long>
     fun addReceivedMessageTimestamp(timestamp: Long)
     fun removeReceivedMessageTimestamps(timestamps: Set<Long>)
+    /**
+     * Runs [block] in a single database transaction, which is committed if it returns normally.
+     * Throws if the transaction was rolled back all the same, as happens when a nested transaction
+     * in [block] fails and its failure is caught.
+     */
+    fun <T> runInTransaction(block: () -> T): T
     /**
      * Returns the IDs of the saved attachments.
      */
@@ -215,6 +222,7 @@ interface StorageProtocol {
     fun setContact(contact: Contact)
     fun getRecipientForThread(threadId: Long): Recipient?
     fun getRecipientSettings(address: Address): RecipientSettings?
+    fun getRecipientSettings(addresses: Collection<Address>): Map<Address, RecipientSettings>
     fun addLibSessionContacts(contacts: List<LibSessionContact>, timestamp: Long?)
     fun hasAutoDownloadFlagBeenSet(recipient: Recipient): Boolean
     fun addContacts(contacts: List<ConfigurationMessage.Contact>)
@@ -11,7 +11,9 @@ import okhttp3.MediaType.Companion.toMediaType
 import okhttp3.RequestBody
 import org.session.libsession.messaging.MessagingModuleConfiguration
 import org.session.libsession.snode.OnionRequestAPI
+import org.session.libsession.snode.OnionResponse
 import org.session.libsession.snode.utilities.await
+import org.session.libsession.utilities.RangedDownload
 import org.session.libsignal.utilities.HTTP
 import org.session.libsignal.utilities.JsonUtil
 import org.session.libsignal.utilities.Log
@@ -52,6 +54,10 @@ object FileServerApi {
     }
 
     private fun send(request: Request): Promise<ByteArray, Exception> {
+        return sendForResponse(request).map { it.body ?: throw Error.ParsingFailed }
+    }
+
+    private fun sendForResponse(request: Request): Promise<OnionResponse, Exception> {
         val url = server.toHttpUrlOrNull() ?: return Promise.ofFail(Error.InvalidURL)
         val urlBuilder = HttpUrl.Builder()
             .scheme(url.scheme)
@@ -73,9 +79,7 @@ object FileServerApi {
             HTTP.Verb.DELETE -> requestBuilder.delete(createBody(request.body, request.parameters))
         }
         return if (request.useOnionRouting) {
-            OnionRequestAPI.sendOnionRequest(requestBuilder.build(), server, serverPublicKey).map {
-                it.body ?: throw Error.ParsingFailed
-            }.fail { e ->
+            OnionRequestAPI.sendOnionRequest(requestBuilder.build(), server, serverPublicKey).fail { e ->
                 when (e) {
                     // No need for the stack trace for HTTP errors
                     is HTTP.HTTPRequestFailedException -> Log.e("Loki", "File server request failed due to error: ${e.message}")
@@ -111,6 +115,15 @@ object FileServerApi {
         return send(request)
     }
 
+    fun downloadRange(file: String, range: LongRange): Promise<RangedDownload.RangeResponse, Exception> {
+        val request = Request(
+            verb = HTTP.Verb.GET,
+            endpoint = "file/$file",
+            headers = mapOf(RangedDownload.rangeHeader(range))
+        )
+        return sendForResponse(request).map { RangedDownload.RangeResponse.fromOnionResponse(it) }
+    }
+
     /**
      * Returns the current version of session
      * This is effectively proxying (and caching) the response from the github release
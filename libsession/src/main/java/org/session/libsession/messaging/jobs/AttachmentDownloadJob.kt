@@ -1,10 +1,14 @@
 package org.session.libsession.messaging.jobs
 
-import okhttp3.HttpUrl
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
 import okhttp3.HttpUrl.Companion.toHttpUrlOrNull
 import org.session.libsession.database.MessageDataProvider
 import org.session.libsession.database.StorageProtocol
 import org.session.libsession.messaging.MessagingModuleConfiguration
+import org.session.libsession.messaging.file_server.FileServerApi
+import org.session.libsession.messaging.open_groups.OpenGroup
 import org.session.libsession.messaging.open_groups.OpenGroupApi
 import org.session.libsession.messaging.sending_receiving.attachments.AttachmentId
 import org.session.libsession.messaging.sending_receiving.attachments.AttachmentState
@@ -13,11 +17,15 @@ import org.session.libsession.messaging.utilities.Data
 import org.session.libsession.snode.OnionRequestAPI
 import org.session.libsession.snode.utilities.await
 import org.session.libsession.utilities.DecodedAudio
-import org.session.libsession.utilities.DownloadUtilities
 import org.session.libsession.utilities.InputStreamMediaDataSource
+import org.session.libsession.utilities.RangedDownload
+import org.session.libsignal.exceptions.InvalidMacException
+import org.session.libsignal.exceptions.InvalidMessageException
 import org.session.libsignal.exceptions.NonRetryableException
 import org.session.libsignal.streams.AttachmentCipherInputStream
+import org.session.libsignal.streams.AttachmentMacVerifier
 import org.session.libsignal.utilities.Base64
+import org.session.libsignal.utilities.HTTP
 import org.session.libsignal.utilities.Log
 import java.io.File
 import java.io.FileInputStream
@@ -46,6 +54,24 @@ class AttachmentDownloadJob(val attachmentID: Long, val databaseMessageID: Long)
         private val ATTACHMENT_ID_KEY = "attachment_id"
         private val TS_INCOMING_MESSAGE_ID_KEY = "tsIncoming_message_id"
 
+        // Jobs downloading the same attachment take turns, so they never append to the same
+        // partial file at once. Entries are removed once nobody holds or waits for them
+        private class PartialFileLock(val mutex: Mutex = Mutex(), var users: Int = 0)
+        private val partialFileLocks = hashMapOf<Long, PartialFileLock>()
+
+        private suspend inline fun <T> withPartialFileLock(attachmentId: Long, block: () -> T): T {
+            val lock = synchronized(partialFileLocks) {
+                partialFileLocks.getOrPut(attachmentId) { PartialFileLock() }.also { it.users++ }
+            }
+            try {
+                return lock.mutex.withLock { block() }
+            } finally {
+                synchronized(partialFileLocks) {
+                    if (--lock.users == 0) partialFileLocks.remove(attachmentId)
+                }
+            }
+        }
+
         /**
          * Check if the attachment in the given message is eligible for download.
          *
@@ -75,6 +101,15 @@ class AttachmentDownloadJob(val attachmentID: Long, val databaseMessageID: Long)
         val threadID = storage.getThreadIdForMms(databaseMessageID)
 
         val handleFailure: (java.lang.Exception, attachmentId: AttachmentId?) -> Unit = { exception, attachment ->
+            // Nothing will pick up what was received so far once the job is done with
+            val isFinal = failureCount + 1 >= maxFailureCount || exception is NonRetryableException ||
+                    exception == Error.NoAttachment || exception == Error.NoThread || exception == Error.NoSender ||
+                    exception == Error.DuplicateData ||
+                    (exception is OnionRequestAPI.HTTPRequestFailedAtDestinationException && exception.statusCode == 400)
+            if (isFinal) {
+                getPartialFile().delete()
+            }
+
             if (exception is NonRetryableException ||
                 exception == Error.NoAttachment
                     || exception == Error.NoThread
@@ -111,77 +146,131 @@ class AttachmentDownloadJob(val attachmentID: Long, val databaseMessageID: Long)
             }
         }
 
-        if (threadID < 0) {
-            handleFailure(Error.NoThread, null)
-            return
-        }
-
-        if (!eligibleForDownload(threadID, storage, messageDataProvider, databaseMessageID)) {
-            handleFailure(Error.NoSender, null)
-            return
-        }
+        withPartialFileLock(attachmentID) {
+            if (threadID < 0) {
+                handleFailure(Error.NoThread, null)
+                return
+            }
 
-        var tempFile: File? = null
-        try {
-            val attachment = messageDataProvider.getDatabaseAttachment(attachmentID)
-                ?: return handleFailure(Error.NoAttachment, null)
-            if (attachment.hasData()) {
-                handleFailure(Error.DuplicateData, attachment.attachmentId)
+            if (!eligibleForDownload(threadID, storage, messageDataProvider, databaseMessageID)) {
+                handleFailure(Error.NoSender, null)
                 return
             }
-            messageDataProvider.setAttachmentState(AttachmentState.STARTED, attachment.attachmentId, this.databaseMessageID)
-            tempFile = createTempFile()
-            val openGroup = storage.getOpenGroup(threadID)
-            if (openGroup == null) {
-                Log.d("AttachmentDownloadJob", "downloading normal attachment")
-                DownloadUtilities.downloadFile(tempFile, attachment.url)
-            } else {
-                Log.d("AttachmentDownloadJob", "downloading open group attachment")
-                val url = attachment.url.toHttpUrlOrNull()!!
-                val fileID = url.pathSegments.last()
-                OpenGroupApi.download(fileID, openGroup.room, openGroup.server).await().let {
-                    tempFile.writeBytes(it)
+
+            var tempFile: File? = null
+            var downloaded = false
+            try {
+                val attachment = messageDataProvider.getDatabaseAttachment(attachmentID)
+                    ?: return handleFailure(Error.NoAttachment, null)
+                if (attachment.hasData()) {
+                    handleFailure(Error.DuplicateData, attachment.attachmentId)
+                    return
                 }
-            }
-            Log.d("AttachmentDownloadJob", "getting input stream")
-            val inputStream = getInputStream(tempFile, attachment)
-
-            Log.d("AttachmentDownloadJob", "inserting attachment")
-            messageDataProvider.insertAttachment(databaseMessageID, attachment.attachmentId, inputStream)
-            if (attachment.contentType.startsWith("audio/")) {
-                // process the duration
-                    try {
-                        InputStreamMediaDataSource(getInputStream(tempFile, attachment)).use { mediaDataSource ->
-                            val durationMs = (DecodedAudio.create(mediaDataSource).totalDuration / 1000.0).toLong()
-                            messageDataProvider.updateAudioAttachmentDuration(
-                                attachment.attachmentId,
-                                durationMs,
-                                threadID
-                            )
+                messageDataProvider.setAttachmentState(AttachmentState.STARTED, attachment.attachmentId, this.databaseMessageID)
+                tempFile = getPartialFile()
+                val openGroup = storage.getOpenGroup(threadID)
+                if (openGroup == null) {
+                    Log.d("AttachmentDownloadJob", "downloading normal attachment")
+                } else {
+                    Log.d("AttachmentDownloadJob", "downloading open group attachment")
+                }
+                if (tempFile.length() > 0) {
+                    Log.d("AttachmentDownloadJob", "resuming download at byte ${tempFile.length()}")
+                }
+                val verifier = download(tempFile, attachment, openGroup)
+                downloaded = true
+
+                Log.d("AttachmentDownloadJob", "verifying attachment")
+                try {
+                    verifier?.verify()
+                } catch (e: InvalidMacException) {
+                    throw InvalidMessageException(e)
+                }
+
+                Log.d("AttachmentDownloadJob", "getting input stream")
+                val inputStream = getInputStream(tempFile, attachment)
+
+                Log.d("AttachmentDownloadJob", "inserting attachment")
+                messageDataProvider.insertAttachment(databaseMessageID, attachment.attachmentId, inputStream)
+                if (attachment.contentType.startsWith("audio/")) {
+                    // process the duration
+                        try {
+                            InputStreamMediaDataSource(getInputStream(tempFile, attachment)).use { mediaDataSource ->
+                                val durationMs = (DecodedAudio.create(mediaDataSource).totalDuration / 1000.0).toLong()
+                                messageDataProvider.updateAudioAttachmentDuration(
+                                    attachment.attachmentId,
+                                    durationMs,
+                                    threadID
+                                )
+                            }
+                        } catch (e: Exception) {
+                            Log.e("Loki", "Couldn't process audio attachment", e)
                         }
-                    } catch (e: Exception) {
-                        Log.e("Loki", "Couldn't process audio attachment", e)
+                }
+                Log.d("AttachmentDownloadJob", "deleting tempfile")
+                tempFile.delete()
+                Log.d("AttachmentDownloadJob", "succeeding job")
+                handleSuccess(dispatcherName)
+            } catch (e: Exception) {
+                Log.e("AttachmentDownloadJob", "Error processing attachment download", e)
+                // Keep what was received so the retry carries on from there, unless the file is already
+                // complete and turned out to be unusable (handleFailure deletes it if there's no retry)
+                if (downloaded) {
+                    tempFile?.delete()
+                }
+                return handleFailure(e,null)
+            }
+        }
+    }
+
+    /**
+     * Downloads the attachment into [destination] a range at a time, starting from whatever an earlier
+     * attempt left in it. The MAC and digest are checked as the bytes arrive, so the verifier that's
+     * returned only needs to be asked for the result. It's null for attachments without a digest.
+     */
+    private suspend fun download(destination: File, attachment: DatabaseAttachment, openGroup: OpenGroup?): AttachmentMacVerifier? {
+        val fileID = attachment.url.toHttpUrlOrNull()!!.pathSegments.last()
+        var remainingAttempts = if (openGroup == null) 2 else 1
+
+        while (true) {
+            remainingAttempts -= 1
+            // Every attempt replays the partial file from the start, so it needs a fresh verifier
+            val verifier = if (hasDigest(attachment)) AttachmentMacVerifier(Base64.decode(attachment.key), attachment.digest) else null
+            try {
+                RangedDownload(destination) { range ->
+                    if (openGroup == null) {
+                        FileServerApi.downloadRange(fileID, range).await()
+                    } else {
+                        OpenGroupApi.downloadRange(fileID, openGroup.room, openGroup.server, range).await()
                     }
+                }.download { bytes, offset, count -> verifier?.update(bytes, offset, count) }
+                return verifier
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: HTTP.HTTPRequestFailedException) {
+                if (openGroup == null && e.statusCode == 404) {
+                    throw NonRetryableException("404 response trying to download file: ${attachment.url}", e)
+                }
+                if (remainingAttempts == 0) throw e
+                Log.e("AttachmentDownloadJob", "Couldn't download attachment due to error: ${e.message}")
+            } catch (e: Exception) {
+                if (remainingAttempts == 0) throw e
+                Log.e("AttachmentDownloadJob", "Couldn't download attachment", e)
             }
-            Log.d("AttachmentDownloadJob", "deleting tempfile")
-            tempFile.delete()
-            Log.d("AttachmentDownloadJob", "succeeding job")
-            handleSuccess(dispatcherName)
-        } catch (e: Exception) {
-            Log.e("AttachmentDownloadJob", "Error processing attachment download", e)
-            tempFile?.delete()
-            return handleFailure(e,null)
         }
     }
 
+    private fun hasDigest(attachment: DatabaseAttachment): Boolean =
+        (attachment.digest?.size ?: 0) != 0 && !attachment.key.isNullOrEmpty()
+
     private fun getInputStream(tempFile: File, attachment: DatabaseAttachment): InputStream {
         // Assume we're retrieving an attachment for an open group server if the digest is not set
-        return if (attachment.digest?.size ?: 0 == 0 || attachment.key.isNullOrEmpty()) {
+        return if (!hasDigest(attachment)) {
             Log.d("AttachmentDownloadJob", "getting input stream with no attachment digest")
             FileInputStream(tempFile)
         } else {
             Log.d("AttachmentDownloadJob", "getting input stream with attachment digest")
-            AttachmentCipherInputStream.createForAttachment(tempFile, attachment.size, Base64.decode(attachment.key), attachment.digest)
+            AttachmentCipherInputStream.createForVerifiedAttachment(tempFile, attachment.size, Base64.decode(attachment.key))
         }
     }
 
@@ -198,11 +287,8 @@ class AttachmentDownloadJob(val attachmentID: Long, val databaseMessageID: Long)
         delegate?.handleJobFailed(this, dispatcherName, e)
     }
 
-    private fun createTempFile(): File {
-        val file = File.createTempFile("push-attachment", "tmp", MessagingModuleConfiguration.shared.context.cacheDir)
-        file.deleteOnExit()
-        return file
-    }
+    private fun getPartialFile(): File =
+        RangedDownload.getPartialAttachmentFile(MessagingModuleConfiguration.shared.context, attachmentID)
 
     override fun serialize(): Data {
         return Data.Builder()
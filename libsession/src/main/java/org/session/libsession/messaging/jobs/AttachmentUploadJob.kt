@@ -1,10 +1,6 @@
 package org.session.libsession.messaging.jobs
 
-import com.esotericsoftware.kryo.Kryo
-import com.esotericsoftware.kryo.io.Input
-import com.esotericsoftware.kryo.io.Output
 import nl.komponents.kovenant.Promise
-import okio.Buffer
 import org.session.libsession.messaging.MessagingModuleConfiguration
 import org.session.libsession.messaging.file_server.FileServerApi
 import org.session.libsession.messaging.messages.Destination
@@ -16,6 +12,7 @@ import org.session.libsession.snode.utilities.await
 import org.session.libsession.utilities.DecodedAudio
 import org.session.libsession.utilities.InputStreamMediaDataSource
 import org.session.libsession.utilities.UploadResult
+import org.session.libsession.utilities.toByteArray
 import org.session.libsignal.messages.SignalServiceAttachmentStream
 import org.session.libsignal.streams.AttachmentCipherOutputStream
 import org.session.libsignal.streams.AttachmentCipherOutputStreamFactory
@@ -93,15 +90,14 @@ class AttachmentUploadJob(val attachmentID: Long, val threadID: String, val mess
         // encrypts as it writes data.
         val inputStream = if (encrypt) PaddingInputStream(attachment.inputStream, rawLength) else attachment.inputStream
         val outputStreamFactory = if (encrypt) AttachmentCipherOutputStreamFactory(key) else PlaintextOutputStreamFactory()
-        // Create a digesting request body but immediately read it out to a buffer. Doing this makes
-        // it easier to deal with inputStream and outputStreamFactory.
+        // Create a digesting request body but immediately read it out to an array. Doing this makes
+        // it easier to deal with inputStream and outputStreamFactory. The body knows its length, so it's
+        // written straight into an array of that size rather than a buffer that then gets copied.
         val pad = PushAttachmentData(attachment.contentType, inputStream, length, outputStreamFactory, attachment.listener)
         val contentType = "application/octet-stream"
         val drb = DigestingRequestBody(pad.data, pad.outputStreamFactory, contentType, pad.dataSize, pad.listener)
         Log.d("Loki", "File size: ${length.toDouble() / 1000} kb.")
-        val b = Buffer()
-        drb.writeTo(b)
-        val data = b.readByteArray()
+        val data = drb.toByteArray()
         // Upload the data
         val id = upload(data).await()
         val digest = drb.transmittedDigest
@@ -175,16 +171,10 @@ class AttachmentUploadJob(val attachmentID: Long, val threadID: String, val mess
     }
 
     override fun serialize(): Data {
-        val kryo = Kryo()
-        kryo.isRegistrationRequired = false
-        val serializedMessage = ByteArray(4096)
-        val output = Output(serializedMessage, Job.MAX_BUFFER_SIZE_BYTES)
-        kryo.writeClassAndObject(output, message)
-        output.close()
         return Data.Builder()
             .putLong(ATTACHMENT_ID_KEY, attachmentID)
             .putString(THREAD_ID_KEY, threadID)
-            .putByteArray(MESSAGE_KEY, output.toBytes())
+            .putByteArray(MESSAGE_KEY, JobKryo.writeClassAndObject(message))
             .putString(MESSAGE_SEND_JOB_ID_KEY, messageSendJobID)
             .build()
     }
@@ -197,17 +187,13 @@ class AttachmentUploadJob(val attachmentID: Long, val threadID: String, val mess
 
         override fun create(data: Data): AttachmentUploadJob? {
             val serializedMessage = data.getByteArray(MESSAGE_KEY)
-            val kryo = Kryo()
-            kryo.isRegistrationRequired = false
-            val input = Input(serializedMessage)
             val message: Message
             try {
-                message = kryo.readClassAndObject(input) as Message
+                message = JobKryo.readClassAndObject(serializedMessage) as Message
             } catch (e: Exception) {
                 Log.e("Loki","Couldn't serialize the AttachmentUploadJob", e)
                 return null
             }
-            input.close()
             return AttachmentUploadJob(
                     data.getLong(ATTACHMENT_ID_KEY),
                     data.getString(THREAD_ID_KEY)!!,
@@ -1,6 +1,7 @@
 package org.session.libsession.messaging.jobs
 
 import com.google.protobuf.ByteString
+import com.google.protobuf.UnsafeByteOperations
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.async
 import kotlinx.coroutines.awaitAll
@@ -23,28 +24,96 @@ import org.session.libsession.messaging.messages.control.UnsendRequest
 import org.session.libsession.messaging.messages.visible.ParsedMessage
 import org.session.libsession.messaging.messages.visible.VisibleMessage
 import org.session.libsession.messaging.open_groups.OpenGroupApi
+import org.session.libsession.messaging.sending_receiving.MessageParseContext
 import org.session.libsession.messaging.sending_receiving.MessageReceiver
 import org.session.libsession.messaging.sending_receiving.handle
 import org.session.libsession.messaging.sending_receiving.handleOpenGroupReactions
 import org.session.libsession.messaging.sending_receiving.handleUnsendRequest
 import org.session.libsession.messaging.sending_receiving.handleVisibleMessage
 import org.session.libsession.messaging.utilities.Data
-import org.session.libsession.messaging.utilities.SodiumUtilities
+import org.session.libsession.utilities.Address
 import org.session.libsession.utilities.SSKEnvironment
 import org.session.libsession.utilities.UserConfigType
+import org.session.libsession.utilities.recipients.Recipient
+import org.session.libsignal.protos.SignalServiceProtos.Envelope
 import org.session.libsignal.protos.UtilProtos
 import org.session.libsignal.utilities.AccountId
-import org.session.libsignal.utilities.IdPrefix
 import org.session.libsignal.utilities.Log
 import kotlin.math.max
 
-data class MessageReceiveParameters(
-    val data: ByteArray,
-    val serverHash: String? = null,
-    val openGroupMessageServerID: Long? = null,
-    val reactions: Map<String, OpenGroupApi.Reaction>? = null,
-    val closedGroup: Destination.ClosedGroup? = null
-)
+/**
+ * A message to receive, either as an envelope that's already been parsed or as its serialized
+ * form. Whichever one is missing is only worked out when it's asked for, so an envelope that goes
+ * straight from a poller to the job is never serialized and parsed again on the way.
+ */
+class MessageReceiveParameters private constructor(
+    @Volatile private var serialized: ByteArray?,
+    @Volatile private var parsed: Envelope?,
+    val serverHash: String?,
+    val openGroupMessageServerID: Long?,
+    val reactions: Map<String, OpenGroupApi.Reaction>?,
+    val closedGroup: Destination.ClosedGroup?
+) {
+    constructor(
+        data: ByteArray,
+        serverHash: String? = null,
+        openGroupMessageServerID: Long? = null,
+        reactions: Map<String, OpenGroupApi.Reaction>? = null,
+        closedGroup: Destination.ClosedGroup? = null
+    ) : this(data, null, serverHash, openGroupMessageServerID, reactions, closedGroup)
+
+    constructor(
+        envelope: Envelope,
+        serverHash: String? = null,
+        openGroupMessageServerID: Long? = null,
+        reactions: Map<String, OpenGroupApi.Reaction>? = null,
+        closedGroup: Destination.ClosedGroup? = null
+    ) : this(null, envelope, serverHash, openGroupMessageServerID, reactions, closedGroup)
+
+    val envelope: Envelope
+        get() = parsed ?: Envelope.parseFrom(serialized!!).also { parsed = it }
+
+    val data: ByteArray
+        get() = serialized ?: parsed!!.toByteArray().also { serialized = it }
+
+    internal fun toByteString(): ByteString =
+        serialized?.let(UnsafeByteOperations::unsafeWrap) ?: parsed!!.toByteString()
+}
+
+/**
+ * Handles [items] in a single transaction, which is much quicker than a transaction each.
+ *
+ * The handlers open nested transactions of their own, and a nested transaction that fails marks
+ * the outer one as failed, so ending it rolls back every item rather than only the one that
+ * failed. Once an item fails, or the transaction is rolled back regardless, the items are
+ * therefore handled again, a transaction each, so that only the ones that fail are lost.
+ *
+ * @param onRollback Called when the single transaction is rolled back, to reset whatever was
+ * recorded while handling the items in it.
+ * @return The items that failed, with the reason why.
+ */
+internal fun <T> handleInTransaction(
+    items: List<T>,
+    runInTransaction: (block: () -> Unit) -> Unit,
+    onRollback: (Exception) -> Unit,
+    handle: (T) -> Unit
+): List<Pair<T, Exception>> {
+    try {
+        runInTransaction { items.forEach(handle) }
+        return emptyList()
+    } catch (e: Exception) {
+        onRollback(e)
+    }
+
+    return items.mapNotNull { item ->
+        try {
+            runInTransaction { handle(item) }
+            null
+        } catch (e: Exception) {
+            item to e
+        }
+    }
+}
 
 class BatchMessageReceiveJob(
     val messages: List<MessageReceiveParameters>,
@@ -56,6 +125,7 @@ class BatchMessageReceiveJob(
     override var failureCount: Int = 0
     override val maxFailureCount: Int = 1 // handled in JobQueue onJobFailed
     // Failure Exceptions must be retryable if they're a  MessageReceiver.Error
+    // Only added to once the concurrent stages of executeAsync are done
     val failures = mutableListOf<MessageReceiveParameters>()
 
     companion object {
@@ -64,6 +134,11 @@ class BatchMessageReceiveJob(
 
         const val BATCH_DEFAULT_NUMBER = 512
 
+        // SQLCipher only has one writer, so persisting more threads at once would only add contention
+        private const val PERSISTENCE_PARALLELISM = 2
+        @Suppress("OPT_IN_USAGE")
+        private val persistenceDispatcher = Dispatchers.IO.limitedParallelism(PERSISTENCE_PARALLELISM)
+
         // used for processing messages that don't have a thread and shouldn't create one
         const val NO_THREAD_MAPPING = -1L
 
@@ -123,22 +198,34 @@ class BatchMessageReceiveJob(
         val threadMap = mutableMapOf<Long, MutableList<ParsedMessage>>()
         val storage = MessagingModuleConfiguration.shared.storage
         val context = MessagingModuleConfiguration.shared.context
-        val localUserPublicKey = storage.getUserPublicKey()
         val serverPublicKey = openGroupID?.let { storage.getOpenGroupPublicKey(it.split(".").dropLast(1).joinToString(".")) }
-        val currentClosedGroups = storage.getAllActiveClosedGroupPublicKeys()
+        // Key material, blinded key pairs, blocked contacts and group keys are looked up once for the whole batch
+        val parseContext = MessageParseContext(storage, storage.getAllActiveClosedGroupPublicKeys())
+        val localUserPublicKey = parseContext.userPublicKey
+
+        // decrypt and parse in parallel, as that's CPU bound and independent for each message
+        val decryptedMessages = coroutineScope {
+            messages.map { messageParameters ->
+                async(Dispatchers.Default) {
+                    runCatching {
+                        MessageReceiver.decryptAndParse(
+                            envelope = messageParameters.envelope,
+                            openGroupServerID = messageParameters.openGroupMessageServerID,
+                            openGroupPublicKey = serverPublicKey,
+                            closedGroupSessionId = messageParameters.closedGroup?.publicKey,
+                            context = parseContext
+                        )
+                    }
+                }
+            }.awaitAll()
+        }
 
-        // parse and collect IDs
-        messages.forEach { messageParameters ->
-            val (data, serverHash, openGroupMessageServerID) = messageParameters
+        // check for duplicates and collect IDs in order, as both depend on the previous messages
+        messages.zip(decryptedMessages).forEach { (messageParameters, decrypted) ->
             try {
-                val (message, proto) = MessageReceiver.parse(
-                    data,
-                    openGroupMessageServerID,
-                    openGroupPublicKey = serverPublicKey,
-                    currentClosedGroups = currentClosedGroups,
-                    closedGroupSessionId = messageParameters.closedGroup?.publicKey
-                )
-                message.serverHash = serverHash
+                val (message, proto) = decrypted.getOrThrow()
+                MessageReceiver.checkAndRecordReceived(message)
+                message.serverHash = messageParameters.serverHash
                 val parsedParams = ParsedMessage(messageParameters, message, proto)
 
                 if(isHidden(message)) return@forEach
@@ -172,102 +259,123 @@ class BatchMessageReceiveJob(
             }
         }
 
-        // iterate over threads and persist them (persistence is the longest constant in the batch process operation)
-        fun processMessages(threadId: Long, messages: List<ParsedMessage>) {
+        // resolve every sender up front with a single settings query rather than one per message
+        Recipient.prefetch(context, threadMap.values.flatten().mapNotNullTo(mutableSetOf()) { (_, message) ->
+            message.sender?.let(Address::fromSerialized)
+        })
+
+        // iterate over threads and persist them (persistence is the longest constant in the batch process operation),
+        // returning the messages that should be retried
+        fun processMessages(threadId: Long, messages: List<ParsedMessage>): List<ParsedMessage> {
             // The LinkedHashMap should preserve insertion order
             val messageIds = linkedMapOf<Long, Pair<Boolean, Boolean>>()
             val myLastSeen = storage.getLastSeen(threadId)
             var newLastSeen = myLastSeen.takeUnless { it == -1L } ?: 0
-            messages.forEach { (parameters, message, proto) ->
-                try {
-                    when (message) {
-                        is VisibleMessage -> {
-                            val isUserBlindedSender =
-                                message.sender == serverPublicKey?.let {
-                                    SodiumUtilities.blindedKeyPair(
-                                        serverPublicKey = it,
-                                        edKeyPair = storage.getUserED25519KeyPair()!!
-                                    )
-                                }?.let {
-                                    AccountId(IdPrefix.BLINDED, it.publicKey.asBytes).hexString
-                                }
-                            if (message.sender == localUserPublicKey || isUserBlindedSender) {
-                                // use sent timestamp here since that is technically the last one we have
-                                newLastSeen = max(newLastSeen, message.sentTimestamp!!)
-                            }
-                            val messageId = MessageReceiver.handleVisibleMessage(message, proto, openGroupID,
+            // commit all of the thread's messages at once instead of one transaction per insert
+            val failed = handleInTransaction(
+                items = messages,
+                runInTransaction = { block -> storage.runInTransaction(block) },
+                onRollback = { e ->
+                    Log.w(TAG, "Couldn't commit the thread's messages together, committing them one at a time (id: $id)", e)
+                    messageIds.clear()
+                    newLastSeen = myLastSeen.takeUnless { it == -1L } ?: 0
+                }
+            ) { parsedMessage ->
+                val (parameters, message, proto) = parsedMessage
+                when (message) {
+                    is VisibleMessage -> {
+                        val isUserBlindedSender =
+                            message.sender == serverPublicKey?.let(parseContext::blindedAccountId)
+                        if (message.sender == localUserPublicKey || isUserBlindedSender) {
+                            // use sent timestamp here since that is technically the last one we have
+                            newLastSeen = max(newLastSeen, message.sentTimestamp!!)
+                        }
+                        // each insert applies itself to the thread summary, which is cheap, so the
+                        // thread doesn't need rebuilding once the batch is done
+                        val messageId = MessageReceiver.handleVisibleMessage(message, proto, openGroupID,
+                            threadId,
+                            runThreadUpdate = true,
+                            runProfileUpdate = true)
+
+                        if (messageId != null && message.reaction == null) {
+                            messageIds[messageId] = Pair(
+                                (message.sender == localUserPublicKey || isUserBlindedSender),
+                                message.hasMention
+                            )
+                        }
+                        parameters.openGroupMessageServerID?.let {
+                            MessageReceiver.handleOpenGroupReactions(
                                 threadId,
-                                runThreadUpdate = false,
-                                runProfileUpdate = true)
-
-                            if (messageId != null && message.reaction == null) {
-                                messageIds[messageId] = Pair(
-                                    (message.sender == localUserPublicKey || isUserBlindedSender),
-                                    message.hasMention
-                                )
-                            }
-                            parameters.openGroupMessageServerID?.let {
-                                MessageReceiver.handleOpenGroupReactions(
-                                    threadId,
-                                    it,
-                                    parameters.reactions
-                                )
-                            }
+                                it,
+                                parameters.reactions
+                            )
                         }
+                    }
 
-                        is UnsendRequest -> {
-                            val deletedMessageId = MessageReceiver.handleUnsendRequest(message)
+                    is UnsendRequest -> {
+                        // the notification is updated for the whole batch once it's committed
+                        val deletedMessageId = MessageReceiver.handleUnsendRequest(message, updateNotification = false)
 
-                            // If we removed a message then ensure it isn't in the 'messageIds'
-                            if (deletedMessageId != null) {
-                                messageIds.remove(deletedMessageId)
-                            }
+                        // If we removed a message then ensure it isn't in the 'messageIds'
+                        if (deletedMessageId != null) {
+                            messageIds.remove(deletedMessageId)
                         }
-
-                        else -> MessageReceiver.handle(
-                            message = message,
-                            proto = proto,
-                            threadId = threadId,
-                            openGroupID = openGroupID,
-                            groupv2Id = parameters.closedGroup?.publicKey?.let(::AccountId)
-                        )
-                    }
-                } catch (e: Exception) {
-                    Log.e(TAG, "Couldn't process message (id: $id)", e)
-                    if (e is MessageReceiver.Error && !e.isRetryable) {
-                        Log.e(TAG, "Message failed permanently (id: $id)", e)
-                    } else {
-                        Log.e(TAG, "Message failed (id: $id)", e)
-                        failures += parameters
                     }
+
+                    else -> MessageReceiver.handle(
+                        message = message,
+                        proto = proto,
+                        threadId = threadId,
+                        openGroupID = openGroupID,
+                        groupv2Id = parameters.closedGroup?.publicKey?.let(::AccountId)
+                    )
                 }
             }
-            // increment unreads, notify, and update thread
+            val retryMessages = failed.mapNotNull { (parsedMessage, e) ->
+                if (e is MessageReceiver.Error && !e.isRetryable) {
+                    Log.e(TAG, "Message failed permanently (id: $id)", e)
+                    null
+                } else {
+                    Log.e(TAG, "Message failed (id: $id)", e)
+                    parsedMessage
+                }
+            }
+            // increment unreads
             // last seen will be the current last seen if not changed (re-computes the read counts for thread record)
             // might have been updated from a different thread at this point
-            val currentLastSeen = storage.getLastSeen(threadId).let { if (it == -1L) 0 else it }
-            newLastSeen = max(newLastSeen, currentLastSeen)
-            if (newLastSeen > 0 || currentLastSeen == 0L) {
-                storage.markConversationAsRead(threadId, newLastSeen, force = true)
+            if (threadId != NO_THREAD_MAPPING) {
+                val currentLastSeen = storage.getLastSeen(threadId).let { if (it == -1L) 0 else it }
+                newLastSeen = max(newLastSeen, currentLastSeen)
+                if (newLastSeen > 0 || currentLastSeen == 0L) {
+                    storage.markConversationAsRead(threadId, newLastSeen, force = true)
+                }
             }
-            storage.updateThread(threadId, true)
-            SSKEnvironment.shared.notificationManager.updateNotification(context, threadId)
+            return retryMessages
         }
 
-        coroutineScope {
+        val retryMessages = coroutineScope {
             val withoutDefault = threadMap.entries.filter { it.key != NO_THREAD_MAPPING }
             val deferredThreadMap = withoutDefault.map { (threadId, messages) ->
-                async(Dispatchers.Default) {
+                async(persistenceDispatcher) {
                     processMessages(threadId, messages)
                 }
             }
             // await all thread processing
-            deferredThreadMap.awaitAll()
+            deferredThreadMap.awaitAll().flatten()
+        } + threadMap[NO_THREAD_MAPPING].orEmpty().let { noThreadMessages ->
+            if (noThreadMessages.isNotEmpty()) processMessages(NO_THREAD_MAPPING, noThreadMessages) else emptyList()
+        }
+
+        if (retryMessages.isNotEmpty()) {
+            // these were recorded as received while parsing, forget them so the retry isn't dropped as a duplicate
+            storage.removeReceivedMessageTimestamps(retryMessages.mapNotNullTo(hashSetOf()) { it.message.sentTimestamp })
+            failures += retryMessages.map { it.parameters }
         }
 
-        val noThreadMessages = threadMap[NO_THREAD_MAPPING] ?: listOf()
-        if (noThreadMessages.isNotEmpty()) {
-            processMessages(NO_THREAD_MAPPING, noThreadMessages)
+        // notify once for the whole batch rather than once per thread
+        val updatedThreadIds = threadMap.keys - NO_THREAD_MAPPING
+        if (updatedThreadIds.isNotEmpty()) {
+            SSKEnvironment.shared.notificationManager.updateNotification(context, updatedThreadIds)
         }
 
         if (failures.isEmpty()) {
@@ -290,7 +398,7 @@ class BatchMessageReceiveJob(
     override fun serialize(): Data {
         val arraySize = messages.size
         val dataArrays = UtilProtos.ByteArrayList.newBuilder()
-            .addAllContent(messages.map(MessageReceiveParameters::data).map(ByteString::copyFrom))
+            .addAllContent(messages.map(MessageReceiveParameters::toByteString))
             .build()
         val serverHashes = messages.map { it.serverHash.orEmpty() }
         val openGroupServerIds = messages.map { it.openGroupMessageServerID ?: -1L }
@@ -0,0 +1,55 @@
+package org.session.libsession.messaging.jobs
+
+import com.esotericsoftware.kryo.Kryo
+import com.esotericsoftware.kryo.io.Input
+import com.esotericsoftware.kryo.io.Output
+import com.esotericsoftware.kryo.util.Pool
+import org.session.libsession.messaging.jobs.Job.Companion.MAX_BUFFER_SIZE_BYTES
+
+/**
+ * Kryo instances used by jobs to persist the objects they carry. A [Kryo] is costly to set up and
+ * isn't thread safe, so instead of creating one every time a job is persisted or restored they are
+ * borrowed from a pool and keep the classes they resolved between uses.
+ */
+internal object JobKryo {
+
+    private const val INITIAL_BUFFER_SIZE_BYTES = 4096
+    private const val POOL_SIZE = 8
+
+    private val pool = object : Pool<Kryo>(true, false, POOL_SIZE) {
+        override fun create(): Kryo = Kryo().apply { isRegistrationRequired = false }
+    }
+
+    fun writeClassAndObject(value: Any): ByteArray = withKryo { kryo ->
+        val output = Output(INITIAL_BUFFER_SIZE_BYTES, MAX_BUFFER_SIZE_BYTES)
+        kryo.writeClassAndObject(output, value)
+        output.close()
+        output.toBytes()
+    }
+
+    fun readClassAndObject(bytes: ByteArray): Any? = withKryo { kryo ->
+        Input(bytes).use { kryo.readClassAndObject(it) }
+    }
+
+    fun writeObject(value: Any): ByteArray = withKryo { kryo ->
+        val output = Output(INITIAL_BUFFER_SIZE_BYTES, MAX_BUFFER_SIZE_BYTES)
+        kryo.writeObject(output, value)
+        output.close()
+        output.toBytes()
+    }
+
+    fun <T> readObject(bytes: ByteArray, type: Class<T>): T = withKryo { kryo ->
+        Input(bytes).use { kryo.readObject(it, type) }
+    }
+
+    private inline fun <T> withKryo(block: (Kryo) -> T): T {
+        val kryo = pool.obtain()
+        try {
+            return block(kryo)
+        } finally {
+            // Don't hand back an instance that's still holding on to a failed read or write
+            kryo.reset()
+            pool.free(kryo)
+        }
+    }
+}
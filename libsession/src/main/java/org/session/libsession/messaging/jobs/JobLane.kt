@@ -0,0 +1,67 @@
+package org.session.libsession.messaging.jobs
+
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.Channel.Factory.UNLIMITED
+import kotlinx.coroutines.launch
+import java.util.PriorityQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * One lane of the [JobQueue]. Runs at most [parallelism] of its jobs at once, the lowest priority
+ * first and in the order they were added otherwise.
+ */
+internal class JobLane(
+    private val name: String,
+    parallelism: Int,
+    scope: CoroutineScope,
+    private val countersFor: (Job) -> JobTypeCounters,
+    private val process: suspend (job: Job, laneName: String) -> Unit
+) {
+    private class QueuedJob(val job: Job, val priority: Int, val sequence: Long, val queuedAtNanos: Long)
+
+    private val pending = PriorityQueue(compareBy<QueuedJob>({ it.priority }, { it.sequence }))
+    private val sequence = AtomicLong()
+    // One signal per queued job, so a worker receiving one always finds a job to run
+    private val signals = Channel<Unit>(UNLIMITED)
+
+    init {
+        repeat(parallelism) {
+            scope.launch {
+                for (signal in signals) {
+                    val next = synchronized(pending) { pending.poll() } ?: continue
+                    run(next)
+                }
+            }
+        }
+    }
+
+    /**
+     * Queues [job] to run. Not to be called once the lane is closed.
+     */
+    fun enqueue(job: Job, priority: Int) {
+        val queued = QueuedJob(job, priority, sequence.getAndIncrement(), System.nanoTime())
+        synchronized(pending) { pending.add(queued) }
+        countersFor(job).onQueued()
+        signals.trySend(Unit) // Always succeeds on unlimited capacity
+    }
+
+    /**
+     * Stops the lane. The jobs already queued on it still run, after which its workers end.
+     */
+    fun close() {
+        signals.close()
+    }
+
+    private suspend fun run(queued: QueuedJob) {
+        val counters = countersFor(queued.job)
+        val startedAtNanos = System.nanoTime()
+        counters.onStarted(TimeUnit.NANOSECONDS.toMillis(startedAtNanos - queued.queuedAtNanos))
+        try {
+            process(queued.job, name)
+        } finally {
+            counters.onFinished(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAtNanos))
+        }
+    }
+}
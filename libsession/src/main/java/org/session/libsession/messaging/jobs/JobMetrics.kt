@@ -0,0 +1,54 @@
+package org.session.libsession.messaging.jobs
+
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * How one type of job has fared in the [JobQueue]. Wait time is measured from the job being queued
+ * on its lane to it starting, and includes neither retry delays nor earlier attempts.
+ */
+data class JobMetrics(
+    val queueDepth: Int,
+    val started: Long,
+    val totalWaitMillis: Long,
+    val maxWaitMillis: Long,
+    val totalRunMillis: Long,
+    val maxRunMillis: Long
+) {
+    val averageWaitMillis: Long get() = if (started == 0L) 0L else totalWaitMillis / started
+    val averageRunMillis: Long get() = if (started == 0L) 0L else totalRunMillis / started
+}
+
+internal class JobTypeCounters {
+    private val queueDepth = AtomicInteger()
+    private val started = AtomicLong()
+    private val totalWaitMillis = AtomicLong()
+    private val maxWaitMillis = AtomicLong()
+    private val totalRunMillis = AtomicLong()
+    private val maxRunMillis = AtomicLong()
+
+    fun onQueued() {
+        queueDepth.incrementAndGet()
+    }
+
+    fun onStarted(waitMillis: Long) {
+        queueDepth.decrementAndGet()
+        started.incrementAndGet()
+        totalWaitMillis.addAndGet(waitMillis)
+        maxWaitMillis.accumulateAndGet(waitMillis, ::maxOf)
+    }
+
+    fun onFinished(runMillis: Long) {
+        totalRunMillis.addAndGet(runMillis)
+        maxRunMillis.accumulateAndGet(runMillis, ::maxOf)
+    }
+
+    fun snapshot() = JobMetrics(
+        queueDepth = queueDepth.get(),
+        started = started.get(),
+        totalWaitMillis = totalWaitMillis.get(),
+        maxWaitMillis = maxWaitMillis.get(),
+        totalRunMillis = totalRunMillis.get(),
+        maxRunMillis = maxRunMillis.get()
+    )
+}
@@ -1,91 +1,97 @@
 package org.session.libsession.messaging.jobs
 
 import kotlinx.coroutines.CoroutineScope
-import kotlinx.coroutines.ExperimentalCoroutinesApi
-import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
 import kotlinx.coroutines.channels.Channel
 import kotlinx.coroutines.channels.Channel.Factory.UNLIMITED
+import kotlinx.coroutines.delay
 import kotlinx.coroutines.isActive
 import kotlinx.coroutines.launch
 import org.session.libsession.messaging.MessagingModuleConfiguration
 import org.session.libsignal.utilities.Log
 import java.lang.RuntimeException
-import java.util.Timer
 import java.util.concurrent.ConcurrentHashMap
-import java.util.concurrent.atomic.AtomicInteger
-import kotlin.concurrent.schedule
 import kotlin.math.min
 import kotlin.math.pow
 import kotlin.math.roundToLong
+import kotlin.random.Random
+
+/**
+ * Runs jobs on lanes: received messages (rx), sends (tx), media and one lane per community. Each
+ * lane runs at most its parallelism worth of jobs at once, most urgent first and in the
+ * order they were added otherwise.
+ */
+class JobQueue(private val parallelism: LaneParallelism = LaneParallelism()) : JobDelegate {
+
+    /**
+     * How many jobs each lane runs at once. The rx and community lanes are sequential as received
+     * messages have to be handled in order.
+     */
+    data class LaneParallelism(
+        val rx: Int = 1,
+        val tx: Int = 8,
+        val media: Int = 4,
+        val openGroup: Int = 1
+    )
 
-class JobQueue : JobDelegate {
     private var hasResumedPendingJobs = false // Just for debugging
-    private val jobTimestampMap = ConcurrentHashMap<Long, AtomicInteger>()
 
-    private val scope: CoroutineScope = GlobalScope
+    private val idLock = Any()
+    private var lastIdTimestamp = 0L
+    private var idsAtLastTimestamp = 0
+
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.Default)
     private val queue = Channel<Job>(UNLIMITED)
 
     // Track the send message jobs that are pending or in progress. This doesn't take the
     // first launch of the send message job into account
     private val pendingSendMessageJobIDs = hashSetOf<String>()
 
-    private val openGroupChannels = mutableMapOf<String, Channel<Job>>()
-
-    val timer = Timer()
-
-    private fun CoroutineScope.processWithOpenGroupDispatcher(
-        channel: Channel<Job>,
-        name: String
-    ) = launch {
-        for (job in channel) {
-            if (!isActive) break
-            val openGroupId = when (job) {
-                is BatchMessageReceiveJob -> job.openGroupID
-                is OpenGroupDeleteJob -> job.openGroupId
-                is TrimThreadJob -> job.openGroupId
-                is BackgroundGroupAddJob -> job.openGroupId
-                is GroupAvatarDownloadJob -> "${job.server}.${job.room}"
-                else -> null
-            }
-            if (openGroupId.isNullOrEmpty()) {
-                Log.e("OpenGroupDispatcher", "Open Group ID was null on ${job.javaClass.simpleName}")
-                handleJobFailedPermanently(job, name, NullPointerException("Open Group ID was null"))
-            } else {
-                val groupChannel = if (!openGroupChannels.containsKey(openGroupId)) {
-                    Log.d("OpenGroupDispatcher", "Creating ${openGroupId.hashCode()} channel")
-                    val newGroupChannel = Channel<Job>(UNLIMITED)
-                    launch {
-                        for (groupJob in newGroupChannel) {
-                            if (!isActive) break
-                            groupJob.process(name)
-                        }
-                    }
-                    openGroupChannels[openGroupId] = newGroupChannel
-                    newGroupChannel
-                } else {
-                    Log.d("OpenGroupDispatcher", "Re-using channel")
-                    openGroupChannels[openGroupId]!!
-                }
-                Log.d("OpenGroupDispatcher", "Sending to channel $groupChannel")
-                groupChannel.send(job)
+    private val metrics = ConcurrentHashMap<String, JobTypeCounters>()
+
+    private val rxLane = lane("rx", parallelism.rx)
+    private val txLane = lane("tx", parallelism.tx)
+    private val mediaLane = lane("media", parallelism.media)
+    private val openGroupLanes = hashMapOf<String, JobLane>()
+
+    private fun lane(name: String, parallelism: Int) =
+        JobLane(name, parallelism, scope, ::countersFor) { job, laneName -> job.process(laneName) }
+
+    private fun countersFor(job: Job) = metrics.getOrPut(job.getFactoryKey()) { JobTypeCounters() }
+
+    private fun routeToOpenGroupLane(job: Job) {
+        val openGroupId = when (job) {
+            is BatchMessageReceiveJob -> job.openGroupID
+            is OpenGroupDeleteJob -> job.openGroupId
+            is TrimThreadJob -> job.openGroupId
+            is BackgroundGroupAddJob -> job.openGroupId
+            is GroupAvatarDownloadJob -> "${job.server}.${job.room}"
+            else -> null
+        }
+        if (openGroupId.isNullOrEmpty()) {
+            Log.e("OpenGroupDispatcher", "Open Group ID was null on ${job.javaClass.simpleName}")
+            handleJobFailedPermanently(job, "openGroup", NullPointerException("Open Group ID was null"))
+        } else {
+            synchronized(openGroupLanes) {
+                openGroupLanes.getOrPut(openGroupId) {
+                    Log.d("OpenGroupDispatcher", "Creating ${openGroupId.hashCode()} lane")
+                    lane("openGroup", parallelism.openGroup)
+                }.enqueue(job, job.priority)
             }
         }
     }
 
-    private fun CoroutineScope.processWithDispatcher(
-        channel: Channel<Job>,
-        name: String,
-        asynchronous: Boolean = true
-    ) = launch {
-        for (job in channel) {
-            if (!isActive) break
-            if (asynchronous) {
-                launch {
-                    job.process(name)
-                }
-            } else {
-                job.process(name)
-            }
+    /**
+     * Closes the lane of a community that's been left, once the jobs already on it have run.
+     * [openGroupId] is the community's `server.room` id.
+     */
+    fun removeOpenGroupLane(openGroupId: String) {
+        synchronized(openGroupLanes) {
+            openGroupLanes.remove(openGroupId)
+        }?.let { lane ->
+            Log.d("OpenGroupDispatcher", "Closing ${openGroupId.hashCode()} lane")
+            lane.close()
         }
     }
 
@@ -112,41 +118,41 @@ class JobQueue : JobDelegate {
     init {
         // Process jobs
         scope.launch {
-            val rxQueue = Channel<Job>(capacity = UNLIMITED)
-            val txQueue = Channel<Job>(capacity = UNLIMITED)
-            val mediaQueue = Channel<Job>(capacity = UNLIMITED)
-            val openGroupQueue = Channel<Job>(capacity = UNLIMITED)
-
-            val receiveJob = processWithDispatcher(rxQueue, "rx", asynchronous = false)
-            val txJob = processWithDispatcher(txQueue, "tx")
-            val mediaJob = processWithDispatcher(mediaQueue, "media")
-            val openGroupJob = processWithOpenGroupDispatcher(openGroupQueue, "openGroup")
-
             while (isActive) {
                 when (val job = queue.receive()) {
+                    is MessageSendJob -> {
+                        if (job.isAwaitingGroupEncryptionKeys()) {
+                            // Waiting for the keys on the lane would hold up the sends behind it
+                            scope.launch {
+                                job.awaitGroupEncryptionKeys()
+                                txLane.enqueue(job, job.priority)
+                            }
+                        } else {
+                            txLane.enqueue(job, job.priority)
+                        }
+                    }
                     is InviteContactsJob,
                     is NotifyPNServerJob,
                     is AttachmentUploadJob,
-                    is GroupLeavingJob,
-                    is MessageSendJob -> {
-                        txQueue.send(job)
+                    is GroupLeavingJob -> {
+                        txLane.enqueue(job, job.priority)
                     }
                     is RetrieveProfileAvatarJob,
                     is AttachmentDownloadJob -> {
-                        mediaQueue.send(job)
+                        mediaLane.enqueue(job, job.priority)
                     }
                     is GroupAvatarDownloadJob,
                     is BackgroundGroupAddJob,
                     is OpenGroupDeleteJob -> {
-                        openGroupQueue.send(job)
+                        routeToOpenGroupLane(job)
                     }
                     is MessageReceiveJob, is TrimThreadJob,
                     is BatchMessageReceiveJob -> {
                         if ((job is BatchMessageReceiveJob && !job.openGroupID.isNullOrEmpty())
                             || (job is TrimThreadJob && !job.openGroupId.isNullOrEmpty())) {
-                            openGroupQueue.send(job)
+                            routeToOpenGroupLane(job)
                         } else {
-                            rxQueue.send(job)
+                            rxLane.enqueue(job, job.priority)
                         }
                     }
                     else -> {
@@ -154,18 +160,43 @@ class JobQueue : JobDelegate {
                     }
                 }
             }
-
-            // The job has been cancelled
-            receiveJob.cancel()
-            txJob.cancel()
-            mediaJob.cancel()
-            openGroupJob.cancel()
         }
     }
 
     companion object {
+        private var sharedParallelism = LaneParallelism()
+        private val sharedQueue = lazy { JobQueue(sharedParallelism) }
+
         @JvmStatic
-        val shared: JobQueue by lazy { JobQueue() }
+        val shared: JobQueue by sharedQueue
+
+        /**
+         * Sets the lanes of [shared]. Has to be called before it's first used.
+         */
+        @JvmStatic
+        fun configure(parallelism: LaneParallelism) {
+            check(!sharedQueue.isInitialized()) { "The shared job queue is already running." }
+            sharedParallelism = parallelism
+        }
+
+        private const val RETRY_JITTER = 0.2
+
+        // Lower runs first
+        private const val PRIORITY_INTERACTIVE = 0
+        private const val PRIORITY_DEFAULT = 1
+        private const val PRIORITY_BACKGROUND = 2
+
+        private val Job.priority: Int
+            get() = when (this) {
+                is MessageSendJob,
+                is AttachmentUploadJob,
+                is MessageReceiveJob,
+                is BatchMessageReceiveJob -> PRIORITY_INTERACTIVE
+                is RetrieveProfileAvatarJob,
+                is GroupAvatarDownloadJob,
+                is TrimThreadJob -> PRIORITY_BACKGROUND
+                else -> PRIORITY_DEFAULT
+            }
     }
 
     fun add(job: Job) {
@@ -177,10 +208,16 @@ class JobQueue : JobDelegate {
         // When adding multiple jobs in rapid succession, timestamps might not be good enough as a unique ID. To
         // deal with this we keep track of the number of jobs with a given timestamp and add that to the end of the
         // timestamp to make it a unique ID. We can't use a random number because we do still want to keep track
-        // of the order in which the jobs were added.
-        val currentTime = System.currentTimeMillis()
-        jobTimestampMap.putIfAbsent(currentTime, AtomicInteger())
-        job.id = currentTime.toString() + jobTimestampMap[currentTime]!!.getAndIncrement().toString()
+        // of the order in which the jobs were added. Only the latest timestamp needs a count: if the clock goes back
+        // we keep counting on the latest one so that IDs never repeat.
+        job.id = synchronized(idLock) {
+            val currentTime = System.currentTimeMillis()
+            if (currentTime > lastIdTimestamp) {
+                lastIdTimestamp = currentTime
+                idsAtLastTimestamp = 0
+            }
+            lastIdTimestamp.toString() + (idsAtLastTimestamp++).toString()
+        }
         MessagingModuleConfiguration.shared.storage.persistJob(job)
     }
 
@@ -281,7 +318,8 @@ class JobQueue : JobDelegate {
             storage.persistJob(job)
             val retryInterval = getRetryInterval(job)
             Log.i("Loki", "${job::class.simpleName} failed (id: ${job.id}); scheduling retry (failure count is ${job.failureCount}).")
-            timer.schedule(delay = retryInterval) {
+            scope.launch {
+                delay(retryInterval)
                 Log.i("Loki", "Retrying ${job::class.simpleName} (id: ${job.id}).")
                 queue.trySend(job)
             }
@@ -307,10 +345,19 @@ class JobQueue : JobDelegate {
         // try  5 delay: 16s
         // ...
         // try 11 delay: 512s
+        // Each delay is then spread by up to 20% either way, so that jobs which failed together
+        // don't all retry at the same moment
         val maxBackoff = (10 * 60).toDouble() // 10 minutes
-        return (1000 * 0.25 * min(maxBackoff, (2.0).pow(job.failureCount))).roundToLong()
+        val jitter = Random.nextDouble(1 - RETRY_JITTER, 1 + RETRY_JITTER)
+        return (1000 * 0.25 * min(maxBackoff, (2.0).pow(job.failureCount)) * jitter).roundToLong()
     }
 
+    /**
+     * A snapshot of the queue depth, wait time and run time of each type of job run so far, keyed
+     * on the job's factory key.
+     */
+    fun getMetrics(): Map<String, JobMetrics> = metrics.mapValues { (_, counters) -> counters.snapshot() }
+
     private fun Job.isSend() = this is MessageSendJob || this is AttachmentUploadJob
 
 }
\ No newline at end of file
@@ -8,6 +8,7 @@ import org.session.libsession.messaging.sending_receiving.MessageReceiver
 import org.session.libsession.messaging.sending_receiving.handle
 import org.session.libsession.messaging.utilities.Data
 import org.session.libsession.snode.utilities.await
+import org.session.libsignal.protos.SignalServiceProtos.Envelope
 import org.session.libsignal.utilities.Log
 
 class MessageReceiveJob(val data: ByteArray, val serverHash: String? = null, val openGroupMessageServerID: Long? = null, val openGroupID: String? = null) : Job {
@@ -39,7 +40,7 @@ class MessageReceiveJob(val data: ByteArray, val serverHash: String? = null, val
                 storage.getOpenGroupPublicKey(it.split(".").dropLast(1).joinToString("."))
             }
             val currentClosedGroups = storage.getAllActiveClosedGroupPublicKeys()
-            val (message, proto) = MessageReceiver.parse(this.data, this.openGroupMessageServerID, openGroupPublicKey = serverPublicKey, currentClosedGroups = currentClosedGroups)
+            val (message, proto) = MessageReceiver.parse(Envelope.parseFrom(this.data), this.openGroupMessageServerID, openGroupPublicKey = serverPublicKey, currentClosedGroups = currentClosedGroups)
             val threadId = Message.getThreadId(message, this.openGroupID, storage, false)
             message.serverHash = serverHash
             MessageReceiver.handle(message, proto, threadId ?: -1, this.openGroupID, null)
@@ -1,16 +1,14 @@
 package org.session.libsession.messaging.jobs
 
-import com.esotericsoftware.kryo.Kryo
-import com.esotericsoftware.kryo.io.Input
-import com.esotericsoftware.kryo.io.Output
+import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.channels.SendChannel
 import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.flow.filter
 import kotlinx.coroutines.flow.first
 import kotlinx.coroutines.flow.onStart
 import kotlinx.coroutines.withTimeout
+import kotlinx.coroutines.withTimeoutOrNull
 import org.session.libsession.messaging.MessagingModuleConfiguration
-import org.session.libsession.messaging.jobs.Job.Companion.MAX_BUFFER_SIZE_BYTES
 import org.session.libsession.messaging.messages.Destination
 import org.session.libsession.messaging.messages.Message
 import org.session.libsession.messaging.messages.visible.VisibleMessage
@@ -40,6 +38,47 @@ class MessageSendJob(val message: Message, val destination: Destination, val sta
         // Keys used for database storage
         private val MESSAGE_KEY = "message"
         private val DESTINATION_KEY = "destination"
+
+        private const val GROUP_KEYS_TIMEOUT_MILLS = 20_000L
+    }
+
+    /**
+     * Whether this is a message to a group whose encryption keys haven't arrived yet. If the
+     * group's configs can't be read this says no, so the job goes on to its lane and fails there
+     * on the same error, to be retried like any other failure.
+     */
+    internal fun isAwaitingGroupEncryptionKeys(): Boolean {
+        return try {
+            isMissingGroupEncryptionKeys()
+        } catch (e: Exception) {
+            Log.w(TAG, "Couldn't check the group encryption keys for job $id", e)
+            false
+        }
+    }
+
+    private fun isMissingGroupEncryptionKeys(): Boolean {
+        val destination = destination as? Destination.ClosedGroup ?: return false
+        return MessagingModuleConfiguration.shared.configFactory
+            .withGroupConfigs(AccountId(destination.publicKey)) { it.groupKeys.keys().isEmpty() }
+    }
+
+    /**
+     * Waits a while for the group's encryption keys to arrive. The [JobQueue] does this before
+     * the job takes up a place on its lane, the job itself fails rather than wait. Failing to
+     * read the group's configs ends the wait early, as the job will fail on it anyway.
+     */
+    internal suspend fun awaitGroupEncryptionKeys() {
+        val destination = destination as? Destination.ClosedGroup ?: return
+        try {
+            withTimeoutOrNull(GROUP_KEYS_TIMEOUT_MILLS) {
+                MessagingModuleConfiguration.shared.configFactory
+                    .waitForGroupEncryptionKeys(AccountId(destination.publicKey))
+            }
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: Exception) {
+            Log.w(TAG, "Couldn't wait for the group encryption keys for job $id", e)
+        }
     }
 
     override suspend fun execute(dispatcherName: String) {
@@ -84,13 +123,10 @@ class MessageSendJob(val message: Message, val destination: Destination, val sta
         val isSync = destination is Destination.Contact && destination.publicKey == sender
 
         try {
-            withTimeout(20_000L) {
-                // Shouldn't send message to group when the group has no keys available
-                if (destination is Destination.ClosedGroup) {
-                    MessagingModuleConfiguration.shared.configFactory
-                        .waitForGroupEncryptionKeys(AccountId(destination.publicKey))
-                }
+            // Shouldn't send message to group when the group has no keys available
+            if (isMissingGroupEncryptionKeys()) throw MessageSender.Error.NoKeyPair
 
+            withTimeout(20_000L) {
                 MessageSender.sendNonDurably(this@MessageSendJob.message, destination, isSync).await()
             }
 
@@ -147,18 +183,10 @@ class MessageSendJob(val message: Message, val destination: Destination, val sta
     }
 
     override fun serialize(): Data {
-        val kryo = Kryo()
-        kryo.isRegistrationRequired = false
         // Message
-        val messageOutput = Output(ByteArray(4096), MAX_BUFFER_SIZE_BYTES)
-        kryo.writeClassAndObject(messageOutput, message)
-        messageOutput.close()
-        val serializedMessage = messageOutput.toBytes()
+        val serializedMessage = JobKryo.writeClassAndObject(message)
         // Destination
-        val destinationOutput = Output(ByteArray(4096), MAX_BUFFER_SIZE_BYTES)
-        kryo.writeClassAndObject(destinationOutput, destination)
-        destinationOutput.close()
-        val serializedDestination = destinationOutput.toBytes()
+        val serializedDestination = JobKryo.writeClassAndObject(destination)
         // Serialize
         return Data.Builder()
             .putByteArray(MESSAGE_KEY, serializedMessage)
@@ -175,28 +203,22 @@ class MessageSendJob(val message: Message, val destination: Destination, val sta
         override fun create(data: Data): MessageSendJob? {
             val serializedMessage = data.getByteArray(MESSAGE_KEY)
             val serializedDestination = data.getByteArray(DESTINATION_KEY)
-            val kryo = Kryo()
-            kryo.isRegistrationRequired = false
             // Message
-            val messageInput = Input(serializedMessage)
             val message: Message
             try {
-                message = kryo.readClassAndObject(messageInput) as Message
+                message = JobKryo.readClassAndObject(serializedMessage) as Message
             } catch (e: Exception) {
                 Log.e("Loki", "Couldn't deserialize message send job.", e)
                 return null
             }
-            messageInput.close()
             // Destination
-            val destinationInput = Input(serializedDestination)
             val destination: Destination
             try {
-                destination = kryo.readClassAndObject(destinationInput) as Destination
+                destination = JobKryo.readClassAndObject(serializedDestination) as Destination
             } catch (e: Exception) {
                 Log.e("Loki", "Couldn't deserialize message send job.", e)
                 return null
             }
-            destinationInput.close()
             // Return
             return MessageSendJob(message, destination, statusCallback = null)
         }
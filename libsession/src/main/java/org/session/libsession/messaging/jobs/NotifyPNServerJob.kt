@@ -1,12 +1,8 @@
 package org.session.libsession.messaging.jobs
 
-import com.esotericsoftware.kryo.Kryo
-import com.esotericsoftware.kryo.io.Input
-import com.esotericsoftware.kryo.io.Output
 import okhttp3.MediaType.Companion.toMediaType
 import okhttp3.Request
 import okhttp3.RequestBody
-import org.session.libsession.messaging.jobs.Job.Companion.MAX_BUFFER_SIZE_BYTES
 import org.session.libsession.messaging.sending_receiving.notifications.Server
 import org.session.libsession.messaging.utilities.Data
 import org.session.libsession.snode.OnionRequestAPI
@@ -64,14 +60,8 @@ class NotifyPNServerJob(val message: SnodeMessage) : Job {
     }
 
     override fun serialize(): Data {
-        val kryo = Kryo()
-        kryo.isRegistrationRequired = false
-        val serializedMessage = ByteArray(4096)
-        val output = Output(serializedMessage, MAX_BUFFER_SIZE_BYTES)
-        kryo.writeObject(output, message)
-        output.close()
         return Data.Builder()
-            .putByteArray(MESSAGE_KEY, serializedMessage)
+            .putByteArray(MESSAGE_KEY, JobKryo.writeObject(message))
             .build();
     }
 
@@ -83,11 +73,7 @@ class NotifyPNServerJob(val message: SnodeMessage) : Job {
 
         override fun create(data: Data): NotifyPNServerJob {
             val serializedMessage = data.getByteArray(MESSAGE_KEY)
-            val kryo = Kryo()
-            kryo.isRegistrationRequired = false
-            val input = Input(serializedMessage)
-            val message = kryo.readObject(input, SnodeMessage::class.java)
-            input.close()
+            val message = JobKryo.readObject(serializedMessage, SnodeMessage::class.java)
             return NotifyPNServerJob(message)
         }
     }
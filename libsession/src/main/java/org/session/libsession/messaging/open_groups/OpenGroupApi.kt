@@ -26,6 +26,7 @@ import org.session.libsession.snode.OnionResponse
 import org.session.libsession.snode.SnodeAPI
 import org.session.libsession.snode.utilities.asyncPromise
 import org.session.libsession.snode.utilities.await
+import org.session.libsession.utilities.RangedDownload
 import org.session.libsession.utilities.TextSecurePreferences
 import org.session.libsignal.utilities.AccountId
 import org.session.libsignal.utilities.Base64.decode
@@ -356,7 +357,7 @@ object OpenGroupApi {
                 .plus("/${request.endpoint.value}".toByteArray())
                 .plus(bodyHash)
             if (serverCapabilities.isEmpty() || serverCapabilities.contains(Capability.BLIND.name.lowercase())) {
-                SodiumUtilities.blindedKeyPair(publicKey, ed25519KeyPair)?.let { keyPair ->
+                MessagingModuleConfiguration.shared.storage.getUserBlindedKeyPair(publicKey)?.let { keyPair ->
                     pubKey = AccountId(
                         IdPrefix.BLINDED,
                         keyPair.publicKey.asBytes
@@ -454,6 +455,17 @@ object OpenGroupApi {
         )
         return getResponseBody(request)
     }
+
+    fun downloadRange(fileId: String, room: String, server: String, range: LongRange): Promise<RangedDownload.RangeResponse, Exception> {
+        val request = Request(
+            verb = GET,
+            room = room,
+            server = server,
+            endpoint = Endpoint.RoomFileIndividual(room, fileId),
+            headers = mapOf(RangedDownload.rangeHeader(range))
+        )
+        return send(request).map { RangedDownload.RangeResponse.fromOnionResponse(it) }
+    }
     // endregion
 
     // region Sending
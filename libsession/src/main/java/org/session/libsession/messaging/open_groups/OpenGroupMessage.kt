@@ -55,7 +55,7 @@ data class OpenGroupMessage(
         val serverCapabilities = MessagingModuleConfiguration.shared.storage.getServerCapabilities(server)
         val signature = when {
             serverCapabilities.contains(Capability.BLIND.name.lowercase()) -> {
-                val blindedKeyPair = SodiumUtilities.blindedKeyPair(openGroup.publicKey, userEdKeyPair) ?: return null
+                val blindedKeyPair = MessagingModuleConfiguration.shared.storage.getUserBlindedKeyPair(openGroup.publicKey) ?: return null
                 SodiumUtilities.sogsSignature(
                     decode(base64EncodedData),
                     userEdKeyPair.secretKey.asBytes,
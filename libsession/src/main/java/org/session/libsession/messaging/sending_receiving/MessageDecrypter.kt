@@ -2,6 +2,7 @@ package org.session.libsession.messaging.sending_receiving
 
 import com.goterl.lazysodium.interfaces.Box
 import com.goterl.lazysodium.interfaces.Sign
+import com.goterl.lazysodium.utils.KeyPair
 import org.session.libsession.messaging.MessagingModuleConfiguration
 import org.session.libsession.messaging.sending_receiving.MessageReceiver.Error
 import org.session.libsession.messaging.utilities.SodiumUtilities
@@ -64,11 +65,12 @@ object MessageDecrypter {
         message: ByteArray,
         isOutgoing: Boolean,
         otherBlindedPublicKey: String,
-        serverPublicKey: String
+        serverPublicKey: String,
+        userEdKeyPair: KeyPair = MessagingModuleConfiguration.shared.storage.getUserED25519KeyPair() ?: throw Error.NoUserED25519KeyPair,
+        blindedKeyPair: KeyPair? = MessagingModuleConfiguration.shared.storage.getUserBlindedKeyPair(serverPublicKey),
     ): Pair<ByteArray, String> {
         if (message.size < Box.NONCEBYTES + 2) throw Error.DecryptionFailed
-        val userEdKeyPair = MessagingModuleConfiguration.shared.storage.getUserED25519KeyPair() ?: throw Error.NoUserED25519KeyPair
-        val blindedKeyPair = SodiumUtilities.blindedKeyPair(serverPublicKey, userEdKeyPair) ?: throw Error.DecryptionFailed
+        blindedKeyPair ?: throw Error.DecryptionFailed
         // Calculate the shared encryption key, receiving from A to B
         val otherKeyBytes = Hex.fromStringCondensed(otherBlindedPublicKey.removingIdPrefixIfNeeded())
         val kA = if (isOutgoing) blindedKeyPair.publicKey.asBytes else otherKeyBytes
@@ -55,7 +55,7 @@ object MessageEncrypter {
         if (IdPrefix.fromValue(recipientBlindedId) != IdPrefix.BLINDED) throw Error.SigningFailed
         val userEdKeyPair =
             MessagingModuleConfiguration.shared.storage.getUserED25519KeyPair() ?: throw Error.NoUserED25519KeyPair
-        val blindedKeyPair = SodiumUtilities.blindedKeyPair(serverPublicKey, userEdKeyPair) ?: throw Error.SigningFailed
+        val blindedKeyPair = MessagingModuleConfiguration.shared.storage.getUserBlindedKeyPair(serverPublicKey) ?: throw Error.SigningFailed
         val recipientBlindedPublicKey = Hex.fromStringCondensed(recipientBlindedId.removingIdPrefixIfNeeded())
 
         // Calculate the shared encryption key, sending from A to B
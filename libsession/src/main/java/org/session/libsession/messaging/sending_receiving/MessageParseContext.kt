@@ -0,0 +1,66 @@
+package org.session.libsession.messaging.sending_receiving
+
+import com.goterl.lazysodium.utils.KeyPair
+import org.session.libsession.database.StorageProtocol
+import org.session.libsignal.crypto.ecc.ECKeyPair
+import org.session.libsignal.utilities.AccountId
+import org.session.libsignal.utilities.IdPrefix
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * The key material and lookups [MessageReceiver.parse] needs for every message, fetched at most
+ * once and shared by all the messages of a batch. Safe to use from multiple threads.
+ *
+ * As everything is cached, a context should only live as long as the batch it was created for.
+ */
+class MessageParseContext(
+    private val storage: StorageProtocol,
+    currentClosedGroups: Set<String>?,
+) {
+    val currentClosedGroups: Set<String> = currentClosedGroups.orEmpty()
+
+    val userPublicKey: String? by lazy { storage.getUserPublicKey() }
+    val userX25519KeyPair: ECKeyPair by lazy { storage.getUserX25519KeyPair() }
+    val userEd25519KeyPair: KeyPair? by lazy { storage.getUserED25519KeyPair() }
+
+    private val blockedContacts: Set<String> by lazy {
+        storage.blockedContacts().mapTo(hashSetOf()) { it.address.serialize() }
+    }
+
+    // ConcurrentHashMap doesn't allow null values, so they're wrapped
+    private class Cached<T>(val value: T?)
+
+    private val blindedKeyPairs = ConcurrentHashMap<String, Cached<KeyPair>>()
+    private val legacyGroupKeyPairs = ConcurrentHashMap<String, Cached<List<ECKeyPair>>>()
+
+    fun isBlocked(publicKey: String): Boolean = publicKey in blockedContacts
+
+    fun blindedKeyPair(serverPublicKey: String): KeyPair? {
+        return blindedKeyPairs.getOrPut(serverPublicKey) {
+            Cached(storage.getUserBlindedKeyPair(serverPublicKey))
+        }.value
+    }
+
+    /**
+     * The user's blinded account ID on the community server with the given public key.
+     */
+    fun blindedAccountId(serverPublicKey: String): String? {
+        return blindedKeyPair(serverPublicKey)?.let { AccountId(IdPrefix.BLINDED, it.publicKey.asBytes).hexString }
+    }
+
+    /**
+     * The encryption key pairs of a legacy closed group, oldest first, or null if it isn't a
+     * legacy closed group.
+     */
+    fun legacyGroupEncryptionKeyPairs(groupPublicKey: String): List<ECKeyPair>? {
+        return legacyGroupKeyPairs.getOrPut(groupPublicKey) {
+            Cached(
+                if (storage.isLegacyClosedGroup(groupPublicKey)) {
+                    storage.getClosedGroupEncryptionKeyPairs(groupPublicKey).toList()
+                } else {
+                    null
+                }
+            )
+        }.value
+    }
+}
@@ -14,7 +14,6 @@ import org.session.libsession.messaging.messages.control.SharedConfigurationMess
 import org.session.libsession.messaging.messages.control.TypingIndicator
 import org.session.libsession.messaging.messages.control.UnsendRequest
 import org.session.libsession.messaging.messages.visible.VisibleMessage
-import org.session.libsession.messaging.utilities.SodiumUtilities
 import org.session.libsession.snode.SnodeAPI
 import org.session.libsignal.crypto.PushTransportDetails
 import org.session.libsignal.protos.SignalServiceProtos
@@ -54,22 +53,45 @@ object MessageReceiver {
     }
 
     internal fun parse(
-        data: ByteArray,
+        envelope: Envelope,
         openGroupServerID: Long?,
         isOutgoing: Boolean? = null,
         otherBlindedPublicKey: String? = null,
         openGroupPublicKey: String? = null,
         currentClosedGroups: Set<String>?,
         closedGroupSessionId: String? = null,
+        context: MessageParseContext = MessageParseContext(MessagingModuleConfiguration.shared.storage, currentClosedGroups),
     ): Pair<Message, SignalServiceProtos.Content> {
-        val storage = MessagingModuleConfiguration.shared.storage
-        val userPublicKey = storage.getUserPublicKey()
+        return decryptAndParse(
+            envelope = envelope,
+            openGroupServerID = openGroupServerID,
+            isOutgoing = isOutgoing,
+            otherBlindedPublicKey = otherBlindedPublicKey,
+            openGroupPublicKey = openGroupPublicKey,
+            closedGroupSessionId = closedGroupSessionId,
+            context = context
+        ).also { (message, _) -> checkAndRecordReceived(message) }
+    }
+
+    /**
+     * Decrypts, parses and validates a message without checking whether it was already received,
+     * so it can be called concurrently for the messages of a batch, as long as
+     * [checkAndRecordReceived] is then called for each of them in order.
+     */
+    internal fun decryptAndParse(
+        envelope: Envelope,
+        openGroupServerID: Long?,
+        isOutgoing: Boolean? = null,
+        otherBlindedPublicKey: String? = null,
+        openGroupPublicKey: String? = null,
+        closedGroupSessionId: String? = null,
+        context: MessageParseContext,
+    ): Pair<Message, SignalServiceProtos.Content> {
+        val userPublicKey = context.userPublicKey
         val isOpenGroupMessage = (openGroupServerID != null)
         var plaintext: ByteArray? = null
         var sender: String? = null
         var groupPublicKey: String? = null
-        // Parse the envelope
-        val envelope = Envelope.parseFrom(data) ?: throw Error.InvalidMessage
         // Decrypt the contents
         val envelopeContent = envelope.content ?: run {
             throw Error.NoData
@@ -88,13 +110,14 @@ object MessageReceiver {
                             envelopeContent.toByteArray(),
                             isOutgoing ?: false,
                             otherBlindedPublicKey,
-                            openGroupPublicKey
+                            openGroupPublicKey,
+                            context.userEd25519KeyPair ?: throw Error.NoUserED25519KeyPair,
+                            context.blindedKeyPair(openGroupPublicKey)
                         )
                         plaintext = decryptionResult.first
                         sender = decryptionResult.second
                     } else {
-                        val userX25519KeyPair = MessagingModuleConfiguration.shared.storage.getUserX25519KeyPair()
-                        val decryptionResult = MessageDecrypter.decrypt(envelopeContent.toByteArray(), userX25519KeyPair)
+                        val decryptionResult = MessageDecrypter.decrypt(envelopeContent.toByteArray(), context.userX25519KeyPair)
                         plaintext = decryptionResult.first
                         sender = decryptionResult.second
                     }
@@ -107,10 +130,9 @@ object MessageReceiver {
                         sender = envelope.source
                         groupPublicKey = hexEncodedGroupPublicKey
                     } else {
-                        if (!MessagingModuleConfiguration.shared.storage.isLegacyClosedGroup(hexEncodedGroupPublicKey)) {
-                            throw Error.InvalidGroupPublicKey
-                        }
-                        val encryptionKeyPairs = MessagingModuleConfiguration.shared.storage.getClosedGroupEncryptionKeyPairs(hexEncodedGroupPublicKey)
+                        val encryptionKeyPairs = context.legacyGroupEncryptionKeyPairs(hexEncodedGroupPublicKey)
+                            ?.toMutableList()
+                            ?: throw Error.InvalidGroupPublicKey
                         if (encryptionKeyPairs.isEmpty()) {
                             throw Error.NoGroupKeyPair
                         }
@@ -171,10 +193,10 @@ object MessageReceiver {
             GroupUpdated.fromProto(proto) ?:
             VisibleMessage.fromProto(proto) ?: throw Error.UnknownMessage
         // Don't process the envelope any further if the sender is blocked
-        if (isBlocked(sender!!) && message.shouldDiscardIfBlocked()) {
+        if (context.isBlocked(sender!!) && message.shouldDiscardIfBlocked()) {
             throw Error.SenderBlocked
         }
-        val isUserBlindedSender = sender == openGroupPublicKey?.let { SodiumUtilities.blindedKeyPair(it, MessagingModuleConfiguration.shared.storage.getUserED25519KeyPair()!!) }?.let { AccountId(IdPrefix.BLINDED, it.publicKey.asBytes).hexString }
+        val isUserBlindedSender = sender == openGroupPublicKey?.let(context::blindedAccountId)
         val isUserSender = sender == userPublicKey
 
         if (isUserSender || isUserBlindedSender) {
@@ -202,9 +224,20 @@ object MessageReceiver {
         // If the message failed to process the first time around we retry it later (if the error is retryable). In this case the timestamp
         // will already be in the database but we don't want to treat the message as a duplicate. The isRetry flag is a simple workaround
         // for this issue.
-        if (groupPublicKey != null && groupPublicKey !in (currentClosedGroups ?: emptySet()) && groupPublicKey?.startsWith(IdPrefix.GROUP.value) != true) {
+        if (groupPublicKey != null && groupPublicKey !in context.currentClosedGroups && groupPublicKey?.startsWith(IdPrefix.GROUP.value) != true) {
             throw Error.NoGroupThread
         }
+        // Return
+        return Pair(message, proto)
+    }
+
+    /**
+     * Throws [Error.DuplicateMessage] if a message with the same timestamp was already received,
+     * otherwise records it as received.
+     */
+    internal fun checkAndRecordReceived(message: Message) {
+        val storage = MessagingModuleConfiguration.shared.storage
+        val timestamp = message.sentTimestamp!!
         if ((message is LegacyGroupControlMessage && message.kind is LegacyGroupControlMessage.Kind.New) || message is SharedConfigurationMessage) {
             // Allow duplicates in this case to avoid the following situation:
             // • The app performed a background poll or received a push notification
@@ -213,11 +246,9 @@ object MessageReceiver {
             // • The user doesn't see the new closed group
             // also allow shared configuration messages to be duplicates since we track hashes separately use seqno for conflict resolution
         } else {
-            if (storage.isDuplicateMessage(envelope.timestamp)) { throw Error.DuplicateMessage }
-            storage.addReceivedMessageTimestamp(envelope.timestamp)
+            if (storage.isDuplicateMessage(timestamp)) { throw Error.DuplicateMessage }
+            storage.addReceivedMessageTimestamp(timestamp)
         }
-        // Return
-        return Pair(message, proto)
     }
 
 }
\ No newline at end of file
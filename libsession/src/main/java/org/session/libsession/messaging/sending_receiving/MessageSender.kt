@@ -30,7 +30,6 @@ import org.session.libsession.messaging.open_groups.OpenGroupApi
 import org.session.libsession.messaging.open_groups.OpenGroupApi.Capability
 import org.session.libsession.messaging.open_groups.OpenGroupMessage
 import org.session.libsession.messaging.utilities.MessageWrapper
-import org.session.libsession.messaging.utilities.SodiumUtilities
 import org.session.libsession.snode.SnodeAPI
 import org.session.libsession.snode.SnodeAPI.nowWithOffset
 import org.session.libsession.snode.SnodeMessage
@@ -339,17 +338,17 @@ object MessageSender {
             is Destination.OpenGroup -> {
                 serverCapabilities = storage.getServerCapabilities(destination.server)
                 storage.getOpenGroup(destination.roomToken, destination.server)?.let {
-                    blindedPublicKey = SodiumUtilities.blindedKeyPair(it.publicKey, userEdKeyPair)?.publicKey?.asBytes
+                    blindedPublicKey = storage.getUserBlindedKeyPair(it.publicKey)?.publicKey?.asBytes
                 }
             }
             is Destination.OpenGroupInbox -> {
                 serverCapabilities = storage.getServerCapabilities(destination.server)
-                blindedPublicKey = SodiumUtilities.blindedKeyPair(destination.serverPublicKey, userEdKeyPair)?.publicKey?.asBytes
+                blindedPublicKey = storage.getUserBlindedKeyPair(destination.serverPublicKey)?.publicKey?.asBytes
             }
             is Destination.LegacyOpenGroup -> {
                 serverCapabilities = storage.getServerCapabilities(destination.server)
                 storage.getOpenGroup(destination.roomToken, destination.server)?.let {
-                    blindedPublicKey = SodiumUtilities.blindedKeyPair(it.publicKey, userEdKeyPair)?.publicKey?.asBytes
+                    blindedPublicKey = storage.getUserBlindedKeyPair(it.publicKey)?.publicKey?.asBytes
                 }
             }
             else -> {}
@@ -265,7 +265,7 @@ private fun handleConfigurationMessage(message: ConfigurationMessage) {
     storage.addContacts(message.contacts)
 }
 
-fun MessageReceiver.handleUnsendRequest(message: UnsendRequest): Long? {
+fun MessageReceiver.handleUnsendRequest(message: UnsendRequest, updateNotification: Boolean = true): Long? {
     val userPublicKey = MessagingModuleConfiguration.shared.storage.getUserPublicKey()
     val storage = MessagingModuleConfiguration.shared.storage
     val userAuth = storage.userAuth ?: return null
@@ -323,7 +323,7 @@ fun MessageReceiver.handleUnsendRequest(message: UnsendRequest): Long? {
     storage.deleteReactions(messageId = messageIdToDelete, mms = mms)
 
     // update notification
-    if (!messageDataProvider.isOutgoingMessage(timestamp)) {
+    if (updateNotification && !messageDataProvider.isOutgoingMessage(timestamp)) {
         SSKEnvironment.shared.notificationManager.updateNotification(context)
     }
 
@@ -369,7 +369,7 @@ fun MessageReceiver.handleVisibleMessage(
     val threadRecipient = storage.getRecipientForThread(threadID)
     val userBlindedKey = openGroupID?.let {
         val openGroup = storage.getOpenGroup(threadID) ?: return@let null
-        val blindedKey = SodiumUtilities.blindedKeyPair(openGroup.publicKey, MessagingModuleConfiguration.shared.storage.getUserED25519KeyPair()!!) ?: return@let null
+        val blindedKey = storage.getUserBlindedKeyPair(openGroup.publicKey) ?: return@let null
         AccountId(
             IdPrefix.BLINDED, blindedKey.publicKey.asBytes
         ).hexString
@@ -527,7 +527,7 @@ fun MessageReceiver.handleOpenGroupReactions(
     val userPublicKey = storage.getUserPublicKey()!!
     val openGroup = storage.getOpenGroup(threadId)
     val blindedPublicKey = openGroup?.publicKey?.let { serverPublicKey ->
-        SodiumUtilities.blindedKeyPair(serverPublicKey, MessagingModuleConfiguration.shared.storage.getUserED25519KeyPair()!!)
+        storage.getUserBlindedKeyPair(serverPublicKey)
             ?.let { AccountId(IdPrefix.BLINDED, it.publicKey.asBytes).hexString }
     }
     for ((emoji, reaction) in reactions) {
@@ -12,6 +12,11 @@ interface MessageNotifier {
     fun updateNotification(context: Context)
     fun updateNotification(context: Context, threadId: Long)
     fun updateNotification(context: Context, threadId: Long, signal: Boolean)
+    /**
+     * Same as calling [updateNotification] for each of the threads, but only rebuilds the
+     * notifications once.
+     */
+    fun updateNotification(context: Context, threadIds: Collection<Long>)
     fun updateNotification(context: Context, signal: Boolean, reminderCount: Int)
     fun clearReminder(context: Context)
 }
@@ -148,7 +148,7 @@ class LegacyClosedGroupPollerV2(
             if (!isPolling(groupPublicKey)) { return@success }
 
             val parameters = envelopes.map { (envelope, serverHash) ->
-                MessageReceiveParameters(envelope.toByteArray(), serverHash = serverHash)
+                MessageReceiveParameters(envelope, serverHash = serverHash)
             }
             parameters.chunked(BatchMessageReceiveJob.BATCH_DEFAULT_NUMBER).iterator().forEach { chunk ->
                 val job = BatchMessageReceiveJob(chunk)
@@ -21,30 +21,40 @@ import org.session.libsession.messaging.open_groups.GroupMemberRole
 import org.session.libsession.messaging.open_groups.OpenGroup
 import org.session.libsession.messaging.open_groups.OpenGroupApi
 import org.session.libsession.messaging.open_groups.OpenGroupMessage
+import org.session.libsession.messaging.sending_receiving.MessageParseContext
 import org.session.libsession.messaging.sending_receiving.MessageReceiver
 import org.session.libsession.messaging.sending_receiving.handle
 import org.session.libsession.messaging.sending_receiving.handleOpenGroupReactions
 import org.session.libsession.snode.OnionRequestAPI
+import org.session.libsession.snode.utilities.await
 import org.session.libsession.snode.utilities.successBackground
 import org.session.libsession.utilities.Address
 import org.session.libsession.utilities.GroupUtil
 import org.session.libsignal.protos.SignalServiceProtos
 import org.session.libsignal.utilities.Base64
 import org.session.libsignal.utilities.Log
-import java.util.UUID
-import java.util.concurrent.ScheduledExecutorService
-import java.util.concurrent.ScheduledFuture
 import java.util.concurrent.TimeUnit
 
-class OpenGroupPoller(private val server: String, private val executorService: ScheduledExecutorService?) {
+/**
+ * @param pollScheduler The scheduler that periodically polls this server once started, or null
+ * if the poller is only used to [poll] on demand.
+ */
+class OpenGroupPoller(private val server: String, private val pollScheduler: PollScheduler?) {
     var hasStarted = false
     var isCaughtUp = false
     var secondToLastJob: MessageReceiveJob? = null
-    private var future: ScheduledFuture<*>? = null
-    @Volatile private var runId: UUID = UUID.randomUUID()
+    private val pollTargetId = "community:$server"
+    // Set when the server asked for blinding, so that the next poll is a retry with updated capabilities
+    @Volatile private var isPostCapabilitiesRetry = false
 
     companion object {
-        private const val pollInterval: Long = 4000L
+        // Poll every 4 seconds while the server has activity, slowing down to 12 seconds when it's
+        // quiet and up to 20 seconds while polls are failing
+        private val pollIntervalPolicy = PollScheduler.IntervalPolicy(
+            minIntervalMills = 4000L,
+            maxQuietIntervalMills = 12000L,
+            maxFailureIntervalMills = 20000L,
+        )
         const val maxInactivityPeriod = 14 * 24 * 60 * 60 * 1000
 
         public fun handleRoomPollInfo(
@@ -135,17 +145,25 @@ class OpenGroupPoller(private val server: String, private val executorService: S
     fun startIfNeeded() {
         if (hasStarted) { return }
         hasStarted = true
-        runId = UUID.randomUUID()
-        future = executorService?.schedule(::poll, 0, TimeUnit.MILLISECONDS)
+        isPostCapabilitiesRetry = false
+        pollScheduler?.register(PollScheduler.PollTarget(pollTargetId, pollIntervalPolicy, ::pollFromScheduler))
     }
 
     fun stop() {
-        future?.cancel(false)
+        pollScheduler?.unregister(pollTargetId)
         hasStarted = false
     }
 
-    fun poll(isPostCapabilitiesRetry: Boolean = false): Promise<Unit, Exception> {
-        val currentRunId = runId
+    private suspend fun pollFromScheduler(): Int {
+        val isRetry = isPostCapabilitiesRetry
+        isPostCapabilitiesRetry = false
+        return poll(isRetry).await()
+    }
+
+    /**
+     * @return the number of messages received
+     */
+    fun poll(isPostCapabilitiesRetry: Boolean = false): Promise<Int, Exception> {
         val storage = MessagingModuleConfiguration.shared.storage
         val rooms = storage.getAllOpenGroups().values.filter { it.server == server }.map { it.room }
 
@@ -176,30 +194,26 @@ class OpenGroupPoller(private val server: String, private val executorService: S
                     isCaughtUp = true
                 }
             }
-
-            // Only poll again if it's the same poller run
-            if (currentRunId == runId) {
-                future = executorService?.schedule(this@OpenGroupPoller::poll, pollInterval, TimeUnit.MILLISECONDS)
-            }
         }.fail {
-            updateCapabilitiesIfNeeded(isPostCapabilitiesRetry, currentRunId, it)
-        }.map { }
+            updateCapabilitiesIfNeeded(isPostCapabilitiesRetry, it)
+        }.map { responses ->
+            // Handling happens in the background, so count what came back rather than what was handled
+            responses.sumOf { (it.body as? List<*>)?.size ?: 0 }
+        }
     }
 
-    private fun updateCapabilitiesIfNeeded(isPostCapabilitiesRetry: Boolean, currentRunId: UUID, exception: Exception) {
+    private fun updateCapabilitiesIfNeeded(isPostCapabilitiesRetry: Boolean, exception: Exception) {
         if (exception is OnionRequestAPI.HTTPRequestFailedBlindingRequiredException) {
             if (!isPostCapabilitiesRetry) {
                 OpenGroupApi.getCapabilities(server).map {
                     handleCapabilities(server, it)
                 }
 
-                // Only poll again if it's the same poller run
-                if (currentRunId == runId) {
-                    future = executorService?.schedule({ poll(isPostCapabilitiesRetry = true) }, pollInterval, TimeUnit.MILLISECONDS)
-                }
+                this.isPostCapabilitiesRetry = true
+            } else {
+                // Updating the capabilities didn't help, so don't keep polling
+                pollScheduler?.unregister(pollTargetId)
             }
-        } else if (currentRunId == runId) {
-            future = executorService?.schedule(this@OpenGroupPoller::poll, pollInterval, TimeUnit.MILLISECONDS)
         }
     }
 
@@ -243,6 +257,7 @@ class OpenGroupPoller(private val server: String, private val executorService: S
         val sortedMessages = messages.sortedBy { it.id }
         val lastMessageId = sortedMessages.last().id
         val mappingCache = mutableMapOf<String, BlindedIdMapping>()
+        val parseContext = MessageParseContext(storage, emptySet()) // this shouldn't need closed groups as we are polling open groups here
         if (fromOutbox) {
             storage.setLastOutboxMessageId(server, lastMessageId)
         } else {
@@ -258,12 +273,13 @@ class OpenGroupPoller(private val server: String, private val executorService: S
                 .build()
             try {
                 val (message, proto) = MessageReceiver.parse(
-                    envelope.toByteArray(),
+                    envelope,
                     null,
                     fromOutbox,
                     if (fromOutbox) it.recipient else it.sender,
                     serverPublicKey,
-                    emptySet() // this shouldn't be necessary as we are polling open groups here
+                    parseContext.currentClosedGroups,
+                    context = parseContext
                 )
                 if (fromOutbox) {
                     val mapping = mappingCache[it.recipient] ?: storage.getOrCreateBlindedIdMapping(
@@ -316,7 +332,7 @@ class OpenGroupPoller(private val server: String, private val executorService: S
 
         envelopes.chunked(BatchMessageReceiveJob.BATCH_DEFAULT_NUMBER).forEach { list ->
             val parameters = list.map { (serverId, message, reactions) ->
-                MessageReceiveParameters(message.toByteArray(), openGroupMessageServerID = serverId, reactions = reactions)
+                MessageReceiveParameters(message, openGroupMessageServerID = serverId, reactions = reactions)
             }
             JobQueue.shared.add(BatchMessageReceiveJob(parameters, openGroupID))
         }
@@ -0,0 +1,256 @@
+package org.session.libsession.messaging.sending_receiving.pollers
+
+import android.os.SystemClock
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.currentCoroutineContext
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.update
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withTimeoutOrNull
+import org.session.libsignal.utilities.Log
+import kotlin.math.min
+import kotlin.math.roundToLong
+
+private const val TAG = "PollScheduler"
+
+/**
+ * A single scheduler for all the periodic pollers (the user's swarm, groups and communities).
+ *
+ * Instead of each poller running its own timer, pollers register a [PollTarget] here and the
+ * scheduler decides when each one runs:
+ *
+ * - All targets that are due (or about to become due within [ALIGNMENT_WINDOW_MILLS]) are started
+ *   in the same tick, so that their snode requests land in the same window of the
+ *   [org.session.libsession.snode.SnodeRequestBatcher] and go out as a single batch request
+ *   whenever they target the same snode, even for different accounts.
+ * - A target is never polled again while its previous poll is still running, even if it was
+ *   registered again in the meantime.
+ * - Each target has an adaptive interval: a poll that yields messages resets it to the target's
+ *   minimum interval, a quiet poll grows it towards the maximum, and a failed poll backs off.
+ *
+ * Per-target latency and message yield are published through [metrics].
+ */
+class PollScheduler(
+    private val scope: CoroutineScope = CoroutineScope(SupervisorJob() + Dispatchers.Default)
+) {
+    /**
+     * @param minIntervalMills The interval used while the target is receiving messages.
+     * @param maxQuietIntervalMills The longest interval a quiet target backs off to.
+     * @param maxFailureIntervalMills The longest interval a failing target backs off to.
+     * @param quietBackoffMultiplier How much the interval grows after each poll without messages.
+     * @param failureBackoffMultiplier How much the interval grows after each failed poll.
+     */
+    data class IntervalPolicy(
+        val minIntervalMills: Long,
+        val maxQuietIntervalMills: Long,
+        val maxFailureIntervalMills: Long = maxQuietIntervalMills,
+        val quietBackoffMultiplier: Float = 1.25f,
+        val failureBackoffMultiplier: Float = 1.5f,
+    ) {
+        init {
+            require(minIntervalMills in 1..maxQuietIntervalMills && minIntervalMills <= maxFailureIntervalMills) {
+                "Invalid poll intervals"
+            }
+        }
+
+        fun nextInterval(current: Long, messageCount: Int?): Long = when {
+            messageCount == null -> (current * failureBackoffMultiplier).roundToLong().coerceAtMost(maxFailureIntervalMills)
+            messageCount > 0 -> minIntervalMills
+            else -> (current * quietBackoffMultiplier).roundToLong().coerceAtMost(maxQuietIntervalMills)
+        }.coerceAtLeast(minIntervalMills)
+    }
+
+    /**
+     * Something that can be polled.
+     *
+     * @property poll Polls once and returns the number of new messages received. Exceptions are
+     * recorded as a failed poll, the target stays registered until [unregister] is called.
+     */
+    class PollTarget(
+        val id: String,
+        val policy: IntervalPolicy,
+        val poll: suspend () -> Int,
+    )
+
+    data class PollTargetMetrics(
+        val pollCount: Long = 0,
+        val failureCount: Long = 0,
+        val messageCount: Long = 0,
+        val lastMessageCount: Int = 0,
+        val lastLatencyMills: Long = 0,
+        val averageLatencyMills: Long = 0,
+        val currentIntervalMills: Long = 0,
+    ) {
+        val messagesPerPoll: Float
+            get() = if (pollCount == 0L) 0f else messageCount.toFloat() / pollCount
+    }
+
+    private class Entry(
+        val target: PollTarget,
+        var intervalMills: Long,
+        var nextPollAt: Long,
+        // Callbacks waiting for a poll that starts after they were added
+        val waiters: MutableList<Channel<Result<Int>>> = mutableListOf(),
+        // Callbacks waiting for the poll in progress
+        var activeWaiters: List<Channel<Result<Int>>> = emptyList(),
+    )
+
+    private val lock = Any()
+    private val entries = hashMapOf<String, Entry>()
+    // IDs of the targets with a poll in progress, which outlive their entry if it's replaced
+    private val pollingIds = hashSetOf<String>()
+    private val wakeUp = Channel<Unit>(Channel.CONFLATED)
+
+    private val mutableMetrics = MutableStateFlow<Map<String, PollTargetMetrics>>(emptyMap())
+    val metrics: StateFlow<Map<String, PollTargetMetrics>> get() = mutableMetrics
+
+    init {
+        scope.launch {
+            while (true) {
+                val waitMills = startDueTargets()
+                withTimeoutOrNull(waitMills) { wakeUp.receive() }
+            }
+        }
+    }
+
+    /**
+     * Register a target, replacing any existing target with the same ID. The first poll happens
+     * straight away, or as soon as the replaced target's poll in progress has completed.
+     */
+    fun register(target: PollTarget) {
+        synchronized(lock) {
+            entries.remove(target.id)?.closeWaiters()
+            entries[target.id] = Entry(
+                target = target,
+                intervalMills = target.policy.minIntervalMills,
+                nextPollAt = SystemClock.elapsedRealtime(),
+            )
+        }
+        Log.d(TAG, "Registered ${target.id}")
+        wakeUp.trySend(Unit)
+    }
+
+    fun unregister(id: String) {
+        val removed = synchronized(lock) { entries.remove(id) } ?: return
+        removed.closeWaiters()
+        mutableMetrics.update { it - id }
+        Log.d(TAG, "Unregistered $id")
+    }
+
+    fun isRegistered(id: String): Boolean = synchronized(lock) { id in entries }
+
+    /**
+     * Poll the given target as soon as possible (along with any other targets that are nearly due),
+     * and wait for the result of that poll. It's guaranteed that the poll starts after this call,
+     * but concurrent calls may share the same poll.
+     *
+     * @return the number of messages received, or null if the target isn't registered or was
+     * unregistered before the poll completed.
+     */
+    suspend fun pollNow(id: String): Result<Int>? {
+        val callback = Channel<Result<Int>>(capacity = 1)
+        synchronized(lock) {
+            val entry = entries[id] ?: return null
+            entry.waiters += callback
+            // If a poll is in progress, the next one is brought forward once it completes
+            entry.nextPollAt = SystemClock.elapsedRealtime()
+        }
+        wakeUp.trySend(Unit)
+        return callback.receiveCatching().getOrNull()
+    }
+
+    /**
+     * Start every target that is due, returning how long to wait until the next one is.
+     */
+    private fun startDueTargets(): Long {
+        val now = SystemClock.elapsedRealtime()
+        val due = mutableListOf<Entry>()
+        var nextDue = Long.MAX_VALUE
+
+        synchronized(lock) {
+            for (entry in entries.values) {
+                // The poll in progress wakes the scheduler up again once it completes
+                if (entry.target.id in pollingIds) continue
+                if (entry.nextPollAt <= now + ALIGNMENT_WINDOW_MILLS) {
+                    pollingIds += entry.target.id
+                    entry.activeWaiters = entry.waiters.toList()
+                    entry.waiters.clear()
+                    due += entry
+                } else {
+                    nextDue = min(nextDue, entry.nextPollAt)
+                }
+            }
+        }
+
+        for (entry in due) {
+            scope.launch { runPoll(entry) }
+        }
+
+        return if (nextDue == Long.MAX_VALUE) IDLE_WAIT_MILLS else (nextDue - ALIGNMENT_WINDOW_MILLS - now).coerceAtLeast(0)
+    }
+
+    private suspend fun runPoll(entry: Entry) {
+        val target = entry.target
+        val startedAt = SystemClock.elapsedRealtime()
+        val result = try {
+            Result.success(target.poll())
+        } catch (e: Exception) {
+            // A cancellation coming from the target itself is just a failed poll, only stop if
+            // the scheduler is being cancelled
+            currentCoroutineContext().ensureActive()
+            Log.w(TAG, "Error polling ${target.id}", e)
+            Result.failure(e)
+        }
+        val finishedAt = SystemClock.elapsedRealtime()
+        val latency = finishedAt - startedAt
+
+        val (waiters, isRegistered) = synchronized(lock) {
+            pollingIds -= target.id
+            entry.intervalMills = target.policy.nextInterval(entry.intervalMills, result.getOrNull())
+            entry.nextPollAt = if (entry.waiters.isEmpty()) finishedAt + entry.intervalMills else finishedAt
+            val waiters = entry.activeWaiters
+            entry.activeWaiters = emptyList()
+            waiters to (entries[target.id] === entry)
+        }
+
+        if (isRegistered) {
+            mutableMetrics.update { metrics ->
+                val previous = metrics[target.id] ?: PollTargetMetrics()
+                val messages = result.getOrNull() ?: 0
+                metrics + (target.id to previous.copy(
+                    pollCount = previous.pollCount + 1,
+                    failureCount = previous.failureCount + if (result.isFailure) 1 else 0,
+                    messageCount = previous.messageCount + messages,
+                    lastMessageCount = messages,
+                    lastLatencyMills = latency,
+                    averageLatencyMills = if (previous.pollCount == 0L) latency else
+                        (previous.averageLatencyMills * (1 - LATENCY_EWMA_WEIGHT) + latency * LATENCY_EWMA_WEIGHT).roundToLong(),
+                    currentIntervalMills = entry.intervalMills,
+                ))
+            }
+        }
+
+        waiters.forEach { it.trySend(result) }
+        wakeUp.trySend(Unit)
+    }
+
+    private fun Entry.closeWaiters() {
+        waiters.forEach { it.close() }
+        activeWaiters.forEach { it.close() }
+    }
+
+    companion object {
+        // Targets due within this window are polled together with the ones that are due now
+        private const val ALIGNMENT_WINDOW_MILLS = 500L
+        private const val IDLE_WAIT_MILLS = 60_000L
+        private const val LATENCY_EWMA_WEIGHT = 0.2
+
+        @JvmStatic
+        val shared: PollScheduler by lazy { PollScheduler() }
+    }
+}
@@ -2,27 +2,15 @@ package org.session.libsession.messaging.sending_receiving.pollers
 
 import android.util.SparseArray
 import androidx.core.util.valueIterator
-import kotlinx.coroutines.CoroutineScope
-import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.runBlocking
 import network.noth.messenger.libsession_util.ConfigBase
 import network.noth.messenger.libsession_util.Contacts
 import network.noth.messenger.libsession_util.ConversationVolatileConfig
 import network.noth.messenger.libsession_util.UserGroupsConfig
 import network.noth.messenger.libsession_util.UserProfile
-import java.util.Timer
-import java.util.TimerTask
 import kotlin.time.Duration.Companion.days
 import kotlinx.coroutines.GlobalScope
-import kotlinx.coroutines.Job
-import kotlinx.coroutines.cancel
-import kotlinx.coroutines.delay
-import kotlinx.coroutines.isActive
-import kotlinx.coroutines.launch
 import nl.komponents.kovenant.Deferred
-import nl.komponents.kovenant.Promise
 import nl.komponents.kovenant.deferred
-import nl.komponents.kovenant.functional.bind
 import nl.komponents.kovenant.resolve
 import org.session.libsession.database.StorageProtocol
 import org.session.libsession.database.userAuth
@@ -30,19 +18,15 @@ import org.session.libsession.messaging.MessagingModuleConfiguration
 import org.session.libsession.messaging.jobs.BatchMessageReceiveJob
 import org.session.libsession.messaging.jobs.JobQueue
 import org.session.libsession.messaging.jobs.MessageReceiveParameters
-import org.session.libsession.snode.RawResponse
 import org.session.libsession.snode.SnodeAPI
-import org.session.libsession.snode.SnodeAPI.KEY_BODY
-import org.session.libsession.snode.SnodeAPI.KEY_CODE
-import org.session.libsession.snode.SnodeAPI.KEY_RESULTS
 import org.session.libsession.snode.SnodeModule
+import org.session.libsession.snode.model.RetrieveMessageResponse
 import org.session.libsession.snode.utilities.asyncPromise
 import org.session.libsession.snode.utilities.await
 import org.session.libsession.utilities.ConfigFactoryProtocol
 import org.session.libsession.utilities.ConfigMessage
 import org.session.libsession.utilities.UserConfigType
 import org.session.libsignal.database.LokiAPIDatabaseProtocol
-import org.session.libsignal.utilities.Base64
 import org.session.libsignal.utilities.Log
 import org.session.libsignal.utilities.Namespace
 import org.session.libsignal.utilities.Snode
@@ -50,41 +34,47 @@ import org.session.libsignal.utilities.Util.SECURE_RANDOM
 
 private const val TAG = "Poller"
 
-class Poller(
+class Poller @JvmOverloads constructor(
     private val configFactory: ConfigFactoryProtocol,
     private val storage: StorageProtocol,
     private val lokiApiDatabase: LokiAPIDatabaseProtocol,
+    private val pollScheduler: PollScheduler = PollScheduler.shared,
 ) {
     private val userPublicKey: String
         get() = storage.getUserPublicKey().orEmpty()
 
-    var scope: CoroutineScope? = null
-
     var isPolling: Boolean = false
 
+    // pollPool is the list of snodes we can use while rotating snodes from our swarm
+    private val pollPool = hashSetOf<Snode>()
+
     // region Settings
     companion object {
-        private const val RETRY_INTERVAL_MS: Long      = 2  * 1000
-        private const val MAX_RETRY_INTERVAL_MS: Long  = 15 * 1000
-        private const val NEXT_RETRY_MULTIPLIER: Float = 1.2f // If we fail to poll we multiply our current retry interval by this (up to the above max) then try again
+        private const val POLL_TARGET_ID = "user-swarm"
+
+        // Poll every 2 seconds while we're receiving messages, slowing down to 6 seconds when it's
+        // quiet and up to 15 seconds while polls are failing
+        private val POLL_INTERVAL_POLICY = PollScheduler.IntervalPolicy(
+            minIntervalMills = 2 * 1000,
+            maxQuietIntervalMills = 6 * 1000,
+            maxFailureIntervalMills = 15 * 1000,
+            quietBackoffMultiplier = 1.2f,
+            failureBackoffMultiplier = 1.2f,
+        )
     }
     // endregion
 
     // region Public API
     fun startIfNeeded() {
-        if (scope != null) { return }
+        if (pollScheduler.isRegistered(POLL_TARGET_ID)) { return }
 
         Log.d(TAG, "Started polling.")
-        scope = CoroutineScope(Dispatchers.Default)
-        scope?.launch {
-            setUpPolling()
-        }
+        pollScheduler.register(PollScheduler.PollTarget(POLL_TARGET_ID, POLL_INTERVAL_POLICY, ::pollOnce))
     }
 
     fun stopIfNeeded() {
         Log.d(TAG, "Stopped polling.")
-        scope?.cancel()
-        scope = null
+        pollScheduler.unregister(POLL_TARGET_ID)
         isPolling = false
     }
 
@@ -99,76 +89,59 @@ class Poller(
     // endregion
 
     // region Private API
-    private suspend fun setUpPolling() {
-        val pollPool = hashSetOf<Snode>() // pollPool is the list of snodes we can use while rotating snodes from our swarm
-        var retryScalingFactor = 1.0f // We increment the retry interval by NEXT_RETRY_MULTIPLIER times this value, which we bump on each failure
-
-        while(true){
-            Log.d(TAG, "Polling...")
-
-            isPolling = true
-            var pollDelay = RETRY_INTERVAL_MS
-            try {
-                // check if the polling pool is empty
-                if (pollPool.isEmpty()){
-                    // if it is empty, fill it with the snodes from our swarm
-                    pollPool.addAll(SnodeAPI.getSwarm(userPublicKey).await())
-                }
+    private suspend fun pollOnce(): Int {
+        Log.d(TAG, "Polling...")
 
-                // randomly get a snode from the pool
-                val currentNode = pollPool.random()
+        isPolling = true
+        try {
+            // check if the polling pool is empty
+            if (pollPool.isEmpty()){
+                // if it is empty, fill it with the snodes from our swarm
+                pollPool.addAll(SnodeAPI.getSwarm(userPublicKey).await())
+            }
 
-                // remove that snode from the pool
-                pollPool.remove(currentNode)
+            // randomly get a snode from the pool
+            val currentNode = pollPool.random()
 
-                poll(currentNode)
-                retryScalingFactor = 1f
-            } catch (e: Exception){
-                Log.e(TAG, "Error while polling:", e)
-                pollDelay = minOf(MAX_RETRY_INTERVAL_MS, (RETRY_INTERVAL_MS * (NEXT_RETRY_MULTIPLIER * retryScalingFactor)).toLong())
-                retryScalingFactor++
-            } finally {
-                isPolling = false
-            }
+            // remove that snode from the pool
+            pollPool.remove(currentNode)
 
-            // wait before polling again
-            delay(pollDelay)
+            return poll(currentNode)
+        } finally {
+            isPolling = false
         }
     }
 
-    private fun processPersonalMessages(snode: Snode, rawMessages: RawResponse) {
-        val messages = SnodeAPI.parseRawMessagesResponse(rawMessages, snode, userPublicKey)
+    private fun processPersonalMessages(snode: Snode, response: RetrieveMessageResponse): Int {
+        val messages = SnodeAPI.parseMessagesResponse(response, snode, userPublicKey)
         val parameters = messages.map { (envelope, serverHash) ->
-            MessageReceiveParameters(envelope.toByteArray(), serverHash = serverHash)
+            MessageReceiveParameters(envelope, serverHash = serverHash)
         }
         parameters.chunked(BatchMessageReceiveJob.BATCH_DEFAULT_NUMBER).forEach { chunk ->
             val job = BatchMessageReceiveJob(chunk)
             JobQueue.shared.add(job)
         }
+        return messages.size
     }
 
-    private fun processConfig(snode: Snode, rawMessages: RawResponse, forConfig: UserConfigType) {
-        val messages = rawMessages["messages"] as? List<*>
+    private fun processConfig(snode: Snode, response: RetrieveMessageResponse, forConfig: UserConfigType): Int {
+        val messages = response.messages
         val namespace = forConfig.namespace
-        val processed = if (!messages.isNullOrEmpty()) {
+        val processed = if (messages.isNotEmpty()) {
             SnodeAPI.updateLastMessageHashValueIfPossible(snode, userPublicKey, messages, namespace)
             SnodeAPI.removeDuplicates(
                 publicKey = userPublicKey,
-                messages = messages,
-                messageHashGetter = { (it as? Map<*, *>)?.get("hash") as? String },
+                messages = messages.filterNotNull(),
+                messageHashGetter = { it.hash },
+                messageExpiryGetter = { it.expiration },
                 namespace = namespace,
                 updateStoredHashes = true
-            ).mapNotNull { rawMessageAsJSON ->
-                rawMessageAsJSON as Map<*, *> // removeDuplicates should have ensured this is always a map
-                val hashValue = rawMessageAsJSON["hash"] as? String ?: return@mapNotNull null
-                val b64EncodedBody = rawMessageAsJSON["data"] as? String ?: return@mapNotNull null
-                val timestamp = rawMessageAsJSON["t"] as? Long ?: SnodeAPI.nowWithOffset
-                val body = Base64.decode(b64EncodedBody)
-                ConfigMessage(data = body, hash = hashValue, timestamp = timestamp)
+            ).map { message ->
+                ConfigMessage(data = message.data, hash = message.hash, timestamp = message.timestamp ?: SnodeAPI.nowWithOffset)
             }
         } else emptyList()
 
-        if (processed.isEmpty()) return
+        if (processed.isEmpty()) return 0
 
         Log.i(TAG, "Processing ${processed.size} messages for $forConfig")
 
@@ -180,6 +153,7 @@ class Poller(
         } catch (e: Exception) {
             Log.e(TAG, e)
         }
+        return processed.size
     }
 
     //todo we will need to modify this further to fit within the new coroutine setup (currently used by ApplicationContext which is a java class)
@@ -215,30 +189,25 @@ class Poller(
         }
 
         if (requests.isNotEmpty()) {
-            SnodeAPI.getRawBatchResponse(snode, userPublicKey, requests).bind { rawResponses ->
-
-                val responseList = (rawResponses[KEY_RESULTS] as List<RawResponse>)
-                responseList.getOrNull(0)?.let { rawResponse ->
-                    if (rawResponse[KEY_CODE] as? Int != 200) {
-                        Log.e(TAG, "Batch sub-request had non-200 response code, returned code ${(rawResponse[KEY_CODE] as? Int) ?: "[unknown]"}")
+            GlobalScope.asyncPromise {
+                val response = SnodeAPI.getBatchResponse(snode, userPublicKey, requests)
+                response.results.getOrNull(0)?.let { item ->
+                    if (item.code != 200) {
+                        Log.e(TAG, "Batch sub-request had non-200 response code, returned code ${item.code}")
                     } else {
-                        val body = rawResponse[KEY_BODY] as? RawResponse
-                        if (body == null) {
-                            Log.e(TAG, "Batch sub-request didn't contain a body")
-                        } else {
-                            processConfig(snode, body, UserConfigType.USER_PROFILE)
-                        }
+                        processConfig(snode, item.bodyAs(RetrieveMessageResponse::class.java), UserConfigType.USER_PROFILE)
                     }
                 }
-
-                Promise.ofSuccess(Unit)
             }.fail {
-                Log.e(TAG, "Failed to get raw batch response", it)
+                Log.e(TAG, "Failed to get batch response", it)
             }
         }
     }
 
-    private suspend fun poll(snode: Snode) {
+    /**
+     * @return the number of new messages received
+     */
+    private suspend fun poll(snode: Snode): Int {
         val userAuth = requireNotNull(MessagingModuleConfiguration.shared.storage.userAuth)
         val requestSparseArray = SparseArray<SnodeAPI.SnodeBatchRequestInfo>()
         // get messages
@@ -291,49 +260,40 @@ class Poller(
             }
         }
 
+        var messageCount = 0
         if (requests.isNotEmpty()) {
-            val rawResponses = SnodeAPI.getRawBatchResponse(snode, userPublicKey, requests).await()
-            val responseList = (rawResponses[KEY_RESULTS] as List<RawResponse>)
+            val responseList = SnodeAPI.getBatchResponse(snode, userPublicKey, requests).results
             // in case we had null configs, the array won't be fully populated
             // index of the sparse array key iterator should be the request index, with the key being the namespace
             UserConfigType.entries
                 .map { type -> type to requestSparseArray.indexOfKey(type.namespace) }
                 .filter { (_, i) -> i >= 0 }
                 .forEach { (configType, requestIndex) ->
-                    responseList.getOrNull(requestIndex)?.let { rawResponse ->
-                        if (rawResponse[KEY_CODE] as? Int != 200) {
-                            Log.e(TAG, "Batch sub-request had non-200 response code, returned code ${(rawResponse[KEY_CODE] as? Int) ?: "[unknown]"}")
-                            return@forEach
-                        }
-                        val body = rawResponse[KEY_BODY] as? RawResponse
-                        if (body == null) {
-                            Log.e(TAG, "Batch sub-request didn't contain a body")
+                    responseList.getOrNull(requestIndex)?.let { item ->
+                        if (item.code != 200) {
+                            Log.e(TAG, "Batch sub-request had non-200 response code, returned code ${item.code}")
                             return@forEach
                         }
 
-                        processConfig(snode, body, configType)
+                        messageCount += processConfig(snode, item.bodyAs(RetrieveMessageResponse::class.java), configType)
                     }
                 }
 
             // the first response will be the personal messages (we want these to be processed after config messages)
             val personalResponseIndex = requestSparseArray.indexOfKey(Namespace.DEFAULT())
             if (personalResponseIndex >= 0) {
-                responseList.getOrNull(personalResponseIndex)?.let { rawResponse ->
-                    if (rawResponse[KEY_CODE] as? Int != 200) {
+                responseList.getOrNull(personalResponseIndex)?.let { item ->
+                    if (item.code != 200) {
                         // If we got a non-success response then the snode might be bad
-                        throw(RuntimeException("Batch sub-request for personal messages had non-200 response code, returned code ${(rawResponse[KEY_CODE] as? Int) ?: "[unknown]"}"))
+                        throw(RuntimeException("Batch sub-request for personal messages had non-200 response code, returned code ${item.code}"))
                     } else {
-                        val body = rawResponse[KEY_BODY] as? RawResponse
-                        if (body == null) {
-                            throw(RuntimeException("Batch sub-request for personal messages didn't contain a body"))
-                        } else {
-                            processPersonalMessages(snode, body)
-                        }
+                        messageCount += processPersonalMessages(snode, item.bodyAs(RetrieveMessageResponse::class.java))
                     }
                 }
             } else {
                 throw(SnodeAPI.Error.Generic)
             }
         }
+        return messageCount
     }
 }
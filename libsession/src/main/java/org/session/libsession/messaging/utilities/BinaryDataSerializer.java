@@ -0,0 +1,175 @@
+package org.session.libsession.messaging.utilities;
+
+import androidx.annotation.NonNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes {@link Data} in a compact binary form for the job table. Unlike the JSON form, byte arrays
+ * such as serialized messages and envelopes are written as they are instead of being base64 encoded.
+ *
+ * The first byte is the format version so the layout can change without touching persisted jobs.
+ */
+public final class BinaryDataSerializer {
+
+  private static final int VERSION = 1;
+
+  private static final int INITIAL_BUFFER_SIZE_BYTES = 1024;
+
+  public @NonNull byte[] serialize(@NonNull Data data) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(INITIAL_BUFFER_SIZE_BYTES);
+      DataOutputStream      out   = new DataOutputStream(bytes);
+
+      out.writeByte(VERSION);
+      writeMap(out, data.strings, BinaryDataSerializer::writeString);
+      writeMap(out, data.stringArrays, (o, value) -> {
+        o.writeInt(value.length);
+        for (String string : value) writeString(o, string);
+      });
+      writeMap(out, data.integers, DataOutputStream::writeInt);
+      writeMap(out, data.integerArrays, (o, value) -> {
+        o.writeInt(value.length);
+        for (int i : value) o.writeInt(i);
+      });
+      writeMap(out, data.longs, DataOutputStream::writeLong);
+      writeMap(out, data.longArrays, (o, value) -> {
+        o.writeInt(value.length);
+        for (long l : value) o.writeLong(l);
+      });
+      writeMap(out, data.floats, DataOutputStream::writeFloat);
+      writeMap(out, data.floatArrays, (o, value) -> {
+        o.writeInt(value.length);
+        for (float f : value) o.writeFloat(f);
+      });
+      writeMap(out, data.doubles, DataOutputStream::writeDouble);
+      writeMap(out, data.doubleArrays, (o, value) -> {
+        o.writeInt(value.length);
+        for (double d : value) o.writeDouble(d);
+      });
+      writeMap(out, data.booleans, DataOutputStream::writeBoolean);
+      writeMap(out, data.booleanArrays, (o, value) -> {
+        o.writeInt(value.length);
+        for (boolean b : value) o.writeBoolean(b);
+      });
+      writeMap(out, data.byteArrays, (o, value) -> {
+        o.writeInt(value.length);
+        o.write(value);
+      });
+
+      out.flush();
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      // Only writes to memory
+      throw new AssertionError(e);
+    }
+  }
+
+  public @NonNull Data deserialize(@NonNull byte[] serialized) {
+    try {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(serialized));
+
+      int version = in.readUnsignedByte();
+      if (version != VERSION) {
+        throw new IllegalStateException("Unknown serialized data version: " + version);
+      }
+
+      return new Data(
+          readMap(in, BinaryDataSerializer::readString),
+          readMap(in, i -> {
+            String[] value = new String[i.readInt()];
+            for (int j = 0; j < value.length; j++) value[j] = readString(i);
+            return value;
+          }),
+          readMap(in, DataInputStream::readInt),
+          readMap(in, i -> {
+            int[] value = new int[i.readInt()];
+            for (int j = 0; j < value.length; j++) value[j] = i.readInt();
+            return value;
+          }),
+          readMap(in, DataInputStream::readLong),
+          readMap(in, i -> {
+            long[] value = new long[i.readInt()];
+            for (int j = 0; j < value.length; j++) value[j] = i.readLong();
+            return value;
+          }),
+          readMap(in, DataInputStream::readFloat),
+          readMap(in, i -> {
+            float[] value = new float[i.readInt()];
+            for (int j = 0; j < value.length; j++) value[j] = i.readFloat();
+            return value;
+          }),
+          readMap(in, DataInputStream::readDouble),
+          readMap(in, i -> {
+            double[] value = new double[i.readInt()];
+            for (int j = 0; j < value.length; j++) value[j] = i.readDouble();
+            return value;
+          }),
+          readMap(in, DataInputStream::readBoolean),
+          readMap(in, i -> {
+            boolean[] value = new boolean[i.readInt()];
+            for (int j = 0; j < value.length; j++) value[j] = i.readBoolean();
+            return value;
+          }),
+          readMap(in, i -> {
+            byte[] value = new byte[i.readInt()];
+            i.readFully(value);
+            return value;
+          })
+      );
+    } catch (IOException e) {
+      throw new IllegalStateException("Failed to deserialize data.", e);
+    }
+  }
+
+  private static <T> void writeMap(@NonNull DataOutputStream out, @NonNull Map<String, T> map, @NonNull ValueWriter<T> writer) throws IOException {
+    out.writeInt(map.size());
+    for (Map.Entry<String, T> entry : map.entrySet()) {
+      writeString(out, entry.getKey());
+      writer.write(out, entry.getValue());
+    }
+  }
+
+  private static <T> @NonNull Map<String, T> readMap(@NonNull DataInputStream in, @NonNull ValueReader<T> reader) throws IOException {
+    int           size = in.readInt();
+    Map<String, T> map = new HashMap<>(size);
+    for (int i = 0; i < size; i++) {
+      map.put(readString(in), reader.read(in));
+    }
+    return map;
+  }
+
+  // Strings are length prefixed rather than written with writeUTF, which is limited to 64KB
+  private static void writeString(@NonNull DataOutputStream out, String value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(@NonNull DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) return null;
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private interface ValueWriter<T> {
+    void write(@NonNull DataOutputStream out, T value) throws IOException;
+  }
+
+  private interface ValueReader<T> {
+    T read(@NonNull DataInputStream in) throws IOException;
+  }
+}
@@ -1,6 +1,7 @@
 package org.session.libsession.messaging.utilities
 
 import com.google.protobuf.ByteString
+import com.google.protobuf.UnsafeByteOperations
 import org.session.libsignal.protos.SignalServiceProtos.Envelope
 import org.session.libsignal.protos.WebSocketProtos.WebSocketMessage
 import org.session.libsignal.protos.WebSocketProtos.WebSocketRequestMessage
@@ -71,7 +72,9 @@ object MessageWrapper {
      */
     fun unwrap(data: ByteArray): Envelope {
         try {
-            val webSocketMessage = WebSocketMessage.parseFrom(data)
+            // With aliasing the envelope is parsed from a view of `data` rather than a copy of it
+            val input = UnsafeByteOperations.unsafeWrap(data).newCodedInput().apply { enableAliasing(true) }
+            val webSocketMessage = WebSocketMessage.parseFrom(input)
             val envelopeAsData = webSocketMessage.request.body
             return Envelope.parseFrom(envelopeAsData)
         } catch (e: Exception) {
@@ -0,0 +1,53 @@
+package org.session.libsession.snode
+
+import org.session.libsignal.crypto.shuffledRandom
+import org.session.libsignal.utilities.OnionPathHealth
+
+/**
+ * Ranks onion request paths by the health recorded against their guard snode. Paths are lists of
+ * snodes with the guard snode first.
+ */
+internal object OnionPathSelection {
+    /**
+     * How many milliseconds of round trip time a single failure is worth when comparing paths.
+     */
+    private const val failurePenalty = 2000.0
+    /**
+     * How many times slower than the fastest path a path has to be before it's replaced...
+     */
+    private const val degradedRoundTripTimeRatio = 3.0
+    /**
+     * ...as long as that's also this many milliseconds slower, so that fast paths aren't replaced
+     * over differences nobody would notice.
+     */
+    private const val degradedRoundTripTimeMargin = 1000.0
+
+    /**
+     * Lower is better. Paths nothing has gone through yet score best so they get measured.
+     */
+    fun score(health: OnionPathHealth?): Double {
+        if (health == null) return 0.0
+        return (health.roundTripTime ?: 0.0) + health.failureCount * failurePenalty
+    }
+
+    /**
+     * Returns the best scoring path, picking at random between paths that score the same.
+     */
+    fun <T> healthiest(paths: List<List<T>>, health: Map<T, OnionPathHealth>): List<T>? =
+        paths.shuffledRandom().minByOrNull { score(health[it.first()]) }
+
+    /**
+     * Returns the paths that are worth replacing before they're dropped: those one failure away
+     * from `failureThreshold` and those that are much slower than the fastest path.
+     */
+    fun <T> degraded(paths: List<List<T>>, health: Map<T, OnionPathHealth>, failureThreshold: Int): List<List<T>> {
+        val fastest = paths.mapNotNull { health[it.first()]?.roundTripTime }.minOrNull()
+        return paths.filter { path ->
+            val pathHealth = health[path.first()] ?: return@filter false
+            val roundTripTime = pathHealth.roundTripTime
+            pathHealth.failureCount >= failureThreshold - 1 || (fastest != null && roundTripTime != null
+                && roundTripTime > fastest * degradedRoundTripTimeRatio
+                && roundTripTime - fastest > degradedRoundTripTimeMargin)
+        }
+    }
+}
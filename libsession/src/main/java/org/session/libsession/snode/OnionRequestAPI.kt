@@ -1,14 +1,19 @@
 package org.session.libsession.snode
 
+import com.fasterxml.jackson.core.JsonToken
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.GlobalScope
 import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.SharingStarted
 import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.delay
 import kotlinx.coroutines.flow.collectLatest
+import kotlinx.coroutines.flow.conflate
 import kotlinx.coroutines.flow.drop
 import kotlinx.coroutines.flow.map
 import kotlinx.coroutines.flow.stateIn
+import kotlinx.coroutines.flow.update
+import kotlinx.coroutines.flow.updateAndGet
 import kotlinx.coroutines.launch
 import nl.komponents.kovenant.Deferred
 import nl.komponents.kovenant.Promise
@@ -20,7 +25,6 @@ import okhttp3.Request
 import org.session.libsession.messaging.file_server.FileServerApi
 import org.session.libsession.snode.utilities.asyncPromise
 import org.session.libsession.utilities.AESGCM
-import org.session.libsession.utilities.AESGCM.EncryptionResult
 import org.session.libsession.utilities.getBodyForOnionRequest
 import org.session.libsession.utilities.getHeadersForOnionRequest
 import org.session.libsignal.crypto.secureRandom
@@ -32,9 +36,9 @@ import org.session.libsignal.utilities.ForkInfo
 import org.session.libsignal.utilities.HTTP
 import org.session.libsignal.utilities.JsonUtil
 import org.session.libsignal.utilities.Log
+import org.session.libsignal.utilities.OnionPathHealth
 import org.session.libsignal.utilities.Snode
 import org.session.libsignal.utilities.recover
-import org.session.libsignal.utilities.toHexString
 import java.util.concurrent.atomic.AtomicReference
 import kotlin.collections.set
 
@@ -47,13 +51,18 @@ object OnionRequestAPI {
     private var buildPathsPromise: Promise<List<Path>, Exception>? = null
     private val database: LokiAPIDatabaseProtocol
         get() = SnodeModule.shared.storage
-    private val pathFailureCount = mutableMapOf<Path, Int>()
     private val snodeFailureCount = mutableMapOf<Snode, Int>()
+    private var lastPathReplacement = 0L
 
     var guardSnodes = setOf<Snode>()
 
     private val mutablePaths = MutableStateFlow(database.getOnionRequestPaths())
 
+    /**
+     * The health of every path, keyed by its guard snode.
+     */
+    private val mutablePathHealth = MutableStateFlow(database.getOnionRequestPathHealth())
+
     val paths: StateFlow<List<Path>> get() = mutablePaths
     val hasPath: StateFlow<Boolean> = mutablePaths
         .drop(1)
@@ -71,8 +80,20 @@ object OnionRequestAPI {
                 } else {
                     database.setOnionRequestPaths(it)
                 }
+                val guardSnodes = it.map { path -> path.first() }
+                mutablePathHealth.update { health -> health.filterKeys { snode -> snode in guardSnodes } }
             }
         }
+        // Health changes with every request, so it's written at most once per interval
+        GlobalScope.launch {
+            mutablePathHealth
+                .drop(1)
+                .conflate()
+                .collect {
+                    database.setOnionRequestPathHealth(it)
+                    delay(pathHealthPersistenceInterval)
+                }
+        }
     }
 
     // region Settings
@@ -94,9 +115,18 @@ object OnionRequestAPI {
     private val targetGuardSnodeCount
         get() = targetPathCount // One per path
     /**
-     * The number of paths to maintain.
+     * The number of paths to maintain. Requests go through the healthiest one, the others are
+     * backups for when it's slow, failing or contains the target snode.
      */
-    const val targetPathCount = 2 // A main path and a backup path for the case where the target snode is in the main path
+    var targetPathCount = 3
+    /**
+     * The minimum time in milliseconds between replacing degraded paths in the background.
+     */
+    private const val pathReplacementInterval = 60 * 1000L
+    /**
+     * The minimum time in milliseconds between writes of the path health to the database.
+     */
+    private const val pathHealthPersistenceInterval = 10 * 1000L
     // endregion
 
     class HTTPRequestFailedBlindingRequiredException(statusCode: Int, json: Map<*, *>, destination: String): HTTPRequestFailedAtDestinationException(statusCode, json, destination)
@@ -104,9 +134,9 @@ object OnionRequestAPI {
         : HTTP.HTTPRequestFailedException(statusCode, json, "HTTP request failed at destination ($destination) with status code $statusCode.")
     class InsufficientSnodesException : Exception("Couldn't find enough snodes to build a path.")
 
-    private data class OnionBuildingResult(
+    private class OnionBuildingResult(
         val guardSnode: Snode,
-        val finalEncryptionResult: EncryptionResult,
+        val body: ByteArray,
         val destinationSymmetricKey: ByteArray
     )
 
@@ -211,23 +241,17 @@ object OnionRequestAPI {
     private fun getPath(snodeToExclude: Snode?): Promise<Path, Exception> {
         if (pathSize < 1) { throw Exception("Can't build path of size zero.") }
         val paths = this.paths.value
-        val guardSnodes = mutableSetOf<Snode>()
-        if (paths.isNotEmpty()) {
-            guardSnodes.add(paths[0][0])
-            if (paths.count() >= 2) {
-                guardSnodes.add(paths[1][0])
-            }
+        // Leave the guard snodes alone while paths are being built, some may be on their way out
+        if (buildPathsPromise == null) {
+            OnionRequestAPI.guardSnodes = paths.map { it[0] }.toSet()
         }
-        OnionRequestAPI.guardSnodes = guardSnodes
         fun getPath(paths: List<Path>): Path {
-            return if (snodeToExclude != null) {
-                paths.filter { !it.contains(snodeToExclude) }.secureRandom()
-            } else {
-                paths.secureRandom()
-            }
+            val candidates = if (snodeToExclude != null) paths.filter { !it.contains(snodeToExclude) } else paths
+            return OnionPathSelection.healthiest(candidates, mutablePathHealth.value) ?: throw InsufficientSnodesException()
         }
         when {
             paths.count() >= targetPathCount -> {
+                replaceDegradedPathsIfNeeded(paths)
                 return Promise.of(getPath(paths))
             }
             paths.isNotEmpty() -> {
@@ -248,6 +272,38 @@ object OnionRequestAPI {
         }
     }
 
+    /**
+     * Builds replacements for paths that are slow or about to be dropped for failing. The old paths
+     * stay in use until their replacements are ready.
+     */
+    private fun replaceDegradedPathsIfNeeded(paths: List<Path>) {
+        val now = System.currentTimeMillis()
+        if (buildPathsPromise != null || now - lastPathReplacement < pathReplacementInterval) { return }
+        val degradedPaths = OnionPathSelection.degraded(paths, mutablePathHealth.value, pathFailureThreshold)
+        // Keep at least one path to build the replacements around
+        if (degradedPaths.isEmpty() || degradedPaths.count() == paths.count()) { return }
+        lastPathReplacement = now
+        Log.d("Loki", "Replacing ${degradedPaths.count()} degraded onion request path(s).")
+        guardSnodes = guardSnodes.minus(degradedPaths.map { it[0] }.toSet())
+        buildPaths(paths.minus(degradedPaths.toSet()))
+    }
+
+    private fun recordRoundTripTime(guardSnode: Snode, roundTripTime: Double) {
+        mutablePathHealth.update { health ->
+            health + (guardSnode to (health[guardSnode] ?: OnionPathHealth()).withRoundTripTime(roundTripTime))
+        }
+    }
+
+    /**
+     * Returns the number of times the path through `guardSnode` has now failed.
+     */
+    private fun recordFailure(guardSnode: Snode): Int {
+        val health = mutablePathHealth.updateAndGet { health ->
+            health + (guardSnode to (health[guardSnode] ?: OnionPathHealth()).withFailure())
+        }
+        return health.getValue(guardSnode).failureCount
+    }
+
     private fun dropGuardSnode(snode: Snode) {
         guardSnodes = guardSnodes.filter { it != snode }.toSet()
     }
@@ -274,7 +330,7 @@ object OnionRequestAPI {
     }
 
     private fun dropPath(path: Path) {
-        pathFailureCount[path] = 0
+        mutablePathHealth.update { it - path[0] }
         val paths = mutablePaths.value.toMutableList()
         val pathIndex = paths.indexOf(path)
         if (pathIndex == -1) { return }
@@ -290,38 +346,14 @@ object OnionRequestAPI {
         destination: Destination,
         version: Version
     ): Promise<OnionBuildingResult, Exception> {
-        lateinit var guardSnode: Snode
-        lateinit var destinationSymmetricKey: ByteArray // Needed by LokiAPI to decrypt the response sent back by the destination
-        lateinit var encryptionResult: EncryptionResult
         val snodeToExclude = when (destination) {
             is Destination.Snode -> destination.snode
             is Destination.Server -> null
         }
         return getPath(snodeToExclude).map { path ->
-            guardSnode = path.first()
-            // Encrypt in reverse order, i.e. the destination first
-            OnionRequestEncryption.encryptPayloadForDestination(payload, destination, version).let { r ->
-                destinationSymmetricKey = r.symmetricKey
-                // Recursively encrypt the layers of the onion (again in reverse order)
-                encryptionResult = r
-                @Suppress("NAME_SHADOWING") var path = path
-                var rhs = destination
-                fun addLayer(): EncryptionResult {
-                    return if (path.isEmpty()) {
-                        encryptionResult
-                    } else {
-                        val lhs = Destination.Snode(path.last())
-                        path = path.dropLast(1)
-                        OnionRequestEncryption.encryptHop(lhs, rhs, encryptionResult).let { r ->
-                            encryptionResult = r
-                            rhs = lhs
-                            addLayer()
-                        }
-                    }
-                }
-                addLayer()
-            }
-        }.map { OnionBuildingResult(guardSnode, encryptionResult, destinationSymmetricKey) }
+            val onion = OnionRequestEncryption.buildOnion(payload, destination, path, version)
+            OnionBuildingResult(path.first(), onion.body, onion.destinationSymmetricKey)
+        }
     }
 
     /**
@@ -338,24 +370,20 @@ object OnionRequestAPI {
             guardSnode = result.guardSnode
             val nonNullGuardSnode = result.guardSnode
             val url = "${nonNullGuardSnode.address}:${nonNullGuardSnode.port}/onion_req/v2"
-            val finalEncryptionResult = result.finalEncryptionResult
-            val onion = finalEncryptionResult.ciphertext
-            if (destination is Destination.Server && onion.count().toDouble() > 0.75 * FileServerApi.maxFileSize.toDouble()) {
-                Log.d("Loki", "Approaching request size limit: ~${onion.count()} bytes.")
-            }
-            @Suppress("NAME_SHADOWING") val parameters = mapOf(
-                "ephemeral_key" to finalEncryptionResult.ephemeralPublicKey.toHexString()
-            )
-            val body: ByteArray
-            try {
-                body = OnionRequestEncryption.encode(onion, parameters)
-            } catch (exception: Exception) {
-                return@success deferred.reject(exception)
+            val body = result.body
+            if (destination is Destination.Server && body.size.toDouble() > 0.75 * FileServerApi.maxFileSize.toDouble()) {
+                Log.d("Loki", "Approaching request size limit: ~${body.size} bytes.")
             }
             val destinationSymmetricKey = result.destinationSymmetricKey
             GlobalScope.launch {
                 try {
+                    val start = System.nanoTime()
                     val response = HTTP.execute(HTTP.Verb.POST, url, body)
+                    // Requests to servers can carry attachments, which would say more about their
+                    // size than about the path
+                    if (destination is Destination.Snode) {
+                        recordRoundTripTime(nonNullGuardSnode, (System.nanoTime() - start) / 1_000_000.0)
+                    }
                     handleResponse(response, destinationSymmetricKey, destination, version, deferred)
                 } catch (exception: Exception) {
                     deferred.reject(exception)
@@ -374,8 +402,7 @@ object OnionRequestAPI {
 
                 fun handleUnspecificError() {
                     if (path == null) { return }
-                    var pathFailureCount = OnionRequestAPI.pathFailureCount[path] ?: 0
-                    pathFailureCount += 1
+                    val pathFailureCount = recordFailure(path[0])
                     if (pathFailureCount >= pathFailureThreshold) {
                         guardSnode?.let { dropGuardSnode(it) }
                         path.forEach { snode ->
@@ -383,8 +410,6 @@ object OnionRequestAPI {
                             SnodeAPI.handleSnodeError(exception.statusCode, exception.json, snode, null) // Intentionally don't throw
                         }
                         dropPath(path)
-                    } else {
-                        OnionRequestAPI.pathFailureCount[path] = pathFailureCount
                     }
                 }
                 val json = exception.json
@@ -522,18 +547,20 @@ object OnionRequestAPI {
         if (version == Version.V4) {
             try {
                 if (response.size <= AESGCM.ivSize) return deferred.reject(Exception("Invalid response"))
-                // The data will be in the form of `l123:jsone` or `l123:json456:bodye` so we need to break the data into
-                // parts to properly process it
-                val plaintext = AESGCM.decrypt(response, destinationSymmetricKey)
-                if (!byteArrayOf(plaintext.first()).contentEquals("l".toByteArray())) return deferred.reject(Exception("Invalid response"))
-                val infoSepIdx = plaintext.indexOfFirst { byteArrayOf(it).contentEquals(":".toByteArray()) }
-                val infoLenSlice = plaintext.slice(1 until infoSepIdx)
-                val infoLength = infoLenSlice.toByteArray().toString(Charsets.US_ASCII).toIntOrNull()
-                if (infoLenSlice.size <= 1 || infoLength == null) return deferred.reject(Exception("Invalid response"))
-                val infoStartIndex = "l$infoLength".length + 1
+                // The data will be in the form of `l123:jsone` or `l123:json456:bodye`. It's decrypted in place
+                // and broken into parts by index, so the body is the only thing copied out of it.
+                val plaintextStartIndex = AESGCM.ivSize
+                val plaintextEndIndex = plaintextStartIndex + AESGCM.decryptInPlace(response, 0, response.size, destinationSymmetricKey)
+                if (plaintextEndIndex <= plaintextStartIndex || response[plaintextStartIndex] != 'l'.code.toByte()) return deferred.reject(Exception("Invalid response"))
+                var infoSepIdx = plaintextStartIndex + 1
+                while (infoSepIdx < plaintextEndIndex && response[infoSepIdx] != ':'.code.toByte()) infoSepIdx++
+                val infoLengthSize = infoSepIdx - plaintextStartIndex - 1
+                val infoLength = String(response, plaintextStartIndex + 1, infoLengthSize, Charsets.US_ASCII).toIntOrNull()
+                if (infoSepIdx == plaintextEndIndex || infoLengthSize <= 1 || infoLength == null) return deferred.reject(Exception("Invalid response"))
+                val infoStartIndex = infoSepIdx + 1
                 val infoEndIndex = infoStartIndex + infoLength
-                val info = plaintext.slice(infoStartIndex until infoEndIndex)
-                val responseInfo = JsonUtil.fromJson(info.toByteArray(), Map::class.java)
+                if (infoEndIndex > plaintextEndIndex) return deferred.reject(Exception("Invalid response"))
+                val responseInfo = JsonUtil.fromJson(response, infoStartIndex, infoLength, Map::class.java)
                 when (val statusCode = responseInfo["code"].toString().toInt()) {
                     // Custom handle a clock out of sync error (v4 returns '425' but included the '406' just in case)
                     406, 425 -> {
@@ -547,7 +574,7 @@ object OnionRequestAPI {
                     }
                     // Handle error status codes
                     !in 200..299 -> {
-                        val responseBody = if (destination is Destination.Server && statusCode == 400) plaintext.getBody(infoLength, infoEndIndex) else null
+                        val responseBody = if (destination is Destination.Server && statusCode == 400) response.getBody(infoEndIndex, plaintextEndIndex) else null
                         val requireBlinding = "Invalid authentication: this server requires the use of blinded ids"
                         val exception = if (responseBody != null && responseBody.decodeToString() == requireBlinding) {
                             HTTPRequestFailedBlindingRequiredException(400, responseInfo, destination.description)
@@ -560,7 +587,7 @@ object OnionRequestAPI {
                     }
                 }
 
-                val responseBody = plaintext.getBody(infoLength, infoEndIndex)
+                val responseBody = response.getBody(infoEndIndex, plaintextEndIndex)
 
                 // If there is no data in the response, i.e. only `l123:jsone`, then just return the ResponseInfo
                 if (responseBody.isEmpty()) {
@@ -581,8 +608,7 @@ object OnionRequestAPI {
             try {
                 val plaintext = AESGCM.decrypt(ivAndCiphertext, destinationSymmetricKey)
                 try {
-                    @Suppress("NAME_SHADOWING") val json =
-                        JsonUtil.fromJson(plaintext.toString(Charsets.UTF_8), Map::class.java)
+                    @Suppress("NAME_SHADOWING") val json = JsonUtil.fromJson(plaintext, Map::class.java)
                     val statusCode = json["status_code"] as? Int ?: json["status"] as Int
                     when {
                         statusCode == 406 -> {
@@ -596,6 +622,14 @@ object OnionRequestAPI {
                             )
                             return deferred.reject(exception)
                         }
+                        json["body"] is String && statusCode == 200 -> {
+                            // Hand the body on as it is rather than parsing it into a map and
+                            // serializing it again, only the fork info is picked out of it
+                            @Suppress("NAME_SHADOWING")
+                            val body = (json["body"] as String).toByteArray()
+                            readForkInfo(body)?.let(::updateForkInfo)
+                            deferred.resolve(OnionResponse(mapOf("code" to statusCode), body))
+                        }
                         json["body"] != null -> {
                             @Suppress("NAME_SHADOWING")
                             val body = if (json["body"] is Map<*, *>) {
@@ -607,19 +641,7 @@ object OnionRequestAPI {
 
                             if (body.containsKey("hf")) {
                                 @Suppress("UNCHECKED_CAST")
-                                val currentHf = body["hf"] as List<Int>
-                                if (currentHf.size < 2) {
-                                    Log.e("Loki", "Response contains fork information but doesn't have a hard and soft number")
-                                } else {
-                                    val hf = currentHf[0]
-                                    val sf = currentHf[1]
-                                    val newForkInfo = ForkInfo(hf, sf)
-                                    if (newForkInfo > SnodeAPI.forkInfo) {
-                                        SnodeAPI.forkInfo = ForkInfo(hf,sf)
-                                    } else if (newForkInfo < SnodeAPI.forkInfo) {
-                                        Log.w("Loki", "Got a new snode info fork version that was $newForkInfo, less than current known ${SnodeAPI.forkInfo}")
-                                    }
-                                }
+                                updateForkInfo(body["hf"] as List<Int>)
                             }
                             if (statusCode != 200) {
                                 val exception = HTTPRequestFailedAtDestinationException(
@@ -652,17 +674,53 @@ object OnionRequestAPI {
         }
     }
 
-    private fun ByteArray.getBody(infoLength: Int, infoEndIndex: Int): ByteArray {
-        // If there is no data in the response, i.e. only `l123:jsone`, then just return the ResponseInfo
-        val infoLengthStringLength = infoLength.toString().length
-        if (size <= infoLength + infoLengthStringLength + 2/*l and e bytes*/) {
-            return byteArrayOf()
+    private fun updateForkInfo(currentHf: List<Int>) {
+        if (currentHf.size < 2) {
+            Log.e("Loki", "Response contains fork information but doesn't have a hard and soft number")
+        } else {
+            val hf = currentHf[0]
+            val sf = currentHf[1]
+            val newForkInfo = ForkInfo(hf, sf)
+            if (newForkInfo > SnodeAPI.forkInfo) {
+                SnodeAPI.forkInfo = ForkInfo(hf,sf)
+            } else if (newForkInfo < SnodeAPI.forkInfo) {
+                Log.w("Loki", "Got a new snode info fork version that was $newForkInfo, less than current known ${SnodeAPI.forkInfo}")
+            }
         }
-        // Extract the response data as well
-        val dataSlice = slice(infoEndIndex + 1 until size - 1)
-        val dataSepIdx = dataSlice.indexOfFirst { byteArrayOf(it).contentEquals(":".toByteArray()) }
-        val responseBody = dataSlice.slice(dataSepIdx + 1 until dataSlice.size)
-        return responseBody.toByteArray()
+    }
+
+    /**
+     * Reads the `hf` field of a snode response, skipping over everything else in it.
+     */
+    private fun readForkInfo(body: ByteArray): List<Int>? {
+        JsonUtil.getMapper().factory.createParser(body).use { parser ->
+            if (parser.nextToken() != JsonToken.START_OBJECT) return null
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                val field = parser.currentName
+                parser.nextToken()
+                if (field == "hf") {
+                    return JsonUtil.getMapper().readValue(parser, List::class.java).mapNotNull { (it as? Number)?.toInt() }
+                }
+                parser.skipChildren()
+            }
+            return null
+        }
+    }
+
+    /**
+     * Copies the body out of a `l123:json456:bodye` response, given where the JSON ends and where
+     * the response ends.
+     */
+    private fun ByteArray.getBody(infoEndIndex: Int, endIndex: Int): ByteArray {
+        // If there is no data in the response, i.e. only `l123:jsone`, then there's no body
+        val dataStartIndex = infoEndIndex
+        val dataEndIndex = endIndex - 1 // Drop the `e`
+        if (dataStartIndex >= dataEndIndex) return byteArrayOf()
+        var dataSepIdx = dataStartIndex
+        while (dataSepIdx < dataEndIndex && this[dataSepIdx] != ':'.code.toByte()) dataSepIdx++
+        // Without a length prefix the whole slice is the body
+        val bodyStartIndex = if (dataSepIdx < dataEndIndex) dataSepIdx + 1 else dataStartIndex
+        return copyOfRange(bodyStartIndex, dataEndIndex)
     }
 
     // endregion
@@ -1,90 +1,106 @@
 package org.session.libsession.snode
 
-import kotlinx.coroutines.GlobalScope
-import nl.komponents.kovenant.Promise
-import nl.komponents.kovenant.deferred
 import org.session.libsession.snode.OnionRequestAPI.Destination
-import org.session.libsession.snode.utilities.asyncPromise
 import org.session.libsession.utilities.AESGCM
-import org.session.libsession.utilities.AESGCM.EncryptionResult
-import org.session.libsignal.utilities.toHexString
+import org.session.libsignal.utilities.Hex
 import org.session.libsignal.utilities.JsonUtil
-import org.session.libsignal.utilities.ThreadUtils
-import java.nio.Buffer
+import org.session.libsignal.utilities.Snode
+import org.session.libsignal.utilities.toHexString
+import org.whispersystems.curve25519.Curve25519
 import java.nio.ByteBuffer
 import java.nio.ByteOrder
 
 object OnionRequestEncryption {
 
-    internal fun encode(ciphertext: ByteArray, json: Map<*, *>): ByteArray {
-        // The encoding of V2 onion requests looks like: | 4 bytes: size N of ciphertext | N bytes: ciphertext | json as utf8 |
-        val jsonAsData = JsonUtil.toJson(json).toByteArray()
-        val ciphertextSize = ciphertext.size
-        val buffer = ByteBuffer.allocate(Int.SIZE_BYTES)
-        buffer.order(ByteOrder.LITTLE_ENDIAN)
-        buffer.putInt(ciphertextSize)
-        val ciphertextSizeAsData = ByteArray(buffer.capacity())
-        // Casting here avoids an issue where this gets compiled down to incorrect byte code. See
-        // https://github.com/eclipse/jetty.project/issues/3244 for more info
-        (buffer as Buffer).position(0)
-        buffer.get(ciphertextSizeAsData)
-        return ciphertextSizeAsData + ciphertext + jsonAsData
-    }
+    private const val SIZE_PREFIX_LENGTH = Int.SIZE_BYTES
+
+    internal class Onion(val body: ByteArray, val destinationSymmetricKey: ByteArray)
 
     /**
-     * Encrypts `payload` for `destination` and returns the result. Use this to build the core of an onion request.
+     * Something the onion is encrypted for: the destination or one of the snodes on the path.
+     *
+     * @param x25519PublicKey the hex encoded key the layer is encrypted for.
+     * @param address what the hop before this one needs to forward the layer here.
      */
-    internal fun encryptPayloadForDestination(
-        payload: ByteArray,
-        destination: Destination,
-        version: Version
-    ): EncryptionResult {
-        val plaintext = if (version == Version.V4) {
-            payload
-        } else {
-            // Wrapping isn't needed for file server or open group onion requests
-            when (destination) {
-                is Destination.Snode -> encode(payload, mapOf("headers" to ""))
-                is Destination.Server -> payload
-            }
-        }
-        val x25519PublicKey = when (destination) {
-            is Destination.Snode -> destination.snode.publicKeySet!!.x25519Key
-            is Destination.Server -> destination.x25519PublicKey
-        }
-        return AESGCM.encrypt(plaintext, x25519PublicKey)
+    internal class Layer(val x25519PublicKey: String, val address: Map<String, Any>)
+
+    /**
+     * Builds an onion around `payload` for `destination` through `path`, guard snode first, and
+     * returns the body to send to the guard snode.
+     */
+    internal fun buildOnion(payload: ByteArray, destination: Destination, path: List<Snode>, version: Version): Onion {
+        // Wrapping isn't needed for V4, file server or open group onion requests
+        val payloadJson = if (version != Version.V4 && destination is Destination.Snode) mapOf("headers" to "") else null
+        val layers = listOf(destination.toLayer()) + path.asReversed().map { Destination.Snode(it).toLayer() }
+        return buildOnion(payload, payloadJson, layers)
     }
 
     /**
-     * Encrypts the previous encryption result (i.e. that of the hop after this one) for this hop. Use this to build the layers of an onion request.
+     * Builds an onion around `payload` for `layers`, listed from the inside out, i.e. the
+     * destination first and the guard snode last.
+     *
+     * The encoding of every layer looks like: | 4 bytes: size N of ciphertext | N bytes: ciphertext | json as utf8 |
+     * where the ciphertext is the IV, the encrypted layer inside it and the GCM tag. A layer's size
+     * only depends on the JSON around it, which only depends on the ephemeral keys, so all of those
+     * are worked out first. The whole onion is then laid out in a single buffer and every layer is
+     * encrypted in place, from the inside out, rather than copied into a new array for each hop.
      */
-    internal fun encryptHop(lhs: Destination, rhs: Destination, previousEncryptionResult: EncryptionResult): EncryptionResult {
-        val payload: MutableMap<String, Any> = when (rhs) {
-            is Destination.Snode -> {
-                mutableMapOf("destination" to rhs.snode.publicKeySet!!.ed25519Key)
-            }
+    internal fun buildOnion(payload: ByteArray, payloadJson: Map<*, *>?, layers: List<Layer>): Onion {
+        val curve = Curve25519.getInstance(Curve25519.BEST)
+        val ephemeralKeyPairs = layers.map { curve.generateKeyPair() }
+        val symmetricKeys = layers.mapIndexed { i, layer ->
+            AESGCM.generateSymmetricKey(Hex.fromStringCondensed(layer.x25519PublicKey), ephemeralKeyPairs[i].privateKey)
+        }
+        // The JSON after layer i tells whoever decrypts the layer around it where to send it and how
+        // to derive its key. The guard snode reads the one after the outermost layer itself, so that
+        // one has no address.
+        val trailers = layers.mapIndexed { i, layer ->
+            val address = if (i < layers.lastIndex) layer.address else mapOf()
+            JsonUtil.toJson(address + ("ephemeral_key" to ephemeralKeyPairs[i].publicKey.toHexString())).toByteArray()
+        }
+        val payloadJsonAsData = payloadJson?.let { JsonUtil.toJson(it).toByteArray() }
+
+        // Every layer adds its size prefix and IV in front of the one inside it
+        val layerHeaderSize = SIZE_PREFIX_LENGTH + AESGCM.ivSize
+        var offset = layerHeaderSize * layers.size
+        var length = if (payloadJsonAsData != null) SIZE_PREFIX_LENGTH + payload.size + payloadJsonAsData.size else payload.size
+        val size = offset + length + trailers.sumOf { it.size + AESGCM.tagSize }
+        val buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN)
+        val bytes = buffer.array()
 
-            is Destination.Server -> {
-                mutableMapOf(
-                    "host" to rhs.host,
-                    "target" to rhs.target,
-                    "method" to "POST",
-                    "protocol" to rhs.scheme,
-                    "port" to rhs.port
-                )
-            }
+        if (payloadJsonAsData != null) {
+            buffer.putInt(offset, payload.size)
+            payload.copyInto(bytes, offset + SIZE_PREFIX_LENGTH)
+            payloadJsonAsData.copyInto(bytes, offset + SIZE_PREFIX_LENGTH + payload.size)
+        } else {
+            payload.copyInto(bytes, offset)
         }
-        payload["ephemeral_key"] = previousEncryptionResult.ephemeralPublicKey.toHexString()
-        val x25519PublicKey = when (lhs) {
-            is Destination.Snode -> {
-                lhs.snode.publicKeySet!!.x25519Key
-            }
 
-            is Destination.Server -> {
-                lhs.x25519PublicKey
-            }
+        for (i in layers.indices) {
+            AESGCM.encryptInPlace(bytes, offset, length, symmetricKeys[i])
+            val ciphertextSize = AESGCM.ivSize + length + AESGCM.tagSize
+            val ciphertextOffset = offset - AESGCM.ivSize
+            offset = ciphertextOffset - SIZE_PREFIX_LENGTH
+            buffer.putInt(offset, ciphertextSize)
+            trailers[i].copyInto(bytes, ciphertextOffset + ciphertextSize)
+            length = SIZE_PREFIX_LENGTH + ciphertextSize + trailers[i].size
         }
-        val plaintext = encode(previousEncryptionResult.ciphertext, payload)
-        return AESGCM.encrypt(plaintext, x25519PublicKey)
+        check(offset == 0 && length == size)
+
+        return Onion(bytes, symmetricKeys.first())
+    }
+
+    private fun Destination.toLayer(): Layer = when (this) {
+        is Destination.Snode -> snode.publicKeySet!!.let { Layer(it.x25519Key, mapOf("destination" to it.ed25519Key)) }
+        is Destination.Server -> Layer(
+            x25519PublicKey,
+            mapOf(
+                "host" to host,
+                "target" to target,
+                "method" to "POST",
+                "protocol" to scheme,
+                "port" to port
+            )
+        )
     }
 }
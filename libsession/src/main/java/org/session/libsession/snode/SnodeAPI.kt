@@ -11,14 +11,11 @@ import com.goterl.lazysodium.interfaces.GenericHash
 import com.goterl.lazysodium.interfaces.PwHash
 import com.goterl.lazysodium.interfaces.SecretBox
 import com.goterl.lazysodium.utils.Key
-import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.SupervisorJob
-import kotlinx.coroutines.channels.Channel
-import kotlinx.coroutines.channels.SendChannel
 import kotlinx.coroutines.launch
-import kotlinx.coroutines.selects.select
+import kotlinx.coroutines.yield
 import nl.komponents.kovenant.Promise
 import nl.komponents.kovenant.all
 import nl.komponents.kovenant.functional.bind
@@ -28,6 +25,7 @@ import org.session.libsession.messaging.MessagingModuleConfiguration
 import org.session.libsession.messaging.utilities.MessageWrapper
 import org.session.libsession.messaging.utilities.SodiumUtilities.sodium
 import org.session.libsession.snode.model.BatchResponse
+import org.session.libsession.snode.model.RetrieveMessageResponse
 import org.session.libsession.snode.model.StoreMessageResponse
 import org.session.libsession.snode.utilities.asyncPromise
 import org.session.libsession.snode.utilities.await
@@ -50,6 +48,7 @@ import org.session.libsignal.utilities.prettifiedDescription
 import org.session.libsignal.utilities.retryIfNeeded
 import org.session.libsignal.utilities.retryWithUniformInterval
 import java.util.Locale
+import java.util.concurrent.atomic.AtomicLong
 import kotlin.collections.component1
 import kotlin.collections.component2
 import kotlin.collections.set
@@ -94,6 +93,8 @@ object SnodeAPI {
     )
 
     private const val snodeFailureThreshold = 3
+    private const val receivedHashPruneIntervalMills = 60 * 60 * 1000L
+    private const val receivedHashPruneBatchSize = 500
     private const val useOnionRequests = true
 
     const val KEY_BODY = "body"
@@ -107,6 +108,8 @@ object SnodeAPI {
 
     private val scope = CoroutineScope(SupervisorJob() + Dispatchers.Default)
 
+    private val lastReceivedHashPruneTime = AtomicLong(-receivedHashPruneIntervalMills)
+
     // Error
     sealed class Error(val description: String) : Exception(description) {
         object Generic : Error("An error occurred.")
@@ -166,10 +169,21 @@ object SnodeAPI {
         responseClass: Class<Res>,
         publicKey: String? = null,
         version: Version = Version.V3
-    ): Res = when {
+    ): Res = JsonUtil.fromJson(invokeSuspendForBytes(method, snode, parameters, publicKey, version), responseClass)
+
+    /**
+     * Like [invokeSuspend], but leaves decoding the response to the caller.
+     */
+    private suspend fun invokeSuspendForBytes(
+        method: Snode.Method,
+        snode: Snode,
+        parameters: Map<String, Any>,
+        publicKey: String? = null,
+        version: Version = Version.V3
+    ): ByteArray = when {
         useOnionRequests -> {
             val resp = OnionRequestAPI.sendOnionRequest(method, parameters, snode, version, publicKey).await()
-            JsonUtil.fromJson(resp.body ?: throw Error.Generic, responseClass)
+            resp.body ?: throw Error.Generic
         }
 
         else -> HTTP.execute(
@@ -179,9 +193,7 @@ object SnodeAPI {
                 this["method"] = method.rawValue
                 this["params"] = parameters
             }
-        ).toString().let {
-            JsonUtil.fromJson(it, responseClass)
-        }
+        )
     }
 
     private val GET_RANDOM_SNODE_PARAMS = buildMap<String, Any> {
@@ -595,127 +607,32 @@ object SnodeAPI {
         }
     }
 
-    private data class RequestInfo(
-        val snode: Snode,
-        val publicKey: String,
-        val request: SnodeBatchRequestInfo,
-        val responseType: Class<*>,
-        val callback: SendChannel<Result<Any>>,
-        val requestTime: Long = SystemClock.elapsedRealtime(),
-    )
-
-    private val batchedRequestsSender: SendChannel<RequestInfo>
-
-    init {
-        val batchRequests = Channel<RequestInfo>()
-        batchedRequestsSender = batchRequests
-
-        val batchWindowMills = 100L
+    private val requestBatcher = SnodeRequestBatcher(scope, sendBatch = ::getMultiAccountBatchResponse)
 
-        data class BatchKey(val snodeAddress: String, val publicKey: String)
-
-        scope.launch {
-            val batches = hashMapOf<BatchKey, MutableList<RequestInfo>>()
-
-            while (true) {
-                val batch = select<List<RequestInfo>?> {
-                    // If we receive a request, add it to the batch
-                    batchRequests.onReceive {
-                        batches.getOrPut(BatchKey(it.snode.address, it.publicKey)) { mutableListOf() }.add(it)
-                        null
-                    }
-
-                    // If we have anything in the batch, look for the one that is about to expire
-                    // and wait for it to expire, remove it from the batches and send it for
-                    // processing.
-                    if (batches.isNotEmpty()) {
-                        val earliestBatch = batches.minBy { it.value.first().requestTime }
-                        val deadline = earliestBatch.value.first().requestTime + batchWindowMills
-                        onTimeout(
-                            timeMillis = (deadline - SystemClock.elapsedRealtime()).coerceAtLeast(0)
-                        ) {
-                            batches.remove(earliestBatch.key)
-                        }
-                    }
-                }
-
-                if (batch != null) {
-                    launch batch@{
-                        val snode = batch.first().snode
-                        val responses = try {
-                            getBatchResponse(
-                                snode = snode,
-                                publicKey = batch.first().publicKey,
-                                requests = batch.map { it.request },
-                                sequence = false
-                            )
-                        } catch (e: Exception) {
-                            for (req in batch) {
-                                runCatching {
-                                    req.callback.send(Result.failure(e))
-                                }
-                            }
-                            return@batch
-                        }
-
-                        // For each response, parse the result, match it with the request then send
-                        // back through the request's callback.
-                        for ((req, resp) in batch.zip(responses.results)) {
-                            val result = runCatching {
-                                if (!resp.isSuccessful) {
-                                    throw BatchResponse.Error(resp)
-                                }
-
-                                JsonUtil.fromJson(resp.body, req.responseType)
-                            }
-
-                            runCatching {
-                                req.callback.send(result)
-                            }
-                        }
-
-                        // Close all channels in the requests just in case we don't have paired up
-                        // responses.
-                        for (req in batch) {
-                            req.callback.close()
-                        }
-                    }
-                }
-            }
-        }
-    }
+    val batchStats: SnodeRequestBatcher.Stats
+        get() = requestBatcher.stats
 
+    /**
+     * Send a request to the snode as part of a batch, the [latencyClass] decides how long the
+     * request may wait for others to join the batch.
+     */
     suspend fun <T> sendBatchRequest(
         snode: Snode,
         publicKey: String,
         request: SnodeBatchRequestInfo,
         responseType: Class<T>,
+        latencyClass: SnodeRequestBatcher.LatencyClass = SnodeRequestBatcher.LatencyClass.DEFAULT,
     ): T {
-        val callback = Channel<Result<T>>(capacity = 1)
-        @Suppress("UNCHECKED_CAST")
-        batchedRequestsSender.send(RequestInfo(
-            snode = snode,
-            publicKey = publicKey,
-            request = request,
-            responseType = responseType,
-            callback = callback as SendChannel<Any>
-        ))
-        try {
-            return callback.receive().getOrThrow()
-        } catch (e: CancellationException) {
-            // Close the channel if the coroutine is cancelled, so the batch processing won't
-            // handle this one (best effort only)
-            callback.close()
-            throw e
-        }
+        return requestBatcher.send(snode, publicKey, request, responseType, latencyClass)
     }
 
     suspend fun sendBatchRequest(
         snode: Snode,
         publicKey: String,
         request: SnodeBatchRequestInfo,
+        latencyClass: SnodeRequestBatcher.LatencyClass = SnodeRequestBatcher.LatencyClass.DEFAULT,
     ): JsonNode {
-        return sendBatchRequest(snode, publicKey, request, JsonNode::class.java)
+        return sendBatchRequest(snode, publicKey, request, JsonNode::class.java, latencyClass)
     }
 
     suspend fun getBatchResponse(
@@ -724,13 +641,12 @@ object SnodeAPI {
         requests: List<SnodeBatchRequestInfo>,
         sequence: Boolean = false
     ): BatchResponse {
-        return invokeSuspend(
+        return invokeSuspendForBytes(
             method = if (sequence) Snode.Method.Sequence else Snode.Method.Batch,
             snode = snode,
             parameters = mapOf("requests" to requests),
-            responseClass = BatchResponse::class.java,
             publicKey = publicKey
-        ).also { resp ->
+        ).let(BatchResponse::fromJson).also { resp ->
             // If there's a unsuccessful response, go through specific logic to handle
             // potential snode errors.
             val firstError = resp.results.firstOrNull { !it.isSuccessful }
@@ -749,6 +665,39 @@ object SnodeAPI {
         }
     }
 
+    /**
+     * Like [getBatchResponse], but the subrequests may be for different accounts. Errors are
+     * handled against the swarm of the account whose subrequest failed.
+     */
+    private suspend fun getMultiAccountBatchResponse(
+        snode: Snode,
+        requests: List<Pair<String, SnodeBatchRequestInfo>>
+    ): BatchResponse {
+        return invokeSuspendForBytes(
+            method = Snode.Method.Batch,
+            snode = snode,
+            parameters = mapOf("requests" to requests.map { it.second }),
+            // A failure of the whole request can only be tied to an account if there's just the one
+            publicKey = requests.map { it.first }.distinct().singleOrNull()
+        ).let(BatchResponse::fromJson).also { resp ->
+            resp.results.zip(requests)
+                .filter { (result, _) -> !result.isSuccessful }
+                .distinctBy { (_, request) -> request.first }
+                .forEach { (result, request) ->
+                    handleSnodeError(
+                        statusCode = result.code,
+                        json = if (result.body.isObject) {
+                            JsonUtil.fromJson(result.body, Map::class.java)
+                        } else {
+                            null
+                        },
+                        snode = snode,
+                        publicKey = request.first
+                    )
+                }
+        }
+    }
+
     fun getExpiries(
         messageHashes: List<String>,
         auth: SwarmAuth,
@@ -870,7 +819,8 @@ object SnodeAPI {
                     params = params,
                     namespace = namespace
                 ),
-                responseType = StoreMessageResponse::class.java
+                responseType = StoreMessageResponse::class.java,
+                latencyClass = SnodeRequestBatcher.LatencyClass.INTERACTIVE,
             )
         }
     }
@@ -986,84 +936,129 @@ object SnodeAPI {
         }
 
     fun parseRawMessagesResponse(rawResponse: RawResponse, snode: Snode, publicKey: String, namespace: Int = 0, updateLatestHash: Boolean = true, updateStoredHashes: Boolean = true, decrypt: ((ByteArray) -> Pair<ByteArray, AccountId>?)? = null): List<Pair<SignalServiceProtos.Envelope, String?>> =
-        (rawResponse["messages"] as? List<*>)?.let { messages ->
-            if (updateLatestHash) updateLastMessageHashValueIfPossible(snode, publicKey, messages, namespace)
-            removeDuplicates(
-                publicKey = publicKey,
-                messages = parseEnvelopes(messages, decrypt),
-                messageHashGetter = { it.second },
-                namespace = namespace,
-                updateStoredHashes = updateStoredHashes
-            )
-        } ?: listOf()
+        parseMessagesResponse(
+            JsonUtil.getMapper().convertValue(rawResponse, RetrieveMessageResponse::class.java),
+            snode, publicKey, namespace, updateLatestHash, updateStoredHashes, decrypt
+        )
 
-    fun updateLastMessageHashValueIfPossible(snode: Snode, publicKey: String, rawMessages: List<*>, namespace: Int) {
-        val lastMessageAsJSON = rawMessages.lastOrNull() as? Map<*, *>
-        val hashValue = lastMessageAsJSON?.get("hash") as? String
+    fun parseMessagesResponse(response: RetrieveMessageResponse, snode: Snode, publicKey: String, namespace: Int = 0, updateLatestHash: Boolean = true, updateStoredHashes: Boolean = true, decrypt: ((ByteArray) -> Pair<ByteArray, AccountId>?)? = null): List<Pair<SignalServiceProtos.Envelope, String?>> {
+        if (updateLatestHash) updateLastMessageHashValueIfPossible(snode, publicKey, response.messages, namespace)
+        val messages = response.messages.filterNotNull()
+        if (messages.size < response.messages.size) {
+            Log.d("Loki", "Failed to decode ${response.messages.size - messages.size} message(s).")
+        }
+        val expiries = messages.mapNotNull { message -> message.expiration?.let { message.hash to it } }.toMap()
+        return removeDuplicates(
+            publicKey = publicKey,
+            messages = parseEnvelopes(messages, decrypt),
+            messageHashGetter = { it.second },
+            messageExpiryGetter = { (_, hash) -> expiries[hash] },
+            namespace = namespace,
+            updateStoredHashes = updateStoredHashes
+        )
+    }
+
+    fun updateLastMessageHashValueIfPossible(snode: Snode, publicKey: String, messages: List<RetrieveMessageResponse.Message?>, namespace: Int) {
+        val hashValue = messages.lastOrNull()?.hash
         when {
             hashValue != null -> database.setLastMessageHashValue(snode, publicKey, hashValue, namespace)
-            rawMessages.isNotEmpty() -> Log.d("Loki", "Failed to update last message hash value from: ${rawMessages.prettifiedDescription()}.")
+            messages.isNotEmpty() -> Log.d("Loki", "Failed to update last message hash value, the last message couldn't be decoded.")
         }
     }
 
     /**
+     * Filters out the messages whose hashes have been seen before (or that don't have a hash at all).
      *
+     * Only the hashes in [messages] are looked up, and when [updateStoredHashes] is set the new ones
+     * are recorded atomically, so this is safe to call concurrently for the same public key.
      *
-     * TODO Use a db transaction, synchronizing is sufficient for now because
-     * database#setReceivedMessageHashValues is only called here.
+     * @param messageExpiryGetter the time at which a message expires on the swarm, after which its
+     * hash can be forgotten. Defaults to the maximum message TTL when unknown.
      */
-    @Synchronized
     fun <M> removeDuplicates(
         publicKey: String,
         messages: List<M>,
         messageHashGetter: (M) -> String?,
+        messageExpiryGetter: (M) -> Long? = { null },
         namespace: Int,
         updateStoredHashes: Boolean
     ): List<M> {
-        val hashValues = database.getReceivedMessageHashValues(publicKey, namespace)?.toMutableSet() ?: mutableSetOf()
-        return messages
-            .filter { message ->
-                val hash = messageHashGetter(message)
-                if (hash == null) {
-                    Log.d("Loki", "Missing hash value for message: ${message?.prettifiedDescription()}.")
-                    return@filter false
-                }
+        val hashes = hashMapOf<String, Long>()
+        val candidates = messages.filter { message ->
+            val hash = messageHashGetter(message)
+            if (hash == null) {
+                Log.d("Loki", "Missing hash value for message: ${message?.prettifiedDescription()}.")
+                return@filter false
+            }
+
+            val isNew = !hashes.containsKey(hash)
+            if (isNew) {
+                hashes[hash] = messageExpiryGetter(message) ?: (nowWithOffset + SnodeMessage.CONFIG_TTL)
+            } else {
+                Log.d("Loki", "Duplicate message hash: $hash.")
+            }
 
-                val isNew = hashValues.add(hash)
+            isNew
+        }
 
-                if (!isNew) {
-                    Log.d("Loki", "Duplicate message hash: $hash.")
-                }
+        if (candidates.isEmpty()) return candidates
 
-                isNew
+        val newHashes = if (updateStoredHashes) {
+            database.addReceivedMessageHashes(publicKey, namespace, hashes)
+        } else {
+            hashes.keys - database.getReceivedMessageHashes(publicKey, namespace, hashes.keys)
+        }
+
+        pruneReceivedMessageHashesIfNeeded()
+
+        return candidates.filter { message ->
+            val hash = messageHashGetter(message)
+            (hash in newHashes).also { isNew ->
+                if (!isNew) Log.d("Loki", "Duplicate message hash: $hash.")
             }
-            .also {
-                if (updateStoredHashes && it.isNotEmpty()) {
-                    database.setReceivedMessageHashValues(publicKey, hashValues, namespace)
-                }
+        }
+    }
+
+    /**
+     * Deletes expired received message hashes in the background, in small batches so that it never
+     * holds up the database for long. Runs at most once every [receivedHashPruneIntervalMills].
+     */
+    private fun pruneReceivedMessageHashesIfNeeded() {
+        val now = SystemClock.elapsedRealtime()
+        val lastPruneTime = lastReceivedHashPruneTime.get()
+        if (now - lastPruneTime < receivedHashPruneIntervalMills ||
+            !lastReceivedHashPruneTime.compareAndSet(lastPruneTime, now)) {
+            return
+        }
+
+        scope.launch(Dispatchers.IO) {
+            val expiredBefore = nowWithOffset
+            try {
+                var pruned = 0
+                do {
+                    val deleted = database.pruneExpiredReceivedMessageHashes(expiredBefore, receivedHashPruneBatchSize)
+                    pruned += deleted
+                    yield()
+                } while (deleted == receivedHashPruneBatchSize)
+                if (pruned > 0) Log.d("Loki", "Pruned $pruned expired received message hashes.")
+            } catch (e: Exception) {
+                Log.w("Loki", "Failed to prune expired received message hashes", e)
             }
+        }
     }
 
-    private fun parseEnvelopes(rawMessages: List<*>, decrypt: ((ByteArray)->Pair<ByteArray, AccountId>?)?): List<Pair<SignalServiceProtos.Envelope, String?>> {
-        return rawMessages.mapNotNull { rawMessage ->
-            val rawMessageAsJSON = rawMessage as? Map<*, *>
-            val base64EncodedData = rawMessageAsJSON?.get("data") as? String
-            val data = base64EncodedData?.let { Base64.decode(it) }
-            if (data != null) {
-                try {
-                    if (decrypt != null) {
-                        val (decrypted, sender) = decrypt(data)!!
-                        val envelope = SignalServiceProtos.Envelope.parseFrom(decrypted).toBuilder()
-                        envelope.source = sender.hexString
-                        Pair(envelope.build(), rawMessageAsJSON["hash"] as? String)
-                    }
-                    else Pair(MessageWrapper.unwrap(data), rawMessageAsJSON["hash"] as? String)
-                } catch (e: Exception) {
-                    Log.d("Loki", "Failed to unwrap data for message: ${rawMessage.prettifiedDescription()}.", e)
-                    null
+    private fun parseEnvelopes(messages: List<RetrieveMessageResponse.Message>, decrypt: ((ByteArray)->Pair<ByteArray, AccountId>?)?): List<Pair<SignalServiceProtos.Envelope, String?>> {
+        return messages.mapNotNull { message ->
+            try {
+                if (decrypt != null) {
+                    val (decrypted, sender) = decrypt(message.data)!!
+                    val envelope = SignalServiceProtos.Envelope.parseFrom(decrypted).toBuilder()
+                    envelope.source = sender.hexString
+                    Pair(envelope.build(), message.hash)
                 }
-            } else {
-                Log.d("Loki", "Failed to decode data for message: ${rawMessage?.prettifiedDescription()}.")
+                else Pair(MessageWrapper.unwrap(message.data), message.hash)
+            } catch (e: Exception) {
+                Log.d("Loki", "Failed to unwrap data for message: ${message.hash}.", e)
                 null
             }
         }
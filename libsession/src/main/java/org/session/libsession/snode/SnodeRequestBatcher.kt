@@ -0,0 +1,229 @@
+package org.session.libsession.snode
+
+import android.os.SystemClock
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.SendChannel
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.selects.select
+import org.session.libsession.snode.model.BatchResponse
+import org.session.libsignal.utilities.Snode
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * Coalesces individual snode requests that go to the same snode into `batch` requests. Requests
+ * for different accounts share a batch too, as each subrequest carries its own authentication, so
+ * e.g. the polls of groups that live in the same swarm go out as one request.
+ *
+ * Each request is queued with a [LatencyClass], which decides how long it may wait for other
+ * requests to join its batch. A batch is flushed when the earliest deadline of its requests is
+ * reached, or straight away once it holds [Config.maxSubrequests] requests, so oversized batches
+ * are split rather than rejected by the snode.
+ */
+class SnodeRequestBatcher(
+    scope: CoroutineScope,
+    private val config: Config = Config(),
+    // Sends the (public key, subrequest) pairs of a batch to the snode
+    private val sendBatch: suspend (snode: Snode, requests: List<Pair<String, SnodeAPI.SnodeBatchRequestInfo>>) -> BatchResponse,
+) {
+    enum class LatencyClass {
+        // Something the user is waiting for, e.g. sending a message
+        INTERACTIVE,
+        // Regular traffic such as polling
+        DEFAULT,
+        // Housekeeping nobody is waiting for, e.g. extending TTLs
+        BACKGROUND,
+    }
+
+    data class Config(
+        // Snodes reject batches with more subrequests than this
+        val maxSubrequests: Int = 20,
+        val interactiveWindowMills: Long = 10L,
+        val defaultWindowMills: Long = 100L,
+        val backgroundWindowMills: Long = 1000L,
+    ) {
+        init {
+            require(maxSubrequests > 0) { "maxSubrequests must be positive" }
+        }
+
+        fun windowMills(latencyClass: LatencyClass): Long = when (latencyClass) {
+            LatencyClass.INTERACTIVE -> interactiveWindowMills
+            LatencyClass.DEFAULT -> defaultWindowMills
+            LatencyClass.BACKGROUND -> backgroundWindowMills
+        }
+    }
+
+    data class Stats(
+        val batchCount: Long,
+        val subrequestCount: Long,
+        // Number of batches flushed because they were full
+        val fullBatchCount: Long,
+        // Average number of subrequests per batch relative to [Config.maxSubrequests]
+        val averageFillRatio: Float,
+        // Time requests spent queued before their batch was sent
+        val averageQueueDelayMills: Long,
+        val maxQueueDelayMills: Long,
+    )
+
+    private class RequestInfo(
+        val snode: Snode,
+        val publicKey: String,
+        val request: SnodeAPI.SnodeBatchRequestInfo,
+        val responseType: Class<*>,
+        val callback: SendChannel<Result<Any>>,
+        val deadline: Long,
+        val requestTime: Long,
+    )
+
+    private class PendingBatch(
+        val requests: MutableList<RequestInfo> = mutableListOf(),
+        var deadline: Long = Long.MAX_VALUE,
+    )
+
+    private val requestChannel = Channel<RequestInfo>()
+
+    private val batchCount = AtomicLong()
+    private val subrequestCount = AtomicLong()
+    private val fullBatchCount = AtomicLong()
+    private val totalQueueDelayMills = AtomicLong()
+    private val maxQueueDelayMills = AtomicLong()
+
+    val stats: Stats
+        get() {
+            val batches = batchCount.get()
+            val subrequests = subrequestCount.get()
+            return Stats(
+                batchCount = batches,
+                subrequestCount = subrequests,
+                fullBatchCount = fullBatchCount.get(),
+                averageFillRatio = if (batches == 0L) 0f else subrequests.toFloat() / (batches * config.maxSubrequests),
+                averageQueueDelayMills = if (subrequests == 0L) 0L else totalQueueDelayMills.get() / subrequests,
+                maxQueueDelayMills = maxQueueDelayMills.get(),
+            )
+        }
+
+    init {
+        scope.launch {
+            // Pending batches by snode address
+            val batches = hashMapOf<String, PendingBatch>()
+
+            while (true) {
+                val batch = select<List<RequestInfo>?> {
+                    // If we receive a request, add it to its batch, and send the batch straight
+                    // away if it's full
+                    requestChannel.onReceive { req ->
+                        val key = req.snode.address
+                        val pending = batches.getOrPut(key) { PendingBatch() }
+                        pending.requests += req
+                        pending.deadline = min(pending.deadline, req.deadline)
+
+                        if (pending.requests.size >= config.maxSubrequests) {
+                            batches.remove(key)
+                            fullBatchCount.incrementAndGet()
+                            pending.requests
+                        } else {
+                            null
+                        }
+                    }
+
+                    // If we have anything in the batch, look for the one that is about to expire
+                    // and wait for it to expire, remove it from the batches and send it for
+                    // processing.
+                    if (batches.isNotEmpty()) {
+                        val (key, earliestBatch) = batches.minBy { it.value.deadline }
+                        onTimeout(
+                            timeMillis = (earliestBatch.deadline - SystemClock.elapsedRealtime()).coerceAtLeast(0)
+                        ) {
+                            batches.remove(key)
+                            earliestBatch.requests
+                        }
+                    }
+                }
+
+                if (batch != null) {
+                    recordFlush(batch)
+                    launch { flush(batch) }
+                }
+            }
+        }
+    }
+
+    suspend fun <T> send(
+        snode: Snode,
+        publicKey: String,
+        request: SnodeAPI.SnodeBatchRequestInfo,
+        responseType: Class<T>,
+        latencyClass: LatencyClass,
+    ): T {
+        val callback = Channel<Result<T>>(capacity = 1)
+        val now = SystemClock.elapsedRealtime()
+        @Suppress("UNCHECKED_CAST")
+        requestChannel.send(RequestInfo(
+            snode = snode,
+            publicKey = publicKey,
+            request = request,
+            responseType = responseType,
+            callback = callback as SendChannel<Result<Any>>,
+            deadline = now + config.windowMills(latencyClass),
+            requestTime = now,
+        ))
+        try {
+            return callback.receive().getOrThrow()
+        } catch (e: CancellationException) {
+            // Close the channel if the coroutine is cancelled, so the batch processing won't
+            // handle this one (best effort only)
+            callback.close()
+            throw e
+        }
+    }
+
+    private fun recordFlush(batch: List<RequestInfo>) {
+        val now = SystemClock.elapsedRealtime()
+        batchCount.incrementAndGet()
+        subrequestCount.addAndGet(batch.size.toLong())
+        for (req in batch) {
+            val delay = now - req.requestTime
+            totalQueueDelayMills.addAndGet(delay)
+            maxQueueDelayMills.accumulateAndGet(delay) { a, b -> max(a, b) }
+        }
+    }
+
+    private suspend fun flush(batch: List<RequestInfo>) {
+        val first = batch.first()
+        val responses = try {
+            sendBatch(first.snode, batch.map { it.publicKey to it.request })
+        } catch (e: Exception) {
+            for (req in batch) {
+                runCatching {
+                    req.callback.send(Result.failure(e))
+                }
+            }
+            return
+        }
+
+        // For each response, parse the result, match it with the request then send
+        // back through the request's callback.
+        for ((req, resp) in batch.zip(responses.results)) {
+            val result = runCatching {
+                if (!resp.isSuccessful) {
+                    throw BatchResponse.Error(resp)
+                }
+
+                resp.bodyAs(req.responseType)
+            }
+
+            runCatching {
+                req.callback.send(result)
+            }
+        }
+
+        // Close all channels in the requests just in case we don't have paired up
+        // responses.
+        for (req in batch) {
+            req.callback.close()
+        }
+    }
+}
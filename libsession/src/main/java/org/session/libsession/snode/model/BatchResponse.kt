@@ -1,16 +1,26 @@
 package org.session.libsession.snode.model
 
-import com.fasterxml.jackson.annotation.JsonCreator
-import com.fasterxml.jackson.annotation.JsonProperty
+import com.fasterxml.jackson.core.JsonParser
+import com.fasterxml.jackson.core.JsonToken
 import com.fasterxml.jackson.databind.JsonNode
+import org.session.libsignal.utilities.JsonUtil
 
-data class BatchResponse @JsonCreator constructor(
-    @param:JsonProperty("results") val results: List<Item>,
-) {
-    data class Item @JsonCreator constructor(
-        @param:JsonProperty("code") val code: Int,
-        @param:JsonProperty("body") val body: JsonNode,
+/**
+ * The response to a `batch` or `sequence` request.
+ *
+ * The body of every sub-request is left where it is in the response and only decoded when asked
+ * for, straight into the type the caller wants, so large bodies such as retrieved messages never
+ * go through a generic [JsonNode] tree.
+ */
+class BatchResponse(val results: List<Item>) {
+    class Item internal constructor(
+        val code: Int,
+        private val json: ByteArray,
+        private val bodyOffset: Int,
+        private val bodyLength: Int,
     ) {
+        val body: JsonNode by lazy { bodyAs(JsonNode::class.java) }
+
         val isSuccessful: Boolean
             get() = code in 200..299
 
@@ -19,6 +29,8 @@ data class BatchResponse @JsonCreator constructor(
 
         val isSnodeNoLongerPartOfSwarm: Boolean
             get() = code == 421
+
+        fun <T> bodyAs(type: Class<T>): T = JsonUtil.fromJson(json, bodyOffset, bodyLength, type)
     }
 
     data class Error(val item: Item)
@@ -29,4 +41,57 @@ data class BatchResponse @JsonCreator constructor(
             }
         }
     }
+
+    companion object {
+        /**
+         * Reads the code of every sub-request and where its body is in [json], skipping over the
+         * bodies themselves.
+         */
+        fun fromJson(json: ByteArray): BatchResponse {
+            JsonUtil.getMapper().factory.createParser(json).use { parser ->
+                parser.expect(JsonToken.START_OBJECT)
+                val results = mutableListOf<Item>()
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    val field = parser.currentName
+                    parser.nextToken()
+                    if (field == "results") {
+                        parser.expect(JsonToken.START_ARRAY, current = true)
+                        while (parser.nextToken() == JsonToken.START_OBJECT) {
+                            results += parser.readItem(json)
+                        }
+                    } else {
+                        parser.skipChildren()
+                    }
+                }
+                return BatchResponse(results)
+            }
+        }
+
+        private fun JsonParser.readItem(json: ByteArray): Item {
+            var code: Int? = null
+            var bodyOffset = -1
+            var bodyLength = 0
+            while (nextToken() == JsonToken.FIELD_NAME) {
+                val field = currentName
+                nextToken()
+                when (field) {
+                    "code" -> code = intValue
+                    "body" -> {
+                        bodyOffset = tokenLocation.byteOffset.toInt()
+                        // Strings are only read as far as needed, so make sure this one is consumed
+                        if (currentToken == JsonToken.VALUE_STRING) finishToken() else skipChildren()
+                        bodyLength = currentLocation.byteOffset.toInt() - bodyOffset
+                    }
+                    else -> skipChildren()
+                }
+            }
+            if (code == null || bodyOffset < 0) throw IllegalArgumentException("Batch response item is missing its code or body.")
+            return Item(code, json, bodyOffset, bodyLength)
+        }
+
+        private fun JsonParser.expect(token: JsonToken, current: Boolean = false) {
+            val actual = if (current) currentToken else nextToken()
+            if (actual != token) throw IllegalArgumentException("Expected $token in batch response but got $actual.")
+        }
+    }
 }
@@ -1,41 +1,89 @@
 package org.session.libsession.snode.model
 
-import android.util.Base64
 import com.fasterxml.jackson.annotation.JsonCreator
 import com.fasterxml.jackson.annotation.JsonProperty
-import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.core.Base64Variants
+import com.fasterxml.jackson.core.JsonParser
+import com.fasterxml.jackson.core.JsonToken
+import com.fasterxml.jackson.databind.DeserializationContext
+import com.fasterxml.jackson.databind.JsonDeserializer
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize
-import com.fasterxml.jackson.databind.util.StdConverter
 
 data class StoreMessageResponse @JsonCreator constructor(
     @JsonProperty("hash") val hash: String,
     @JsonProperty("t") val timestamp: Long,
 )
 
-class RetrieveMessageResponse @JsonCreator constructor(
-    @JsonProperty("messages")
-    // Apply converter to the element so that if one of the message fails to deserialize, it will
-    // be a null value instead of failing the whole list.
-    @JsonDeserialize(contentConverter = RetrieveMessageConverter::class)
+@JsonDeserialize(using = RetrieveMessageResponseDeserializer::class)
+class RetrieveMessageResponse(
+    // A message that fails to deserialize is a null value instead of failing the whole list
     val messages: List<Message?>,
 ) {
     class Message(
         val hash: String,
         val timestamp: Long?,
+        // When the message expires on the swarm, if known
+        val expiration: Long?,
         val data: ByteArray,
     )
 }
 
-internal class RetrieveMessageConverter : StdConverter<JsonNode, RetrieveMessageResponse.Message?>() {
-    override fun convert(value: JsonNode?): RetrieveMessageResponse.Message? {
-        value ?: return null
-
-        val hash = value.get("hash")?.asText()?.takeIf { it.isNotEmpty() } ?: return null
-        val timestamp = value.get("t")?.asLong()?.takeIf { it > 0 }
-        val data = runCatching {
-            Base64.decode(value.get("data")?.asText().orEmpty(), Base64.DEFAULT)
-        }.getOrNull() ?: return null
+/**
+ * Reads a retrieve response token by token. Each message's `data` is base64 decoded straight out of
+ * the parser's buffer, without building a string or a tree for it first.
+ */
+internal class RetrieveMessageResponseDeserializer : JsonDeserializer<RetrieveMessageResponse>() {
+    override fun deserialize(parser: JsonParser, context: DeserializationContext): RetrieveMessageResponse {
+        val messages = mutableListOf<RetrieveMessageResponse.Message?>()
+        if (parser.currentToken != JsonToken.START_OBJECT) {
+            parser.skipChildren()
+            return RetrieveMessageResponse(messages)
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            val field = parser.currentName
+            parser.nextToken()
+            if (field == "messages" && parser.currentToken == JsonToken.START_ARRAY) {
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    messages += readMessage(parser)
+                }
+            } else {
+                parser.skipChildren()
+            }
+        }
+        return RetrieveMessageResponse(messages)
+    }
 
-        return RetrieveMessageResponse.Message(hash, timestamp, data)
+    private fun readMessage(parser: JsonParser): RetrieveMessageResponse.Message? {
+        if (parser.currentToken != JsonToken.START_OBJECT) {
+            parser.skipChildren()
+            return null
+        }
+        var hash: String? = null
+        var timestamp: Long? = null
+        var expiration: Long? = null
+        var data: ByteArray? = null
+        var isValid = true
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            val field = parser.currentName
+            val token = parser.nextToken()
+            when {
+                field == "hash" && token == JsonToken.VALUE_STRING -> hash = parser.text.takeIf { it.isNotEmpty() }
+                field == "t" && token == JsonToken.VALUE_NUMBER_INT -> timestamp = parser.longValue.takeIf { it > 0 }
+                field == "expiration" && token == JsonToken.VALUE_NUMBER_INT -> expiration = parser.longValue
+                field == "data" && token == JsonToken.VALUE_STRING -> {
+                    data = try {
+                        parser.getBinaryValue(Base64Variants.MIME_NO_LINEFEEDS)
+                    } catch (e: Exception) {
+                        // The rest of the string can't be read past reliably, so give up on the
+                        // message and let the parser fail on the response if it has to
+                        isValid = false
+                        null
+                    }
+                }
+                else -> parser.skipChildren()
+            }
+        }
+        if (!isValid || hash == null || data == null) return null
+        return RetrieveMessageResponse.Message(hash, timestamp, expiration, data)
     }
-}
\ No newline at end of file
+}
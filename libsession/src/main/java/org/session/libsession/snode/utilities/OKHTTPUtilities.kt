@@ -2,9 +2,13 @@ package org.session.libsession.utilities
 
 import okhttp3.MultipartBody
 import okhttp3.Request
+import okhttp3.RequestBody
 import okio.Buffer
+import okio.buffer
+import okio.sink
 import org.session.libsignal.utilities.Base64
 import java.io.IOException
+import java.io.OutputStream
 import java.util.Locale
 
 internal fun Request.getHeadersForOnionRequest(): Map<String, Any> {
@@ -32,10 +36,8 @@ internal fun Request.getHeadersForOnionRequest(): Map<String, Any> {
 internal fun Request.getBodyForOnionRequest(): Any? {
     try {
         val copyOfThis = newBuilder().build()
-        val buffer = Buffer()
         val body = copyOfThis.body ?: return null
-        body.writeTo(buffer)
-        val bodyAsData = buffer.readByteArray()
+        val bodyAsData = body.toByteArray()
         if (body is MultipartBody) {
             val base64EncodedBody: String = Base64.encodeBytes(bodyAsData)
             return mapOf( "fileUpload" to base64EncodedBody )
@@ -49,3 +51,40 @@ internal fun Request.getBodyForOnionRequest(): Any? {
         return null
     }
 }
+
+/**
+ * Writes the body straight into an array of its content length. Going through a [Buffer] would
+ * hold the body twice while it's copied out, which adds up for attachments. A body that doesn't
+ * match its content length still comes out whole, whatever goes past the array is buffered.
+ */
+internal fun RequestBody.toByteArray(): ByteArray {
+    val length = contentLength()
+    if (length < 0 || length > Int.MAX_VALUE) {
+        return Buffer().also { writeTo(it) }.readByteArray()
+    }
+    val bytes = ByteArray(length.toInt())
+    var position = 0
+    val overflow = Buffer()
+    val outputStream = object : OutputStream() {
+        override fun write(b: Int) {
+            if (position < bytes.size) {
+                bytes[position++] = b.toByte()
+            } else {
+                overflow.writeByte(b)
+            }
+        }
+
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            val count = minOf(len, bytes.size - position)
+            System.arraycopy(b, off, bytes, position, count)
+            position += count
+            if (count < len) overflow.write(b, off + count, len - count)
+        }
+    }
+    outputStream.sink().buffer().use { writeTo(it) }
+    return when {
+        overflow.size > 0 -> bytes + overflow.readByteArray()
+        position < bytes.size -> bytes.copyOf(position)
+        else -> bytes
+    }
+}
@@ -1,8 +1,6 @@
 package org.session.libsession.utilities
 
 import androidx.annotation.WorkerThread
-import org.session.libsignal.crypto.CipherUtil.CIPHER_LOCK
-import org.session.libsignal.utilities.ByteUtil
 import org.session.libsignal.utilities.Util
 import org.session.libsignal.utilities.Hex
 import org.whispersystems.curve25519.Curve25519
@@ -15,6 +13,14 @@ import javax.crypto.spec.SecretKeySpec
 internal object AESGCM {
     internal val gcmTagSize = 128
     internal val ivSize = 12
+    internal val tagSize = gcmTagSize / 8
+
+    // Every onion layer goes through here, so each thread keeps its own instances rather than looking
+    // them up for every call. A cipher is re-initialised with a fresh key and IV before each use.
+    private val gcmCipher = ThreadLocal.withInitial { Cipher.getInstance("AES/GCM/NoPadding") }
+    private val symmetricKeyMac = ThreadLocal.withInitial {
+        Mac.getInstance("HmacSHA256").apply { init(SecretKeySpec("LOKI".toByteArray(), "HmacSHA256")) }
+    }
 
     internal data class EncryptionResult(
         internal val ciphertext: ByteArray,
@@ -26,13 +32,21 @@ internal object AESGCM {
      * Sync. Don't call from the main thread.
      */
     internal fun decrypt(ivAndCiphertext: ByteArray, symmetricKey: ByteArray): ByteArray {
-        val iv = ivAndCiphertext.sliceArray(0 until ivSize)
-        val ciphertext = ivAndCiphertext.sliceArray(ivSize until ivAndCiphertext.count())
-        synchronized(CIPHER_LOCK) {
-            val cipher = Cipher.getInstance("AES/GCM/NoPadding")
-            cipher.init(Cipher.DECRYPT_MODE, SecretKeySpec(symmetricKey, "AES"), GCMParameterSpec(gcmTagSize, iv))
-            return cipher.doFinal(ciphertext)
-        }
+        val cipher = gcmCipher.get()!!
+        cipher.init(Cipher.DECRYPT_MODE, SecretKeySpec(symmetricKey, "AES"), GCMParameterSpec(gcmTagSize, ivAndCiphertext, 0, ivSize))
+        return cipher.doFinal(ivAndCiphertext, ivSize, ivAndCiphertext.size - ivSize)
+    }
+
+    /**
+     * Decrypts the IV and ciphertext found at [offset] in [buffer] in place. The plaintext is left
+     * right after the IV and its length is returned.
+     *
+     * Sync. Don't call from the main thread.
+     */
+    internal fun decryptInPlace(buffer: ByteArray, offset: Int, length: Int, symmetricKey: ByteArray): Int {
+        val cipher = gcmCipher.get()!!
+        cipher.init(Cipher.DECRYPT_MODE, SecretKeySpec(symmetricKey, "AES"), GCMParameterSpec(gcmTagSize, buffer, offset, ivSize))
+        return cipher.doFinal(buffer, offset + ivSize, length - ivSize, buffer, offset + ivSize)
     }
 
     /**
@@ -40,21 +54,33 @@ internal object AESGCM {
      */
     internal fun generateSymmetricKey(x25519PublicKey: ByteArray, x25519PrivateKey: ByteArray): ByteArray {
         val ephemeralSharedSecret = Curve25519.getInstance(Curve25519.BEST).calculateAgreement(x25519PublicKey, x25519PrivateKey)
-        val mac = Mac.getInstance("HmacSHA256")
-        mac.init(SecretKeySpec("LOKI".toByteArray(), "HmacSHA256"))
-        return mac.doFinal(ephemeralSharedSecret)
+        // doFinal leaves the MAC ready for the next key with the same "LOKI" secret
+        return symmetricKeyMac.get()!!.doFinal(ephemeralSharedSecret)
     }
 
     /**
      * Sync. Don't call from the main thread.
      */
     internal fun encrypt(plaintext: ByteArray, symmetricKey: ByteArray): ByteArray {
-        val iv = Util.getSecretBytes(ivSize)
-        synchronized(CIPHER_LOCK) {
-            val cipher = Cipher.getInstance("AES/GCM/NoPadding")
-            cipher.init(Cipher.ENCRYPT_MODE, SecretKeySpec(symmetricKey, "AES"), GCMParameterSpec(gcmTagSize, iv))
-            return ByteUtil.combine(iv, cipher.doFinal(plaintext))
-        }
+        val ivAndCiphertext = ByteArray(ivSize + plaintext.size + tagSize)
+        plaintext.copyInto(ivAndCiphertext, ivSize)
+        encryptInPlace(ivAndCiphertext, ivSize, plaintext.size, symmetricKey)
+        return ivAndCiphertext
+    }
+
+    /**
+     * Encrypts the [length] bytes at [offset] in [buffer] in place. The IV is written to the [ivSize]
+     * bytes before them and the tag to the [tagSize] bytes after them, so the caller has to leave
+     * room for both.
+     *
+     * Sync. Don't call from the main thread.
+     */
+    internal fun encryptInPlace(buffer: ByteArray, offset: Int, length: Int, symmetricKey: ByteArray) {
+        val ivOffset = offset - ivSize
+        Util.getSecretBytes(ivSize).copyInto(buffer, ivOffset)
+        val cipher = gcmCipher.get()!!
+        cipher.init(Cipher.ENCRYPT_MODE, SecretKeySpec(symmetricKey, "AES"), GCMParameterSpec(gcmTagSize, buffer, ivOffset, ivSize))
+        cipher.doFinal(buffer, offset, length, buffer, offset)
     }
 
     /**
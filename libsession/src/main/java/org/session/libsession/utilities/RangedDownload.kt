@@ -0,0 +1,147 @@
+package org.session.libsession.utilities
+
+import android.content.Context
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
+import org.session.libsession.snode.OnionResponse
+import org.session.libsignal.utilities.HTTP
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+
+/**
+ * Downloads a file a range at a time, appending each range to [destination] as soon as it arrives.
+ * The file is its own checkpoint: it only ever holds a prefix of the download, so when an attempt
+ * fails part way the next one asks for the rest starting at its length instead of at byte zero.
+ *
+ * [fetchRange] is given the inclusive byte range to request. Only a partial content response
+ * whose `Content-Range` starts where the file on disk ends is appended, and the download ends at
+ * the total length it gives, or at a short range when the total isn't known. Servers that ignore
+ * the `Range` header send the whole file instead, which is only accepted when nothing had been
+ * downloaded yet.
+ */
+class RangedDownload(
+    private val destination: File,
+    private val rangeSize: Int = DEFAULT_RANGE_SIZE,
+    private val fetchRange: suspend (LongRange) -> RangeResponse
+) {
+
+    /**
+     * A response to a range request, with the `Content-Range` header when there was one.
+     */
+    class RangeResponse(val statusCode: Int, val contentRange: String?, val body: ByteArray) {
+        companion object {
+            fun fromOnionResponse(response: OnionResponse): RangeResponse {
+                val headers = response.info["headers"] as? Map<*, *>
+                val contentRange = headers?.entries
+                    ?.firstOrNull { (name, _) -> (name as? String).equals("Content-Range", ignoreCase = true) }
+                    ?.value as? String
+                return RangeResponse(response.code ?: OK, contentRange, response.body ?: ByteArray(0))
+            }
+        }
+    }
+
+    /**
+     * A parsed `Content-Range` header: the inclusive range of the file that was sent and, if the
+     * server said, the length of the whole file.
+     */
+    private class ContentRange(val range: LongRange, val totalLength: Long?)
+
+    companion object {
+        // Every range is a separate onion request, so they're kept large enough that a file
+        // server sized attachment only needs a handful
+        const val DEFAULT_RANGE_SIZE = 2 * 1024 * 1024
+
+        private const val REPLAY_BUFFER_SIZE = 8192
+
+        private const val OK = 200
+        private const val PARTIAL_CONTENT = 206
+        private const val RANGE_NOT_SATISFIABLE = 416
+
+        private val CONTENT_RANGE = Regex("""bytes (\d+)-(\d+)/(\d+|\*)""")
+
+        private fun parseContentRange(header: String?): ContentRange? {
+            val (first, last, total) = header?.trim()?.let(CONTENT_RANGE::matchEntire)?.destructured ?: return null
+            return ContentRange(first.toLong()..last.toLong(), total.toLongOrNull())
+        }
+
+        fun rangeHeader(range: LongRange): Pair<String, String> = "Range" to "bytes=${range.first}-${range.last}"
+
+        /**
+         * The file an attachment is downloaded into. It's named after the attachment rather than
+         * made unique so a retry, even after a restart, finds it and carries on.
+         */
+        @JvmStatic
+        fun getPartialAttachmentFile(context: Context, attachmentId: Long): File =
+            File(context.cacheDir, "push-attachment-$attachmentId.part")
+    }
+
+    /**
+     * @param onReceived called with every byte of the file in order, starting with the ones an
+     * earlier attempt already left in [destination].
+     */
+    suspend fun download(onReceived: (ByteArray, Int, Int) -> Unit = { _, _, _ -> }) {
+        var offset = withContext(Dispatchers.IO) { replay(onReceived) }
+
+        while (true) {
+            val response = try {
+                fetchRange(offset until offset + rangeSize)
+            } catch (e: HTTP.HTTPRequestFailedException) {
+                // A file that's an exact multiple of the range size, and doesn't say how long it
+                // is, ends with an empty range
+                if (e.statusCode == RANGE_NOT_SATISFIABLE && offset > 0) return
+                throw e
+            }
+            val bytes = response.body
+
+            if (response.statusCode != PARTIAL_CONTENT) {
+                if (offset > 0) {
+                    // The server sent the whole file, what's on disk can't be trusted to line up with it
+                    withContext(Dispatchers.IO) { destination.delete() }
+                    throw IOException("Server ignored range request at byte $offset")
+                }
+                append(bytes, onReceived)
+                return
+            }
+
+            val contentRange = parseContentRange(response.contentRange)
+            if (contentRange == null || contentRange.range.first != offset ||
+                contentRange.range.last - contentRange.range.first + 1 != bytes.size.toLong()) {
+                throw IOException("Unexpected range ${response.contentRange} of ${bytes.size} bytes at byte $offset")
+            }
+
+            append(bytes, onReceived)
+            offset += bytes.size
+
+            val totalLength = contentRange.totalLength
+            if (totalLength != null) {
+                if (offset >= totalLength) return
+            } else if (bytes.size < rangeSize) {
+                return
+            }
+        }
+    }
+
+    private suspend fun append(bytes: ByteArray, onReceived: (ByteArray, Int, Int) -> Unit) {
+        withContext(Dispatchers.IO) {
+            FileOutputStream(destination, true).use { it.write(bytes) }
+        }
+        onReceived(bytes, 0, bytes.size)
+    }
+
+    private fun replay(onReceived: (ByteArray, Int, Int) -> Unit): Long {
+        if (!destination.exists()) return 0
+
+        var length = 0L
+        destination.inputStream().use { input ->
+            val buffer = ByteArray(REPLAY_BUFFER_SIZE)
+            while (true) {
+                val read = input.read(buffer)
+                if (read < 0) break
+                onReceived(buffer, 0, read)
+                length += read
+            }
+        }
+        return length
+    }
+}
@@ -23,6 +23,7 @@ import android.net.Uri;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
 
 import com.annimon.stream.function.Consumer;
 
@@ -50,6 +51,7 @@ import org.session.libsignal.utilities.Log;
 import org.session.libsignal.utilities.guava.Optional;
 
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -126,6 +128,23 @@ public class Recipient implements RecipientModifiedListener, Cloneable {
     return provider.removeCached(address);
   }
 
+  /**
+   * Resolves the recipients for [addresses] that aren't cached yet in one go, so that resolving
+   * them afterwards doesn't take a database query each.
+   */
+  @WorkerThread
+  public static void prefetch(@NonNull Context context, @NonNull Collection<Address> addresses) {
+    provider.prefetch(context, addresses);
+  }
+
+  public static void onTrimMemory(int level) {
+    provider.onTrimMemory(level);
+  }
+
+  public static @NonNull CacheStats getCacheStats() {
+    return provider.getCacheStats();
+  }
+
   Recipient(@NonNull  Context context,
             @NonNull  Address address,
             @Nullable Recipient stale,
@@ -510,6 +529,10 @@ public class Recipient implements RecipientModifiedListener, Cloneable {
     listeners.add(listener);
   }
 
+  synchronized boolean hasListeners() {
+    return !listeners.isEmpty();
+  }
+
   public synchronized void removeListener(RecipientModifiedListener listener) {
     listeners.remove(listener);
 
@@ -944,6 +967,35 @@ public class Recipient implements RecipientModifiedListener, Cloneable {
     }
   }
 
+  public static class CacheStats {
+    private final long hits;
+    private final long misses;
+    private final int  size;
+
+    CacheStats(long hits, long misses, int size) {
+      this.hits   = hits;
+      this.misses = misses;
+      this.size   = size;
+    }
+
+    public long getHits() {
+      return hits;
+    }
+
+    public long getMisses() {
+      return misses;
+    }
+
+    public int getSize() {
+      return size;
+    }
+
+    public double getHitRate() {
+      long lookups = hits + misses;
+      return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+  }
+
   public static class RecipientSettings {
     private final boolean                blocked;
     private final boolean                approved;
@@ -16,6 +16,7 @@
  */
 package org.session.libsession.utilities.recipients;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.net.Uri;
 import android.text.TextUtils;
@@ -36,18 +37,22 @@ import org.session.libsession.utilities.recipients.Recipient.RecipientSettings;
 import org.session.libsession.utilities.recipients.Recipient.RegisteredState;
 import org.session.libsession.utilities.recipients.Recipient.UnidentifiedAccessMode;
 import org.session.libsession.utilities.recipients.Recipient.VibrateState;
+import org.session.libsignal.utilities.Log;
 import org.session.libsignal.utilities.guava.Optional;
 
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
 
 class RecipientProvider {
 
-  @SuppressWarnings("unused")
   private static final String TAG = RecipientProvider.class.getSimpleName();
 
   private static final RecipientCache  recipientCache         = new RecipientCache();
@@ -80,6 +85,49 @@ class RecipientProvider {
     return recipientCache.remove(address);
   }
 
+  /**
+   * Resolves the individual recipients among [addresses] that aren't cached yet, loading all of
+   * their settings in a single query rather than one query per recipient.
+   */
+  void prefetch(@NonNull Context context, @NonNull Collection<Address> addresses) {
+    List<Address> missing = new ArrayList<>();
+    for (Address address : addresses) {
+      // Groups also need their group record and members, so they're left to be resolved as usual
+      if (!address.isGroupOrCommunity() && !missing.contains(address) && !recipientCache.contains(address)) {
+        missing.add(address);
+      }
+    }
+    if (missing.isEmpty()) return;
+
+    Map<Address, RecipientSettings> settings    = MessagingModuleConfiguration.getShared().getStorage().getRecipientSettings(missing);
+    String                          localNumber = TextSecurePreferences.getLocalNumber(context);
+
+    for (Address address : missing) {
+      RecipientSettings recipientSettings = settings.get(address);
+      boolean           systemContact     = recipientSettings != null && !TextUtils.isEmpty(recipientSettings.getSystemDisplayName());
+      boolean           isLocalNumber     = address.serialize().equals(localNumber);
+
+      recipientCache.setIfAbsent(address, new Recipient(context, address, new RecipientDetails(null, null, systemContact, isLocalNumber, recipientSettings, null)));
+    }
+  }
+
+  void onTrimMemory(int level) {
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+      recipientCache.trim(0);
+    } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+      recipientCache.trim(recipientCache.size() / 2);
+    } else {
+      return;
+    }
+
+    Recipient.CacheStats stats = recipientCache.getStats();
+    Log.i(TAG, "Trimmed recipient cache to " + stats.getSize() + " (level " + level + ", hit rate " + stats.getHitRate() + ")");
+  }
+
+  @NonNull Recipient.CacheStats getCacheStats() {
+    return recipientCache.getStats();
+  }
+
   private @NonNull Optional<RecipientDetails> createPrefetchedRecipientDetails(@NonNull Context context, @NonNull Address address,
                                                                                @NonNull Optional<RecipientSettings> settings,
                                                                                @NonNull Optional<GroupRecord> groupRecord)
@@ -224,22 +272,124 @@ class RecipientProvider {
     }
   }
 
-  private static class RecipientCache {
+  /**
+   * A least recently used cache of recipients. Contacts, groups, the local number and recipients
+   * that something is listening to (such as the recipient of an open conversation) are pinned and
+   * never evicted, as an evicted recipient would stop receiving updates.
+   */
+  static class RecipientCache {
 
-    private final Map<Address,Recipient> cache = new ConcurrentHashMap<>(1000);
+    private static final int MAX_SIZE = 1000;
+
+    private final int                    maxSize;
+    private final Map<Address,Recipient> cache;
+    private final AtomicLong             hits   = new AtomicLong();
+    private final AtomicLong             misses = new AtomicLong();
+
+    RecipientCache() {
+      this(MAX_SIZE);
+    }
+
+    RecipientCache(int maxSize) {
+      this.maxSize = maxSize;
+      this.cache   = new LinkedHashMap<>(maxSize, 0.75f, true);
+    }
 
     public Recipient get(Address address) {
-      return cache.get(address);
+      Recipient recipient;
+      synchronized (this) {
+        recipient = cache.get(address);
+      }
+
+      if (recipient != null) hits.incrementAndGet();
+      else                   misses.incrementAndGet();
+
+      return recipient;
+    }
+
+    public synchronized boolean contains(Address address) {
+      return cache.containsKey(address);
     }
 
     public void set(Address address, Recipient recipient) {
-      cache.put(address, recipient);
+      boolean full;
+      synchronized (this) {
+        cache.put(address, recipient);
+        full = cache.size() > maxSize;
+      }
+
+      if (full) trim(maxSize * 9 / 10);
+    }
+
+    public void setIfAbsent(Address address, Recipient recipient) {
+      boolean full;
+      synchronized (this) {
+        if (cache.containsKey(address)) return;
+        cache.put(address, recipient);
+        full = cache.size() > maxSize;
+      }
+
+      if (full) trim(maxSize * 9 / 10);
     }
 
-    public boolean remove(Address address) {
+    public synchronized boolean remove(Address address) {
       return cache.remove(address) != null;
     }
 
+    public synchronized int size() {
+      return cache.size();
+    }
+
+    /**
+     * Evicts the least recently used recipients that aren't pinned until at most [size] are left,
+     * or until only pinned recipients are left.
+     */
+    public void trim(int size) {
+      int                                 excess;
+      List<Map.Entry<Address, Recipient>> candidates;
+      synchronized (this) {
+        excess = cache.size() - size;
+        if (excess <= 0) return;
+
+        candidates = new ArrayList<>(cache.size());
+        for (Map.Entry<Address, Recipient> entry : cache.entrySet()) {
+          candidates.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+        }
+      }
+
+      // Checking whether a recipient is pinned locks the recipient, so it's done outside of the cache's lock.
+      // Pinned recipients are skipped, so the scan goes on until enough are evicted or none are left
+      List<Map.Entry<Address, Recipient>> pinned = new LinkedList<>();
+      List<Map.Entry<Address, Recipient>> evicted = new LinkedList<>();
+      for (Map.Entry<Address, Recipient> candidate : candidates) {
+        if (evicted.size() == excess) break;
+
+        if (isPinned(candidate.getValue())) pinned.add(candidate);
+        else                                evicted.add(candidate);
+      }
+
+      synchronized (this) {
+        for (Map.Entry<Address, Recipient> entry : evicted) {
+          // The recipient may have been replaced in the meantime
+          if (cache.get(entry.getKey()) == entry.getValue()) cache.remove(entry.getKey());
+        }
+
+        // Mark pinned recipients as used so that the next trim looks past them
+        for (Map.Entry<Address, Recipient> entry : pinned) cache.get(entry.getKey());
+      }
+    }
+
+    public synchronized Recipient.CacheStats getStats() {
+      return new Recipient.CacheStats(hits.get(), misses.get(), cache.size());
+    }
+
+    private static boolean isPinned(Recipient recipient) {
+      return recipient.getAddress().isGroupOrCommunity() ||
+             recipient.isLocalNumber()                   ||
+             recipient.isApproved()                      ||
+             recipient.hasListeners();
+    }
+
   }
 
 }
\ No newline at end of file
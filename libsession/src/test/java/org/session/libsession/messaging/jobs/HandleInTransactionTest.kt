@@ -0,0 +1,100 @@
+package org.session.libsession.messaging.jobs
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class HandleInTransactionTest {
+
+    /**
+     * Transactions the way SQLCipher nests them: a nested transaction that ends without success
+     * marks the outer one as failed, which then rolls back when it ends. Like
+     * `Storage.runInTransaction`, the outermost transaction throws when that happens.
+     */
+    private class FakeDatabase {
+        val committed = mutableListOf<String>()
+        private val pending = mutableListOf<String>()
+        private var depth = 0
+        private var failed = false
+        var transactions = 0
+
+        fun <T> runInTransaction(block: () -> T): T {
+            if (depth++ == 0) {
+                failed = false
+                transactions++
+            }
+            var successful = false
+            val result = try {
+                block().also { successful = true }
+            } finally {
+                if (!successful) failed = true
+                if (--depth == 0) {
+                    if (!failed) committed += pending
+                    pending.clear()
+                }
+            }
+            if (depth == 0 && failed) throw IllegalStateException("rolled back")
+            return result
+        }
+
+        // Inserts the way the message handlers do, in a transaction of their own
+        fun insert(message: String) = runInTransaction {
+            pending += message
+            if (message.startsWith("bad")) throw IllegalStateException(message)
+        }
+    }
+
+    private val database = FakeDatabase()
+    private val rollbacks = mutableListOf<Exception>()
+
+    private fun handle(messages: List<String>) = handleInTransaction(
+        items = messages,
+        runInTransaction = { block -> database.runInTransaction(block) },
+        onRollback = { rollbacks += it },
+        handle = database::insert
+    )
+
+    @Test
+    fun `a batch should be committed in one transaction`() {
+        val failed = handle(listOf("one", "two", "three"))
+
+        assertEquals(emptyList<Pair<String, Exception>>(), failed)
+        assertEquals(listOf("one", "two", "three"), database.committed)
+        assertEquals(1, database.transactions)
+        assertEquals(0, rollbacks.size)
+    }
+
+    @Test
+    fun `a failing message should not lose the rest of the batch`() {
+        val failed = handle(listOf("one", "bad two", "three"))
+
+        assertEquals(listOf("bad two"), failed.map { it.first })
+        assertEquals(listOf("one", "three"), database.committed)
+        assertEquals(1, rollbacks.size)
+        // The batch, then each message on its own
+        assertEquals(4, database.transactions)
+    }
+
+    @Test
+    fun `a failure caught by its handler should not lose the rest of the batch`() {
+        // The handler swallows the failure of its nested transaction, which still rolls back
+        // the transaction around it
+        val failed = handleInTransaction(
+            items = listOf("one", "bad two", "three"),
+            runInTransaction = { block -> database.runInTransaction(block) },
+            onRollback = { rollbacks += it },
+            handle = { message -> runCatching { database.insert(message) } }
+        )
+
+        assertEquals(listOf("bad two"), failed.map { it.first })
+        assertEquals(listOf("one", "three"), database.committed)
+        assertEquals(1, rollbacks.size)
+    }
+
+    @Test
+    fun `every failing message should be reported`() {
+        val failed = handle(listOf("bad one", "two", "bad three"))
+
+        assertEquals(listOf("bad one", "bad three"), failed.map { it.first })
+        assertEquals(listOf("two"), database.committed)
+    }
+}
@@ -0,0 +1,108 @@
+package org.session.libsession.messaging.jobs
+
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.test.TestScope
+import kotlinx.coroutines.test.advanceUntilIdle
+import kotlinx.coroutines.test.runCurrent
+import kotlinx.coroutines.test.runTest
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import org.session.libsession.messaging.utilities.Data
+
+@OptIn(ExperimentalCoroutinesApi::class)
+class JobLaneTest {
+
+    private class FakeJob(val name: String, val run: suspend () -> Unit = {}) : Job {
+        override var delegate: JobDelegate? = null
+        override var id: String? = name
+        override var failureCount: Int = 0
+        override val maxFailureCount: Int = 1
+
+        override suspend fun execute(dispatcherName: String) = run()
+        override fun serialize(): Data = Data.EMPTY
+        override fun getFactoryKey(): String = "FakeJob"
+    }
+
+    private val counters = JobTypeCounters()
+    private val ran = mutableListOf<String>()
+
+    private fun TestScope.lane(parallelism: Int) = JobLane("test", parallelism, backgroundScope, { counters }) { job, laneName ->
+        synchronized(ran) { ran += job.id!! }
+        job.execute(laneName)
+    }
+
+    @Test
+    fun `jobs should run by priority and then in the order they were added`() = runTest {
+        val lane = lane(parallelism = 1)
+
+        lane.enqueue(FakeJob("background"), priority = 2)
+        lane.enqueue(FakeJob("interactive 1"), priority = 0)
+        lane.enqueue(FakeJob("default"), priority = 1)
+        lane.enqueue(FakeJob("interactive 2"), priority = 0)
+        advanceUntilIdle()
+
+        assertEquals(listOf("interactive 1", "interactive 2", "default", "background"), ran)
+    }
+
+    @Test
+    fun `an urgent job should overtake the jobs waiting on a busy lane`() = runTest {
+        val lane = lane(parallelism = 1)
+        val release = CompletableDeferred<Unit>()
+
+        lane.enqueue(FakeJob("running") { release.await() }, priority = 1)
+        runCurrent()
+        lane.enqueue(FakeJob("waiting"), priority = 1)
+        lane.enqueue(FakeJob("urgent"), priority = 0)
+        release.complete(Unit)
+        advanceUntilIdle()
+
+        assertEquals(listOf("running", "urgent", "waiting"), ran)
+    }
+
+    @Test
+    fun `a lane should run at most its parallelism worth of jobs at once`() = runTest {
+        val lane = lane(parallelism = 3)
+        var running = 0
+        var maxRunning = 0
+
+        repeat(10) { index ->
+            lane.enqueue(FakeJob("job $index") {
+                maxRunning = maxOf(maxRunning, ++running)
+                delay(1_000)
+                running--
+            }, priority = 0)
+        }
+        advanceUntilIdle()
+
+        assertEquals(10, ran.size)
+        assertEquals(3, maxRunning)
+        // Ten jobs three at a time take four rounds
+        assertEquals(4_000L, currentTime)
+    }
+
+    @Test
+    fun `a closed lane should still run the jobs queued on it`() = runTest {
+        val lane = lane(parallelism = 1)
+
+        repeat(3) { lane.enqueue(FakeJob("job $it"), priority = 0) }
+        lane.close()
+        advanceUntilIdle()
+
+        assertEquals(listOf("job 0", "job 1", "job 2"), ran)
+    }
+
+    @Test
+    fun `metrics should count queued and started jobs`() = runTest {
+        val lane = lane(parallelism = 1)
+
+        repeat(3) { lane.enqueue(FakeJob("job $it"), priority = 0) }
+        assertEquals(3, counters.snapshot().queueDepth)
+        advanceUntilIdle()
+
+        val metrics = counters.snapshot()
+        assertEquals(0, metrics.queueDepth)
+        assertEquals(3L, metrics.started)
+    }
+}
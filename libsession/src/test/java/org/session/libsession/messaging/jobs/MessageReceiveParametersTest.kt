@@ -0,0 +1,35 @@
+package org.session.libsession.messaging.jobs
+
+import com.google.protobuf.ByteString
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertSame
+import org.junit.Test
+import org.session.libsignal.protos.SignalServiceProtos.Envelope
+
+class MessageReceiveParametersTest {
+
+    private val envelope = Envelope.newBuilder()
+        .setType(Envelope.Type.SESSION_MESSAGE)
+        .setTimestamp(1_700_000_000_000L)
+        .setContent(ByteString.copyFromUtf8("content"))
+        .build()
+
+    @Test
+    fun `a parsed envelope should be handed over as it is`() {
+        val parameters = MessageReceiveParameters(envelope, serverHash = "hash")
+
+        assertSame(envelope, parameters.envelope)
+        assertEquals(envelope.toByteString(), parameters.toByteString())
+        assertArrayEquals(envelope.toByteArray(), parameters.data)
+    }
+
+    @Test
+    fun `serialized data should be parsed when the envelope is needed`() {
+        val parameters = MessageReceiveParameters(envelope.toByteArray(), serverHash = "hash")
+
+        assertEquals(envelope, parameters.envelope)
+        assertSame(parameters.envelope, parameters.envelope)
+        assertEquals(envelope.toByteString(), parameters.toByteString())
+    }
+}
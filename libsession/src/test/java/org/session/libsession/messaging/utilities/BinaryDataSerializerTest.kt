@@ -0,0 +1,76 @@
+package org.session.libsession.messaging.utilities
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class BinaryDataSerializerTest {
+
+    private val serializer = BinaryDataSerializer()
+
+    @Test
+    fun `it should round trip every kind of value`() {
+        val data = Data.Builder()
+            .putString("s1", "s1 value")
+            .putString("null", null)
+            .putString("long", "x".repeat(100_000))
+            .putStringArray("s_array_1", arrayOf("a", "b", "c"))
+            .putInt("i1", Int.MAX_VALUE)
+            .putIntArray("i_array_1", intArrayOf(1, 2, Int.MIN_VALUE))
+            .putLong("l1", Long.MIN_VALUE)
+            .putLongArray("l_array_1", longArrayOf(1, 2, Long.MAX_VALUE))
+            .putFloat("f1", 1.2f)
+            .putFloatArray("f_array_1", floatArrayOf(5.6f, 7.8f))
+            .putDouble("d1", 10.2)
+            .putDoubleArray("d_array_1", doubleArrayOf(50.6, 70.8))
+            .putBoolean("b1", true)
+            .putBooleanArray("b_array_1", booleanArrayOf(false, true))
+            .putByteArray("bytes", byteArrayOf(0, 1, -1, 127, -128))
+            .build()
+
+        val result = serializer.deserialize(serializer.serialize(data))
+
+        assertEquals("s1 value", result.getString("s1"))
+        assertTrue(result.hasString("null"))
+        assertNull(result.getString("null"))
+        assertEquals(100_000, result.getString("long").length)
+        assertArrayEquals(arrayOf("a", "b", "c"), result.getStringArray("s_array_1"))
+        assertEquals(Int.MAX_VALUE, result.getInt("i1"))
+        assertArrayEquals(intArrayOf(1, 2, Int.MIN_VALUE), result.getIntegerArray("i_array_1"))
+        assertEquals(Long.MIN_VALUE, result.getLong("l1"))
+        assertArrayEquals(longArrayOf(1, 2, Long.MAX_VALUE), result.getLongArray("l_array_1"))
+        assertEquals(1.2f, result.getFloat("f1"), 0f)
+        assertArrayEquals(floatArrayOf(5.6f, 7.8f), result.getFloatArray("f_array_1"), 0f)
+        assertEquals(10.2, result.getDouble("d1"), 0.0)
+        assertArrayEquals(doubleArrayOf(50.6, 70.8), result.getDoubleArray("d_array_1"), 0.0)
+        assertTrue(result.getBoolean("b1"))
+        assertArrayEquals(booleanArrayOf(false, true), result.getBooleanArray("b_array_1"))
+        assertArrayEquals(byteArrayOf(0, 1, -1, 127, -128), result.getByteArray("bytes"))
+        assertFalse(result.hasLong("i1"))
+    }
+
+    @Test
+    fun `it should round trip empty data`() {
+        val result = serializer.deserialize(serializer.serialize(Data.EMPTY))
+
+        assertFalse(result.hasString("s1"))
+    }
+
+    @Test(expected = IllegalStateException::class)
+    fun `it should reject an unknown version`() {
+        val serialized = serializer.serialize(Data.EMPTY)
+        serialized[0] = 2
+
+        serializer.deserialize(serialized)
+    }
+
+    @Test(expected = IllegalStateException::class)
+    fun `it should reject truncated data`() {
+        val serialized = serializer.serialize(Data.Builder().putString("s1", "s1 value").build())
+
+        serializer.deserialize(serialized.copyOf(serialized.size - 1))
+    }
+}
@@ -0,0 +1,90 @@
+package org.session.libsession.snode
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.session.libsignal.utilities.OnionPathHealth
+
+class OnionPathSelectionTest {
+
+    private val fast = listOf("guard 1", "snode 1", "snode 2")
+    private val slow = listOf("guard 2", "snode 3", "snode 4")
+    private val failing = listOf("guard 3", "snode 5", "snode 6")
+    private val paths = listOf(fast, slow, failing)
+
+    private val failureThreshold = 3
+
+    @Test
+    fun `the average round trip time should favour recent samples`() {
+        val health = OnionPathHealth().withRoundTripTime(100.0).withRoundTripTime(200.0)
+
+        assertEquals(130.0, health.roundTripTime!!, 0.001)
+    }
+
+    @Test
+    fun `it should pick the fastest path`() {
+        val health = mapOf(
+            "guard 1" to OnionPathHealth(roundTripTime = 300.0),
+            "guard 2" to OnionPathHealth(roundTripTime = 900.0),
+            "guard 3" to OnionPathHealth(roundTripTime = 600.0)
+        )
+
+        repeat(10) { assertEquals(fast, OnionPathSelection.healthiest(paths, health)) }
+    }
+
+    @Test
+    fun `failures should count against a fast path`() {
+        val health = mapOf(
+            "guard 1" to OnionPathHealth(roundTripTime = 300.0, failureCount = 2),
+            "guard 2" to OnionPathHealth(roundTripTime = 900.0),
+            "guard 3" to OnionPathHealth(roundTripTime = 600.0)
+        )
+
+        assertEquals(failing, OnionPathSelection.healthiest(paths, health))
+    }
+
+    @Test
+    fun `it should try paths that haven't been measured yet`() {
+        val health = mapOf(
+            "guard 1" to OnionPathHealth(roundTripTime = 300.0),
+            "guard 2" to OnionPathHealth(roundTripTime = 900.0)
+        )
+
+        assertEquals(failing, OnionPathSelection.healthiest(paths, health))
+    }
+
+    @Test
+    fun `it should pick between equally healthy paths at random`() {
+        val picked = (0 until 100).map { OnionPathSelection.healthiest(paths, mapOf<String, OnionPathHealth>()) }.toSet()
+
+        assertEquals(paths.toSet(), picked)
+    }
+
+    @Test
+    fun `there's no healthiest path without paths`() {
+        assertNull(OnionPathSelection.healthiest(listOf<List<String>>(), mapOf()))
+    }
+
+    @Test
+    fun `it should flag slow paths and paths about to be dropped`() {
+        val health = mapOf(
+            "guard 1" to OnionPathHealth(roundTripTime = 400.0),
+            "guard 2" to OnionPathHealth(roundTripTime = 2000.0),
+            "guard 3" to OnionPathHealth(roundTripTime = 500.0, failureCount = failureThreshold - 1)
+        )
+
+        assertEquals(listOf(slow, failing), OnionPathSelection.degraded(paths, health, failureThreshold))
+    }
+
+    @Test
+    fun `it shouldn't flag paths that are only a little slower`() {
+        val health = mapOf(
+            "guard 1" to OnionPathHealth(roundTripTime = 100.0),
+            "guard 2" to OnionPathHealth(roundTripTime = 800.0),
+            "guard 3" to OnionPathHealth(failureCount = 1)
+        )
+
+        assertTrue(OnionPathSelection.degraded(paths, health, failureThreshold).isEmpty())
+    }
+}
@@ -0,0 +1,72 @@
+package org.session.libsession.snode
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Test
+import org.session.libsession.snode.OnionRequestEncryption.Layer
+import org.session.libsession.utilities.AESGCM
+import org.session.libsignal.utilities.Hex
+import org.session.libsignal.utilities.JsonUtil
+import org.session.libsignal.utilities.toHexString
+import org.whispersystems.curve25519.Curve25519
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import kotlin.random.Random
+
+class OnionRequestEncryptionTest {
+
+    private val curve = Curve25519.getInstance(Curve25519.BEST)
+
+    // The destination, then the path from the last snode to the guard snode
+    private val keyPairs = List(4) { curve.generateKeyPair() }
+    private val layers = keyPairs.mapIndexed { i, keyPair -> Layer(keyPair.publicKey.toHexString(), mapOf("destination" to "hop $i")) }
+
+    private fun decode(data: ByteArray): Pair<ByteArray, Map<*, *>> {
+        val size = ByteBuffer.wrap(data, 0, Int.SIZE_BYTES).order(ByteOrder.LITTLE_ENDIAN).int
+        val ciphertext = data.copyOfRange(Int.SIZE_BYTES, Int.SIZE_BYTES + size)
+        val json = JsonUtil.fromJson(data.copyOfRange(Int.SIZE_BYTES + size, data.size), Map::class.java)
+        return ciphertext to json
+    }
+
+    /**
+     * Peels the onion the way the snodes on the path do and returns what reaches the destination.
+     */
+    private fun peel(onion: OnionRequestEncryption.Onion): ByteArray {
+        var data = onion.body
+        for (i in layers.indices.reversed()) {
+            val (ciphertext, json) = decode(data)
+            if (i == layers.lastIndex) {
+                assertFalse(json.containsKey("destination"))
+            } else {
+                assertEquals("hop $i", json["destination"])
+            }
+            val ephemeralPublicKey = Hex.fromStringCondensed(json["ephemeral_key"] as String)
+            val symmetricKey = AESGCM.generateSymmetricKey(ephemeralPublicKey, keyPairs[i].privateKey)
+            if (i == 0) {
+                assertArrayEquals(onion.destinationSymmetricKey, symmetricKey)
+            }
+            data = AESGCM.decrypt(ciphertext, symmetricKey)
+        }
+        return data
+    }
+
+    @Test
+    fun `every hop should be able to peel its layer`() {
+        for (size in listOf(0, 1, 1000, 100_000)) {
+            val payload = Random.nextBytes(size)
+
+            assertArrayEquals(payload, peel(OnionRequestEncryption.buildOnion(payload, null, layers)))
+        }
+    }
+
+    @Test
+    fun `it should wrap the payload for the destination when asked to`() {
+        val payload = Random.nextBytes(1000)
+
+        val (wrappedPayload, json) = decode(peel(OnionRequestEncryption.buildOnion(payload, mapOf("headers" to ""), layers)))
+
+        assertArrayEquals(payload, wrappedPayload)
+        assertEquals(mapOf("headers" to ""), json)
+    }
+}
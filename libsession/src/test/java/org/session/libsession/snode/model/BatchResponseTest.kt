@@ -0,0 +1,91 @@
+package org.session.libsession.snode.model
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.session.libsignal.utilities.JsonUtil
+import java.util.Base64
+import kotlin.random.Random
+
+class BatchResponseTest {
+
+    private fun message(index: Int, data: ByteArray) = mapOf(
+        "hash" to "hash $index",
+        "t" to 1_700_000_000_000L + index,
+        "expiration" to 1_700_001_000_000L + index,
+        "data" to Base64.getEncoder().encodeToString(data)
+    )
+
+    private fun batch(vararg results: Pair<Int, Any>): ByteArray = JsonUtil.toJson(
+        mapOf("results" to results.map { (code, body) -> mapOf("code" to code, "body" to body) })
+    ).toByteArray()
+
+    @Test
+    fun `it should decode every sub-request's body as its own type`() {
+        val data = List(3) { Random.nextBytes(200) }
+        val json = batch(
+            200 to mapOf("messages" to data.mapIndexed(::message), "more" to false),
+            200 to mapOf("updated" to listOf("hash 0")),
+            421 to "Not part of this swarm",
+            400 to 12
+        )
+
+        val response = BatchResponse.fromJson(json)
+
+        assertEquals(listOf(200, 200, 421, 400), response.results.map { it.code })
+        val messages = response.results[0].bodyAs(RetrieveMessageResponse::class.java).messages
+        assertEquals(listOf("hash 0", "hash 1", "hash 2"), messages.map { it?.hash })
+        assertEquals(1_700_000_000_001L, messages[1]?.timestamp)
+        assertEquals(1_700_001_000_001L, messages[1]?.expiration)
+        data.forEachIndexed { i, bytes -> assertArrayEquals(bytes, messages[i]?.data) }
+        assertEquals(listOf("hash 0"), response.results[1].bodyAs(Map::class.java)["updated"])
+        assertEquals("Not part of this swarm", response.results[2].body.asText())
+        assertEquals(12, response.results[3].body.asInt())
+    }
+
+    @Test
+    fun `messages that can't be read should be null without failing the others`() {
+        val json = batch(
+            200 to mapOf(
+                "messages" to listOf(
+                    mapOf("hash" to "no data"),
+                    "not a message",
+                    mapOf("data" to "AAAA"),
+                    message(3, byteArrayOf(1, 2, 3))
+                )
+            )
+        )
+
+        val messages = BatchResponse.fromJson(json).results[0].bodyAs(RetrieveMessageResponse::class.java).messages
+
+        assertEquals(4, messages.size)
+        assertTrue(messages.take(3).all { it == null })
+        assertArrayEquals(byteArrayOf(1, 2, 3), messages[3]?.data)
+    }
+
+    @Test
+    fun `a response without messages should have none`() {
+        val response = JsonUtil.fromJson("{\"hf\":[19,3]}".toByteArray(), RetrieveMessageResponse::class.java)
+
+        assertTrue(response.messages.isEmpty())
+    }
+
+    @Test
+    fun `a catch-up retrieve should decode the same messages as a generic map`() {
+        val random = Random(42)
+        val json = batch(200 to mapOf("messages" to List(500) { message(it, random.nextBytes(random.nextInt(100, 2000))) }))
+
+        val results = JsonUtil.fromJson(json, Map::class.java)["results"] as List<*>
+        val expected = (((results[0] as Map<*, *>)["body"] as Map<*, *>)["messages"] as List<*>).map { it as Map<*, *> }
+        val messages = BatchResponse.fromJson(json).results[0].bodyAs(RetrieveMessageResponse::class.java).messages
+
+        assertEquals(expected.size, messages.size)
+        expected.zip(messages).forEach { (map, message) ->
+            assertEquals(map["hash"], message?.hash)
+            assertEquals((map["t"] as Number).toLong(), message?.timestamp)
+            assertEquals((map["expiration"] as Number).toLong(), message?.expiration)
+            assertArrayEquals(Base64.getDecoder().decode(map["data"] as String), message?.data)
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package org.session.libsession.utilities
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Test
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import kotlin.random.Random
+
+class AESGCMTest {
+
+    @Test
+    fun `it should round trip`() {
+        val key = Random.nextBytes(32)
+        val plaintext = Random.nextBytes(1000)
+
+        assertArrayEquals(plaintext, AESGCM.decrypt(AESGCM.encrypt(plaintext, key), key))
+    }
+
+    @Test
+    fun `it should round trip from many threads at once`() {
+        val threads = 8
+        val executor = Executors.newFixedThreadPool(threads)
+        try {
+            val tasks = (0 until threads * 4).map { task ->
+                Callable {
+                    val random = Random(task)
+                    repeat(200) {
+                        val key = random.nextBytes(32)
+                        val plaintext = random.nextBytes(random.nextInt(1, 4096))
+                        assertArrayEquals(plaintext, AESGCM.decrypt(AESGCM.encrypt(plaintext, key), key))
+                    }
+                }
+            }
+
+            // get() rethrows any failed assertion from the worker
+            executor.invokeAll(tasks).forEach { it.get() }
+        } finally {
+            executor.shutdown()
+            executor.awaitTermination(10, TimeUnit.SECONDS)
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package org.session.libsession.utilities
+
+import kotlinx.coroutines.runBlocking
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.fail
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.session.libsignal.utilities.HTTP
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import kotlin.random.Random
+
+class RangedDownloadTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private val rangeSize = 1000
+    private val file = Random(42).nextBytes(4500)
+
+    /**
+     * Serves [content] the way the file server does, failing the request for the range starting at
+     * [failAt] once. [sendsTotalLength] is whether the `Content-Range` says how long the file is.
+     */
+    private class FakeFileServer(
+        private val content: ByteArray,
+        private var failAt: Long = -1,
+        private val supportsRanges: Boolean = true,
+        private val sendsTotalLength: Boolean = true,
+        private val rangeShift: Int = 0
+    ) {
+        val requestedRanges = mutableListOf<LongRange>()
+
+        fun fetch(range: LongRange): RangedDownload.RangeResponse {
+            requestedRanges += range
+            if (range.first == failAt) {
+                failAt = -1
+                throw IOException("Connection reset")
+            }
+            if (!supportsRanges) return RangedDownload.RangeResponse(200, null, content)
+            if (range.first >= content.size) throw HTTP.HTTPRequestFailedException(416, null)
+            val first = range.first.toInt() + rangeShift
+            val end = minOf(range.last + 1 + rangeShift, content.size.toLong()).toInt()
+            val total = if (sendsTotalLength) content.size.toString() else "*"
+            return RangedDownload.RangeResponse(206, "bytes $first-${end - 1}/$total", content.copyOfRange(first, end))
+        }
+    }
+
+    @Test
+    fun `it should download a file in ranges`() {
+        val server = FakeFileServer(file)
+        val destination = folder.newFile()
+        val received = ByteArrayOutputStream()
+
+        runBlocking {
+            RangedDownload(destination, rangeSize, server::fetch).download { bytes, offset, count -> received.write(bytes, offset, count) }
+        }
+
+        assertArrayEquals(file, destination.readBytes())
+        assertArrayEquals(file, received.toByteArray())
+        assertEquals(listOf(0L, 1000L, 2000L, 3000L, 4000L), server.requestedRanges.map { it.first })
+    }
+
+    @Test
+    fun `it should resume from where a failed download stopped`() {
+        val server = FakeFileServer(file, failAt = 3000)
+        val destination = folder.newFile()
+
+        try {
+            runBlocking { RangedDownload(destination, rangeSize, server::fetch).download() }
+            fail("Expected the download to fail")
+        } catch (e: IOException) {
+            // Expected
+        }
+        assertEquals(3000, destination.length())
+
+        server.requestedRanges.clear()
+        val received = ByteArrayOutputStream()
+        runBlocking {
+            RangedDownload(destination, rangeSize, server::fetch).download { bytes, offset, count -> received.write(bytes, offset, count) }
+        }
+
+        assertArrayEquals(file, destination.readBytes())
+        // What was already on disk is handed over again before the new ranges
+        assertArrayEquals(file, received.toByteArray())
+        assertEquals(listOf(3000L, 4000L), server.requestedRanges.map { it.first })
+    }
+
+    @Test
+    fun `it should finish a file that's a multiple of the range size`() {
+        val content = file.copyOf(3000)
+        val server = FakeFileServer(content)
+        val destination = folder.newFile()
+
+        runBlocking { RangedDownload(destination, rangeSize, server::fetch).download() }
+
+        assertArrayEquals(content, destination.readBytes())
+        // The total length says it's done, there's no need to ask for more
+        assertEquals(listOf(0L, 1000L, 2000L), server.requestedRanges.map { it.first })
+    }
+
+    @Test
+    fun `it should finish a file that's a multiple of the range size without a total length`() {
+        val content = file.copyOf(3000)
+        val server = FakeFileServer(content, sendsTotalLength = false)
+        val destination = folder.newFile()
+
+        runBlocking { RangedDownload(destination, rangeSize, server::fetch).download() }
+
+        assertArrayEquals(content, destination.readBytes())
+        assertEquals(listOf(0L, 1000L, 2000L, 3000L), server.requestedRanges.map { it.first })
+    }
+
+    @Test
+    fun `it should reject a range that doesn't start where the file ends`() {
+        val server = FakeFileServer(file, rangeShift = 10)
+        val destination = folder.newFile()
+
+        try {
+            runBlocking { RangedDownload(destination, rangeSize, server::fetch).download() }
+            fail("Expected the download to fail")
+        } catch (e: IOException) {
+            // Expected
+        }
+
+        assertEquals(0, destination.length())
+    }
+
+    @Test
+    fun `it should accept the whole file from a server that ignores ranges`() {
+        val server = FakeFileServer(file, supportsRanges = false)
+        val destination = folder.newFile()
+
+        runBlocking { RangedDownload(destination, rangeSize, server::fetch).download() }
+
+        assertArrayEquals(file, destination.readBytes())
+        assertEquals(1, server.requestedRanges.size)
+    }
+
+    @Test
+    fun `it should stop at a whole file of exactly the range size from a server that ignores ranges`() {
+        val content = file.copyOf(rangeSize)
+        val server = FakeFileServer(content, supportsRanges = false)
+        val destination = folder.newFile()
+
+        runBlocking { RangedDownload(destination, rangeSize, server::fetch).download() }
+
+        assertArrayEquals(content, destination.readBytes())
+        assertEquals(1, server.requestedRanges.size)
+    }
+
+    @Test
+    fun `it should start over when a server ignores ranges while resuming`() {
+        val destination = folder.newFile()
+        destination.writeBytes(file.copyOf(2000))
+        val server = FakeFileServer(file, supportsRanges = false)
+
+        try {
+            runBlocking { RangedDownload(destination, rangeSize, server::fetch).download() }
+            fail("Expected the download to fail")
+        } catch (e: IOException) {
+            // Expected
+        }
+
+        assertFalse(destination.exists())
+    }
+
+    @Test
+    fun `it should start over when a server ignores ranges while resuming a small file`() {
+        val content = file.copyOf(rangeSize)
+        val destination = folder.newFile()
+        destination.writeBytes(content.copyOf(400))
+        val server = FakeFileServer(content, supportsRanges = false)
+
+        try {
+            runBlocking { RangedDownload(destination, rangeSize, server::fetch).download() }
+            fail("Expected the download to fail")
+        } catch (e: IOException) {
+            // Expected
+        }
+
+        assertFalse(destination.exists())
+    }
+}
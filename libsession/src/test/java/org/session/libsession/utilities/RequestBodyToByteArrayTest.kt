@@ -0,0 +1,76 @@
+package org.session.libsession.utilities
+
+import okhttp3.MediaType
+import okhttp3.RequestBody
+import okio.BufferedSink
+import org.junit.Assert.assertArrayEquals
+import org.junit.Test
+import kotlin.random.Random
+
+class RequestBodyToByteArrayTest {
+
+    private val content = Random(13).nextBytes(20_000)
+
+    /**
+     * Writes [content] in chunks of [chunkSize] bytes, a lone byte at a time where it's 1, while
+     * claiming to be [contentLength] bytes long.
+     */
+    private class FakeBody(
+        private val content: ByteArray,
+        private val contentLength: Long,
+        private val chunkSize: Int = 4096,
+    ) : RequestBody() {
+        override fun contentType(): MediaType? = null
+        override fun contentLength(): Long = contentLength
+
+        override fun writeTo(sink: BufferedSink) {
+            val outputStream = sink.outputStream()
+            content.indices.step(chunkSize).forEach { offset ->
+                val count = minOf(chunkSize, content.size - offset)
+                if (count == 1) {
+                    outputStream.write(content[offset].toInt())
+                } else {
+                    outputStream.write(content, offset, count)
+                }
+            }
+            outputStream.flush()
+        }
+    }
+
+    @Test
+    fun `a body of its content length should come out whole`() {
+        listOf(1, 1000, 4096, content.size).forEach { chunkSize ->
+            val body = FakeBody(content, content.size.toLong(), chunkSize)
+
+            assertArrayEquals(content, body.toByteArray())
+        }
+    }
+
+    @Test
+    fun `a body shorter than its content length should come out whole`() {
+        listOf(1, 1000, 4096).forEach { chunkSize ->
+            val body = FakeBody(content, content.size + 500L, chunkSize)
+
+            assertArrayEquals(content, body.toByteArray())
+        }
+    }
+
+    @Test
+    fun `a body longer than its content length should come out whole`() {
+        listOf(1, 1000, 4096).forEach { chunkSize ->
+            val body = FakeBody(content, content.size - 500L, chunkSize)
+
+            assertArrayEquals(content, body.toByteArray())
+        }
+    }
+
+    @Test
+    fun `a body with an unknown content length should come out whole`() {
+        assertArrayEquals(content, FakeBody(content, -1).toByteArray())
+    }
+
+    @Test
+    fun `an empty body should come out empty`() {
+        assertArrayEquals(ByteArray(0), FakeBody(ByteArray(0), 0).toByteArray())
+    }
+}
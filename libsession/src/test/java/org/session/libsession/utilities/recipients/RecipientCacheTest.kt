@@ -0,0 +1,103 @@
+package org.session.libsession.utilities.recipients
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.mockito.kotlin.doReturn
+import org.mockito.kotlin.mock
+import org.session.libsession.utilities.Address
+
+class RecipientCacheTest {
+
+    private val cache = RecipientProvider.RecipientCache(10)
+
+    private fun address(index: Int, prefix: String = "05") = Address.fromSerialized(prefix + "%064x".format(index))
+
+    private fun recipient(
+        address: Address,
+        isLocalNumber: Boolean = false,
+        isApproved: Boolean = false,
+        hasListeners: Boolean = false,
+    ): Recipient = mock {
+        on { getAddress() } doReturn address
+        on { isLocalNumber() } doReturn isLocalNumber
+        on { isApproved() } doReturn isApproved
+        on { hasListeners() } doReturn hasListeners
+    }
+
+    private fun add(index: Int): Address = address(index).also { cache.set(it, recipient(it)) }
+
+    @Test
+    fun `a full cache should evict the least recently used recipients`() {
+        val addresses = (0 until 10).map(::add)
+        cache.get(addresses[0])
+
+        add(10)
+
+        assertEquals(9, cache.size())
+        assertTrue(cache.contains(addresses[0]))
+        (1..2).forEach { assertFalse(cache.contains(addresses[it])) }
+        (3 until 10).forEach { assertTrue(cache.contains(addresses[it])) }
+    }
+
+    @Test
+    fun `trim should look past pinned recipients until enough are evicted`() {
+        val pinned = listOf(
+            address(0, prefix = "03").let { recipient(it) },
+            address(1).let { recipient(it, isLocalNumber = true) },
+            address(2).let { recipient(it, isApproved = true) },
+            address(3).let { recipient(it, hasListeners = true) },
+        )
+        pinned.forEach { cache.set(it.address, it) }
+        val unpinned = (4 until 8).map(::add)
+
+        cache.trim(5)
+
+        assertEquals(5, cache.size())
+        pinned.forEach { assertSame(it, cache.get(it.address)) }
+        assertFalse(cache.contains(unpinned[0]))
+        assertFalse(cache.contains(unpinned[1]))
+        assertFalse(cache.contains(unpinned[2]))
+        assertTrue(cache.contains(unpinned[3]))
+    }
+
+    @Test
+    fun `trim should stop once only pinned recipients are left`() {
+        val pinned = (0 until 3).map { address(it).let { address -> recipient(address, isApproved = true) } }
+        pinned.forEach { cache.set(it.address, it) }
+        (3 until 6).forEach(::add)
+
+        cache.trim(0)
+
+        assertEquals(3, cache.size())
+        pinned.forEach { assertTrue(cache.contains(it.address)) }
+    }
+
+    @Test
+    fun `setIfAbsent should keep the cached recipient`() {
+        val address = address(0)
+        val cached = recipient(address)
+        cache.set(address, cached)
+
+        cache.setIfAbsent(address, recipient(address))
+
+        assertSame(cached, cache.get(address))
+    }
+
+    @Test
+    fun `stats should count hits and misses`() {
+        val address = add(0)
+        cache.get(address)
+        cache.get(address)
+        assertNull(cache.get(address(1)))
+
+        val stats = cache.stats
+
+        assertEquals(2L, stats.hits)
+        assertEquals(1L, stats.misses)
+        assertEquals(1, stats.size)
+    }
+}
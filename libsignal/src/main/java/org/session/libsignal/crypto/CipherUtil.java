@@ -1,8 +1,9 @@
 package org.session.libsignal.crypto;
 
 public class CipherUtil {
-    // Cipher operations are not thread-safe so we synchronize over them through doFinal to
-    // prevent crashes with quickly repeated encrypt/decrypt operations
+    // The AndroidKeyStore provider crashes with quickly repeated encrypt/decrypt operations, so
+    // operations on keystore backed keys are synchronized through doFinal.
     // https://github.com/mozilla-mobile/android-components/issues/5342
+    // Ciphers on plain in-memory keys aren't affected and only need to not be shared between threads.
     public static final Object CIPHER_LOCK = new Object();
 }
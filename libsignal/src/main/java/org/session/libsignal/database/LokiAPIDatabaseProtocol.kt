@@ -2,6 +2,7 @@ package org.session.libsignal.database
 
 import org.session.libsignal.crypto.ecc.ECKeyPair
 import org.session.libsignal.utilities.ForkInfo
+import org.session.libsignal.utilities.OnionPathHealth
 import org.session.libsignal.utilities.Snode
 import java.util.Date
 
@@ -13,14 +14,30 @@ interface LokiAPIDatabaseProtocol {
     fun clearSnodePool()
     fun clearOnionRequestPaths()
     fun setOnionRequestPaths(newValue: List<List<Snode>>)
+    /**
+     * Returns the health of the stored onion request paths, keyed by their guard snode.
+     */
+    fun getOnionRequestPathHealth(): Map<Snode, OnionPathHealth>
+    fun setOnionRequestPathHealth(newValue: Map<Snode, OnionPathHealth>)
     fun getSwarm(publicKey: String): Set<Snode>?
     fun setSwarm(publicKey: String, newValue: Set<Snode>)
     fun getLastMessageHashValue(snode: Snode, publicKey: String, namespace: Int): String?
     fun setLastMessageHashValue(snode: Snode, publicKey: String, newValue: String, namespace: Int)
     fun clearLastMessageHashes(publicKey: String)
     fun clearAllLastMessageHashes()
-    fun getReceivedMessageHashValues(publicKey: String, namespace: Int): Set<String>?
-    fun setReceivedMessageHashValues(publicKey: String, newValue: Set<String>, namespace: Int)
+    /**
+     * Returns the subset of [hashes] that has already been received for the given public key and namespace.
+     */
+    fun getReceivedMessageHashes(publicKey: String, namespace: Int, hashes: Collection<String>): Set<String>
+    /**
+     * Records the given message hashes (mapped to the time at which they expire on the swarm) and
+     * returns the ones that had not been received before.
+     */
+    fun addReceivedMessageHashes(publicKey: String, namespace: Int, hashes: Map<String, Long>): Set<String>
+    /**
+     * Deletes at most [limit] received message hashes that expired before [now], returning the number deleted.
+     */
+    fun pruneExpiredReceivedMessageHashes(now: Long, limit: Int): Int
     fun clearReceivedMessageHashValues(publicKey: String)
     fun clearReceivedMessageHashValues()
     fun getAuthToken(server: String): String?
@@ -6,8 +6,6 @@
 
 package org.session.libsignal.streams;
 
-import static org.session.libsignal.crypto.CipherUtil.CIPHER_LOCK;
-
 import org.session.libsignal.exceptions.InvalidMacException;
 import org.session.libsignal.exceptions.InvalidMessageException;
 import org.session.libsignal.utilities.Util;
@@ -43,6 +41,7 @@ public class AttachmentCipherInputStream extends FilterInputStream {
   private static final int BLOCK_SIZE      = 16;
   private static final int CIPHER_KEY_SIZE = 32;
   private static final int MAC_KEY_SIZE    = 32;
+  private static final int MAC_SIZE        = 32;
 
   private Cipher  cipher;
   private boolean done;
@@ -85,6 +84,28 @@ public class AttachmentCipherInputStream extends FilterInputStream {
     }
   }
 
+  /**
+   * Like {@link #createForAttachment(File, long, byte[], byte[])}, for a file whose MAC and digest
+   * were already checked with an {@link AttachmentMacVerifier} while it was being downloaded.
+   */
+  public static InputStream createForVerifiedAttachment(File file, long plaintextLength, byte[] combinedKeyMaterial)
+      throws InvalidMessageException, IOException
+  {
+    byte[][] parts = Util.split(combinedKeyMaterial, CIPHER_KEY_SIZE, MAC_KEY_SIZE);
+
+    if (file.length() <= BLOCK_SIZE + MAC_SIZE) {
+      throw new InvalidMessageException("Message shorter than crypto overhead!");
+    }
+
+    InputStream inputStream = new AttachmentCipherInputStream(new FileInputStream(file), parts[0], file.length() - BLOCK_SIZE - MAC_SIZE);
+
+    if (plaintextLength != 0) {
+      inputStream = new ContentLengthInputStream(inputStream, plaintextLength);
+    }
+
+    return inputStream;
+  }
+
   private AttachmentCipherInputStream(InputStream inputStream, byte[] cipherKey, long totalDataSize)
       throws IOException
   {
@@ -94,10 +115,8 @@ public class AttachmentCipherInputStream extends FilterInputStream {
       byte[] iv = new byte[BLOCK_SIZE];
       readFully(iv);
 
-      synchronized (CIPHER_LOCK) {
-        this.cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-        this.cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
-      }
+      this.cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+      this.cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
 
       this.done          = false;
       this.totalRead     = 0;
@@ -139,11 +158,9 @@ public class AttachmentCipherInputStream extends FilterInputStream {
 
   private int readFinal(byte[] buffer, int offset, int length) throws IOException {
     try {
-      synchronized (CIPHER_LOCK) {
-        int flourish = cipher.doFinal(buffer, offset);
-        done = true;
-        return flourish;
-      }
+      int flourish = cipher.doFinal(buffer, offset);
+      done = true;
+      return flourish;
     } catch (IllegalBlockSizeException | ShortBufferException | BadPaddingException e) {
       throw new IOException(e);
     }
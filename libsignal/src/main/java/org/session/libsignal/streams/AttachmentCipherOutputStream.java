@@ -6,8 +6,6 @@
 
 package org.session.libsignal.streams;
 
-import static org.session.libsignal.crypto.CipherUtil.CIPHER_LOCK;
-
 import org.session.libsignal.utilities.Util;
 
 import java.io.IOException;
@@ -70,10 +68,7 @@ public class AttachmentCipherOutputStream extends DigestingOutputStream {
   @Override
   public void flush() throws IOException {
     try {
-      byte[] ciphertext;
-      synchronized (CIPHER_LOCK) {
-        ciphertext = cipher.doFinal();
-      }
+      byte[] ciphertext = cipher.doFinal();
       byte[] auth       = mac.doFinal(ciphertext);
 
       super.write(ciphertext);
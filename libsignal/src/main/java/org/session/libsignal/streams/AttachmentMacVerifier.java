@@ -0,0 +1,106 @@
+package org.session.libsignal.streams;
+
+import org.session.libsignal.exceptions.InvalidMacException;
+import org.session.libsignal.utilities.Util;
+
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Checks the MAC and digest of an encrypted push attachment as its bytes arrive, so a download
+ * that is written to disk in pieces doesn't have to be read back in full before it's decrypted.
+ *
+ * The total length isn't known up front, so the last {@link Mac#getMacLength()} bytes seen are
+ * held back until {@link #verify()}, at which point they are the attachment's MAC.
+ */
+public class AttachmentMacVerifier {
+
+  private static final int CIPHER_KEY_SIZE = 32;
+  private static final int MAC_KEY_SIZE    = 32;
+
+  private final Mac           mac;
+  private final MessageDigest digest;
+  private final byte[]        theirDigest;
+  private final byte[]        tail;
+
+  private int  tailLength;
+  private long length;
+
+  public AttachmentMacVerifier(byte[] combinedKeyMaterial, byte[] theirDigest) {
+    try {
+      byte[][] parts = Util.split(combinedKeyMaterial, CIPHER_KEY_SIZE, MAC_KEY_SIZE);
+
+      this.mac = Mac.getInstance("HmacSHA256");
+      this.mac.init(new SecretKeySpec(parts[1], "HmacSHA256"));
+
+      this.digest      = MessageDigest.getInstance("SHA256");
+      this.theirDigest = theirDigest;
+      this.tail        = new byte[mac.getMacLength()];
+    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  public void update(byte[] buffer, int offset, int count) {
+    length += count;
+
+    int total = tailLength + count;
+    if (total <= tail.length) {
+      System.arraycopy(buffer, offset, tail, tailLength, count);
+      tailLength = total;
+      return;
+    }
+
+    // Everything except the last tail.length bytes is known not to be the MAC
+    int overflow   = total - tail.length;
+    int fromTail   = Math.min(overflow, tailLength);
+    int fromBuffer = overflow - fromTail;
+
+    mac.update(tail, 0, fromTail);
+    digest.update(tail, 0, fromTail);
+    mac.update(buffer, offset, fromBuffer);
+    digest.update(buffer, offset, fromBuffer);
+
+    int keptFromTail = tailLength - fromTail;
+    System.arraycopy(tail, fromTail, tail, 0, keptFromTail);
+    System.arraycopy(buffer, offset + fromBuffer, tail, keptFromTail, count - fromBuffer);
+    tailLength = tail.length;
+  }
+
+  public void update(byte[] buffer) {
+    update(buffer, 0, buffer.length);
+  }
+
+  /**
+   * @return the number of bytes seen so far, including the held back MAC.
+   */
+  public long getLength() {
+    return length;
+  }
+
+  public void verify() throws InvalidMacException {
+    if (theirDigest == null) {
+      throw new InvalidMacException("Missing digest!");
+    }
+
+    if (tailLength < tail.length) {
+      throw new InvalidMacException("Message shorter than MAC!");
+    }
+
+    byte[] ourMac = mac.doFinal();
+
+    if (!MessageDigest.isEqual(ourMac, tail)) {
+      throw new InvalidMacException("MAC doesn't match!");
+    }
+
+    byte[] ourDigest = digest.digest(tail);
+
+    if (!MessageDigest.isEqual(ourDigest, theirDigest)) {
+      throw new InvalidMacException("Digest doesn't match!");
+    }
+  }
+}
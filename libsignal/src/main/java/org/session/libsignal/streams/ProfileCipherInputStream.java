@@ -1,7 +1,5 @@
 package org.session.libsignal.streams;
 
-import static org.session.libsignal.crypto.CipherUtil.CIPHER_LOCK;
-
 import org.session.libsignal.utilities.Util;
 
 import java.io.FilterInputStream;
@@ -64,21 +62,19 @@ public class ProfileCipherInputStream extends FilterInputStream {
       byte[] ciphertext = new byte[outputLength / 2];
       int    read       = in.read(ciphertext, 0, ciphertext.length);
 
-      synchronized (CIPHER_LOCK) {
-        if (read == -1) {
-          if (cipher.getOutputSize(0) > outputLength) {
-            throw new AssertionError("Need: " + cipher.getOutputSize(0) + " but only have: " + outputLength);
-          }
-
-          finished = true;
-          return cipher.doFinal(output, outputOffset);
-        } else {
-          if (cipher.getOutputSize(read) > outputLength) {
-            throw new AssertionError("Need: " + cipher.getOutputSize(read) + " but only have: " + outputLength);
-          }
+      if (read == -1) {
+        if (cipher.getOutputSize(0) > outputLength) {
+          throw new AssertionError("Need: " + cipher.getOutputSize(0) + " but only have: " + outputLength);
+        }
 
-          return cipher.update(ciphertext, 0, read, output, outputOffset);
+        finished = true;
+        return cipher.doFinal(output, outputOffset);
+      } else {
+        if (cipher.getOutputSize(read) > outputLength) {
+          throw new AssertionError("Need: " + cipher.getOutputSize(read) + " but only have: " + outputLength);
         }
+
+        return cipher.update(ciphertext, 0, read, output, outputOffset);
       }
     } catch (IllegalBlockSizeException | ShortBufferException e) {
       throw new AssertionError(e);
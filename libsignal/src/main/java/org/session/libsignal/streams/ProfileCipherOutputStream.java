@@ -1,6 +1,5 @@
 package org.session.libsignal.streams;
 
-import static org.session.libsignal.crypto.CipherUtil.CIPHER_LOCK;
 import static org.session.libsignal.utilities.Util.SECURE_RANDOM;
 
 import java.io.IOException;
@@ -56,20 +55,14 @@ public class ProfileCipherOutputStream extends DigestingOutputStream {
     byte[] input = new byte[1];
     input[0] = (byte)b;
 
-    byte[] output;
-    synchronized (CIPHER_LOCK) {
-      output = cipher.update(input);
-    }
+    byte[] output = cipher.update(input);
     super.write(output);
   }
 
   @Override
   public void flush() throws IOException {
     try {
-      byte[] output;
-      synchronized (CIPHER_LOCK) {
-        output = cipher.doFinal();
-      }
+      byte[] output = cipher.doFinal();
 
       super.write(output);
       super.flush();
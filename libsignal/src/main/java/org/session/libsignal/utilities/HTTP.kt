@@ -4,14 +4,21 @@ import android.util.Log
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.withContext
 import okhttp3.Call
+import okhttp3.Connection
+import okhttp3.EventListener
 import okhttp3.MediaType.Companion.toMediaType
 import okhttp3.OkHttpClient
+import okhttp3.Protocol
 import okhttp3.Request
 import okhttp3.RequestBody
 import okhttp3.Response
 import org.session.libsignal.utilities.Util.SECURE_RANDOM
+import java.net.InetSocketAddress
+import java.net.Proxy
 import java.security.cert.X509Certificate
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
 import javax.net.ssl.SSLContext
 import javax.net.ssl.X509TrustManager
 
@@ -19,9 +26,28 @@ import javax.net.ssl.X509TrustManager
 object HTTP {
     var isConnectedToNetwork: (() -> Boolean) = { false }
 
-    private val seedNodeConnection by lazy {
+    /**
+     * How often calls got a connection from the shared pool rather than having to open a new one.
+     */
+    data class ConnectionStats(val acquired: Long, val opened: Long, val customTimeoutClients: Int) {
+        val reused: Long get() = acquired - opened
+    }
+
+    private val connectionsAcquired = AtomicLong()
+    private val connectionsOpened = AtomicLong()
 
+    // Every client is derived from this one so they share its connection pool and dispatcher
+    private val baseConnection by lazy {
         OkHttpClient().newBuilder()
+            .eventListener(object : EventListener() {
+                override fun connectionAcquired(call: Call, connection: Connection) { connectionsAcquired.incrementAndGet() }
+                override fun connectEnd(call: Call, inetSocketAddress: InetSocketAddress, proxy: Proxy, protocol: Protocol?) { connectionsOpened.incrementAndGet() }
+            })
+            .build()
+    }
+
+    private val seedNodeConnection by lazy {
+        baseConnection.newBuilder()
             .callTimeout(timeout, TimeUnit.SECONDS)
             .connectTimeout(timeout, TimeUnit.SECONDS)
             .readTimeout(timeout, TimeUnit.SECONDS)
@@ -39,7 +65,7 @@ object HTTP {
         }
         val sslContext = SSLContext.getInstance("SSL")
         sslContext.init(null, arrayOf( trustManager ), SECURE_RANDOM)
-        OkHttpClient().newBuilder()
+        baseConnection.newBuilder()
             .sslSocketFactory(sslContext.socketFactory, trustManager)
             .hostnameVerifier { _, _ -> true }
             .callTimeout(timeout, TimeUnit.SECONDS)
@@ -49,26 +75,26 @@ object HTTP {
             .build()
     }
 
-    private fun getDefaultConnection(timeout: Long): OkHttpClient {
-        // Snode to snode communication uses self-signed certificates but clients can safely ignore this
-        val trustManager = object : X509TrustManager {
+    private val customTimeoutConnections = ConcurrentHashMap<Long, OkHttpClient>()
 
-            override fun checkClientTrusted(chain: Array<out X509Certificate>?, authorizationType: String?) { }
-            override fun checkServerTrusted(chain: Array<out X509Certificate>?, authorizationType: String?) { }
-            override fun getAcceptedIssuers(): Array<X509Certificate> { return arrayOf() }
+    /**
+     * A snode client with the given timeout. It shares the default client's connection pool,
+     * dispatcher and TLS setup, so connections and TLS sessions are reused across timeouts.
+     */
+    private fun getDefaultConnection(timeout: Long): OkHttpClient {
+        return customTimeoutConnections.getOrPut(timeout) {
+            defaultConnection.newBuilder()
+                .callTimeout(timeout, TimeUnit.SECONDS)
+                .connectTimeout(timeout, TimeUnit.SECONDS)
+                .readTimeout(timeout, TimeUnit.SECONDS)
+                .writeTimeout(timeout, TimeUnit.SECONDS)
+                .build()
         }
-        val sslContext = SSLContext.getInstance("SSL")
-        sslContext.init(null, arrayOf( trustManager ), SECURE_RANDOM)
-        return OkHttpClient().newBuilder()
-            .sslSocketFactory(sslContext.socketFactory, trustManager)
-            .hostnameVerifier { _, _ -> true }
-            .callTimeout(timeout, TimeUnit.SECONDS)
-            .connectTimeout(timeout, TimeUnit.SECONDS)
-            .readTimeout(timeout, TimeUnit.SECONDS)
-            .writeTimeout(timeout, TimeUnit.SECONDS)
-            .build()
     }
 
+    fun getConnectionStats(): ConnectionStats =
+        ConnectionStats(connectionsAcquired.get(), connectionsOpened.get(), customTimeoutConnections.size)
+
     private const val timeout: Long = 120
 
     open class HTTPRequestFailedException(
@@ -148,8 +174,21 @@ object HTTP {
         }
     }
 
+    /**
+     * How many blocking HTTP calls can be in flight at once.
+     */
+    var maxParallelCalls: Int = 15
+        set(value) {
+            require(value > 0) { "maxParallelCalls must be positive." }
+            field = value
+            httpCallDispatcher = createHttpCallDispatcher(value)
+        }
+
+    @Volatile
+    private var httpCallDispatcher = createHttpCallDispatcher(maxParallelCalls)
+
     @Suppress("OPT_IN_USAGE")
-    private val httpCallDispatcher = Dispatchers.IO.limitedParallelism(15)
+    private fun createHttpCallDispatcher(parallelism: Int) = Dispatchers.IO.limitedParallelism(parallelism)
 
     private suspend fun Call.await(): Response {
         return withContext(httpCallDispatcher) {
@@ -28,7 +28,11 @@ public class JsonUtil {
   }
 
   public static <T> T fromJson(byte[] serialized, Class<T> clazz) throws IOException {
-    return fromJson(new String(serialized), clazz);
+    return objectMapper.readValue(serialized, clazz);
+  }
+
+  public static <T> T fromJson(byte[] serialized, int offset, int length, Class<T> clazz) throws IOException {
+    return objectMapper.readValue(serialized, offset, length, clazz);
   }
 
   public static <T> T fromJson(String serialized, TypeReference<T> typeReference) throws IOException {
@@ -0,0 +1,24 @@
+package org.session.libsignal.utilities
+
+/**
+ * How well an onion request path has been doing. Paths are told apart by their guard snode.
+ *
+ * @param roundTripTime an exponentially weighted moving average of the path's round trip time in
+ * milliseconds, or null while nothing has gone through it yet.
+ * @param failureCount the number of requests that failed on the path since it was built.
+ */
+data class OnionPathHealth(val roundTripTime: Double? = null, val failureCount: Int = 0) {
+
+    companion object {
+        /**
+         * How much a new round trip time counts towards the average. Recent requests matter most, but
+         * a single slow one doesn't make a path look bad.
+         */
+        const val ROUND_TRIP_TIME_WEIGHT = 0.3
+    }
+
+    fun withRoundTripTime(sample: Double): OnionPathHealth =
+        copy(roundTripTime = roundTripTime?.let { it + ROUND_TRIP_TIME_WEIGHT * (sample - it) } ?: sample)
+
+    fun withFailure(): OnionPathHealth = copy(failureCount = failureCount + 1)
+}
@@ -0,0 +1,90 @@
+package org.session.libsignal.streams
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertThrows
+import org.junit.Test
+import org.session.libsignal.exceptions.InvalidMacException
+import java.security.MessageDigest
+import javax.crypto.Mac
+import javax.crypto.spec.SecretKeySpec
+import kotlin.random.Random
+
+class AttachmentMacVerifierTest {
+
+    private val random = Random(7)
+    private val keyMaterial = random.nextBytes(64)
+
+    // The IV and ciphertext followed by their MAC, as it's uploaded
+    private val body = random.nextBytes(10_000)
+    private val attachment = body + Mac.getInstance("HmacSHA256").run {
+        init(SecretKeySpec(keyMaterial.copyOfRange(32, 64), "HmacSHA256"))
+        doFinal(body)
+    }
+    private val digest = MessageDigest.getInstance("SHA256").digest(attachment)
+
+    private fun verifier(data: ByteArray, chunkSizes: List<Int> = listOf(4096)): AttachmentMacVerifier {
+        val verifier = AttachmentMacVerifier(keyMaterial, digest)
+        var offset = 0
+        var chunk = 0
+        while (offset < data.size) {
+            val count = minOf(chunkSizes[chunk++ % chunkSizes.size], data.size - offset)
+            verifier.update(data, offset, count)
+            offset += count
+        }
+        return verifier
+    }
+
+    @Test
+    fun `a good attachment should verify whatever the chunk sizes`() {
+        listOf(listOf(attachment.size), listOf(1), listOf(31, 32, 33), listOf(4096, 7, 1)).forEach { chunkSizes ->
+            val verifier = verifier(attachment, chunkSizes)
+
+            verifier.verify()
+            assertEquals(attachment.size.toLong(), verifier.length)
+        }
+    }
+
+    @Test
+    fun `a tampered body should fail`() {
+        val tampered = attachment.copyOf().also { it[1234] = (it[1234] + 1).toByte() }
+
+        val e = assertThrows(InvalidMacException::class.java) { verifier(tampered).verify() }
+
+        assertEquals("MAC doesn't match!", e.message)
+    }
+
+    @Test
+    fun `a tampered MAC should fail`() {
+        val tampered = attachment.copyOf().also { it[it.size - 1] = (it[it.size - 1] + 1).toByte() }
+
+        val e = assertThrows(InvalidMacException::class.java) { verifier(tampered, listOf(100)).verify() }
+
+        assertEquals("MAC doesn't match!", e.message)
+    }
+
+    @Test
+    fun `a truncated tail should fail`() {
+        val truncated = attachment.copyOf(attachment.size - 10)
+
+        val e = assertThrows(InvalidMacException::class.java) { verifier(truncated).verify() }
+
+        assertEquals("MAC doesn't match!", e.message)
+    }
+
+    @Test
+    fun `an attachment shorter than a MAC should fail`() {
+        val e = assertThrows(InvalidMacException::class.java) { verifier(attachment.copyOf(31)).verify() }
+
+        assertEquals("Message shorter than MAC!", e.message)
+    }
+
+    @Test
+    fun `a digest that doesn't match should fail`() {
+        val verifier = AttachmentMacVerifier(keyMaterial, ByteArray(32))
+        verifier.update(attachment)
+
+        val e = assertThrows(InvalidMacException::class.java) { verifier.verify() }
+
+        assertEquals("Digest doesn't match!", e.message)
+    }
+}